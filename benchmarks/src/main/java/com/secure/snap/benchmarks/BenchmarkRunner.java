@@ -0,0 +1,73 @@
+package com.secure.snap.benchmarks;
+
+import net.steppschuh.markdowngenerator.table.Table;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Collection;
+import java.util.Locale;
+
+/**
+ * Runs {@link SecureSnapBenchmark} with the GC profiler and writes the raw results as JSON.
+ * <p>
+ * Any standard JMH command-line option can be passed (for example {@code -p payloadSize=1024} to narrow the
+ * parameter space). The JSON file defaults to {@code securesnap-jmh.json} and can be changed with {@code -rff}.
+ */
+public class BenchmarkRunner {
+
+    private static final String DEFAULT_RESULT_FILE = "securesnap-jmh.json";
+    private static final double BYTES_PER_MEGABYTE = 1024.0 * 1024.0;
+
+    /**
+     * Main method to run the benchmarks.
+     * @param args JMH command-line options
+     * @throws Exception If the options are invalid or a benchmark fails
+     */
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions commandLine = new CommandLineOptions(args);
+        OptionsBuilder builder = new OptionsBuilder();
+        builder.parent(commandLine);
+        builder.include(SecureSnapBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .resultFormat(ResultFormatType.JSON);
+        if (!commandLine.getResult().hasValue()) {
+            builder.result(DEFAULT_RESULT_FILE);
+        }
+        Options options = builder.build();
+
+        Collection<RunResult> results = new Runner(options).run();
+        printThroughput(results);
+    }
+
+    /**
+     * Prints the throughput of every throughput-mode run in MB/s.
+     * @param results The JMH run results
+     */
+    private static void printThroughput(Collection<RunResult> results) {
+        Table.Builder table = new Table.Builder()
+                .withAlignments(Table.ALIGN_LEFT, Table.ALIGN_LEFT, Table.ALIGN_LEFT, Table.ALIGN_LEFT, Table.ALIGN_LEFT)
+                .addRow("Benchmark", "Algorithm", "Payload (bytes)", "Storage", "Throughput (MB/s)");
+        for (RunResult result : results) {
+            BenchmarkParams params = result.getParams();
+            Result<?> bytes = result.getSecondaryResults().get("bytes");
+            if (bytes == null || params.getMode() != Mode.Throughput) {
+                continue;
+            }
+            String benchmark = params.getBenchmark();
+            table.addRow(benchmark.substring(benchmark.lastIndexOf('.') + 1),
+                    params.getParam("algorithm"),
+                    params.getParam("payloadSize"),
+                    params.getParam("storage"),
+                    String.format(Locale.ROOT, "%.2f", bytes.getScore() / BYTES_PER_MEGABYTE));
+        }
+        System.out.println(table.build());
+    }
+}
@@ -0,0 +1,203 @@
+package com.secure.snap.benchmarks;
+
+import com.secure.snap.AllSecureSnap;
+import com.secure.snap.ChaChaSecureSnap;
+import com.secure.snap.GenericSecureSnap;
+import com.secure.snap.SecureSnap;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * JMH benchmark for every {@link GenericSecureSnap} implementation, parameterized by payload size and storage.
+ * <p>
+ * Each invocation encrypts or decrypts one payload of {@code payloadSize} bytes, capped for {@link Storage#HEAP}.
+ * The {@link Bytes} auxiliary counter reports the processed bytes per second next to the operation rate, which
+ * {@link BenchmarkRunner} turns into MB/s.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgs = {"-Xms4g", "-Xmx4g"})
+public class SecureSnapBenchmark {
+
+    /**
+     * Where the benchmark stages its input and output files.
+     */
+    public enum Storage {
+        /**
+         * A RAM-backed file system ({@code /dev/shm} when available), so the numbers are close to pure cipher cost.
+         */
+        MEMORY,
+        /**
+         * The directory named by {@code securesnap.bench.dir}, or the JVM temporary directory.
+         */
+        DISK,
+        /**
+         * No file system at all: payloads stay in byte arrays and go through the in-memory API. Payloads are capped
+         * at {@link SecureSnapBenchmark#MAX_HEAP_PAYLOAD} bytes, so that plaintext, ciphertext and result fit in the
+         * fork's heap.
+         */
+        HEAP
+    }
+
+    /**
+     * The largest payload of {@link Storage#HEAP} runs; larger sizes run with this many bytes and report them.
+     */
+    static final int MAX_HEAP_PAYLOAD = 64 * 1024 * 1024;
+
+    @Param({"AES", "ChaCha20", "Blowfish", "SEED", "DESede", "Camellia",
+            "Blowfish-CTR", "SEED-CTR", "DESede-CTR", "Camellia-CTR"})
+    public String algorithm;
+
+    // 1 KB, 1 MB, 64 MB and 1 GB
+    @Param({"1024", "1048576", "67108864", "1073741824"})
+    public int payloadSize;
+
+    @Param({"MEMORY", "DISK", "HEAP"})
+    public Storage storage;
+
+    private GenericSecureSnap snap;
+    private int length;
+    private Path workDir;
+    private String plainFile;
+    private String encryptedFile;
+    private String outputFile;
+    private byte[] plaintext;
+    private byte[] ciphertext;
+
+    /**
+     * Counts the bytes processed by the current thread; JMH reports it as a rate in bytes per second.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Bytes {
+        public long bytes;
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        snap = createSnap(algorithm);
+        if (storage == Storage.HEAP) {
+            length = Math.min(payloadSize, MAX_HEAP_PAYLOAD);
+            plaintext = new byte[length];
+            new SplittableRandom(length).nextBytes(plaintext);
+            ciphertext = snap.encrypt(plaintext);
+            return;
+        }
+        length = payloadSize;
+        workDir = Files.createTempDirectory(stagingRoot(storage), "securesnap-bench-");
+        plainFile = workDir.resolve("payload.bin").toString();
+        encryptedFile = workDir.resolve("payload.bin.enc").toString();
+        outputFile = workDir.resolve("payload.out").toString();
+
+        writeRandomPayload(Path.of(plainFile), payloadSize);
+        snap.encrypt(plainFile, encryptedFile);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        if (workDir == null) {
+            return;
+        }
+        try (Stream<Path> files = Files.walk(workDir)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    @Benchmark
+    public Object encrypt(Bytes counter) throws Exception {
+        Object result = null;
+        if (storage == Storage.HEAP) {
+            result = snap.encrypt(plaintext);
+        } else {
+            snap.encrypt(plainFile, outputFile);
+        }
+        counter.bytes += length;
+        return result;
+    }
+
+    @Benchmark
+    public Object decrypt(Bytes counter) throws Exception {
+        Object result = null;
+        if (storage == Storage.HEAP) {
+            result = snap.decrypt(ciphertext);
+        } else {
+            snap.decrypt(encryptedFile, outputFile);
+        }
+        counter.bytes += length;
+        return result;
+    }
+
+    /**
+     * Creates the implementation under test, using the same parameters as {@code AlgorithmPerformanceTester}.
+     *
+     * @param algorithm The algorithm name, with the suffix {@code -CTR} for the parallel authenticated counter mode.
+     * @return The implementation for that algorithm.
+     * @throws Exception If the key cannot be loaded or generated.
+     */
+    static GenericSecureSnap createSnap(String algorithm) throws Exception {
+        return switch (algorithm) {
+            case "AES" -> new SecureSnap();
+            case "ChaCha20" -> new ChaChaSecureSnap();
+            case "Blowfish" -> new AllSecureSnap("Blowfish", "ECB", "PKCS5Padding", 128);
+            case "SEED" -> new AllSecureSnap("SEED", "ECB", "PKCS5Padding", 128);
+            case "DESede" -> new AllSecureSnap("DESede", "ECB", "PKCS5Padding", 168);
+            case "Camellia" -> new AllSecureSnap("Camellia", "ECB", "PKCS5Padding", 128);
+            case "Blowfish-CTR" -> new AllSecureSnap("Blowfish", "CTR", AllSecureSnap.HMAC_PADDING, 128);
+            case "SEED-CTR" -> new AllSecureSnap("SEED", "CTR", AllSecureSnap.HMAC_PADDING, 128);
+            case "DESede-CTR" -> new AllSecureSnap("DESede", "CTR", AllSecureSnap.HMAC_PADDING, 168);
+            case "Camellia-CTR" -> new AllSecureSnap("Camellia", "CTR", AllSecureSnap.HMAC_PADDING, 128);
+            default -> throw new IllegalArgumentException("Unknown algorithm: " + algorithm);
+        };
+    }
+
+    private static Path stagingRoot(Storage storage) {
+        if (storage == Storage.MEMORY) {
+            Path shm = Path.of("/dev/shm");
+            if (Files.isDirectory(shm) && Files.isWritable(shm)) {
+                return shm;
+            }
+            System.err.println("No RAM-backed file system found, MEMORY falls back to the temporary directory");
+        }
+        return Path.of(System.getProperty("securesnap.bench.dir", System.getProperty("java.io.tmpdir")));
+    }
+
+    private static void writeRandomPayload(Path file, long size) throws IOException {
+        SplittableRandom random = new SplittableRandom(size);
+        byte[] buffer = new byte[1 << 20];
+        try (OutputStream out = Files.newOutputStream(file)) {
+            long remaining = size;
+            while (remaining > 0) {
+                int length = (int) Math.min(buffer.length, remaining);
+                random.nextBytes(buffer);
+                out.write(buffer, 0, length);
+                remaining -= length;
+            }
+        }
+    }
+}
@@ -1,45 +1,96 @@
 package com.secure.snap;
 
 import javax.crypto.*;
-import java.io.*;
-import java.nio.file.Files;
+import javax.crypto.spec.IvParameterSpec;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.Path;
+import java.util.Arrays;
 
 /**
  * Implementation of GenericSecureSnap for handling encryption and decryption using various algorithms and parameters.
+ * <p>
+ * The output is a self-describing container: a {@link SnapHeader} naming the algorithm and carrying the wrapped
+ * per-file data key and the IV (if the mode needs one), followed by the ciphertext and its {@link MerkleTree}. The
+ * tree is unkeyed: it detects accidental corruption (bit rot) only, and lets the ciphertext be scrubbed without the
+ * key. Anyone who can modify the file can recompute it, so ECB/CBC output remains unauthenticated.
+ * Streams, channels, byte arrays and buffers are encrypted in memory into the same container, without touching the
+ * disk.
+ * <p>
+ * Mode {@code CTR} with padding {@value #HMAC_PADDING} selects an authenticated counter mode instead (see
+ * {@link CtrHmacCipher}), written in the segmented container of {@link SecureSnap}: segments are sealed in parallel,
+ * so throughput scales with cores rather than being capped at one core's block-cipher speed, and every segment is
+ * authenticated. This is the mode to use for the ciphers without hardware support, such as Blowfish, SEED, DESede
+ * and Camellia.
+ * <p>
+ * Instances are thread-safe: ciphers are borrowed from a per-instance pool for the duration of each call.
  */
 public class AllSecureSnap implements GenericSecureSnap {
 
-    private final SecretKey key;
-    private final String keyFilePath = "DESClave.ser";
-    private String algorithm;
-    private String mode;
-    private String padding;
-    private int keySize;
+    /**
+     * The padding name that, with mode {@code CTR}, selects the parallel authenticated counter mode.
+     */
+    public static final String HMAC_PADDING = CtrHmacCipher.MAC_ALGORITHM;
+
+    private static final int STREAM_CHUNK_SIZE = 64 * 1024;
+    // the largest array most JVMs can allocate
+    private static final long MAX_ARRAY_LENGTH = Integer.MAX_VALUE - 8;
+
+    private final Keyring keyring;
+    private final String algorithm;
+    private final String mode;
+    private final String padding;
+    private final int keySize;
+    private final String algorithmId;
+    private final InstancePool<Cipher> ciphers;
+    private final OperationMetrics encryptMetrics;
+    private final OperationMetrics decryptMetrics;
+    // the segmented engine of the authenticated counter mode, or null for plain JCA modes
+    private final SecureSnap segmented;
 
     /**
-     * Initializes the AllSecureSnap instance with the specified algorithm, mode, padding, and key size.
+     * Initializes the AllSecureSnap instance with the specified algorithm, mode, padding, and key size, using the
+     * default {@link Keyring}.
      *
      * @param algorithm The encryption algorithm to use.
      * @param mode      The encryption mode to use.
      * @param padding   The padding scheme to use.
      * @param keySize   The size of the encryption key.
-     * @throws Exception If an error occurs during key generation or loading.
+     * @throws Exception If an error occurs while opening the keyring.
      */
     public AllSecureSnap(String algorithm, String mode, String padding, int keySize) throws Exception {
+        this(algorithm, mode, padding, keySize, Keyring.openDefault());
+    }
+
+    /**
+     * Initializes the AllSecureSnap instance with the specified algorithm, mode, padding, key size and keyring.
+     *
+     * @param algorithm The encryption algorithm to use.
+     * @param mode      The encryption mode to use.
+     * @param padding   The padding scheme to use.
+     * @param keySize   The size of the per-file data keys.
+     * @param keyring   The keyring that wraps the per-file data keys.
+     */
+    public AllSecureSnap(String algorithm, String mode, String padding, int keySize, Keyring keyring) {
         this.algorithm = algorithm;
         this.mode = mode;
         this.padding = padding;
         this.keySize = keySize;
-
-        if (Files.exists(Path.of(keyFilePath))) {
-            this.key = loadSecretKey();
-        } else {
-            KeyGenerator keyGen = KeyGenerator.getInstance(algorithm);
-            keyGen.init(keySize);
-            this.key = keyGen.generateKey();
-            saveSecretKey();
-        }
+        this.keyring = keyring;
+        this.algorithmId = algorithm + keySize + "/" + mode + "/" + padding;
+        this.ciphers = new InstancePool<>(() -> CryptoProviders.newCipher(algorithm + "/" + mode + "/" + padding));
+        this.encryptMetrics = SnapMetrics.of(algorithmId, SnapMetrics.Operation.ENCRYPT);
+        this.decryptMetrics = SnapMetrics.of(algorithmId, SnapMetrics.Operation.DECRYPT);
+        this.segmented = "CTR".equalsIgnoreCase(mode) && HMAC_PADDING.equalsIgnoreCase(padding)
+                ? new SecureSnap(keyring, algorithmId, algorithm, keySize,
+                (key, segmentSize) -> new CtrHmacCipher(algorithm, key, segmentSize))
+                : null;
     }
 
     /**
@@ -48,7 +99,7 @@ public class AllSecureSnap implements GenericSecureSnap {
      * @return The encryption algorithm with its parameters.
      */
     public String getAlgorithm() {
-        return algorithm + this.keySize + "/" + mode + "/" + padding;
+        return algorithmId;
     }
 
     /**
@@ -59,17 +110,30 @@ public class AllSecureSnap implements GenericSecureSnap {
      * @throws Exception If an error occurs during encryption.
      */
     public void encrypt(String inputFile, String outputFile) throws Exception {
-        Cipher cipher = Cipher.getInstance(algorithm + "/" + mode + "/" + padding);
-        cipher.init(Cipher.ENCRYPT_MODE, key);
-
-        try (BufferedInputStream bis = new BufferedInputStream(new FileInputStream(inputFile));
-             CipherOutputStream cos = new CipherOutputStream(new BufferedOutputStream(new FileOutputStream(outputFile)), cipher)) {
+        if (segmented != null) {
+            segmented.encrypt(inputFile, outputFile);
+            return;
+        }
+        Cipher cipher = ciphers.acquire();
+        try {
+            Keyring.DataKey dataKey = keyring.newDataKey(getAlgorithm(), algorithm, keySize);
+            byte[] iv = usesIv() ? Randoms.nextBytes(cipher.getBlockSize()) : new byte[0];
+            init(cipher, Cipher.ENCRYPT_MODE, dataKey.key(), iv);
+            SnapHeader header = SnapHeader.of(getAlgorithm(), dataKey, iv, 0)
+                    .withMerkleTree(0, new byte[MerkleTree.HASH_LENGTH]);
 
-            byte[] buffer = new byte[8192];
-            int bytesRead;
-            while ((bytesRead = bis.read(buffer)) != -1) {
-                cos.write(buffer, 0, bytesRead);
+            try (FileChannel in = ChannelCipher.openForRead(Path.of(inputFile));
+                 FileChannel out = ChannelCipher.openForWrite(Path.of(outputFile))) {
+                byte[] encodedHeader = header.encode();
+                ChannelCipher.writeFully(out, ByteBuffer.wrap(encodedHeader));
+                long size = in.size();
+                MerkleTree.Leaves leaves = new MerkleTree.Leaves(header, size);
+                ChannelCipher.transform(cipher, in, out, size, encryptMetrics, leaves);
+                encryptMetrics.recordBytes(size);
+                MerkleTree.seal(out, header, encodedHeader.length, leaves);
             }
+        } finally {
+            ciphers.release(cipher);
         }
     }
 
@@ -81,43 +145,267 @@ public class AllSecureSnap implements GenericSecureSnap {
      * @throws Exception If an error occurs during decryption.
      */
     public void decrypt(String inputFile, String outputFile) throws Exception {
-        Cipher cipher = Cipher.getInstance(algorithm + "/" + mode + "/" + padding);
-        cipher.init(Cipher.DECRYPT_MODE, key);
+        if (segmented != null) {
+            segmented.decrypt(inputFile, outputFile);
+            return;
+        }
+        Cipher cipher = ciphers.acquire();
+        try (FileChannel in = ChannelCipher.openForRead(Path.of(inputFile))) {
+            SnapHeader header = SnapHeader.read(Channels.newInputStream(in));
+            header.verify(getAlgorithm());
+            init(cipher, Cipher.DECRYPT_MODE, keyring.unwrap(header, algorithm), header.nonce());
+
+            try (FileChannel out = ChannelCipher.openForWrite(Path.of(outputFile))) {
+                long length = header.payloadBytes(in.size() - in.position());
+                ChannelCipher.transform(cipher, in, out, length, decryptMetrics);
+                decryptMetrics.recordBytes(length);
+            }
+        } finally {
+            ciphers.release(cipher);
+        }
+    }
 
-        try (CipherInputStream cis = new CipherInputStream(new BufferedInputStream(new FileInputStream(inputFile)), cipher);
-             BufferedOutputStream bos = new BufferedOutputStream(new FileOutputStream(outputFile))) {
+    /**
+     * Encrypts a stream without staging it on disk. The header precedes the payload and cannot be patched afterwards,
+     * so streamed containers carry no {@link MerkleTree}; they decrypt like any other container.
+     *
+     * @param in  The plaintext, read to its end.
+     * @param out Receives the encrypted container.
+     * @throws Exception If an error occurs during encryption.
+     */
+    @Override
+    public void encrypt(InputStream in, OutputStream out) throws Exception {
+        if (segmented != null) {
+            segmented.encrypt(in, out);
+            return;
+        }
+        Cipher cipher = ciphers.acquire();
+        try {
+            Keyring.DataKey dataKey = keyring.newDataKey(getAlgorithm(), algorithm, keySize);
+            byte[] iv = usesIv() ? Randoms.nextBytes(cipher.getBlockSize()) : new byte[0];
+            init(cipher, Cipher.ENCRYPT_MODE, dataKey.key(), iv);
+            out.write(SnapHeader.of(getAlgorithm(), dataKey, iv, 0).encode());
+            encryptMetrics.recordBytes(transform(cipher, in, out));
+        } finally {
+            ciphers.release(cipher);
+        }
+    }
 
-            byte[] buffer = new byte[8192];
-            int bytesRead;
-            while ((bytesRead = cis.read(buffer)) != -1) {
-                bos.write(buffer, 0, bytesRead);
+    /**
+     * Decrypts a container from a stream without staging it on disk.
+     *
+     * @param in  The encrypted container, read up to the end of its payload.
+     * @param out Receives the plaintext.
+     * @throws Exception If an error occurs during decryption.
+     */
+    @Override
+    public void decrypt(InputStream in, OutputStream out) throws Exception {
+        if (segmented != null) {
+            segmented.decrypt(in, out);
+            return;
+        }
+        Cipher cipher = ciphers.acquire();
+        try {
+            SnapHeader header = SnapHeader.read(in);
+            header.verify(getAlgorithm());
+            init(cipher, Cipher.DECRYPT_MODE, keyring.unwrap(header, algorithm), header.nonce());
+            long read = transform(cipher, header.payloadStream(in), out);
+            decryptMetrics.recordBytes(read);
+            if (header.hasMerkleTree() && read != header.payloadLength()) {
+                throw new IOException("Truncated SecureSnap container");
             }
+        } finally {
+            ciphers.release(cipher);
         }
     }
 
     /**
-     * Saves the generated secret key to a file.
+     * Encrypts a channel without staging it on disk: the authenticated counter mode uses the parallel channel path of
+     * {@link SecureSnap}, other modes run through {@link #encrypt(InputStream, OutputStream)}.
      *
-     * @throws IOException If an error occurs during file I/O.
+     * @param in  The plaintext, read to its end.
+     * @param out Receives the encrypted container.
+     * @throws Exception If an error occurs during encryption.
      */
-    private void saveSecretKey() throws IOException {
-        try (ObjectOutputStream fileKey = new ObjectOutputStream(new FileOutputStream(keyFilePath))) {
-            fileKey.writeObject(key);
+    @Override
+    public void encrypt(ReadableByteChannel in, WritableByteChannel out) throws Exception {
+        if (segmented != null) {
+            segmented.encrypt(in, out);
+            return;
         }
+        OutputStream stream = Channels.newOutputStream(out);
+        encrypt(Channels.newInputStream(in), stream);
+        stream.flush();
     }
 
     /**
-     * Loads the secret key from a file.
+     * Decrypts a container from a channel without staging it on disk: the authenticated counter mode uses the
+     * parallel channel path of {@link SecureSnap}, other modes run through {@link #decrypt(InputStream, OutputStream)}.
      *
-     * @return The loaded secret key.
-     * @throws IOException            If an error occurs during file I/O.
-     * @throws ClassNotFoundException If the class of the serialized object cannot be found.
+     * @param in  The encrypted container, read up to the end of its payload.
+     * @param out Receives the plaintext.
+     * @throws Exception If an error occurs during decryption.
      */
-    private SecretKey loadSecretKey() throws IOException, ClassNotFoundException {
-        try (ObjectInputStream fileKey = new ObjectInputStream(new FileInputStream(keyFilePath))) {
-            return (SecretKey) fileKey.readObject();
+    @Override
+    public void decrypt(ReadableByteChannel in, WritableByteChannel out) throws Exception {
+        if (segmented != null) {
+            segmented.decrypt(in, out);
+            return;
         }
+        OutputStream stream = Channels.newOutputStream(out);
+        decrypt(Channels.newInputStream(in), stream);
+        stream.flush();
+    }
+
+    /**
+     * Encrypts a byte array in memory. The container is identical to the file format, including the
+     * {@link MerkleTree}.
+     *
+     * @param plaintext The plaintext.
+     * @return The encrypted container.
+     * @throws Exception If an error occurs during encryption.
+     */
+    @Override
+    public byte[] encrypt(byte[] plaintext) throws Exception {
+        return toArray(encrypt(ByteBuffer.wrap(plaintext)));
+    }
+
+    /**
+     * Decrypts a container held in a byte array.
+     *
+     * @param container The encrypted container.
+     * @return The plaintext.
+     * @throws Exception If an error occurs during decryption.
+     */
+    @Override
+    public byte[] decrypt(byte[] container) throws Exception {
+        return toArray(decrypt(ByteBuffer.wrap(container)));
+    }
+
+    /**
+     * Encrypts the remaining bytes of a buffer in memory, with a single cipher call into a container allocated at
+     * its final size.
+     *
+     * @param plaintext The plaintext; its position is advanced to its limit.
+     * @return A new heap buffer holding the encrypted container.
+     * @throws Exception If an error occurs during encryption.
+     */
+    @Override
+    public ByteBuffer encrypt(ByteBuffer plaintext) throws Exception {
+        if (segmented != null) {
+            return segmented.encrypt(plaintext);
+        }
+        Cipher cipher = ciphers.acquire();
+        try {
+            Keyring.DataKey dataKey = keyring.newDataKey(getAlgorithm(), algorithm, keySize);
+            byte[] iv = usesIv() ? Randoms.nextBytes(cipher.getBlockSize()) : new byte[0];
+            init(cipher, Cipher.ENCRYPT_MODE, dataKey.key(), iv);
+            SnapHeader header = SnapHeader.of(getAlgorithm(), dataKey, iv, 0)
+                    .withMerkleTree(0, new byte[MerkleTree.HASH_LENGTH]);
+
+            byte[] encodedHeader = header.encode();
+            // exact for every mode this engine supports, so the buffer is normally filled completely
+            long maxPayload = cipher.getOutputSize(plaintext.remaining());
+            long capacity = encodedHeader.length + maxPayload + MerkleTree.treeLength(header, maxPayload);
+            if (capacity > MAX_ARRAY_LENGTH) {
+                throw new IOException("Payload too large for an in-memory container: " + plaintext.remaining());
+            }
+            ByteBuffer container = ByteBuffer.allocate((int) capacity).put(encodedHeader);
+            long cipherStart = System.nanoTime();
+            encryptMetrics.recordBytes(plaintext.remaining());
+            int payloadLength = cipher.doFinal(plaintext, container);
+            encryptMetrics.recordCipher(System.nanoTime() - cipherStart);
+            int length = MerkleTree.seal(container, header, encodedHeader.length, payloadLength);
+            return container.clear().limit(length);
+        } finally {
+            ciphers.release(cipher);
+        }
+    }
+
+    /**
+     * Decrypts a container held in the remaining bytes of a buffer, with a single cipher call.
+     *
+     * @param container The encrypted container; its position is advanced to its limit.
+     * @return A new heap buffer holding the plaintext.
+     * @throws Exception If an error occurs during decryption.
+     */
+    @Override
+    public ByteBuffer decrypt(ByteBuffer container) throws Exception {
+        if (segmented != null) {
+            return segmented.decrypt(container);
+        }
+        Cipher cipher = ciphers.acquire();
+        try {
+            SnapHeader header = SnapHeader.read(container);
+            header.verify(getAlgorithm());
+            init(cipher, Cipher.DECRYPT_MODE, keyring.unwrap(header, algorithm), header.nonce());
+            int payloadLength = (int) header.payloadBytes(container.remaining());
+            ByteBuffer plaintext = ByteBuffer.allocate(cipher.getOutputSize(payloadLength));
+            long cipherStart = System.nanoTime();
+            decryptMetrics.recordBytes(payloadLength);
+            cipher.doFinal(container.slice(container.position(), payloadLength), plaintext);
+            decryptMetrics.recordCipher(System.nanoTime() - cipherStart);
+            container.position(container.limit());
+            return plaintext.flip();
+        } finally {
+            ciphers.release(cipher);
+        }
+    }
+
+    /**
+     * Runs a stream through an initialized cipher.
+     *
+     * @param cipher The cipher, already initialized for encryption or decryption.
+     * @param in     The input, read to its end.
+     * @param out    Receives the output.
+     * @return The number of input bytes.
+     * @throws Exception If an I/O or cipher error occurs.
+     */
+    private static long transform(Cipher cipher, InputStream in, OutputStream out) throws Exception {
+        byte[] input = new byte[STREAM_CHUNK_SIZE];
+        // room for a block held back from the previous update plus the padding block some providers reserve
+        byte[] output = new byte[STREAM_CHUNK_SIZE + 2 * Math.max(cipher.getBlockSize(), 1)];
+        long total = 0;
+        for (int read = in.read(input); read >= 0; read = in.read(input)) {
+            total += read;
+            out.write(output, 0, cipher.update(input, 0, read, output, 0));
+        }
+        out.write(output, 0, cipher.doFinal(output, 0));
+        return total;
+    }
+
+    /**
+     * Returns the content of a heap buffer from {@link #encrypt(ByteBuffer)} or {@link #decrypt(ByteBuffer)},
+     * copying only if the buffer is not filled completely.
+     */
+    private static byte[] toArray(ByteBuffer buffer) {
+        byte[] array = buffer.array();
+        return buffer.limit() == array.length ? array : Arrays.copyOf(array, buffer.limit());
     }
-}
 
+    /**
+     * Tells whether the configured mode needs an IV; every mode except ECB does.
+     *
+     * @return {@code true} if an IV has to be generated and stored.
+     */
+    private boolean usesIv() {
+        return !"ECB".equalsIgnoreCase(mode);
+    }
 
+    /**
+     * Initializes a cipher with a data key and, if present, the IV.
+     *
+     * @param cipher     The cipher to initialize.
+     * @param cipherMode {@link Cipher#ENCRYPT_MODE} or {@link Cipher#DECRYPT_MODE}.
+     * @param key        The data key of the file.
+     * @param iv         The IV, or an empty array for modes without one.
+     * @throws Exception If the key or IV is not valid for the cipher.
+     */
+    private void init(Cipher cipher, int cipherMode, SecretKey key, byte[] iv) throws Exception {
+        if (iv.length > 0) {
+            cipher.init(cipherMode, key, new IvParameterSpec(iv));
+        } else {
+            cipher.init(cipherMode, key);
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package com.secure.snap;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.stream.Stream;
+
+/**
+ * Encrypts whole directory trees or file lists with one shared {@link GenericSecureSnap}, one virtual thread per file.
+ * <p>
+ * Concurrency is bounded twice: by the number of files open at the same time and by the number of bytes in flight.
+ * The producer has to acquire both budgets before it starts a file, so when the disk falls behind the CPU, tasks
+ * hold their permits longer and the directory walk itself slows down, instead of queuing up unbounded work.
+ */
+public class BulkEncryptor {
+
+    /**
+     * Suffix appended to every encrypted output file.
+     */
+    public static final String ENCRYPTED_SUFFIX = ".enc";
+
+    private static final int BYTES_PER_PERMIT = 1024;
+
+    private final GenericSecureSnap snap;
+    private final int maxOpenFiles;
+    private final int maxInFlightPermits;
+
+    /**
+     * Result of encrypting a single file.
+     *
+     * @param source The plaintext file.
+     * @param target The encrypted file.
+     * @param bytes  The plaintext size in bytes.
+     * @param nanos  The time spent encrypting the file.
+     * @param error  The failure, or {@code null} if the file was encrypted.
+     */
+    public record FileResult(Path source, Path target, long bytes, long nanos, Exception error) {
+
+        /**
+         * @return {@code true} if the file was encrypted.
+         */
+        public boolean succeeded() {
+            return error == null;
+        }
+    }
+
+    /**
+     * Aggregate result of a bulk run.
+     *
+     * @param files        The result of every file, in completion order.
+     * @param totalBytes   The plaintext bytes of the files that were encrypted.
+     * @param elapsedNanos The wall-clock time of the whole run.
+     */
+    public record BulkResult(List<FileResult> files, long totalBytes, long elapsedNanos) {
+
+        /**
+         * @return The files that could not be encrypted.
+         */
+        public List<FileResult> failures() {
+            return files.stream().filter(result -> !result.succeeded()).toList();
+        }
+
+        /**
+         * @return The aggregate throughput in megabytes per second.
+         */
+        public double throughputMBps() {
+            return elapsedNanos == 0 ? 0 : totalBytes / (1024.0 * 1024.0) / (elapsedNanos / 1e9);
+        }
+    }
+
+    /**
+     * Creates a bulk encryptor.
+     *
+     * @param snap             The engine used for every file; it must be thread-safe.
+     * @param maxOpenFiles     The maximum number of files encrypted at the same time.
+     * @param maxInFlightBytes The maximum plaintext bytes of the files encrypted at the same time. A single file
+     *                         larger than this budget is still processed, but alone.
+     */
+    public BulkEncryptor(GenericSecureSnap snap, int maxOpenFiles, long maxInFlightBytes) {
+        if (maxOpenFiles <= 0 || maxInFlightBytes <= 0) {
+            throw new IllegalArgumentException("Concurrency limits must be positive");
+        }
+        this.snap = snap;
+        this.maxOpenFiles = maxOpenFiles;
+        this.maxInFlightPermits = (int) Math.min(Integer.MAX_VALUE, Math.max(1, maxInFlightBytes / BYTES_PER_PERMIT));
+    }
+
+    /**
+     * Encrypts every regular file under a directory, mirroring the tree under the target directory. The target
+     * directory must not be located inside the source directory.
+     *
+     * @param sourceRoot The directory to encrypt.
+     * @param targetRoot The directory that receives the encrypted files.
+     * @return The per-file and aggregate results.
+     * @throws IOException          If the source tree cannot be walked.
+     * @throws InterruptedException If the calling thread is interrupted while waiting for capacity.
+     */
+    public BulkResult encryptTree(Path sourceRoot, Path targetRoot) throws IOException, InterruptedException {
+        try (Stream<Path> files = Files.walk(sourceRoot)) {
+            return run(files.filter(Files::isRegularFile).iterator(), sourceRoot, targetRoot);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Encrypts a list of files, each to the same relative path under the target directory.
+     *
+     * @param files      The files to encrypt; each must be located under {@code sourceRoot}.
+     * @param sourceRoot The directory the files are relative to.
+     * @param targetRoot The directory that receives the encrypted files.
+     * @return The per-file and aggregate results.
+     * @throws IllegalArgumentException If a file is not located under {@code sourceRoot}; nothing is encrypted then.
+     * @throws InterruptedException     If the calling thread is interrupted while waiting for capacity.
+     */
+    public BulkResult encryptFiles(Collection<Path> files, Path sourceRoot, Path targetRoot)
+            throws InterruptedException {
+        // Check the whole list first, so a bad entry cannot leave a run half done
+        for (Path file : files) {
+            targetFor(file, sourceRoot, targetRoot);
+        }
+        return run(files.iterator(), sourceRoot, targetRoot);
+    }
+
+    /**
+     * Computes where the encrypted copy of a source file is written.
+     *
+     * @param file       The source file.
+     * @param sourceRoot The directory the file is relative to.
+     * @param targetRoot The directory that receives the encrypted files.
+     * @return The encrypted file path.
+     * @throws IllegalArgumentException If the file is not located under {@code sourceRoot}, so that its encrypted
+     *                                  copy would land outside {@code targetRoot}.
+     */
+    public static Path targetFor(Path file, Path sourceRoot, Path targetRoot) {
+        Path root = sourceRoot.normalize();
+        Path normalized = file.normalize();
+        Path relative = normalized.isAbsolute() == root.isAbsolute() ? root.relativize(normalized) : null;
+        if (relative == null || relative.toString().isEmpty() || relative.startsWith("..")) {
+            throw new IllegalArgumentException("File " + file + " is not under " + sourceRoot);
+        }
+        return targetRoot.resolve(relative.toString() + ENCRYPTED_SUFFIX);
+    }
+
+    private BulkResult run(Iterator<Path> files, Path sourceRoot, Path targetRoot) throws InterruptedException {
+        Semaphore openFiles = new Semaphore(maxOpenFiles);
+        Semaphore inFlight = new Semaphore(maxInFlightPermits);
+        ConcurrentLinkedQueue<FileResult> results = new ConcurrentLinkedQueue<>();
+
+        long start = System.nanoTime();
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            while (files.hasNext()) {
+                Path file = files.next();
+                Path target = targetFor(file, sourceRoot, targetRoot);
+                long size;
+                try {
+                    size = Files.size(file);
+                } catch (IOException e) {
+                    results.add(new FileResult(file, target, 0, 0, e));
+                    continue;
+                }
+                int permits = (int) Math.min(maxInFlightPermits, Math.max(1, size / BYTES_PER_PERMIT));
+
+                openFiles.acquire();
+                try {
+                    inFlight.acquire(permits);
+                } catch (InterruptedException e) {
+                    openFiles.release();
+                    throw e;
+                }
+                executor.execute(() -> {
+                    try {
+                        results.add(encryptOne(file, target, size));
+                    } finally {
+                        inFlight.release(permits);
+                        openFiles.release();
+                    }
+                });
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+
+        List<FileResult> all = new ArrayList<>(results);
+        long totalBytes = all.stream().filter(FileResult::succeeded).mapToLong(FileResult::bytes).sum();
+        return new BulkResult(all, totalBytes, elapsed);
+    }
+
+    private FileResult encryptOne(Path file, Path target, long size) {
+        long start = System.nanoTime();
+        try {
+            Path parent = target.getParent();
+            if (parent != null) {
+                Files.createDirectories(parent);
+            }
+            snap.encrypt(file.toString(), target.toString());
+            return new FileResult(file, target, size, System.nanoTime() - start, null);
+        } catch (Exception e) {
+            return new FileResult(file, target, size, System.nanoTime() - start, e);
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package com.secure.snap;
+
+/**
+ * Encrypts and decrypts files with ChaCha20-Poly1305, for hosts without AES acceleration where it is several times
+ * faster than AES-GCM in software.
+ * <p>
+ * Files use the same segmented container as {@link SecureSnap}, with a 256-bit ChaCha20 data key per file from the
+ * {@link Keyring}, and support the same random access. Instances are thread-safe.
+ */
+public class ChaChaSecureSnap extends SecureSnap {
+    /**
+     * The algorithm id written to the container header.
+     */
+    public static final String ALGORITHM = "ChaCha20-Poly1305";
+
+    /**
+     * Creates an engine that uses the default {@link Keyring}.
+     *
+     * @throws Exception If the default keyring cannot be opened.
+     */
+    public ChaChaSecureSnap() throws Exception {
+        this(Keyring.openDefault());
+    }
+
+    /**
+     * Creates an engine.
+     *
+     * @param keyring The keyring that wraps the per-file data keys.
+     */
+    public ChaChaSecureSnap(Keyring keyring) {
+        super(keyring, SegmentedAead.Scheme.CHACHA20_POLY1305);
+    }
+}
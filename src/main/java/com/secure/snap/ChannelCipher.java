@@ -0,0 +1,184 @@
+package com.secure.snap;
+
+import javax.crypto.Cipher;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * NIO engine that runs a {@link Cipher} directly between two {@link FileChannel}s.
+ * <p>
+ * Inputs of at least {@link #MAP_THRESHOLD} bytes are memory-mapped and fed to
+ * {@link Cipher#update(ByteBuffer, ByteBuffer)} without an intermediate heap copy; smaller inputs are read into a
+ * pooled direct buffer. The working buffer size grows with the file size, so small files do not pin large buffers
+ * and large files need fewer cipher calls and system calls.
+ */
+final class ChannelCipher {
+
+    static final long MAP_THRESHOLD = 4L * 1024 * 1024;
+    static final long MAX_MAP_WINDOW = 256L * 1024 * 1024;
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private ChannelCipher() {
+    }
+
+    /**
+     * Transforms {@code length} bytes of the input channel, from its current position, with an initialized cipher and
+     * writes the result at the current position of the output channel.
+     *
+     * @param cipher  The cipher, already initialized for encryption or decryption.
+     * @param in      The file to read.
+     * @param out     The file to write.
+     * @param length  The number of bytes to transform.
+     * @param metrics Receives the time spent reading, in the cipher and writing.
+     * @throws Exception If an I/O or cipher error occurs.
+     */
+    static void transform(Cipher cipher, FileChannel in, FileChannel out, long length, OperationMetrics metrics)
+            throws Exception {
+        transform(cipher, in, out, length, metrics, null);
+    }
+
+    /**
+     * Transforms {@code length} bytes of the input channel like {@link #transform(Cipher, FileChannel, FileChannel,
+     * long, OperationMetrics)} and feeds everything it writes, in order, to the leaf hashes of a {@link MerkleTree}.
+     *
+     * @param cipher  The cipher, already initialized for encryption or decryption.
+     * @param in      The file to read.
+     * @param out     The file to write.
+     * @param length  The number of bytes to transform.
+     * @param metrics Receives the time spent reading, in the cipher and writing.
+     * @param leaves  Receives the output bytes, or {@code null} to skip hashing.
+     * @throws Exception If an I/O or cipher error occurs.
+     */
+    static void transform(Cipher cipher, FileChannel in, FileChannel out, long length, OperationMetrics metrics,
+                          MerkleTree.Leaves leaves) throws Exception {
+        long start = in.position();
+        int bufferSize = bufferSizeFor(length);
+        // Leave room for a block the cipher may still be holding back from the previous update, plus the padding
+        // block some providers (BC) always reserve when checking the output buffer
+        int chunkSize = bufferSize - 2 * cipher.getBlockSize();
+        ByteBuffer outBuffer = DirectBufferPool.acquire(bufferSize);
+        try {
+            if (shouldMap(length)) {
+                for (long offset = 0; offset < length; offset += MAX_MAP_WINDOW) {
+                    MappedByteBuffer window = in.map(FileChannel.MapMode.READ_ONLY, start + offset,
+                            Math.min(MAX_MAP_WINDOW, length - offset));
+                    while (window.hasRemaining()) {
+                        int sliceLength = Math.min(chunkSize, window.remaining());
+                        ByteBuffer chunk = window.slice(window.position(), sliceLength);
+                        window.position(window.position() + sliceLength);
+                        update(cipher, chunk, outBuffer, out, metrics, leaves);
+                    }
+                }
+            } else {
+                ByteBuffer inBuffer = DirectBufferPool.acquire(chunkSize);
+                try {
+                    for (long remaining = length; remaining > 0; ) {
+                        long readStart = System.nanoTime();
+                        int read = in.read(inBuffer.clear().limit((int) Math.min(chunkSize, remaining)));
+                        metrics.recordRead(System.nanoTime() - readStart);
+                        if (read == -1) {
+                            throw new IOException("File shrank while it was being read");
+                        }
+                        remaining -= read;
+                        update(cipher, inBuffer.flip(), outBuffer, out, metrics, leaves);
+                    }
+                } finally {
+                    DirectBufferPool.release(inBuffer);
+                }
+            }
+            long cipherStart = System.nanoTime();
+            cipher.doFinal(EMPTY.duplicate(), outBuffer.clear());
+            hash(leaves, outBuffer.flip());
+            long writeStart = System.nanoTime();
+            writeFully(out, outBuffer);
+            metrics.recordCipher(writeStart - cipherStart);
+            metrics.recordWrite(System.nanoTime() - writeStart);
+        } finally {
+            DirectBufferPool.release(outBuffer);
+        }
+    }
+
+    /**
+     * Opens a file for reading.
+     *
+     * @param input The file to open.
+     * @return The readable channel.
+     * @throws IOException If the file cannot be opened.
+     */
+    static FileChannel openForRead(Path input) throws IOException {
+        return FileChannel.open(input, StandardOpenOption.READ);
+    }
+
+    /**
+     * Opens a file for writing, creating it or truncating an existing one.
+     *
+     * @param output The file to open.
+     * @return The writable channel.
+     * @throws IOException If the file cannot be opened.
+     */
+    static FileChannel openForWrite(Path output) throws IOException {
+        return FileChannel.open(output, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE);
+    }
+
+    /**
+     * Decides whether a file is large enough for memory mapping to beat plain reads.
+     *
+     * @param size The file size in bytes.
+     * @return {@code true} if the file should be mapped.
+     */
+    static boolean shouldMap(long size) {
+        return size >= MAP_THRESHOLD;
+    }
+
+    /**
+     * Chooses the working buffer size for a file: roughly a sixteenth of the file, rounded to a power of two and
+     * clamped to the range supported by {@link DirectBufferPool}.
+     *
+     * @param size The file size in bytes.
+     * @return The buffer size in bytes.
+     */
+    static int bufferSizeFor(long size) {
+        long target = Math.max(size / 16, DirectBufferPool.MIN_CAPACITY);
+        if (target >= DirectBufferPool.MAX_CAPACITY) {
+            return DirectBufferPool.MAX_CAPACITY;
+        }
+        return Integer.highestOneBit((int) target);
+    }
+
+    /**
+     * Writes the remaining bytes of a buffer, looping over partial writes.
+     *
+     * @param channel The destination channel.
+     * @param buffer  The bytes to write.
+     * @throws IOException If the write fails.
+     */
+    static void writeFully(WritableByteChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static void update(Cipher cipher, ByteBuffer input, ByteBuffer outBuffer, FileChannel out,
+                               OperationMetrics metrics, MerkleTree.Leaves leaves) throws Exception {
+        long cipherStart = System.nanoTime();
+        cipher.update(input, outBuffer.clear());
+        hash(leaves, outBuffer.flip());
+        long writeStart = System.nanoTime();
+        writeFully(out, outBuffer);
+        metrics.recordCipher(writeStart - cipherStart);
+        metrics.recordWrite(System.nanoTime() - writeStart);
+    }
+
+    private static void hash(MerkleTree.Leaves leaves, ByteBuffer output) {
+        if (leaves != null) {
+            leaves.update(output.duplicate());
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.secure.snap;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Splits a stream into content-defined chunks with a gear rolling hash.
+ * <p>
+ * A chunk ends where the low bits of the rolling hash are all zero, so boundaries depend only on the bytes around
+ * them: inserting or removing data shifts the boundaries next to the edit but leaves every other chunk unchanged,
+ * which is what lets near-identical files share most of their chunks. Chunks are kept between {@link #MIN_CHUNK}
+ * and {@link #MAX_CHUNK} bytes, averaging about {@link #MIN_CHUNK} plus 64 KiB.
+ * <p>
+ * The gear table is derived from a fixed seed, so every store and every JVM cuts the same data the same way.
+ * Instances are not thread-safe.
+ */
+final class ContentChunker {
+
+    static final int MIN_CHUNK = 16 * 1024;
+    static final int MAX_CHUNK = 256 * 1024;
+
+    private static final long BOUNDARY_MASK = (1L << 16) - 1;
+    private static final long[] GEAR = new long[256];
+
+    static {
+        // SplitMix64 from a fixed seed, spelled out so that the table never depends on the JDK's random generators
+        long state = 0x5345435552455348L;
+        for (int i = 0; i < GEAR.length; i++) {
+            state += 0x9E3779B97F4A7C15L;
+            long z = state;
+            z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+            z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+            GEAR[i] = z ^ (z >>> 31);
+        }
+    }
+
+    private final InputStream in;
+    private final byte[] buffer = new byte[MAX_CHUNK];
+    private int filled;
+    private boolean eof;
+
+    /**
+     * Creates a chunker over a stream.
+     *
+     * @param in The stream to split; it is not closed by the chunker.
+     */
+    ContentChunker(InputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * Reads the next chunk.
+     *
+     * @return The next chunk, or {@code null} at the end of the stream.
+     * @throws IOException If the stream cannot be read.
+     */
+    byte[] next() throws IOException {
+        if (!eof && filled < buffer.length) {
+            int read = in.readNBytes(buffer, filled, buffer.length - filled);
+            filled += read;
+            eof = filled < buffer.length;
+        }
+        if (filled == 0) {
+            return null;
+        }
+        int cut = boundary(buffer, filled);
+        byte[] chunk = Arrays.copyOf(buffer, cut);
+        System.arraycopy(buffer, cut, buffer, 0, filled - cut);
+        filled -= cut;
+        return chunk;
+    }
+
+    private static int boundary(byte[] data, int length) {
+        if (length <= MIN_CHUNK) {
+            return length;
+        }
+        long hash = 0;
+        for (int i = MIN_CHUNK; i < length; i++) {
+            hash = (hash << 1) + GEAR[data[i] & 0xFF];
+            if ((hash & BOUNDARY_MASK) == 0) {
+                return i + 1;
+            }
+        }
+        return length;
+    }
+}
@@ -0,0 +1,269 @@
+package com.secure.snap;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import java.security.GeneralSecurityException;
+import java.security.Provider;
+import java.security.Security;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Chooses the JCA provider that backs each cipher transformation.
+ * <p>
+ * BouncyCastle is registered once, at the end of the provider list, so that algorithms the JDK lacks (SEED,
+ * Camellia, ...) are available without displacing the JDK's own implementations: by default every transformation
+ * uses the first provider that supports it, which for AES-GCM is SunJCE with its AES-NI and CLMUL intrinsics.
+ * <p>
+ * The choice can be overridden per transformation with {@link #select(String, String)}, for all transformations
+ * with the {@value #PROVIDER_PROPERTY} system property (a provider name such as {@code SunJCE} or {@code BC}), or
+ * measured with {@link #calibrate(String)}; setting the property to {@value #CALIBRATE} makes {@link #init()}
+ * calibrate every AEAD transformation. Since every provider implements the same standard algorithms, ciphertext
+ * written through one provider can always be read through another; calibration only accepts a provider after
+ * checking that.
+ * <p>
+ * The selection applies to ciphers created after it is made, so it belongs in startup code. Calibration takes about
+ * a second per transformation and is never run lazily from {@link #newCipher(String)}: until {@link #init()} has
+ * run, a calibrated transformation uses the JCA's default provider order.
+ */
+public final class CryptoProviders {
+
+    /**
+     * System property naming the provider to use for every transformation, or {@value #CALIBRATE}.
+     */
+    public static final String PROVIDER_PROPERTY = "securesnap.provider";
+
+    /**
+     * Value of {@value #PROVIDER_PROPERTY} that selects providers by calibration.
+     */
+    public static final String CALIBRATE = "calibrate";
+
+    private static final int CALIBRATION_PAYLOAD = SegmentedAead.DEFAULT_SEGMENT_SIZE;
+    // long enough for the JIT to compile the intrinsified paths before the measurement starts
+    private static final long WARMUP_NANOS = 300_000_000L;
+    private static final long CALIBRATION_NANOS = 100_000_000L;
+
+    private static final String[] AEAD_TRANSFORMATIONS = {"AES/GCM/NoPadding", "ChaCha20-Poly1305"};
+
+    private static final Map<String, Provider> SELECTED = new ConcurrentHashMap<>();
+    private static boolean initialized;
+
+    static {
+        if (Security.getProvider(BouncyCastleProvider.PROVIDER_NAME) == null) {
+            Security.addProvider(new BouncyCastleProvider());
+        }
+    }
+
+    /**
+     * Result of calibrating one transformation.
+     *
+     * @param transformation The calibrated transformation.
+     * @param selected       The fastest compatible provider, which is now selected.
+     * @param throughputMBps The measured encryption throughput of every compatible provider, in MB/s.
+     */
+    public record Calibration(String transformation, Provider selected, Map<String, Double> throughputMBps) {
+    }
+
+    private CryptoProviders() {
+    }
+
+    /**
+     * Applies the {@value #PROVIDER_PROPERTY} system property at startup: when it is {@value #CALIBRATE}, calibrates
+     * every AEAD transformation that has no provider selected yet, so that the first ciphers do not pay for the
+     * measurement. A transformation that cannot be calibrated keeps the JCA's default provider order. Only the first
+     * call does anything.
+     */
+    public static synchronized void init() {
+        if (initialized) {
+            return;
+        }
+        initialized = true;
+        if (!CALIBRATE.equals(System.getProperty(PROVIDER_PROPERTY))) {
+            return;
+        }
+        for (String transformation : AEAD_TRANSFORMATIONS) {
+            if (SELECTED.containsKey(transformation)) {
+                continue;
+            }
+            try {
+                calibrate(transformation);
+            } catch (GeneralSecurityException e) {
+                // fall back to the default provider order
+            }
+        }
+    }
+
+    /**
+     * Creates a cipher from the provider selected for its transformation.
+     *
+     * @param transformation The cipher transformation, e.g. {@code AES/GCM/NoPadding}.
+     * @return A new cipher.
+     * @throws GeneralSecurityException If no provider supports the transformation.
+     */
+    static Cipher newCipher(String transformation) throws GeneralSecurityException {
+        Provider provider = providerFor(transformation);
+        return provider != null ? Cipher.getInstance(transformation, provider) : Cipher.getInstance(transformation);
+    }
+
+    /**
+     * Selects the provider for a transformation.
+     *
+     * @param transformation The cipher transformation.
+     * @param providerName   The name of an installed provider that supports it.
+     * @throws GeneralSecurityException If the provider is not installed or does not support the transformation.
+     */
+    public static void select(String transformation, String providerName) throws GeneralSecurityException {
+        Provider provider = Security.getProvider(providerName);
+        if (provider == null) {
+            throw new GeneralSecurityException("Provider not installed: " + providerName);
+        }
+        Cipher.getInstance(transformation, provider);
+        SELECTED.put(transformation, provider);
+    }
+
+    /**
+     * Returns the provider used for a transformation. Never calibrates: with {@value #CALIBRATE}, only a provider
+     * chosen by {@link #init()} or {@link #calibrate(String)} is returned.
+     *
+     * @param transformation The cipher transformation.
+     * @return The selected provider, or {@code null} to use the JCA's default provider order.
+     */
+    public static Provider providerFor(String transformation) {
+        Provider provider = SELECTED.get(transformation);
+        if (provider != null) {
+            return provider;
+        }
+        String configured = System.getProperty(PROVIDER_PROPERTY);
+        if (configured == null || configured.isEmpty() || CALIBRATE.equals(configured)) {
+            return null;
+        }
+        Provider named = Security.getProvider(configured);
+        return named != null && supports(named, transformation) ? named : null;
+    }
+
+    /**
+     * Micro-benchmarks every installed provider of an AEAD transformation on segment-sized messages, keeps those
+     * whose ciphertext the default provider can decrypt and selects the fastest.
+     *
+     * @param transformation {@code AES/GCM/NoPadding} or {@code ChaCha20-Poly1305}.
+     * @return The measurements and the selected provider.
+     * @throws GeneralSecurityException If no provider supports the transformation.
+     */
+    public static Calibration calibrate(String transformation) throws GeneralSecurityException {
+        if (!isAead(transformation)) {
+            throw new GeneralSecurityException("Calibration supports AEAD transformations only: " + transformation);
+        }
+        SecretKey key = KeyGenerator.getInstance(keyAlgorithm(transformation)).generateKey();
+        byte[] nonce = Randoms.nextBytes(SegmentedAead.NONCE_LENGTH);
+        byte[] plaintext = Randoms.nextBytes(CALIBRATION_PAYLOAD);
+        Cipher reference = Cipher.getInstance(transformation);
+
+        Map<String, Double> throughput = new LinkedHashMap<>();
+        Provider fastest = null;
+        double best = -1;
+        for (Provider provider : Security.getProviders()) {
+            if (!supports(provider, transformation)) {
+                continue;
+            }
+            Cipher cipher = Cipher.getInstance(transformation, provider);
+            if (!compatible(cipher, reference, key, nonce, plaintext)) {
+                continue;
+            }
+            double mbps = measure(cipher, key, nonce, plaintext);
+            throughput.put(provider.getName(), mbps);
+            if (mbps > best) {
+                best = mbps;
+                fastest = provider;
+            }
+        }
+        if (fastest == null) {
+            throw new GeneralSecurityException("No compatible provider for " + transformation);
+        }
+        SELECTED.put(transformation, fastest);
+        return new Calibration(transformation, fastest, throughput);
+    }
+
+    /**
+     * Builds the cipher parameters for an AEAD transformation with a 16-byte tag.
+     *
+     * @param transformation {@code AES/GCM/NoPadding} or {@code ChaCha20-Poly1305}.
+     * @param nonce          The 12-byte nonce.
+     * @return The parameter spec.
+     */
+    static AlgorithmParameterSpec aeadParameters(String transformation, byte[] nonce) {
+        return transformation.startsWith("ChaCha20")
+                ? new IvParameterSpec(nonce)
+                : new GCMParameterSpec(SegmentedAead.TAG_LENGTH * 8, nonce);
+    }
+
+    private static boolean isAead(String transformation) {
+        return Arrays.asList(AEAD_TRANSFORMATIONS).contains(transformation);
+    }
+
+    private static String keyAlgorithm(String transformation) {
+        return transformation.startsWith("ChaCha20") ? "ChaCha20" : "AES";
+    }
+
+    private static boolean supports(Provider provider, String transformation) {
+        try {
+            Cipher.getInstance(transformation, provider);
+            return true;
+        } catch (GeneralSecurityException e) {
+            return false;
+        }
+    }
+
+    private static boolean compatible(Cipher candidate, Cipher reference, SecretKey key, byte[] nonce,
+                                      byte[] plaintext) {
+        try {
+            candidate.init(Cipher.ENCRYPT_MODE, key, aeadParameters(candidate.getAlgorithm(), nonce));
+            byte[] ciphertext = candidate.doFinal(plaintext);
+            reference.init(Cipher.DECRYPT_MODE, key, aeadParameters(reference.getAlgorithm(), nonce));
+            return Arrays.equals(plaintext, reference.doFinal(ciphertext));
+        } catch (GeneralSecurityException e) {
+            return false;
+        }
+    }
+
+    private static double measure(Cipher cipher, SecretKey key, byte[] nonce, byte[] plaintext)
+            throws GeneralSecurityException {
+        byte[] output = new byte[plaintext.length + SegmentedAead.TAG_LENGTH];
+        byte[] roundNonce = nonce.clone();
+        long round = 0;
+        long warmupEnd = System.nanoTime() + WARMUP_NANOS;
+        while (System.nanoTime() < warmupEnd) {
+            sealOnce(cipher, key, roundNonce, plaintext, output, round++);
+        }
+        long measured = 0;
+        long start = System.nanoTime();
+        long elapsed;
+        do {
+            sealOnce(cipher, key, roundNonce, plaintext, output, round + measured++);
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < CALIBRATION_NANOS);
+        return measured * (double) plaintext.length / (elapsed / 1e9) / (1024 * 1024);
+    }
+
+    private static void sealOnce(Cipher cipher, SecretKey key, byte[] nonce, byte[] plaintext, byte[] output,
+                                 long round) throws GeneralSecurityException {
+        // Providers refuse to encrypt twice with the same key and nonce, so every round gets a fresh nonce
+        nonce[4] = (byte) (round >>> 56);
+        nonce[5] = (byte) (round >>> 48);
+        nonce[6] = (byte) (round >>> 40);
+        nonce[7] = (byte) (round >>> 32);
+        nonce[8] = (byte) (round >>> 24);
+        nonce[9] = (byte) (round >>> 16);
+        nonce[10] = (byte) (round >>> 8);
+        nonce[11] = (byte) round;
+        cipher.init(Cipher.ENCRYPT_MODE, key, aeadParameters(cipher.getAlgorithm(), nonce));
+        cipher.doFinal(plaintext, 0, plaintext.length, output, 0);
+    }
+}
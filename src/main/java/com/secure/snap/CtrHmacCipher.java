@@ -0,0 +1,202 @@
+package com.secure.snap;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * Authenticated counter mode for block ciphers that have no AEAD mode of their own (Blowfish, SEED, DESede,
+ * Camellia, ...), as a {@link SegmentedAead.SegmentCipher} so that segments are sealed in parallel across cores.
+ * <p>
+ * Encryption is CTR over the whole stream: the initial counter block is the base nonce, zero-padded or truncated to
+ * the block size, and block {@code j} of segment {@code i} uses that counter plus
+ * {@code i * ceil(segmentSize / blockSize) + j}. Since every counter is known up front, a segment's keystream is
+ * produced with a single ECB call over its counter blocks and XORed into the data eight bytes at a time. Each
+ * segment is then authenticated encrypt-then-MAC with HMAC-SHA256, truncated to {@value SegmentedAead#TAG_LENGTH}
+ * bytes, over its segment nonce, the associated data and the ciphertext.
+ * <p>
+ * The cipher and MAC keys are derived from the data key with HMAC-SHA256, so the data key is never used directly.
+ * Every worker keeps a block cipher and a MAC initialized once per data key, which matters for ciphers with
+ * expensive key schedules such as Blowfish.
+ * <p>
+ * Instances are thread-safe; workers are borrowed from a per-instance pool for the duration of one segment.
+ */
+final class CtrHmacCipher implements SegmentedAead.SegmentCipher {
+
+    static final String MAC_ALGORITHM = "HmacSHA256";
+
+    private static final byte[] CIPHER_KEY_LABEL = "SecureSnap CTR cipher key".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] MAC_KEY_LABEL = "SecureSnap CTR MAC key".getBytes(StandardCharsets.US_ASCII);
+    private static final int MAC_KEY_LENGTH = 32;
+
+    private final String transformation;
+    private final SecretKey cipherKey;
+    private final SecretKey macKey;
+    private final int blockSize;
+    private final int blocksPerSegment;
+    private final InstancePool<Worker> workers = new InstancePool<>(this::newWorker);
+
+    /**
+     * Per-thread state: a block cipher and a MAC initialized with the derived keys, and scratch space for one
+     * segment's keystream and tag.
+     */
+    private record Worker(Cipher blockCipher, Mac mac, byte[] keystream, byte[] tag) {
+    }
+
+    /**
+     * Creates the segment cipher for one data key.
+     *
+     * @param algorithm   The block cipher, e.g. {@code Blowfish}.
+     * @param key         The data key.
+     * @param segmentSize The plaintext size of every segment except the last one.
+     * @throws GeneralSecurityException If the algorithm is not a block cipher or the keys cannot be derived.
+     */
+    CtrHmacCipher(String algorithm, SecretKey key, int segmentSize) throws GeneralSecurityException {
+        this.transformation = algorithm + "/ECB/NoPadding";
+        byte[] secret = key.getEncoded();
+        try {
+            this.cipherKey = new SecretKeySpec(expand(secret, CIPHER_KEY_LABEL, secret.length), algorithm);
+            this.macKey = new SecretKeySpec(expand(secret, MAC_KEY_LABEL, MAC_KEY_LENGTH), MAC_ALGORITHM);
+        } finally {
+            Arrays.fill(secret, (byte) 0);
+        }
+        Cipher probe = CryptoProviders.newCipher(transformation);
+        this.blockSize = probe.getBlockSize();
+        if (blockSize < Long.BYTES) {
+            throw new GeneralSecurityException("Not a block cipher with 64-bit or larger blocks: " + algorithm);
+        }
+        this.blocksPerSegment = (segmentSize + blockSize - 1) / blockSize;
+        workers.release(newWorker(probe));
+    }
+
+    @Override
+    public void transform(int mode, ByteBuffer input, ByteBuffer output, byte[] baseNonce, byte[] aad, long index,
+                          boolean last) throws GeneralSecurityException {
+        int length = mode == Cipher.ENCRYPT_MODE ? input.remaining() : input.remaining() - SegmentedAead.TAG_LENGTH;
+        if (length < 0) {
+            throw new AEADBadTagException("Segment shorter than its tag");
+        }
+        int outputLength = mode == Cipher.ENCRYPT_MODE ? length + SegmentedAead.TAG_LENGTH : length;
+        if (output.remaining() < outputLength) {
+            throw new ShortBufferException("Output buffer too small: " + output.remaining() + " < " + outputLength);
+        }
+        Worker worker = workers.acquire();
+        try {
+            byte[] nonce = SegmentedAead.segmentNonce(baseNonce, index, last);
+            if (mode == Cipher.ENCRYPT_MODE) {
+                applyKeystream(worker, input, output, length, baseNonce, index);
+                byte[] tag = tag(worker, nonce, aad, output.slice(output.position(), length));
+                output.position(output.position() + length).put(tag, 0, SegmentedAead.TAG_LENGTH);
+            } else {
+                byte[] expected = tag(worker, nonce, aad, input.slice(input.position(), length));
+                byte[] actual = new byte[SegmentedAead.TAG_LENGTH];
+                input.get(input.position() + length, actual);
+                if (!MessageDigest.isEqual(Arrays.copyOf(expected, actual.length), actual)) {
+                    throw new AEADBadTagException("Tag mismatch");
+                }
+                applyKeystream(worker, input, output, length, baseNonce, index);
+                output.position(output.position() + length);
+            }
+            input.position(input.limit());
+        } finally {
+            workers.release(worker);
+        }
+    }
+
+    private Worker newWorker() throws GeneralSecurityException {
+        return newWorker(CryptoProviders.newCipher(transformation));
+    }
+
+    private Worker newWorker(Cipher blockCipher) throws GeneralSecurityException {
+        blockCipher.init(Cipher.ENCRYPT_MODE, cipherKey);
+        Mac mac = Mac.getInstance(MAC_ALGORITHM);
+        mac.init(macKey);
+        return new Worker(blockCipher, mac, new byte[blocksPerSegment * blockSize], new byte[mac.getMacLength()]);
+    }
+
+    /**
+     * XORs {@code length} bytes from the position of the input with the keystream of a segment into the output,
+     * leaving both positions unchanged.
+     */
+    private void applyKeystream(Worker worker, ByteBuffer input, ByteBuffer output, int length, byte[] baseNonce,
+                                long index) throws GeneralSecurityException {
+        int blocks = (length + blockSize - 1) / blockSize;
+        if (blocks > blocksPerSegment) {
+            throw new IllegalArgumentException("Segment larger than the segment size: " + length);
+        }
+        byte[] keystream = worker.keystream();
+        System.arraycopy(baseNonce, 0, keystream, 0, Math.min(blockSize, baseNonce.length));
+        Arrays.fill(keystream, Math.min(blockSize, baseNonce.length), blockSize, (byte) 0);
+        add(keystream, blockSize - 1, index * blocksPerSegment);
+        for (int block = 1; block < blocks; block++) {
+            int offset = block * blockSize;
+            System.arraycopy(keystream, offset - blockSize, keystream, offset, blockSize);
+            add(keystream, offset + blockSize - 1, 1);
+        }
+        worker.blockCipher().doFinal(keystream, 0, blocks * blockSize, keystream, 0);
+
+        // Long-wide XOR; the byte order only has to match between the three views
+        ByteBuffer in = input.slice(input.position(), length).order(ByteOrder.nativeOrder());
+        ByteBuffer out = output.slice(output.position(), length).order(ByteOrder.nativeOrder());
+        ByteBuffer stream = ByteBuffer.wrap(keystream).order(ByteOrder.nativeOrder());
+        int i = 0;
+        for (int end = length - Long.BYTES; i <= end; i += Long.BYTES) {
+            out.putLong(i, in.getLong(i) ^ stream.getLong(i));
+        }
+        for (; i < length; i++) {
+            out.put(i, (byte) (in.get(i) ^ keystream[i]));
+        }
+    }
+
+    /**
+     * Adds a value to the big-endian counter block that ends at {@code last}, modulo the block size.
+     */
+    private void add(byte[] counter, int last, long value) {
+        long carry = value;
+        for (int i = last; i > last - blockSize && carry != 0; i--) {
+            long sum = (counter[i] & 0xFF) + (carry & 0xFF);
+            counter[i] = (byte) sum;
+            carry = (carry >>> 8) + (sum >>> 8);
+        }
+    }
+
+    private static byte[] tag(Worker worker, byte[] nonce, byte[] aad, ByteBuffer ciphertext)
+            throws GeneralSecurityException {
+        Mac mac = worker.mac();
+        mac.update(nonce);
+        mac.update(ByteBuffer.allocate(Long.BYTES).putLong(aad.length).array());
+        mac.update(aad);
+        mac.update(ciphertext);
+        mac.doFinal(worker.tag(), 0);
+        return worker.tag();
+    }
+
+    /**
+     * Derives a key from the data key, HKDF-Expand style: {@code T(n) = HMAC(secret, T(n-1) || label || n)}.
+     */
+    private static byte[] expand(byte[] secret, byte[] label, int length) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance(MAC_ALGORITHM);
+        mac.init(new SecretKeySpec(secret, MAC_ALGORITHM));
+        byte[] derived = new byte[length];
+        byte[] block = new byte[0];
+        for (int offset = 0, counter = 1; offset < length; counter++) {
+            mac.update(block);
+            mac.update(label);
+            mac.update((byte) counter);
+            block = mac.doFinal();
+            int n = Math.min(block.length, length - offset);
+            System.arraycopy(block, 0, derived, offset, n);
+            offset += n;
+        }
+        return derived;
+    }
+}
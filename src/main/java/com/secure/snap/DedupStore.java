@@ -0,0 +1,390 @@
+package com.secure.snap;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Deduplicating encryption engine: files are split into content-defined chunks (see {@link ContentChunker}) and
+ * every distinct chunk is encrypted and stored exactly once.
+ * <p>
+ * Chunks use keyed convergent encryption. The chunk key and the chunk id are both derived with HMAC-SHA256 from the
+ * SHA-256 of the chunk under a secret held by the store, so equal chunks always produce the same ciphertext while
+ * someone without the secret cannot confirm a guessed plaintext. The secret is stored next to the chunks wrapped by
+ * the {@link Keyring}, like a file's data key, so reading the store directory alone does not reveal it.
+ * <p>
+ * Chunks are written once to {@code chunks/<first two hex digits>/<id>} under the store root; storing a chunk that is
+ * already there costs only a hash and an index lookup.
+ * <p>
+ * The output of {@link #encrypt(String, String)} is a manifest that lists the chunk hashes of the file. It holds
+ * everything needed to derive the chunk keys, so it is itself sealed as a regular {@link SnapHeader} container
+ * under a data key from the {@link Keyring}.
+ * <p>
+ * Instances are thread-safe, and several instances may share one store directory.
+ */
+public class DedupStore implements GenericSecureSnap {
+
+    /**
+     * The algorithm id written to manifest headers.
+     */
+    public static final String ALGORITHM = "SNAPDEDUP/AES256/GCM";
+
+    private static final String KEY_ALGORITHM = "AES";
+    private static final int KEY_SIZE = 256;
+    private static final String SECRET_FILE = "convergence.key";
+    private static final String SECRET_ALGORITHM = "SNAPDEDUP/CONVERGENCE";
+    private static final String SECRET_KEY_ALGORITHM = "HmacSHA256";
+    private static final int SECRET_LENGTH = 32;
+    private static final int DIGEST_LENGTH = 32;
+    private static final int TAG_BITS = 128;
+    private static final int MANIFEST_VERSION = 1;
+    private static final byte[] KEY_LABEL = {'k'};
+    private static final byte[] ID_LABEL = {'i'};
+    // Every chunk key encrypts exactly one plaintext, so a fixed nonce never repeats under the same key
+    private static final byte[] CHUNK_NONCE = new byte[12];
+
+    private static final InstancePool<Cipher> CIPHERS = new InstancePool<>(() -> CryptoProviders.newCipher("AES/GCM/NoPadding"));
+    private static final InstancePool<MessageDigest> DIGESTS = new InstancePool<>(() -> MessageDigest.getInstance("SHA-256"));
+    private static final InstancePool<Mac> MACS = new InstancePool<>(() -> Mac.getInstance("HmacSHA256"));
+    // Chunks being written by this process. A chunk is encrypted with the same key and nonce every time, and pooled
+    // GCM ciphers refuse to encrypt twice with the key and nonce they last used, so equal chunks are written once
+    private static final Map<Path, CompletableFuture<Boolean>> WRITING = new ConcurrentHashMap<>();
+
+    private final Path chunks;
+    private final SecretKey secret;
+    private final Keyring keyring;
+    private final Set<String> knownChunks = ConcurrentHashMap.newKeySet();
+    private final OperationMetrics encryptMetrics = SnapMetrics.of(ALGORITHM, SnapMetrics.Operation.ENCRYPT);
+    private final OperationMetrics decryptMetrics = SnapMetrics.of(ALGORITHM, SnapMetrics.Operation.DECRYPT);
+    private final LongAdder chunksWritten = new LongAdder();
+    private final LongAdder chunksReused = new LongAdder();
+
+    /**
+     * Opens a store with the default {@link Keyring}, creating the directory and its convergence secret if needed.
+     *
+     * @param root The store directory.
+     * @throws IOException If the store or the default keyring cannot be opened.
+     */
+    public DedupStore(Path root) throws IOException {
+        this(root, Keyring.openDefault());
+    }
+
+    /**
+     * Opens a store, creating the directory and its convergence secret if needed.
+     *
+     * @param root    The store directory.
+     * @param keyring The keyring that wraps the convergence secret and the manifest data keys.
+     * @throws IOException If the store cannot be opened or its convergence secret cannot be unwrapped.
+     */
+    public DedupStore(Path root, Keyring keyring) throws IOException {
+        this.chunks = root.resolve("chunks");
+        this.keyring = keyring;
+        Files.createDirectories(chunks);
+        Path secretFile = root.resolve(SECRET_FILE);
+        try {
+            this.secret = loadOrCreateSecret(secretFile, keyring);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Cannot unwrap the convergence secret: " + secretFile, e);
+        }
+    }
+
+    public String getAlgorithm() {
+        return ALGORITHM;
+    }
+
+    /**
+     * Stores the chunks of a file and writes its manifest.
+     *
+     * @param inputFile  Path of the input file.
+     * @param outputFile Path of the encrypted manifest.
+     * @throws Exception If there is an issue during chunking, encryption or writing.
+     */
+    public void encrypt(String inputFile, String outputFile) throws Exception {
+        try (InputStream in = Files.newInputStream(Path.of(inputFile));
+             OutputStream out = new BufferedOutputStream(Files.newOutputStream(Path.of(outputFile)))) {
+            encrypt(in, out);
+        }
+    }
+
+    /**
+     * Rebuilds a file from its manifest.
+     *
+     * @param inputFile  Path of the encrypted manifest.
+     * @param outputFile Path of the decrypted output file.
+     * @throws Exception If the manifest or a chunk is missing, malformed or fails authentication.
+     */
+    public void decrypt(String inputFile, String outputFile) throws Exception {
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(Path.of(inputFile)));
+             OutputStream out = new BufferedOutputStream(Files.newOutputStream(Path.of(outputFile)))) {
+            decrypt(in, out);
+        }
+    }
+
+    /**
+     * Stores the chunks of a stream and writes its manifest.
+     *
+     * @param in  The plaintext, read to its end.
+     * @param out Receives the encrypted manifest.
+     * @throws Exception If there is an issue during chunking, encryption or writing.
+     */
+    @Override
+    public void encrypt(InputStream in, OutputStream out) throws Exception {
+        ByteArrayOutputStream manifest = new ByteArrayOutputStream();
+        try (DataOutputStream entries = new DataOutputStream(manifest)) {
+            entries.writeByte(MANIFEST_VERSION);
+            ContentChunker chunker = new ContentChunker(new BufferedInputStream(in, ContentChunker.MAX_CHUNK));
+            for (byte[] chunk = chunker.next(); chunk != null; chunk = chunker.next()) {
+                encryptMetrics.recordBytes(chunk.length);
+                byte[] digest = digest(chunk);
+                store(digest, chunk);
+                entries.write(digest);
+                entries.writeInt(chunk.length);
+            }
+        }
+
+        Keyring.DataKey dataKey = keyring.newDataKey(ALGORITHM, KEY_ALGORITHM, KEY_SIZE);
+        byte[] nonce = Randoms.nextBytes(SegmentedAead.NONCE_LENGTH);
+        SnapHeader header = SnapHeader.of(ALGORITHM, dataKey, nonce, SegmentedAead.DEFAULT_SEGMENT_SIZE);
+        out.write(header.encode());
+        new SegmentedAead(dataKey.key(), header.chunkSize(), ForkJoinPool.commonPool())
+                .encrypt(new ByteArrayInputStream(manifest.toByteArray()), out, nonce, header.authenticatedBytes());
+    }
+
+    /**
+     * Rebuilds a stream from its manifest.
+     *
+     * @param in  The encrypted manifest, read up to the end of its payload.
+     * @param out Receives the plaintext.
+     * @throws Exception If the manifest or a chunk is missing, malformed or fails authentication.
+     */
+    @Override
+    public void decrypt(InputStream in, OutputStream out) throws Exception {
+        ByteArrayOutputStream manifest = new ByteArrayOutputStream();
+        SnapHeader header = SnapHeader.read(in);
+        header.verify(ALGORITHM);
+        if (header.nonce().length != SegmentedAead.NONCE_LENGTH || header.chunkSize() <= 0) {
+            throw new IOException("Invalid " + ALGORITHM + " header");
+        }
+        SecretKey key = keyring.unwrap(header, KEY_ALGORITHM);
+        decryptMetrics.recordBytes(new SegmentedAead(key, header.chunkSize(), ForkJoinPool.commonPool())
+                .decrypt(header.payloadStream(in), manifest, header.nonce(), header.authenticatedBytes()));
+
+        try (DataInputStream entries = new DataInputStream(new ByteArrayInputStream(manifest.toByteArray()))) {
+            if (entries.readUnsignedByte() != MANIFEST_VERSION) {
+                throw new IOException("Unsupported manifest version");
+            }
+            byte[] digest = new byte[DIGEST_LENGTH];
+            while (entries.available() > 0) {
+                entries.readFully(digest);
+                out.write(load(digest, entries.readInt()));
+            }
+        }
+    }
+
+    /**
+     * @return The number of chunks this instance encrypted and wrote to the store.
+     */
+    public long chunksWritten() {
+        return chunksWritten.sum();
+    }
+
+    /**
+     * @return The number of chunks this instance found already stored and did not encrypt again.
+     */
+    public long chunksReused() {
+        return chunksReused.sum();
+    }
+
+    private void store(byte[] digest, byte[] chunk) throws GeneralSecurityException, IOException {
+        String id = HexFormat.of().formatHex(derive(ID_LABEL, digest));
+        if (knownChunks.contains(id)) {
+            chunksReused.increment();
+            return;
+        }
+        Path file = chunkPath(id);
+        if (Files.exists(file)) {
+            knownChunks.add(id);
+            chunksReused.increment();
+            return;
+        }
+        CompletableFuture<Boolean> mine = new CompletableFuture<>();
+        CompletableFuture<Boolean> writing = WRITING.putIfAbsent(file.toAbsolutePath(), mine);
+        if (writing != null) {
+            // another thread of this process is writing the same chunk
+            try {
+                writing.join();
+            } catch (CompletionException e) {
+                throw new IOException("Concurrent write of chunk " + id + " failed", e.getCause());
+            }
+            knownChunks.add(id);
+            chunksReused.increment();
+            return;
+        }
+        boolean published = false;
+        try {
+            // a writer that finished before this one registered has already published the chunk
+            if (!Files.exists(file)) {
+                published = write(id, file, transform(Cipher.ENCRYPT_MODE, digest, chunk));
+            }
+            mine.complete(published);
+        } catch (IOException | GeneralSecurityException | RuntimeException e) {
+            mine.completeExceptionally(e);
+            throw e;
+        } finally {
+            WRITING.remove(file.toAbsolutePath(), mine);
+        }
+        knownChunks.add(id);
+        if (published) {
+            chunksWritten.increment();
+        } else {
+            chunksReused.increment();
+        }
+    }
+
+    private static boolean write(String id, Path file, byte[] ciphertext) throws IOException {
+        Files.createDirectories(file.getParent());
+        Path temp = Files.createTempFile(file.getParent(), id, ".tmp");
+        try {
+            Files.write(temp, ciphertext);
+            return publish(temp, file);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Links a fully written chunk into place. A rename would silently replace a copy published concurrently, so the
+     * chunk is hard-linked instead, which fails if the target exists; a concurrent writer of the same chunk produces
+     * identical bytes, so the copy already there is kept.
+     *
+     * @param temp The written chunk; the caller deletes it.
+     * @param file The chunk path.
+     * @return {@code true} if this call published the chunk, {@code false} if it was already stored.
+     * @throws IOException If the link cannot be created.
+     */
+    static boolean publish(Path temp, Path file) throws IOException {
+        try {
+            Files.createLink(file, temp);
+            return true;
+        } catch (FileAlreadyExistsException e) {
+            return false;
+        }
+    }
+
+    private byte[] load(byte[] digest, int length) throws GeneralSecurityException, IOException {
+        Path file = chunkPath(HexFormat.of().formatHex(derive(ID_LABEL, digest)));
+        byte[] ciphertext = Files.readAllBytes(file);
+        decryptMetrics.recordBytes(ciphertext.length);
+        byte[] chunk = transform(Cipher.DECRYPT_MODE, digest, ciphertext);
+        if (chunk.length != length || !MessageDigest.isEqual(digest(chunk), digest)) {
+            throw new IOException("Chunk does not match its manifest entry: " + file);
+        }
+        return chunk;
+    }
+
+    private byte[] transform(int mode, byte[] digest, byte[] input) throws GeneralSecurityException {
+        byte[] keyBytes = derive(KEY_LABEL, digest);
+        Cipher cipher = CIPHERS.acquire();
+        try {
+            cipher.init(mode, new SecretKeySpec(keyBytes, KEY_ALGORITHM), new GCMParameterSpec(TAG_BITS, CHUNK_NONCE));
+            return cipher.doFinal(input);
+        } finally {
+            CIPHERS.release(cipher);
+            Arrays.fill(keyBytes, (byte) 0);
+        }
+    }
+
+    private byte[] derive(byte[] label, byte[] digest) throws GeneralSecurityException {
+        Mac mac = MACS.acquire();
+        try {
+            mac.init(secret);
+            mac.update(label);
+            return mac.doFinal(digest);
+        } finally {
+            MACS.release(mac);
+        }
+    }
+
+    private static byte[] digest(byte[] chunk) throws GeneralSecurityException {
+        MessageDigest digest = DIGESTS.acquire();
+        try {
+            return digest.digest(chunk);
+        } finally {
+            DIGESTS.release(digest);
+        }
+    }
+
+    private Path chunkPath(String id) {
+        return chunks.resolve(id.substring(0, 2)).resolve(id);
+    }
+
+    /**
+     * Reads the convergence secret, which is stored as a bare {@link SnapHeader} holding the secret as its wrapped
+     * data key, creating it first if the store is new.
+     */
+    private static SecretKey loadOrCreateSecret(Path file, Keyring keyring)
+            throws IOException, GeneralSecurityException {
+        if (!Files.exists(file)) {
+            Keyring.DataKey secret = keyring.newDataKey(SECRET_ALGORITHM, SECRET_KEY_ALGORITHM, SECRET_LENGTH * 8);
+            Path temp = newSecretFile(file, secret);
+            try {
+                // Linking fails if the secret exists, so the first store to create it wins and later ones read it
+                Files.createLink(file, temp);
+            } catch (FileAlreadyExistsException e) {
+                // created concurrently by another instance
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+        }
+        SnapHeader header = SnapHeader.read(file);
+        header.verify(SECRET_ALGORITHM);
+        SecretKey secret = keyring.unwrap(header, SECRET_KEY_ALGORITHM);
+        if (secret.getEncoded().length != SECRET_LENGTH) {
+            throw new IOException("Invalid convergence secret: " + file);
+        }
+        return secret;
+    }
+
+    private static Path newSecretFile(Path file, Keyring.DataKey secret) throws IOException {
+        Path temp = Files.createTempFile(file.getParent(), "convergence", ".tmp");
+        try {
+            if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+                Files.setPosixFilePermissions(temp, PosixFilePermissions.fromString("rw-------"));
+            }
+            Files.write(temp, SnapHeader.of(SECRET_ALGORITHM, secret, new byte[0], 0).encode(),
+                    StandardOpenOption.SYNC);
+            return temp;
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+    }
+}
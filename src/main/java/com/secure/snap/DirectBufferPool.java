@@ -0,0 +1,75 @@
+package com.secure.snap;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.LinkedBlockingDeque;
+
+/**
+ * Process-wide pool of direct byte buffers, bucketed by power-of-two capacity.
+ * <p>
+ * Direct buffers are expensive to allocate and are only reclaimed by the GC, so the cipher engines borrow them from
+ * here instead of allocating one per operation. Each bucket hands out the most recently returned buffer first, while
+ * it is still warm in the caches.
+ */
+final class DirectBufferPool {
+
+    static final int MIN_CAPACITY = 8 * 1024;
+    static final int MAX_CAPACITY = 4 * 1024 * 1024;
+    private static final int MAX_POOLED_PER_SIZE = 64;
+
+    private static final int MIN_SHIFT = Integer.numberOfTrailingZeros(MIN_CAPACITY);
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static final LinkedBlockingDeque<ByteBuffer>[] BUCKETS =
+            new LinkedBlockingDeque[Integer.numberOfTrailingZeros(MAX_CAPACITY) - MIN_SHIFT + 1];
+
+    static {
+        for (int i = 0; i < BUCKETS.length; i++) {
+            BUCKETS[i] = new LinkedBlockingDeque<>(MAX_POOLED_PER_SIZE);
+        }
+    }
+
+    private DirectBufferPool() {
+    }
+
+    /**
+     * Borrows a cleared direct buffer with at least the requested capacity.
+     *
+     * @param capacity The minimum capacity.
+     * @return A direct buffer; callers should {@link #release(ByteBuffer)} it when done.
+     */
+    static ByteBuffer acquire(int capacity) {
+        if (capacity > MAX_CAPACITY) {
+            return ByteBuffer.allocateDirect(capacity);
+        }
+        int size = roundUp(capacity);
+        ByteBuffer buffer = BUCKETS[bucket(size)].pollFirst();
+        return buffer != null ? buffer.clear() : ByteBuffer.allocateDirect(size);
+    }
+
+    /**
+     * Returns a buffer to the pool. Only buffers from {@link #acquire(int)} may be returned; mapped file windows must
+     * not be, since every direct buffer is a {@code MappedByteBuffer} and the two cannot be told apart. Heap and
+     * odd-sized buffers are ignored.
+     *
+     * @param buffer The buffer to return.
+     */
+    static void release(ByteBuffer buffer) {
+        int capacity = buffer.capacity();
+        if (!buffer.isDirect() || Integer.bitCount(capacity) != 1 || capacity < MIN_CAPACITY
+                || capacity > MAX_CAPACITY) {
+            return;
+        }
+        BUCKETS[bucket(capacity)].offerFirst(buffer);
+    }
+
+    private static int roundUp(int capacity) {
+        if (capacity <= MIN_CAPACITY) {
+            return MIN_CAPACITY;
+        }
+        int highest = Integer.highestOneBit(capacity);
+        return highest == capacity ? capacity : highest << 1;
+    }
+
+    private static int bucket(int size) {
+        return Integer.numberOfTrailingZeros(size) - MIN_SHIFT;
+    }
+}
@@ -1,9 +1,185 @@
 package com.secure.snap;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Common contract for the file encryption engines.
+ * <p>
+ * Besides files, every engine accepts streams, channels, byte arrays and buffers, and can run asynchronously.
+ * Engines implement the file and stream variants; the other variants default to the stream variants and work in
+ * memory, so no engine stages data on disk that it was not asked to write. Stream and channel variants read the
+ * plaintext to its end, or the container to the end of its payload, and close neither side.
+ * <p>
+ * Thread-safety: implementations must be safe for concurrent use. A single instance is meant to be shared by all
+ * worker threads (platform or virtual), so implementations keep no per-call state in fields; nonces are created per
+ * call, and non-thread-safe JCA objects such as {@code Cipher} and {@code SecureRandom} are pooled and reused across
+ * calls rather than shared. Concurrent calls must not target the same output file.
+ */
 public interface GenericSecureSnap {
 
     void encrypt(String inputFile, String outputFile) throws Exception;
     void decrypt(String inputFile, String outputFile) throws Exception;
 
     String getAlgorithm();
+
+    /**
+     * Encrypts a stream.
+     *
+     * @param in  The plaintext.
+     * @param out Receives the encrypted container.
+     * @throws Exception If there is an issue during encryption.
+     */
+    void encrypt(InputStream in, OutputStream out) throws Exception;
+
+    /**
+     * Decrypts a stream.
+     *
+     * @param in  The encrypted container.
+     * @param out Receives the plaintext.
+     * @throws Exception If there is an issue during decryption.
+     */
+    void decrypt(InputStream in, OutputStream out) throws Exception;
+
+    /**
+     * Encrypts a channel. The default adapts the channels to the stream variant.
+     *
+     * @param in  The plaintext.
+     * @param out Receives the encrypted container.
+     * @throws Exception If there is an issue during encryption.
+     */
+    default void encrypt(ReadableByteChannel in, WritableByteChannel out) throws Exception {
+        OutputStream stream = Channels.newOutputStream(out);
+        encrypt(Channels.newInputStream(in), stream);
+        stream.flush();
+    }
+
+    /**
+     * Decrypts a channel. The default adapts the channels to the stream variant.
+     *
+     * @param in  The encrypted container.
+     * @param out Receives the plaintext.
+     * @throws Exception If there is an issue during decryption.
+     */
+    default void decrypt(ReadableByteChannel in, WritableByteChannel out) throws Exception {
+        OutputStream stream = Channels.newOutputStream(out);
+        decrypt(Channels.newInputStream(in), stream);
+        stream.flush();
+    }
+
+    /**
+     * Encrypts a byte array.
+     *
+     * @param plaintext The plaintext.
+     * @return The encrypted container.
+     * @throws Exception If there is an issue during encryption.
+     */
+    default byte[] encrypt(byte[] plaintext) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        encrypt(new ByteArrayInputStream(plaintext), out);
+        return out.toByteArray();
+    }
+
+    /**
+     * Decrypts a byte array.
+     *
+     * @param container The encrypted container.
+     * @return The plaintext.
+     * @throws Exception If there is an issue during decryption.
+     */
+    default byte[] decrypt(byte[] container) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        decrypt(new ByteArrayInputStream(container), out);
+        return out.toByteArray();
+    }
+
+    /**
+     * Encrypts the remaining bytes of a buffer, advancing its position to its limit.
+     *
+     * @param plaintext The plaintext.
+     * @return A new buffer holding the encrypted container, from position 0 to its limit.
+     * @throws Exception If there is an issue during encryption.
+     */
+    default ByteBuffer encrypt(ByteBuffer plaintext) throws Exception {
+        byte[] input = new byte[plaintext.remaining()];
+        plaintext.get(input);
+        return ByteBuffer.wrap(encrypt(input));
+    }
+
+    /**
+     * Decrypts the remaining bytes of a buffer, advancing its position to its limit.
+     *
+     * @param container The encrypted container.
+     * @return A new buffer holding the plaintext, from position 0 to its limit.
+     * @throws Exception If there is an issue during decryption.
+     */
+    default ByteBuffer decrypt(ByteBuffer container) throws Exception {
+        byte[] input = new byte[container.remaining()];
+        container.get(input);
+        return ByteBuffer.wrap(decrypt(input));
+    }
+
+    /**
+     * Encrypts a byte array on the common pool.
+     *
+     * @param plaintext The plaintext; it must not be modified until the future completes.
+     * @return A future for the encrypted container, failing with the cause of an encryption error.
+     */
+    default CompletableFuture<byte[]> encryptAsync(byte[] plaintext) {
+        return encryptAsync(plaintext, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Encrypts a byte array on an executor.
+     *
+     * @param plaintext The plaintext; it must not be modified until the future completes.
+     * @param executor  Runs the encryption.
+     * @return A future for the encrypted container, failing with the cause of an encryption error.
+     */
+    default CompletableFuture<byte[]> encryptAsync(byte[] plaintext, Executor executor) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return encrypt(plaintext);
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        }, executor);
+    }
+
+    /**
+     * Decrypts a byte array on the common pool.
+     *
+     * @param container The encrypted container; it must not be modified until the future completes.
+     * @return A future for the plaintext, failing with the cause of a decryption error.
+     */
+    default CompletableFuture<byte[]> decryptAsync(byte[] container) {
+        return decryptAsync(container, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Decrypts a byte array on an executor.
+     *
+     * @param container The encrypted container; it must not be modified until the future completes.
+     * @param executor  Runs the decryption.
+     * @return A future for the plaintext, failing with the cause of a decryption error.
+     */
+    default CompletableFuture<byte[]> decryptAsync(byte[] container, Executor executor) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return decrypt(container);
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        }, executor);
+    }
 }
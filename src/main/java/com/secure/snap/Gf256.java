@@ -0,0 +1,81 @@
+package com.secure.snap;
+
+/**
+ * Arithmetic in GF(2^8) with the AES reduction polynomial x^8 + x^4 + x^3 + x + 1, using precomputed log and exp
+ * tables. Addition and subtraction are XOR; multiplication and division are two table lookups.
+ */
+final class Gf256 {
+
+    private static final int POLYNOMIAL = 0x11B;
+    private static final int GENERATOR = 0x03;
+
+    /**
+     * {@code EXP[i] = g^i}, doubled in length so that {@code EXP[LOG[a] + LOG[b]]} needs no modulo.
+     */
+    static final byte[] EXP = new byte[512];
+    /**
+     * {@code LOG[a] = log_g(a)} for {@code a != 0}; {@code LOG[0]} is unused.
+     */
+    static final int[] LOG = new int[256];
+
+    static {
+        int value = 1;
+        for (int i = 0; i < 255; i++) {
+            EXP[i] = (byte) value;
+            EXP[i + 255] = (byte) value;
+            LOG[value] = i;
+            value = multiplySlow(value, GENERATOR);
+        }
+        EXP[510] = EXP[0];
+        EXP[511] = EXP[1];
+    }
+
+    private Gf256() {
+    }
+
+    /**
+     * Multiplies two field elements.
+     *
+     * @param a The first factor, 0..255.
+     * @param b The second factor, 0..255.
+     * @return {@code a * b}.
+     */
+    static int mul(int a, int b) {
+        if (a == 0 || b == 0) {
+            return 0;
+        }
+        return EXP[LOG[a] + LOG[b]] & 0xFF;
+    }
+
+    /**
+     * Divides two field elements.
+     *
+     * @param a The dividend, 0..255.
+     * @param b The divisor, 1..255.
+     * @return {@code a / b}.
+     */
+    static int div(int a, int b) {
+        if (b == 0) {
+            throw new ArithmeticException("Division by zero in GF(256)");
+        }
+        if (a == 0) {
+            return 0;
+        }
+        return EXP[LOG[a] + 255 - LOG[b]] & 0xFF;
+    }
+
+    private static int multiplySlow(int a, int b) {
+        int product = 0;
+        while (b != 0) {
+            if ((b & 1) != 0) {
+                product ^= a;
+            }
+            a <<= 1;
+            if ((a & 0x100) != 0) {
+                a ^= POLYNOMIAL;
+            }
+            b >>= 1;
+        }
+        return product;
+    }
+}
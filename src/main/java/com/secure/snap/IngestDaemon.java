@@ -0,0 +1,743 @@
+package com.secure.snap;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * Long-running ingest mode that encrypts files as they land in watched directories, instead of leaving them on disk
+ * until a batch job gets to them.
+ * <p>
+ * A watcher thread follows every watched tree with a {@link WatchService}, registering new subdirectories as they
+ * appear. Files that change are held in a pending set until they have been quiet for {@link Options#quietPeriod()}
+ * and their size and modification time have stopped changing, so files that are still being written are left alone.
+ * Settled files go onto a bounded queue; while it is full they simply stay pending, so a burst of files costs memory
+ * for the pending set only.
+ * <p>
+ * A fixed pool of workers drains the queue. Consecutive small files are batched into one {@link PackWriter} pack in
+ * the {@value #PACK_DIRECTORY} directory of the target root, named by their absolute paths, so key setup and file
+ * creation are paid once per batch. Other files are encrypted with the engine to the path {@link BulkEncryptor}
+ * would use. Output is written to a temporary file, forced to disk and moved into place atomically, and the
+ * plaintext is deleted only after the directory entry has been forced to disk as well, and only if its size and
+ * modification time are still those it was read with; a file that changed is kept and ingested again once it
+ * settles. A pack is published only if every file in it was added; otherwise it is discarded and none of its
+ * plaintext is deleted. A file that fails goes back to the pending set and is retried after a backoff that doubles
+ * with every failure, up to {@value #MAX_RETRY_MINUTES} minutes, so its plaintext does not stay on disk until
+ * something happens to touch it again.
+ * <p>
+ * The pending, queued and in-flight files are checkpointed at regular intervals and on {@link #close()}. On
+ * {@link #start()} the checkpointed files are put back in the pending set, with any temporary output they left
+ * behind removed, and every watched tree is scanned, so files that landed or were in flight while the daemon was
+ * down are ingested too. A crash between moving the ciphertext into place and deleting the plaintext leaves both,
+ * and the file is encrypted again.
+ * <p>
+ * The target root and the checkpoint must lie outside the watched trees. Instances are thread-safe.
+ */
+public final class IngestDaemon implements AutoCloseable {
+
+    /**
+     * The directory of the target root that receives the packs of small files.
+     */
+    public static final String PACK_DIRECTORY = "packs";
+
+    private static final byte[] MAGIC = {'S', 'I', 'N', 'G'};
+    private static final int VERSION = 1;
+    private static final String TEMP_SUFFIX = ".ingest.tmp";
+    private static final long MAX_RETRY_MINUTES = 5;
+
+    private final GenericSecureSnap snap;
+    private final Keyring keyring;
+    private final Path targetRoot;
+    private final Path checkpoint;
+    private final Options options;
+    private final Consumer<BulkEncryptor.FileResult> listener;
+    private final WatchService watchService;
+
+    private final List<Path> roots = new CopyOnWriteArrayList<>();
+    // files seen by the watcher that have not settled yet, with their last observed state
+    private final Map<Path, Pending> pending = new ConcurrentHashMap<>();
+    private final BlockingQueue<Path> queue;
+    // queued and in-flight files, which the watcher must not queue again
+    private final Set<Path> tracked = ConcurrentHashMap.newKeySet();
+    // consecutive failures per file, for the retry backoff
+    private final Map<Path, Integer> attempts = new ConcurrentHashMap<>();
+    private final AtomicBoolean dirty = new AtomicBoolean();
+    private final Object checkpointLock = new Object();
+    private final AtomicLong packSequence = new AtomicLong();
+    private final LongAdder ingestedFiles = new LongAdder();
+    private final LongAdder ingestedBytes = new LongAdder();
+    private final LongAdder packs = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final List<Thread> threads = new ArrayList<>();
+    private volatile boolean running;
+
+    /**
+     * Tuning of the daemon.
+     *
+     * @param quietPeriod        How long a file must go without events before it is checked for being settled.
+     * @param queueCapacity      The maximum number of settled files waiting for a worker.
+     * @param workers            The number of worker threads.
+     * @param smallFileLimit     Files up to this size are batched into packs.
+     * @param maxBatchFiles      The maximum number of files per pack.
+     * @param checkpointInterval How often the queue state is checkpointed while it changes.
+     */
+    public record Options(Duration quietPeriod, int queueCapacity, int workers, long smallFileLimit,
+                          int maxBatchFiles, Duration checkpointInterval) {
+
+        public Options {
+            if (quietPeriod.isNegative() || quietPeriod.isZero() || checkpointInterval.isNegative()
+                    || checkpointInterval.isZero()) {
+                throw new IllegalArgumentException("Quiet period and checkpoint interval must be positive");
+            }
+            if (queueCapacity <= 0 || workers <= 0 || maxBatchFiles <= 0 || smallFileLimit < 0) {
+                throw new IllegalArgumentException("Queue capacity, workers and batch size must be positive");
+            }
+        }
+
+        /**
+         * @return A 2 s quiet period, a queue of 10,000 files, one worker per core, packs of up to 256 files of up
+         * to 256 KB, and a checkpoint every 5 s.
+         */
+        public static Options defaults() {
+            return new Options(Duration.ofSeconds(2), 10_000, Runtime.getRuntime().availableProcessors(),
+                    256 * 1024, 256, Duration.ofSeconds(5));
+        }
+    }
+
+    /**
+     * Counters of a running daemon.
+     *
+     * @param pending       Files waiting to settle.
+     * @param queued        Settled files waiting for a worker.
+     * @param ingestedFiles Files encrypted and removed.
+     * @param ingestedBytes Plaintext bytes of those files.
+     * @param packs         Packs written.
+     * @param failures      Failed attempts to ingest a file; failed files are retried after a backoff.
+     */
+    public record Stats(int pending, int queued, long ingestedFiles, long ingestedBytes, long packs, long failures) {
+    }
+
+    private record Pending(long size, long modifiedNanos, long observedNanos) {
+    }
+
+    /**
+     * Creates a daemon that reports nothing per file.
+     *
+     * @param snap       The engine for files that are not packed; it must be thread-safe.
+     * @param keyring    The keyring that wraps the data keys of the packs.
+     * @param targetRoot The directory that receives the ciphertext.
+     * @param checkpoint The checkpoint file.
+     * @param options    The tuning.
+     * @throws IOException If the watch service cannot be created.
+     */
+    public IngestDaemon(GenericSecureSnap snap, Keyring keyring, Path targetRoot, Path checkpoint, Options options)
+            throws IOException {
+        this(snap, keyring, targetRoot, checkpoint, options, result -> {
+        });
+    }
+
+    /**
+     * Creates a daemon.
+     *
+     * @param snap       The engine for files that are not packed; it must be thread-safe.
+     * @param keyring    The keyring that wraps the data keys of the packs.
+     * @param targetRoot The directory that receives the ciphertext.
+     * @param checkpoint The checkpoint file.
+     * @param options    The tuning.
+     * @param listener   Receives the result of every file, on the worker thread that processed it.
+     * @throws IOException If the watch service cannot be created.
+     */
+    public IngestDaemon(GenericSecureSnap snap, Keyring keyring, Path targetRoot, Path checkpoint, Options options,
+                        Consumer<BulkEncryptor.FileResult> listener) throws IOException {
+        this.snap = snap;
+        this.keyring = keyring;
+        this.targetRoot = targetRoot.toAbsolutePath().normalize();
+        this.checkpoint = checkpoint.toAbsolutePath().normalize();
+        this.options = options;
+        this.listener = listener;
+        this.queue = new ArrayBlockingQueue<>(options.queueCapacity());
+        this.watchService = FileSystems.getDefault().newWatchService();
+    }
+
+    /**
+     * Adds a directory tree to watch. Trees added after {@link #start()} are scanned right away.
+     *
+     * @param sourceRoot The directory to watch.
+     * @throws IOException If the tree cannot be registered.
+     */
+    public void watch(Path sourceRoot) throws IOException {
+        Path root = sourceRoot.toAbsolutePath().normalize();
+        if (!Files.isDirectory(root)) {
+            throw new IllegalArgumentException("Not a directory: " + sourceRoot);
+        }
+        if (targetRoot.startsWith(root) || checkpoint.startsWith(root)) {
+            throw new IllegalArgumentException("Target root and checkpoint must be outside the watched tree "
+                    + sourceRoot);
+        }
+        roots.add(root);
+        if (running) {
+            register(root);
+        }
+    }
+
+    /**
+     * Resumes the checkpointed files, scans the watched trees and starts the watcher and the workers.
+     *
+     * @throws IOException If the checkpoint cannot be read or a tree cannot be registered.
+     */
+    public synchronized void start() throws IOException {
+        if (running || !threads.isEmpty()) {
+            throw new IllegalStateException("Daemon already started");
+        }
+        Files.createDirectories(targetRoot);
+        for (Path file : loadCheckpoint()) {
+            if (rootOf(file) != null) {
+                Path target = targetFor(file);
+                deleteQuietly(target.resolveSibling(target.getFileName() + TEMP_SUFFIX));
+                observe(file);
+            }
+        }
+        for (Path root : roots) {
+            register(root);
+        }
+        running = true;
+        threads.add(Thread.ofPlatform().name("securesnap-ingest-watcher").start(this::watchLoop));
+        for (int i = 0; i < options.workers(); i++) {
+            threads.add(Thread.ofPlatform().name("securesnap-ingest-" + i).start(this::workLoop));
+        }
+    }
+
+    /**
+     * @return The current counters.
+     */
+    public Stats stats() {
+        return new Stats(pending.size(), queue.size(), ingestedFiles.sum(), ingestedBytes.sum(), packs.sum(),
+                failures.sum());
+    }
+
+    /**
+     * Stops watching, lets the workers finish the batches they hold and checkpoints the files that were not
+     * ingested, including those still queued.
+     *
+     * @throws IOException If the checkpoint cannot be written.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        running = false;
+        try {
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        } catch (InterruptedException e) {
+            threads.forEach(Thread::interrupt);
+            Thread.currentThread().interrupt();
+        } finally {
+            watchService.close();
+        }
+        saveCheckpoint();
+    }
+
+    private void watchLoop() {
+        long tickMillis = Math.max(10, options.quietPeriod().toMillis() / 4);
+        long nextCheckpoint = System.nanoTime() + options.checkpointInterval().toNanos();
+        try {
+            while (running) {
+                WatchKey key = watchService.poll(tickMillis, TimeUnit.MILLISECONDS);
+                for (; key != null; key = watchService.poll()) {
+                    handle(key);
+                }
+                promoteSettled();
+                if (System.nanoTime() - nextCheckpoint >= 0) {
+                    nextCheckpoint = System.nanoTime() + options.checkpointInterval().toNanos();
+                    if (dirty.get()) {
+                        saveCheckpointQuietly();
+                    }
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // closing
+        }
+    }
+
+    private void saveCheckpointQuietly() {
+        try {
+            saveCheckpoint();
+        } catch (IOException e) {
+            // keep running; the next interval tries again
+            dirty.set(true);
+        }
+    }
+
+    private void handle(WatchKey key) {
+        Path directory = (Path) key.watchable();
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                // events were lost: rescan everything
+                roots.forEach(this::registerQuietly);
+                continue;
+            }
+            Path path = directory.resolve((Path) event.context());
+            if (Files.isDirectory(path)) {
+                if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+                    registerQuietly(path);
+                }
+            } else if (event.kind() != StandardWatchEventKinds.ENTRY_DELETE) {
+                observe(path);
+            }
+        }
+        key.reset();
+    }
+
+    private void registerQuietly(Path tree) {
+        try {
+            register(tree);
+        } catch (IOException e) {
+            // an unreadable directory is skipped until one of its parents reports it again
+        }
+    }
+
+    /**
+     * Registers every directory of a tree with the watch service and observes the files already in it, which covers
+     * files created before the registration took effect.
+     */
+    private void register(Path tree) throws IOException {
+        try (Stream<Path> paths = Files.walk(tree)) {
+            for (Path path : (Iterable<Path>) paths::iterator) {
+                if (Files.isDirectory(path)) {
+                    path.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                            StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+                } else if (Files.isRegularFile(path)) {
+                    observe(path);
+                }
+            }
+        } catch (NoSuchFileException e) {
+            // the directory went away before it could be registered
+        } catch (UncheckedIOException e) {
+            if (!(e.getCause() instanceof NoSuchFileException)) {
+                throw e.getCause();
+            }
+        }
+    }
+
+    /**
+     * Records a change to a file, restarting its quiet period.
+     */
+    private void observe(Path file) {
+        pending.put(file, new Pending(-1, -1, System.nanoTime()));
+        dirty.set(true);
+    }
+
+    /**
+     * Queues the pending files that have been quiet for the quiet period and whose size and modification time did
+     * not change since the previous check.
+     */
+    private void promoteSettled() {
+        long now = System.nanoTime();
+        long quietNanos = options.quietPeriod().toNanos();
+        for (Map.Entry<Path, Pending> entry : pending.entrySet()) {
+            Path file = entry.getKey();
+            Pending state = entry.getValue();
+            if (now - state.observedNanos() < quietNanos || tracked.contains(file)) {
+                continue;
+            }
+            BasicFileAttributes attributes = attributes(file);
+            if (attributes == null || !attributes.isRegularFile()) {
+                if (pending.remove(file, state)) {
+                    attempts.remove(file);
+                }
+                dirty.set(true);
+                continue;
+            }
+            long size = attributes.size();
+            long modified = attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+            if (size != state.size() || modified != state.modifiedNanos()) {
+                // still changing, or seen for the first time: check again after another quiet period
+                pending.replace(file, state, new Pending(size, modified, now));
+            } else if (tracked.add(file)) {
+                if (queue.offer(file)) {
+                    pending.remove(file, state);
+                    dirty.set(true);
+                } else {
+                    // the queue is full: keep the file pending and retry on the next tick
+                    tracked.remove(file);
+                }
+            }
+        }
+    }
+
+    private void workLoop() {
+        List<Path> batch = new ArrayList<>(options.maxBatchFiles());
+        try {
+            while (running) {
+                Path first = queue.poll(options.quietPeriod().toMillis(), TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                Path large = null;
+                batch.clear();
+                if (isSmall(first)) {
+                    batch.add(first);
+                    // take consecutive small files, stopping at the first large one
+                    Path next;
+                    while (batch.size() < options.maxBatchFiles() && (next = queue.poll()) != null) {
+                        if (isSmall(next)) {
+                            batch.add(next);
+                        } else {
+                            large = next;
+                            break;
+                        }
+                    }
+                } else {
+                    large = first;
+                }
+                if (batch.size() > 1) {
+                    ingestPack(batch);
+                } else if (batch.size() == 1) {
+                    ingestFile(batch.get(0));
+                }
+                if (large != null) {
+                    ingestFile(large);
+                }
+            }
+        } catch (InterruptedException e) {
+            // closing; the files still queued are checkpointed
+        }
+    }
+
+    private boolean isSmall(Path file) {
+        BasicFileAttributes attributes = attributes(file);
+        return attributes != null && attributes.size() <= options.smallFileLimit();
+    }
+
+    /**
+     * Encrypts one file with the engine to a temporary file, moves it into place and deletes the plaintext.
+     */
+    private void ingestFile(Path file) {
+        long start = System.nanoTime();
+        Path target = targetFor(file);
+        Path temp = target.resolveSibling(target.getFileName() + TEMP_SUFFIX);
+        long size = 0;
+        try {
+            BasicFileAttributes before = attributes(file);
+            if (before == null) {
+                return;
+            }
+            size = before.size();
+            Files.createDirectories(target.getParent());
+            snap.encrypt(file.toString(), temp.toString());
+            if (!unchanged(file, before)) {
+                Files.delete(temp);
+                return;
+            }
+            force(temp);
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            forceDirectory(target.getParent());
+            if (!unchanged(file, before)) {
+                // written to after it was encrypted: keep it, and the next run replaces the target
+                observe(file);
+                return;
+            }
+            Files.delete(file);
+            succeeded(file, target, size, start);
+        } catch (Exception e) {
+            deleteQuietly(temp);
+            failed(file, target, size, start, e);
+        } finally {
+            release(file);
+        }
+    }
+
+    /**
+     * Encrypts a batch of small files into one pack and deletes the plaintext of the files it holds. The pack is
+     * published only if the whole batch was written; otherwise it is discarded and every file that is not settled
+     * yet is retried.
+     */
+    private void ingestPack(List<Path> files) {
+        long start = System.nanoTime();
+        Path pack = targetRoot.resolve(PACK_DIRECTORY).resolve(String.format("ingest-%d-%d.pack",
+                System.currentTimeMillis(), packSequence.incrementAndGet()));
+        List<Path> packed = new ArrayList<>(files.size());
+        Set<Path> settled = new LinkedHashSet<>();
+        List<BasicFileAttributes> packedAttributes = new ArrayList<>(files.size());
+        try {
+            PackWriter writer = new PackWriter(pack, keyring);
+            try {
+                for (Path file : files) {
+                    BasicFileAttributes before = attributes(file);
+                    if (before == null) {
+                        settled.add(file);
+                        continue;
+                    }
+                    byte[] content;
+                    try {
+                        content = Files.readAllBytes(file);
+                    } catch (IOException e) {
+                        settled.add(file);
+                        failed(file, pack, before.size(), start, e);
+                        continue;
+                    }
+                    if (content.length == before.size() && unchanged(file, before)) {
+                        writer.add(file.toString(), content);
+                        packedAttributes.add(before);
+                        packed.add(file);
+                    } else {
+                        // changed while it was read: the watcher queues it again once it settles
+                        settled.add(file);
+                    }
+                }
+                if (packed.isEmpty()) {
+                    writer.abort();
+                    return;
+                }
+                writer.close();
+                forceDirectory(pack.getParent());
+            } catch (Exception e) {
+                writer.abort();
+                throw e;
+            }
+        } catch (Exception e) {
+            for (Path file : files) {
+                if (!settled.contains(file)) {
+                    failed(file, pack, 0, start, e);
+                }
+            }
+            return;
+        } finally {
+            files.forEach(this::release);
+        }
+
+        packs.increment();
+        long nanos = (System.nanoTime() - start) / packed.size();
+        for (int i = 0; i < packed.size(); i++) {
+            Path file = packed.get(i);
+            long size = packedAttributes.get(i).size();
+            if (!unchanged(file, packedAttributes.get(i))) {
+                // written to after it was packed: keep it, and the next pack holds the new content
+                observe(file);
+                continue;
+            }
+            try {
+                Files.delete(file);
+                succeeded(file, pack, size, System.nanoTime() - nanos);
+            } catch (IOException e) {
+                failed(file, pack, size, System.nanoTime() - nanos, e);
+            }
+        }
+    }
+
+    private void succeeded(Path file, Path target, long size, long start) {
+        attempts.remove(file);
+        ingestedFiles.increment();
+        ingestedBytes.add(size);
+        listener.accept(new BulkEncryptor.FileResult(file, target, size, System.nanoTime() - start, null));
+    }
+
+    private void failed(Path file, Path target, long size, long start, Exception error) {
+        failures.increment();
+        retryLater(file);
+        listener.accept(new BulkEncryptor.FileResult(file, target, size, System.nanoTime() - start, error));
+    }
+
+    /**
+     * Puts a failed file back in the pending set, where it is checkpointed, with its quiet period pushed back by a
+     * backoff that doubles with every consecutive failure.
+     */
+    private void retryLater(Path file) {
+        if (!Files.exists(file)) {
+            attempts.remove(file);
+            return;
+        }
+        int failed = attempts.merge(file, 1, Integer::sum);
+        long backoff = Math.min(options.quietPeriod().toNanos() << Math.min(failed - 1, 20),
+                TimeUnit.MINUTES.toNanos(MAX_RETRY_MINUTES));
+        pending.put(file, new Pending(-1, -1, System.nanoTime() + backoff));
+        dirty.set(true);
+    }
+
+    private void release(Path file) {
+        tracked.remove(file);
+        dirty.set(true);
+    }
+
+    private Path targetFor(Path file) {
+        Path root = rootOf(file);
+        if (root == null) {
+            throw new IllegalStateException("File outside the watched trees: " + file);
+        }
+        return BulkEncryptor.targetFor(file, root, targetRoot);
+    }
+
+    private Path rootOf(Path file) {
+        for (Path root : roots) {
+            if (file.startsWith(root)) {
+                return root;
+            }
+        }
+        return null;
+    }
+
+    private static boolean unchanged(Path file, BasicFileAttributes before) {
+        BasicFileAttributes after = attributes(file);
+        return after != null && after.size() == before.size()
+                && after.lastModifiedTime().equals(before.lastModifiedTime());
+    }
+
+    private static BasicFileAttributes attributes(Path file) {
+        try {
+            return Files.readAttributes(file, BasicFileAttributes.class);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static void force(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+    }
+
+    /**
+     * Forces a directory to disk, so that a file moved into it survives a crash before the plaintext is deleted.
+     */
+    private static void forceDirectory(Path directory) throws IOException {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (AccessDeniedException e) {
+            // Windows cannot open directories; NTFS commits the rename with its metadata journal
+        }
+    }
+
+    private static void deleteQuietly(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            // best effort; a leftover temporary file is overwritten by the next attempt
+        }
+    }
+
+    /**
+     * Writes every file that has not been ingested yet, atomically replacing the checkpoint.
+     */
+    private void saveCheckpoint() throws IOException {
+        synchronized (checkpointLock) {
+            dirty.set(false);
+            Set<Path> files = new LinkedHashSet<>(tracked);
+            files.addAll(pending.keySet());
+            Path directory = checkpoint.getParent();
+            Files.createDirectories(directory);
+            Path temp = Files.createTempFile(directory, "ingest-checkpoint", ".tmp");
+            try {
+                try (DataOutputStream out = new DataOutputStream(
+                        new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                    out.write(MAGIC);
+                    out.writeByte(VERSION);
+                    out.writeInt(files.size());
+                    for (Path file : files) {
+                        byte[] bytes = file.toString().getBytes(StandardCharsets.UTF_8);
+                        out.writeInt(bytes.length);
+                        out.write(bytes);
+                    }
+                }
+                Files.move(temp, checkpoint, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+        }
+    }
+
+    private List<Path> loadCheckpoint() throws IOException {
+        if (!Files.exists(checkpoint)) {
+            return List.of();
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(checkpoint));
+        try {
+            byte[] magic = new byte[MAGIC.length];
+            buffer.get(magic);
+            if (!Arrays.equals(magic, MAGIC) || (buffer.get() & 0xFF) != VERSION) {
+                throw new IOException("Not an ingest checkpoint: " + checkpoint);
+            }
+            int count = buffer.getInt();
+            List<Path> files = new ArrayList<>(Math.min(count, buffer.remaining() / Integer.BYTES));
+            for (int i = 0; i < count; i++) {
+                byte[] bytes = new byte[buffer.getInt()];
+                buffer.get(bytes);
+                files.add(Path.of(new String(bytes, StandardCharsets.UTF_8)));
+            }
+            return files;
+        } catch (RuntimeException e) {
+            // BufferUnderflowException and friends from a truncated file
+            throw new IOException("Malformed ingest checkpoint: " + checkpoint, e);
+        }
+    }
+
+    /**
+     * Runs the daemon from the command line with {@link SecureSnap} and the default {@link Keyring}, until the JVM
+     * is shut down.
+     * <p>
+     * Arguments are the target root followed by the directories to watch. The checkpoint is kept in the target root.
+     *
+     * @param args The arguments.
+     * @throws Exception If the daemon cannot be started.
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: IngestDaemon <target root> <directory>...");
+            System.exit(2);
+        }
+        CryptoProviders.init();
+        Path targetRoot = Path.of(args[0]);
+        IngestDaemon daemon = new IngestDaemon(new SecureSnap(), Keyring.openDefault(), targetRoot,
+                targetRoot.resolve(".ingest-checkpoint"), Options.defaults(), result -> {
+            if (result.succeeded()) {
+                System.out.println(result.source() + " -> " + result.target());
+            } else {
+                System.err.println(result.source() + ": " + result.error());
+            }
+        });
+        for (int i = 1; i < args.length; i++) {
+            daemon.watch(Path.of(args[i]));
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                daemon.close();
+            } catch (IOException e) {
+                System.err.println("Could not write the checkpoint: " + e);
+            }
+        }));
+        daemon.start();
+    }
+}
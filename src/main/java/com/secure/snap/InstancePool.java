@@ -0,0 +1,58 @@
+package com.secure.snap;
+
+import java.security.GeneralSecurityException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Lock-free pool of reusable, non-thread-safe JCA objects such as {@link javax.crypto.Cipher} and
+ * {@link java.security.SecureRandom}.
+ * <p>
+ * Unlike a {@link ThreadLocal}, the pool also amortizes creation across virtual threads, which are never reused.
+ * The pool grows to the peak number of concurrent borrowers and never shrinks.
+ *
+ * @param <T> The pooled type.
+ */
+final class InstancePool<T> {
+
+    /**
+     * Creates a new pooled instance when none is idle.
+     *
+     * @param <T> The pooled type.
+     */
+    @FunctionalInterface
+    interface Factory<T> {
+        T create() throws GeneralSecurityException;
+    }
+
+    private final ConcurrentLinkedQueue<T> idle = new ConcurrentLinkedQueue<>();
+    private final Factory<T> factory;
+
+    /**
+     * Creates an empty pool.
+     *
+     * @param factory Creates instances on demand.
+     */
+    InstancePool(Factory<T> factory) {
+        this.factory = factory;
+    }
+
+    /**
+     * Borrows an instance, creating one if the pool is empty.
+     *
+     * @return An instance owned by the caller until it is released.
+     * @throws GeneralSecurityException If a new instance cannot be created.
+     */
+    T acquire() throws GeneralSecurityException {
+        T instance = idle.poll();
+        return instance != null ? instance : factory.create();
+    }
+
+    /**
+     * Returns a borrowed instance to the pool.
+     *
+     * @param instance The instance, which the caller must no longer use.
+     */
+    void release(T instance) {
+        idle.offer(instance);
+    }
+}
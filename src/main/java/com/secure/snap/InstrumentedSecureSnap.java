@@ -0,0 +1,229 @@
+package com.secure.snap;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Decorator that records every call of a {@link GenericSecureSnap} in {@link SnapMetrics}: operation count, errors and
+ * latency, per algorithm and operation. The engines record the bytes they read and their read, cipher and write time
+ * in the same entries; an engine that records no bytes reports none.
+ * <p>
+ * Recording allocates nothing: every variant, including the channel ones, delegates straight to the same variant of
+ * the wrapped engine, so it keeps that engine's fast paths. Instances are thread-safe if the wrapped engine is.
+ */
+public class InstrumentedSecureSnap implements GenericSecureSnap {
+
+    private final GenericSecureSnap delegate;
+    private final OperationMetrics encryptMetrics;
+    private final OperationMetrics decryptMetrics;
+
+    /**
+     * Wraps an engine.
+     *
+     * @param delegate The engine that does the work.
+     */
+    public InstrumentedSecureSnap(GenericSecureSnap delegate) {
+        this.delegate = delegate;
+        this.encryptMetrics = SnapMetrics.of(delegate.getAlgorithm(), SnapMetrics.Operation.ENCRYPT);
+        this.decryptMetrics = SnapMetrics.of(delegate.getAlgorithm(), SnapMetrics.Operation.DECRYPT);
+    }
+
+    public String getAlgorithm() {
+        return delegate.getAlgorithm();
+    }
+
+    /**
+     * Encrypts a file with the wrapped engine and records the call.
+     *
+     * @param inputFile  Path of the input file.
+     * @param outputFile Path of the encrypted output file.
+     * @throws Exception If the wrapped engine fails.
+     */
+    public void encrypt(String inputFile, String outputFile) throws Exception {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            delegate.encrypt(inputFile, outputFile);
+            failed = false;
+        } finally {
+            encryptMetrics.recordOperation(System.nanoTime() - start, failed);
+        }
+    }
+
+    /**
+     * Decrypts a file with the wrapped engine and records the call.
+     *
+     * @param inputFile  Path of the encrypted input file.
+     * @param outputFile Path of the decrypted output file.
+     * @throws Exception If the wrapped engine fails.
+     */
+    public void decrypt(String inputFile, String outputFile) throws Exception {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            delegate.decrypt(inputFile, outputFile);
+            failed = false;
+        } finally {
+            decryptMetrics.recordOperation(System.nanoTime() - start, failed);
+        }
+    }
+
+    /**
+     * Encrypts a stream with the wrapped engine and records the call.
+     *
+     * @param in  The plaintext.
+     * @param out Receives the encrypted container.
+     * @throws Exception If the wrapped engine fails.
+     */
+    @Override
+    public void encrypt(InputStream in, OutputStream out) throws Exception {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            delegate.encrypt(in, out);
+            failed = false;
+        } finally {
+            encryptMetrics.recordOperation(System.nanoTime() - start, failed);
+        }
+    }
+
+    /**
+     * Decrypts a stream with the wrapped engine and records the call.
+     *
+     * @param in  The encrypted container.
+     * @param out Receives the plaintext.
+     * @throws Exception If the wrapped engine fails.
+     */
+    @Override
+    public void decrypt(InputStream in, OutputStream out) throws Exception {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            delegate.decrypt(in, out);
+            failed = false;
+        } finally {
+            decryptMetrics.recordOperation(System.nanoTime() - start, failed);
+        }
+    }
+
+    /**
+     * Encrypts a channel with the wrapped engine and records the call.
+     *
+     * @param in  The plaintext.
+     * @param out Receives the encrypted container.
+     * @throws Exception If the wrapped engine fails.
+     */
+    @Override
+    public void encrypt(ReadableByteChannel in, WritableByteChannel out) throws Exception {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            delegate.encrypt(in, out);
+            failed = false;
+        } finally {
+            encryptMetrics.recordOperation(System.nanoTime() - start, failed);
+        }
+    }
+
+    /**
+     * Decrypts a channel with the wrapped engine and records the call.
+     *
+     * @param in  The encrypted container.
+     * @param out Receives the plaintext.
+     * @throws Exception If the wrapped engine fails.
+     */
+    @Override
+    public void decrypt(ReadableByteChannel in, WritableByteChannel out) throws Exception {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            delegate.decrypt(in, out);
+            failed = false;
+        } finally {
+            decryptMetrics.recordOperation(System.nanoTime() - start, failed);
+        }
+    }
+
+    /**
+     * Encrypts a byte array with the wrapped engine and records the call.
+     *
+     * @param plaintext The plaintext.
+     * @return The encrypted container.
+     * @throws Exception If the wrapped engine fails.
+     */
+    @Override
+    public byte[] encrypt(byte[] plaintext) throws Exception {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            byte[] container = delegate.encrypt(plaintext);
+            failed = false;
+            return container;
+        } finally {
+            encryptMetrics.recordOperation(System.nanoTime() - start, failed);
+        }
+    }
+
+    /**
+     * Decrypts a byte array with the wrapped engine and records the call.
+     *
+     * @param container The encrypted container.
+     * @return The plaintext.
+     * @throws Exception If the wrapped engine fails.
+     */
+    @Override
+    public byte[] decrypt(byte[] container) throws Exception {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            byte[] plaintext = delegate.decrypt(container);
+            failed = false;
+            return plaintext;
+        } finally {
+            decryptMetrics.recordOperation(System.nanoTime() - start, failed);
+        }
+    }
+
+    /**
+     * Encrypts a buffer with the wrapped engine and records the call.
+     *
+     * @param plaintext The plaintext.
+     * @return The encrypted container.
+     * @throws Exception If the wrapped engine fails.
+     */
+    @Override
+    public ByteBuffer encrypt(ByteBuffer plaintext) throws Exception {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            ByteBuffer container = delegate.encrypt(plaintext);
+            failed = false;
+            return container;
+        } finally {
+            encryptMetrics.recordOperation(System.nanoTime() - start, failed);
+        }
+    }
+
+    /**
+     * Decrypts a buffer with the wrapped engine and records the call.
+     *
+     * @param container The encrypted container.
+     * @return The plaintext.
+     * @throws Exception If the wrapped engine fails.
+     */
+    @Override
+    public ByteBuffer decrypt(ByteBuffer container) throws Exception {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            ByteBuffer plaintext = delegate.decrypt(container);
+            failed = false;
+            return plaintext;
+        } finally {
+            decryptMetrics.recordOperation(System.nanoTime() - start, failed);
+        }
+    }
+}
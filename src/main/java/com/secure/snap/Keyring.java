@@ -0,0 +1,566 @@
+package com.secure.snap;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Envelope-encryption keyring: a set of AES-256 key-encryption keys (KEKs) that wrap the per-file data keys.
+ * <p>
+ * Every encrypted file gets a fresh data key, wrapped with AES-GCM under the primary KEK and stored in the file's
+ * {@link SnapHeader} together with the KEK id. Unwrapped data keys are kept in a bounded, lock-free cache with a TTL, so
+ * repeated reads of the same files do not unwrap again. Rotating the KEK only rewrites that header field (see
+ * {@link #rewrap(Path)}); the payload is never re-encrypted.
+ * <p>
+ * The keyring file holds the KEKs in a small binary format and is read without Java deserialization. A plain
+ * keyring stores them as raw bytes. A keyring opened with a {@link MasterKeyVault} stores each KEK sealed with AES-GCM
+ * under the vault's master key instead; the KEKs are unsealed into {@link OffHeapKey}s the first time they are used
+ * after the vault is unlocked, are destroyed with the master key when the vault locks, and the data key cache is
+ * dropped at the same time. Ciphers keyed with vault keys are never pooled, but as {@link OffHeapKey} explains, the
+ * JCA still expands each key into a heap key schedule for the duration of one wrap or unwrap; the data keys
+ * themselves are ordinary heap keys. Instances are thread-safe.
+ */
+public class Keyring {
+
+    /**
+     * The keyring file used by the engines' no-argument constructors.
+     */
+    public static final Path DEFAULT_PATH = Path.of("keyring.bin");
+
+    private static final byte[] MAGIC = {'S', 'K', 'R', 'G'};
+    private static final int VERSION = 1;
+    private static final int SEALED_VERSION = 2;
+    private static final int KEK_ID_LENGTH = 8;
+    private static final int KEK_LENGTH = 32;
+    private static final int WRAP_NONCE_LENGTH = 12;
+    private static final int WRAP_TAG_BITS = 128;
+    private static final int SEALED_KEK_LENGTH = WRAP_NONCE_LENGTH + KEK_LENGTH + WRAP_TAG_BITS / 8;
+    private static final int DEFAULT_CACHE_SIZE = 10_000;
+    private static final long DEFAULT_CACHE_TTL_NANOS = TimeUnit.MINUTES.toNanos(10);
+
+    private static final InstancePool<Cipher> WRAP_CIPHERS = new InstancePool<>(() -> CryptoProviders.newCipher("AES/GCM/NoPadding"));
+    private static final Map<Path, Keyring> OPENED = new ConcurrentHashMap<>();
+
+    private final Path path;
+    // null for a plain keyring
+    private final MasterKeyVault vault;
+    private final Map<String, SecretKey> keks = new LinkedHashMap<>();
+    // the KEKs sealed under the master key, by id; only used with a vault
+    private final Map<String, byte[]> sealedKeks = new LinkedHashMap<>();
+    private volatile String primaryId;
+    private final DataKeyCache cache;
+    private final Map<String, InstancePool<KeyGenerator>> keyGenerators = new ConcurrentHashMap<>();
+
+    /**
+     * A freshly generated data key together with its wrapped form.
+     *
+     * @param key     The plaintext data key.
+     * @param kekId   The id of the KEK that wrapped it.
+     * @param wrapped The wrapped key, as stored in the file header.
+     */
+    public record DataKey(SecretKey key, byte[] kekId, byte[] wrapped) {
+    }
+
+    private Keyring(Path path, MasterKeyVault vault, int cacheSize, long cacheTtlNanos) {
+        this.path = path;
+        this.vault = vault;
+        this.cache = new DataKeyCache(cacheSize, cacheTtlNanos);
+        if (vault != null) {
+            vault.onLock(cache::clear);
+        }
+    }
+
+    /**
+     * Returns the process-wide keyring stored at {@link #DEFAULT_PATH}, creating it on first use.
+     *
+     * @return The default keyring.
+     * @throws IOException If the keyring file cannot be read or created.
+     */
+    public static Keyring openDefault() throws IOException {
+        return open(DEFAULT_PATH);
+    }
+
+    /**
+     * Returns the process-wide keyring stored at a path, loading it once and creating it with a fresh KEK if the file
+     * does not exist. A keyring sealed under a {@link MasterKeyVault} must first be opened with
+     * {@link #open(Path, MasterKeyVault)}; after that, this method returns the same instance.
+     *
+     * @param path The keyring file.
+     * @return The keyring.
+     * @throws IOException If the keyring file cannot be read or created, or is sealed and not open yet.
+     */
+    public static Keyring open(Path path) throws IOException {
+        Keyring keyring = OPENED.get(path.toAbsolutePath().normalize());
+        return keyring != null ? keyring : open(path, null);
+    }
+
+    /**
+     * Returns the process-wide keyring stored at a path, with its KEKs sealed under the master key of a vault. A
+     * keyring that does not exist is created with a fresh KEK, and a plain keyring is converted: its KEKs are sealed
+     * and the file is rewritten without the raw key bytes. Both need the vault to be unlocked; opening an existing
+     * sealed keyring does not.
+     * <p>
+     * Opening the keyring makes it the instance that {@link #open(Path)} returns, so engines created with the plain
+     * factory methods use it too.
+     *
+     * @param path  The keyring file.
+     * @param vault The vault whose master key seals the KEKs, or {@code null} for a plain keyring.
+     * @return The keyring.
+     * @throws IOException If the keyring file cannot be read or written, the KEKs cannot be sealed, or the keyring is
+     *                     already open with a different vault.
+     */
+    public static Keyring open(Path path, MasterKeyVault vault) throws IOException {
+        Path normalized = path.toAbsolutePath().normalize();
+        Keyring keyring = OPENED.get(normalized);
+        if (keyring == null) {
+            synchronized (OPENED) {
+                keyring = OPENED.get(normalized);
+                if (keyring == null) {
+                    keyring = new Keyring(normalized, vault, DEFAULT_CACHE_SIZE, DEFAULT_CACHE_TTL_NANOS);
+                    if (Files.exists(normalized)) {
+                        keyring.load();
+                    } else {
+                        keyring.rotate();
+                    }
+                    OPENED.put(normalized, keyring);
+                }
+            }
+        }
+        if (keyring.vault != vault) {
+            throw new IOException("Keyring is already open " + (keyring.vault == null ? "without" : "with another")
+                    + " master key vault: " + normalized);
+        }
+        return keyring;
+    }
+
+    /**
+     * Generates a new data key for one file and wraps it under the primary KEK. The wrapped key is bound to the
+     * algorithm id of the engine, so it cannot be moved to a file written by another algorithm.
+     *
+     * @param algorithmId  The algorithm id written to the file header.
+     * @param keyAlgorithm The JCA algorithm of the data key, for example {@code "AES"} or {@code "Blowfish"}.
+     * @param keySize      The key size in bits.
+     * @return The data key and its wrapped form.
+     * @throws GeneralSecurityException If the key cannot be generated or wrapped.
+     */
+    public DataKey newDataKey(String algorithmId, String keyAlgorithm, int keySize) throws GeneralSecurityException {
+        InstancePool<KeyGenerator> generators = keyGenerators.computeIfAbsent(keyAlgorithm + "/" + keySize,
+                ignored -> new InstancePool<>(() -> {
+                    KeyGenerator generator = KeyGenerator.getInstance(keyAlgorithm);
+                    generator.init(keySize);
+                    return generator;
+                }));
+        KeyGenerator generator = generators.acquire();
+        SecretKey key;
+        try {
+            key = generator.generateKey();
+        } finally {
+            generators.release(generator);
+        }
+        String kekId = primaryId;
+        byte[] encoded = key.getEncoded();
+        byte[] wrapped;
+        try {
+            wrapped = wrap(kek(kekId), encoded, algorithmId);
+        } finally {
+            Arrays.fill(encoded, (byte) 0);
+        }
+        cache.put(new DataKeyCache.Id(algorithmId, key.getAlgorithm(), kekId, ByteBuffer.wrap(wrapped.clone())), key);
+        return new DataKey(key, HexFormat.of().parseHex(kekId), wrapped);
+    }
+
+    /**
+     * Unwraps the data key of a file from its header, using the cache when possible. Cached keys are looked up by the
+     * header's algorithm id and KEK id as well as the wrapped key, so a header that binds the wrapped key to another
+     * algorithm is authenticated by the KEK like an uncached one, and fails.
+     *
+     * @param header       The file header.
+     * @param keyAlgorithm The JCA algorithm of the data key.
+     * @return The data key.
+     * @throws GeneralSecurityException If the KEK is unknown or the wrapped key fails authentication.
+     */
+    public SecretKey unwrap(SnapHeader header, String keyAlgorithm) throws GeneralSecurityException {
+        String kekId = HexFormat.of().formatHex(header.keyId());
+        SecretKey key = cache.get(new DataKeyCache.Id(header.algorithm(), keyAlgorithm, kekId,
+                ByteBuffer.wrap(header.wrappedKey())));
+        if (key == null) {
+            byte[] encoded = unwrapBytes(kek(kekId), header.wrappedKey(), header.algorithm());
+            key = new SecretKeySpec(encoded, keyAlgorithm);
+            Arrays.fill(encoded, (byte) 0);
+            cache.put(new DataKeyCache.Id(header.algorithm(), keyAlgorithm, kekId,
+                    ByteBuffer.wrap(header.wrappedKey().clone())), key);
+        }
+        return key;
+    }
+
+    /**
+     * Adds a new KEK, makes it the primary one for new files and saves the keyring. Existing KEKs remain available
+     * for unwrapping until they are {@link #retire(byte[]) retired}.
+     *
+     * @return The id of the new primary KEK.
+     * @throws IOException If the keyring cannot be saved.
+     */
+    public synchronized byte[] rotate() throws IOException {
+        byte[] id = Randoms.nextBytes(KEK_ID_LENGTH);
+        String hexId = HexFormat.of().formatHex(id);
+        byte[] kek = Randoms.nextBytes(KEK_LENGTH);
+        try {
+            addKek(hexId, kek);
+        } finally {
+            Arrays.fill(kek, (byte) 0);
+        }
+        primaryId = hexId;
+        save();
+        return id;
+    }
+
+    /**
+     * Removes a KEK that no longer wraps any file.
+     *
+     * @param kekId The id of the KEK to remove.
+     * @throws IOException If the keyring cannot be saved or the KEK is the primary one.
+     */
+    public synchronized void retire(byte[] kekId) throws IOException {
+        String hexId = HexFormat.of().formatHex(kekId);
+        if (hexId.equals(primaryId)) {
+            throw new IOException("Cannot retire the primary KEK");
+        }
+        if (keks.containsKey(hexId) || sealedKeks.containsKey(hexId)) {
+            keks.remove(hexId);
+            sealedKeks.remove(hexId);
+            cache.clear();
+            save();
+        }
+    }
+
+    /**
+     * Re-wraps the data key of a container file under the primary KEK. Only the header is rewritten, in place; the
+     * payload is untouched.
+     *
+     * @param file The container file.
+     * @return {@code true} if the header was rewritten, {@code false} if it already used the primary KEK.
+     * @throws Exception If the file cannot be read or written, or its key cannot be unwrapped.
+     */
+    public boolean rewrap(Path file) throws Exception {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            SnapHeader header = SnapHeader.read(Channels.newInputStream(channel));
+            String kekId = primaryId;
+            if (HexFormat.of().formatHex(header.keyId()).equals(kekId)) {
+                return false;
+            }
+            String algorithm = header.algorithm();
+            byte[] encoded = unwrapBytes(kek(HexFormat.of().formatHex(header.keyId())), header.wrappedKey(), algorithm);
+            byte[] wrapped;
+            try {
+                wrapped = wrap(kek(kekId), encoded, algorithm);
+            } finally {
+                Arrays.fill(encoded, (byte) 0);
+            }
+
+            byte[] oldHeader = header.encode();
+            byte[] newHeader = header.withKey(HexFormat.of().parseHex(kekId), wrapped).encode();
+            if (newHeader.length != oldHeader.length) {
+                throw new IOException("Re-wrapped header does not fit in place");
+            }
+            ChannelCipher.writeFully(channel.position(0), ByteBuffer.wrap(newHeader));
+            channel.force(false);
+            return true;
+        }
+    }
+
+    private SecretKey kek(String hexId) throws GeneralSecurityException {
+        SecretKey kek;
+        synchronized (this) {
+            kek = keks.get(hexId);
+            if (vault != null && (kek == null || kek.isDestroyed()) && sealedKeks.containsKey(hexId)) {
+                kek = unseal(hexId, sealedKeks.get(hexId));
+                keks.put(hexId, kek);
+            }
+        }
+        if (kek == null) {
+            throw new GeneralSecurityException("Unknown key-encryption key " + hexId);
+        }
+        return kek;
+    }
+
+    /**
+     * Adds a KEK: as is to a plain keyring, sealed under the master key (and kept unsealed off the heap) otherwise.
+     */
+    private void addKek(String hexId, byte[] kek) throws IOException {
+        if (vault == null) {
+            keks.put(hexId, new SecretKeySpec(kek, "AES"));
+            return;
+        }
+        try {
+            sealedKeks.put(hexId, wrap(vault.key(), kek, sealingContext(hexId)));
+            OffHeapKey key = new OffHeapKey(kek, "AES");
+            vault.adopt(key);
+            keks.put(hexId, key);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Cannot seal key-encryption key " + hexId, e);
+        }
+    }
+
+    private OffHeapKey unseal(String hexId, byte[] sealed) throws GeneralSecurityException {
+        byte[] encoded = unwrapBytes(vault.key(), sealed, sealingContext(hexId));
+        try {
+            OffHeapKey key = new OffHeapKey(encoded, "AES");
+            vault.adopt(key);
+            return key;
+        } finally {
+            Arrays.fill(encoded, (byte) 0);
+        }
+    }
+
+    private static String sealingContext(String hexId) {
+        return "SecureSnap KEK " + hexId;
+    }
+
+    private static byte[] wrap(SecretKey kek, byte[] encoded, String algorithmId) throws GeneralSecurityException {
+        byte[] nonce = Randoms.nextBytes(WRAP_NONCE_LENGTH);
+        Cipher cipher = wrapCipher(kek, Cipher.ENCRYPT_MODE, new GCMParameterSpec(WRAP_TAG_BITS, nonce));
+        try {
+            cipher.updateAAD(algorithmId.getBytes(StandardCharsets.UTF_8));
+            byte[] wrapped = Arrays.copyOf(nonce, WRAP_NONCE_LENGTH + cipher.getOutputSize(encoded.length));
+            cipher.doFinal(encoded, 0, encoded.length, wrapped, WRAP_NONCE_LENGTH);
+            return wrapped;
+        } finally {
+            releaseWrapCipher(kek, cipher);
+        }
+    }
+
+    private static byte[] unwrapBytes(SecretKey kek, byte[] wrapped, String algorithmId) throws GeneralSecurityException {
+        if (wrapped.length <= WRAP_NONCE_LENGTH) {
+            throw new GeneralSecurityException("Wrapped key is too short");
+        }
+        Cipher cipher = wrapCipher(kek, Cipher.DECRYPT_MODE,
+                new GCMParameterSpec(WRAP_TAG_BITS, wrapped, 0, WRAP_NONCE_LENGTH));
+        try {
+            cipher.updateAAD(algorithmId.getBytes(StandardCharsets.UTF_8));
+            return cipher.doFinal(wrapped, WRAP_NONCE_LENGTH, wrapped.length - WRAP_NONCE_LENGTH);
+        } finally {
+            releaseWrapCipher(kek, cipher);
+        }
+    }
+
+    /**
+     * Returns an initialized key-wrapping cipher. Keys held by a {@link MasterKeyVault} get a cipher of their own
+     * that is never pooled, so their key schedules do not outlive the operation in a pooled cipher after the vault
+     * locks.
+     */
+    private static Cipher wrapCipher(SecretKey kek, int mode, GCMParameterSpec parameters)
+            throws GeneralSecurityException {
+        if (kek instanceof OffHeapKey offHeap) {
+            Cipher cipher = CryptoProviders.newCipher("AES/GCM/NoPadding");
+            offHeap.init(cipher, mode, parameters);
+            return cipher;
+        }
+        Cipher cipher = WRAP_CIPHERS.acquire();
+        try {
+            cipher.init(mode, kek, parameters);
+            return cipher;
+        } catch (GeneralSecurityException | RuntimeException e) {
+            WRAP_CIPHERS.release(cipher);
+            throw e;
+        }
+    }
+
+    private static void releaseWrapCipher(SecretKey kek, Cipher cipher) {
+        if (!(kek instanceof OffHeapKey)) {
+            WRAP_CIPHERS.release(cipher);
+        }
+    }
+
+    private void load() throws IOException {
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(path))) {
+            byte[] magic = in.readNBytes(MAGIC.length);
+            int version = Arrays.equals(magic, MAGIC) ? in.readUnsignedByte() : -1;
+            if (version != VERSION && version != SEALED_VERSION) {
+                throw new IOException("Not a SecureSnap keyring: " + path);
+            }
+            if (version == SEALED_VERSION && vault == null) {
+                throw new IOException("Keyring is sealed; open it with its MasterKeyVault first: " + path);
+            }
+            int count = in.readInt();
+            int primary = in.readInt();
+            List<String> ids = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                byte[] id = new byte[KEK_ID_LENGTH];
+                byte[] key = new byte[version == SEALED_VERSION ? SEALED_KEK_LENGTH : KEK_LENGTH];
+                in.readFully(id);
+                in.readFully(key);
+                String hexId = HexFormat.of().formatHex(id);
+                if (version == SEALED_VERSION) {
+                    sealedKeks.put(hexId, key);
+                } else {
+                    try {
+                        addKek(hexId, key);
+                    } finally {
+                        Arrays.fill(key, (byte) 0);
+                    }
+                }
+                ids.add(hexId);
+            }
+            if (primary < 0 || primary >= count) {
+                throw new IOException("Keyring has no primary key: " + path);
+            }
+            primaryId = ids.get(primary);
+            if (version == VERSION && vault != null) {
+                // convert: replace the raw KEKs on disk with their sealed form
+                save();
+            }
+        }
+    }
+
+    private void save() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.write(MAGIC);
+            if (vault != null) {
+                out.writeByte(SEALED_VERSION);
+                out.writeInt(sealedKeks.size());
+                out.writeInt(new ArrayList<>(sealedKeks.keySet()).indexOf(primaryId));
+                for (Map.Entry<String, byte[]> entry : sealedKeks.entrySet()) {
+                    out.write(HexFormat.of().parseHex(entry.getKey()));
+                    out.write(entry.getValue());
+                }
+            } else {
+                out.writeByte(VERSION);
+                out.writeInt(keks.size());
+                out.writeInt(new ArrayList<>(keks.keySet()).indexOf(primaryId));
+                for (Map.Entry<String, SecretKey> entry : keks.entrySet()) {
+                    out.write(HexFormat.of().parseHex(entry.getKey()));
+                    out.write(entry.getValue().getEncoded());
+                }
+            }
+        }
+
+        Path directory = path.getParent();
+        Path temp = Files.createTempFile(directory, "keyring", ".tmp");
+        try {
+            if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+                Files.setPosixFilePermissions(temp, PosixFilePermissions.fromString("rw-------"));
+            }
+            Files.write(temp, bytes.toByteArray(), StandardOpenOption.SYNC);
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Cache of unwrapped data keys whose entries expire after a fixed TTL. Lookups are lock-free; when the cache
+     * outgrows its bound, one thread at a time drops the expired entries and then the least recently used ones, down
+     * to three quarters of the bound, so the cost of eviction is spread over many insertions.
+     */
+    static final class DataKeyCache {
+
+        /**
+         * What a cached key was unwrapped for. The wrapped bytes alone are not enough: the wrapping binds them to the
+         * algorithm id, and the same bytes must not yield a key for another algorithm without being authenticated.
+         *
+         * @param algorithmId  The algorithm id from the header.
+         * @param keyAlgorithm The JCA algorithm of the unwrapped key.
+         * @param kekId        The hex id of the wrapping KEK.
+         * @param wrapped      The wrapped key; must not be modified while the id is cached.
+         */
+        record Id(String algorithmId, String keyAlgorithm, String kekId, ByteBuffer wrapped) {
+        }
+
+        private static final class Entry {
+            final SecretKey key;
+            final long expiresAt;
+            volatile long lastUsed;
+
+            Entry(SecretKey key, long expiresAt, long lastUsed) {
+                this.key = key;
+                this.expiresAt = expiresAt;
+                this.lastUsed = lastUsed;
+            }
+        }
+
+        private final int maxEntries;
+        private final long ttlNanos;
+        private final ConcurrentHashMap<Id, Entry> entries = new ConcurrentHashMap<>();
+        private final AtomicBoolean evicting = new AtomicBoolean();
+
+        DataKeyCache(int maxEntries, long ttlNanos) {
+            this.maxEntries = maxEntries;
+            this.ttlNanos = ttlNanos;
+        }
+
+        SecretKey get(Id id) {
+            Entry entry = entries.get(id);
+            if (entry == null) {
+                return null;
+            }
+            long now = System.nanoTime();
+            if (now - entry.expiresAt > 0) {
+                entries.remove(id, entry);
+                return null;
+            }
+            entry.lastUsed = now;
+            return entry.key;
+        }
+
+        void put(Id id, SecretKey key) {
+            long now = System.nanoTime();
+            entries.put(id, new Entry(key, now + ttlNanos, now));
+            if (entries.size() > maxEntries) {
+                evict(now);
+            }
+        }
+
+        void clear() {
+            entries.clear();
+        }
+
+        int size() {
+            return entries.size();
+        }
+
+        private void evict(long now) {
+            if (!evicting.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                entries.values().removeIf(entry -> now - entry.expiresAt > 0);
+                int excess = entries.size() - (maxEntries - maxEntries / 4);
+                if (excess <= 0) {
+                    return;
+                }
+                long[] lastUsed = entries.values().stream().mapToLong(entry -> entry.lastUsed).sorted().toArray();
+                long threshold = lastUsed[Math.min(excess, lastUsed.length) - 1];
+                entries.values().removeIf(entry -> entry.lastUsed - threshold <= 0);
+            } finally {
+                evicting.set(false);
+            }
+        }
+    }
+}
@@ -0,0 +1,716 @@
+package com.secure.snap;
+
+import net.steppschuh.markdowngenerator.table.Table;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * Load test for a shared {@link GenericSecureSnap}: N concurrent clients encrypt and decrypt synthetic in-memory
+ * payloads drawn from a size distribution, optionally paced to a target rate, while latency percentiles, throughput,
+ * CPU and heap usage are reported per interval.
+ * <p>
+ * With a target rate every client works on a fixed schedule and latency is measured from the time an operation was
+ * due, not from when it actually started, so a stalled engine shows up as queueing delay in the percentiles instead
+ * of silently lowering the offered load. Without a target rate the clients run closed-loop and measure capacity;
+ * {@link #scale(Workload, int)} does that for a doubling number of clients to show how throughput scales with threads.
+ * <p>
+ * Payloads are slices of one random buffer and go through the {@link ByteBuffer} API, so the numbers contain no
+ * disk I/O and no payload generation. Use {@link AlgorithmPerformanceTester} for a quick single-threaded smoke test
+ * and the JMH benchmarks for per-operation costs.
+ */
+public class LoadGenerator {
+
+    // in-memory containers are limited by the maximum array size
+    private static final long MAX_PAYLOAD = 1L << 30;
+    private static final long PAYLOAD_SEED = 0x5345435552455348L;
+
+    private final GenericSecureSnap snap;
+
+    /**
+     * Draws payload sizes.
+     */
+    public interface SizeDistribution {
+
+        /**
+         * Draws the size of the next payload.
+         *
+         * @param random The random generator of the calling client.
+         * @return A size between 0 and {@link #max()}.
+         */
+        long next(SplittableRandom random);
+
+        /**
+         * @return The largest size the distribution can return.
+         */
+        long max();
+
+        /**
+         * @param size The payload size.
+         * @return A distribution that always returns {@code size}.
+         */
+        static SizeDistribution fixed(long size) {
+            return new Uniform(size, size);
+        }
+
+        /**
+         * @param min The smallest size.
+         * @param max The largest size.
+         * @return A distribution uniform between {@code min} and {@code max}, inclusive.
+         */
+        static SizeDistribution uniform(long min, long max) {
+            return new Uniform(min, max);
+        }
+
+        /**
+         * Log-normal sizes, the usual shape of real file and object sizes: most payloads are near the median, with a
+         * long tail of large ones.
+         *
+         * @param median The median size.
+         * @param sigma  The standard deviation of the logarithm of the size.
+         * @param max    The size at which the tail is cut off.
+         * @return The distribution.
+         */
+        static SizeDistribution logNormal(long median, double sigma, long max) {
+            return new LogNormal(median, sigma, max);
+        }
+
+        /**
+         * Parses a distribution. Sizes accept the suffixes {@code KB}, {@code MB} and {@code GB} (powers of 1024).
+         * <ul>
+         *     <li>{@code 64KB}: fixed size</li>
+         *     <li>{@code uniform:1KB-1MB}: uniform between two sizes</li>
+         *     <li>{@code lognormal:256KB,1.5[,64MB]}: median, sigma and optional cut-off, by default 64 times the
+         *     median</li>
+         *     <li>{@code mix:1KB=70,1MB=25,64MB=5}: fixed sizes with relative weights</li>
+         * </ul>
+         *
+         * @param spec The distribution.
+         * @return The parsed distribution.
+         */
+        static SizeDistribution parse(String spec) {
+            int colon = spec.indexOf(':');
+            String kind = colon < 0 ? "fixed" : spec.substring(0, colon).toLowerCase(Locale.ROOT);
+            String[] values = spec.substring(colon + 1).split(",");
+            return switch (kind) {
+                case "fixed" -> fixed(parseSize(values[0]));
+                case "uniform" -> {
+                    String[] range = values[0].split("-");
+                    yield uniform(parseSize(range[0]), parseSize(range[1]));
+                }
+                case "lognormal" -> {
+                    long median = parseSize(values[0]);
+                    long max = values.length > 2 ? parseSize(values[2]) : Math.min(MAX_PAYLOAD, median * 64);
+                    yield logNormal(median, Double.parseDouble(values[1]), max);
+                }
+                case "mix" -> {
+                    long[] sizes = new long[values.length];
+                    double[] weights = new double[values.length];
+                    for (int i = 0; i < values.length; i++) {
+                        String[] entry = values[i].split("=");
+                        sizes[i] = parseSize(entry[0]);
+                        weights[i] = Double.parseDouble(entry[1]);
+                    }
+                    yield new Mix(sizes, weights);
+                }
+                default -> throw new IllegalArgumentException("Unknown size distribution: " + spec);
+            };
+        }
+    }
+
+    /**
+     * What the clients do.
+     *
+     * @param sizes              The payload size distribution.
+     * @param clients            The number of concurrent clients, each on its own thread.
+     * @param targetOpsPerSecond The total rate of all clients, or 0 to run each client as fast as it can.
+     * @param decryptShare       The fraction of operations that decrypt the client's last container instead of
+     *                           encrypting a new payload, between 0 and 1.
+     * @param warmup             How long to run before measuring, so that the JIT has compiled the hot paths.
+     * @param duration           How long to measure.
+     * @param reportInterval     The length of every reported interval.
+     */
+    public record Workload(SizeDistribution sizes, int clients, double targetOpsPerSecond, double decryptShare,
+                           Duration warmup, Duration duration, Duration reportInterval) {
+
+        public Workload {
+            if (clients <= 0 || targetOpsPerSecond < 0 || decryptShare < 0 || decryptShare > 1) {
+                throw new IllegalArgumentException("Invalid workload: " + clients + " clients, "
+                        + targetOpsPerSecond + " ops/s, decrypt share " + decryptShare);
+            }
+            if (sizes.max() > MAX_PAYLOAD) {
+                throw new IllegalArgumentException("Payloads are limited to " + MAX_PAYLOAD + " bytes");
+            }
+            if (duration.isNegative() || duration.isZero() || reportInterval.isNegative() || reportInterval.isZero()) {
+                throw new IllegalArgumentException("Duration and report interval must be positive");
+            }
+        }
+
+        /**
+         * @param newClients The number of clients.
+         * @return This workload with another number of clients and no rate limit.
+         */
+        public Workload unthrottled(int newClients) {
+            return new Workload(sizes, newClients, 0, decryptShare, warmup, duration, reportInterval);
+        }
+    }
+
+    /**
+     * Latency percentiles of a set of operations, measured from the time each operation was due.
+     *
+     * @param count     The number of operations.
+     * @param p50Nanos  The median.
+     * @param p90Nanos  The 90th percentile.
+     * @param p99Nanos  The 99th percentile.
+     * @param p999Nanos The 99.9th percentile.
+     * @param maxNanos  The maximum.
+     */
+    public record Latency(long count, long p50Nanos, long p90Nanos, long p99Nanos, long p999Nanos, long maxNanos) {
+
+        static Latency of(LatencyHistogram histogram) {
+            return new Latency(histogram.count(), histogram.valueAtQuantile(0.5), histogram.valueAtQuantile(0.9),
+                    histogram.valueAtQuantile(0.99), histogram.valueAtQuantile(0.999),
+                    histogram.valueAtQuantile(1.0));
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "p50=%s p90=%s p99=%s p99.9=%s max=%s", millis(p50Nanos),
+                    millis(p90Nanos), millis(p99Nanos), millis(p999Nanos), millis(maxNanos));
+        }
+    }
+
+    /**
+     * Measurements of one report interval.
+     *
+     * @param elapsedNanos   The time from the start of the measurement to the end of the interval.
+     * @param latency        The latency of the operations that completed in the interval.
+     * @param errors         The number of failed operations.
+     * @param throughputMBps The payload bytes processed per second, in MB/s.
+     * @param cpuUsage       The process CPU time as a fraction of all cores, or {@code NaN} if unavailable.
+     * @param heapUsedBytes  The heap in use at the end of the interval.
+     * @param gcMillis       The time spent in garbage collection during the interval.
+     */
+    public record Interval(long elapsedNanos, Latency latency, long errors, double throughputMBps, double cpuUsage,
+                           long heapUsedBytes, long gcMillis) {
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%7.1fs ops=%d err=%d %9.1f MB/s %s cpu=%.0f%% heap=%dMB gc=%dms",
+                    elapsedNanos / 1e9, latency.count(), errors, throughputMBps, latency, cpuUsage * 100,
+                    heapUsedBytes >> 20, gcMillis);
+        }
+    }
+
+    /**
+     * Result of a load test.
+     *
+     * @param workload       The workload that was run.
+     * @param encrypt        The latency of all encryptions.
+     * @param decrypt        The latency of all decryptions.
+     * @param errors         The number of failed operations.
+     * @param bytes          The payload bytes processed.
+     * @param elapsedNanos   The measured time.
+     * @param cpuUsage       The process CPU time as a fraction of all cores, or {@code NaN} if unavailable.
+     * @param peakHeapBytes  The largest heap use sampled.
+     * @param gcMillis       The time spent in garbage collection.
+     * @param intervals      The measurements of every report interval.
+     * @param firstError     The first failure, or {@code null}.
+     */
+    public record Report(Workload workload, Latency encrypt, Latency decrypt, long errors, long bytes,
+                         long elapsedNanos, double cpuUsage, long peakHeapBytes, long gcMillis,
+                         List<Interval> intervals, Exception firstError) {
+
+        /**
+         * @return The completed operations per second.
+         */
+        public double operationsPerSecond() {
+            return (encrypt.count() + decrypt.count()) / (elapsedNanos / 1e9);
+        }
+
+        /**
+         * @return The payload bytes processed per second, in MB/s.
+         */
+        public double throughputMBps() {
+            return bytes / (1024.0 * 1024.0) / (elapsedNanos / 1e9);
+        }
+    }
+
+    /**
+     * Creates a load generator.
+     *
+     * @param snap The engine under test; it is shared by all clients.
+     */
+    public LoadGenerator(GenericSecureSnap snap) {
+        this.snap = snap;
+    }
+
+    /**
+     * Runs the warm-up and then the measured load.
+     *
+     * @param workload The workload.
+     * @param listener Receives every interval as soon as it ends.
+     * @return The result of the measured part.
+     * @throws InterruptedException If the calling thread is interrupted; the clients are stopped.
+     */
+    public Report run(Workload workload, Consumer<Interval> listener) throws InterruptedException {
+        byte[] payloads = new byte[(int) Math.max(1, workload.sizes().max())];
+        new SplittableRandom(PAYLOAD_SEED).nextBytes(payloads);
+        if (!workload.warmup().isZero() && !workload.warmup().isNegative()) {
+            execute(workload, workload.warmup(), payloads, interval -> {
+            });
+        }
+        return execute(workload, workload.duration(), payloads, listener);
+    }
+
+    /**
+     * Measures capacity for 1, 2, 4, ... up to {@code maxClients} clients, each run closed-loop with the rest of the
+     * workload unchanged.
+     *
+     * @param workload   The workload; its client count and target rate are ignored.
+     * @param maxClients The largest number of clients.
+     * @return One report per client count, in increasing order.
+     * @throws InterruptedException If the calling thread is interrupted.
+     */
+    public List<Report> scale(Workload workload, int maxClients) throws InterruptedException {
+        List<Report> curve = new ArrayList<>();
+        for (int clients = 1; ; clients = Math.min(maxClients, clients * 2)) {
+            curve.add(run(workload.unthrottled(clients), interval -> {
+            }));
+            if (clients >= maxClients) {
+                return curve;
+            }
+        }
+    }
+
+    private Report execute(Workload workload, Duration duration, byte[] payloads, Consumer<Interval> listener)
+            throws InterruptedException {
+        Recorder recorder = new Recorder();
+        ResourceSampler resources = new ResourceSampler();
+        int clients = workload.clients();
+        long pacing = workload.targetOpsPerSecond() > 0
+                ? Math.max(1, (long) (1e9 * clients / workload.targetOpsPerSecond()))
+                : 0;
+        long start = System.nanoTime();
+        long end = start + duration.toNanos();
+
+        AtomicInteger threadIds = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(clients, task -> {
+            Thread thread = new Thread(task, "securesnap-load-" + threadIds.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        SplittableRandom seeds = new SplittableRandom(PAYLOAD_SEED);
+        for (int i = 0; i < clients; i++) {
+            SplittableRandom random = seeds.split();
+            // spread the clients' schedules evenly over one pacing period
+            long firstDue = start + pacing * i / clients;
+            pool.execute(() -> client(workload, payloads, random, firstDue, pacing, end, recorder));
+        }
+        pool.shutdown();
+
+        List<Interval> intervals = new ArrayList<>();
+        long intervalNanos = workload.reportInterval().toNanos();
+        long intervalStart = start;
+        try {
+            while (true) {
+                long intervalEnd = intervalStart + intervalNanos;
+                boolean done = pool.awaitTermination(Math.max(0, intervalEnd - System.nanoTime()),
+                        TimeUnit.NANOSECONDS);
+                long now = System.nanoTime();
+                if (!done && now < intervalEnd) {
+                    continue;
+                }
+                // the clients finish the operations in flight at the end, which may leave a short last interval
+                Interval interval = recorder.interval(now - start, now - intervalStart, resources.sample());
+                if (interval.latency().count() > 0 || interval.errors() > 0 || !done) {
+                    intervals.add(interval);
+                    listener.accept(interval);
+                }
+                if (done) {
+                    break;
+                }
+                intervalStart = now;
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        long elapsed = System.nanoTime() - start;
+        return new Report(workload, Latency.of(recorder.encrypt), Latency.of(recorder.decrypt),
+                recorder.totalErrors.sum(), recorder.totalBytes.sum(), elapsed, resources.totalCpuUsage(),
+                resources.peakHeap, resources.totalGcMillis(), List.copyOf(intervals), recorder.firstError.get());
+    }
+
+    private void client(Workload workload, byte[] payloads, SplittableRandom random, long firstDue, long pacing,
+                        long end, Recorder recorder) {
+        ByteBuffer lastContainer = null;
+        int lastSize = 0;
+        long due = firstDue;
+        while (!Thread.currentThread().isInterrupted()) {
+            long intended;
+            if (pacing > 0) {
+                intended = due;
+                due += pacing;
+                if (intended >= end) {
+                    return;
+                }
+                for (long wait = intended - System.nanoTime(); wait > 0; wait = intended - System.nanoTime()) {
+                    LockSupport.parkNanos(wait);
+                }
+            } else {
+                intended = System.nanoTime();
+                if (intended >= end) {
+                    return;
+                }
+            }
+
+            boolean decrypt = lastContainer != null && random.nextDouble() < workload.decryptShare();
+            int size = decrypt ? lastSize : (int) workload.sizes().next(random);
+            try {
+                if (decrypt) {
+                    snap.decrypt(lastContainer.duplicate());
+                } else {
+                    int offset = random.nextInt(payloads.length - size + 1);
+                    lastContainer = snap.encrypt(ByteBuffer.wrap(payloads, offset, size));
+                    lastSize = size;
+                }
+                recorder.record(decrypt, size, System.nanoTime() - intended);
+            } catch (Exception e) {
+                recorder.fail(e);
+            }
+        }
+    }
+
+    /**
+     * Collects the latencies and byte counts of all clients; the interval histogram is swapped at every report.
+     */
+    private static final class Recorder {
+
+        private final LatencyHistogram encrypt = new LatencyHistogram();
+        private final LatencyHistogram decrypt = new LatencyHistogram();
+        private final AtomicReference<LatencyHistogram> interval = new AtomicReference<>(new LatencyHistogram());
+        private final LongAdder intervalBytes = new LongAdder();
+        private final LongAdder intervalErrors = new LongAdder();
+        private final LongAdder totalBytes = new LongAdder();
+        private final LongAdder totalErrors = new LongAdder();
+        private final AtomicReference<Exception> firstError = new AtomicReference<>();
+
+        void record(boolean decryption, long bytes, long nanos) {
+            (decryption ? decrypt : encrypt).record(nanos);
+            interval.get().record(nanos);
+            intervalBytes.add(bytes);
+            totalBytes.add(bytes);
+        }
+
+        void fail(Exception e) {
+            intervalErrors.increment();
+            totalErrors.increment();
+            firstError.compareAndSet(null, e);
+        }
+
+        Interval interval(long elapsedNanos, long intervalNanos, ResourceSampler.Sample resources) {
+            LatencyHistogram latency = interval.getAndSet(new LatencyHistogram());
+            double mbps = intervalBytes.sumThenReset() / (1024.0 * 1024.0) / (intervalNanos / 1e9);
+            return new Interval(elapsedNanos, Latency.of(latency), intervalErrors.sumThenReset(), mbps,
+                    resources.cpuUsage(), resources.heapUsedBytes(), resources.gcMillis());
+        }
+    }
+
+    /**
+     * Samples process CPU time, heap use and garbage collection time.
+     */
+    private static final class ResourceSampler {
+
+        record Sample(double cpuUsage, long heapUsedBytes, long gcMillis) {
+        }
+
+        private final int processors = Runtime.getRuntime().availableProcessors();
+        private final long startNanos = System.nanoTime();
+        private final long startCpu = processCpuNanos();
+        private final long startGc = gcMillis();
+        private long lastNanos = startNanos;
+        private long lastCpu = startCpu;
+        private long lastGc = startGc;
+        private long peakHeap;
+
+        Sample sample() {
+            long now = System.nanoTime();
+            long cpu = processCpuNanos();
+            long gc = gcMillis();
+            long heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+            peakHeap = Math.max(peakHeap, heap);
+            Sample sample = new Sample(usage(cpu - lastCpu, now - lastNanos), heap, gc - lastGc);
+            lastNanos = now;
+            lastCpu = cpu;
+            lastGc = gc;
+            return sample;
+        }
+
+        double totalCpuUsage() {
+            return usage(processCpuNanos() - startCpu, System.nanoTime() - startNanos);
+        }
+
+        long totalGcMillis() {
+            return gcMillis() - startGc;
+        }
+
+        private double usage(long cpuNanos, long wallNanos) {
+            return cpuNanos < 0 || wallNanos <= 0 ? Double.NaN : cpuNanos / ((double) wallNanos * processors);
+        }
+
+        private static long processCpuNanos() {
+            OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+            return os instanceof com.sun.management.OperatingSystemMXBean hotspot ? hotspot.getProcessCpuTime() : -1;
+        }
+
+        private static long gcMillis() {
+            long total = 0;
+            for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+                total += Math.max(0, collector.getCollectionTime());
+            }
+            return total;
+        }
+    }
+
+    private record Uniform(long min, long max) implements SizeDistribution {
+
+        Uniform {
+            if (min < 0 || max < min) {
+                throw new IllegalArgumentException("Invalid size range " + min + "-" + max);
+            }
+        }
+
+        @Override
+        public long next(SplittableRandom random) {
+            return min == max ? min : random.nextLong(min, max + 1);
+        }
+    }
+
+    private record LogNormal(long median, double sigma, long max) implements SizeDistribution {
+
+        LogNormal {
+            if (median <= 0 || sigma < 0 || max < median) {
+                throw new IllegalArgumentException("Invalid log-normal sizes: median " + median + ", sigma " + sigma
+                        + ", max " + max);
+            }
+        }
+
+        @Override
+        public long next(SplittableRandom random) {
+            // Box-Muller; one of the two normal variates is enough here
+            double radius = Math.sqrt(-2 * Math.log(1 - random.nextDouble()));
+            double gaussian = radius * Math.cos(2 * Math.PI * random.nextDouble());
+            return Math.min(max, Math.round(median * Math.exp(sigma * gaussian)));
+        }
+    }
+
+    private record Mix(long[] sizes, double[] cumulative, long max) implements SizeDistribution {
+
+        Mix(long[] sizes, double[] weights) {
+            this(sizes, cumulativeWeights(weights), maxOf(sizes));
+        }
+
+        @Override
+        public long next(SplittableRandom random) {
+            double draw = random.nextDouble() * cumulative[cumulative.length - 1];
+            for (int i = 0; i < cumulative.length - 1; i++) {
+                if (draw < cumulative[i]) {
+                    return sizes[i];
+                }
+            }
+            return sizes[sizes.length - 1];
+        }
+
+        @Override
+        public String toString() {
+            return "Mix[sizes=" + Arrays.toString(sizes) + ", cumulativeWeights=" + Arrays.toString(cumulative) + "]";
+        }
+
+        private static double[] cumulativeWeights(double[] weights) {
+            double[] cumulative = new double[weights.length];
+            double sum = 0;
+            for (int i = 0; i < weights.length; i++) {
+                if (weights[i] < 0) {
+                    throw new IllegalArgumentException("Negative weight " + weights[i]);
+                }
+                sum += weights[i];
+                cumulative[i] = sum;
+            }
+            if (sum <= 0) {
+                throw new IllegalArgumentException("The weights must not all be zero");
+            }
+            return cumulative;
+        }
+
+        private static long maxOf(long[] sizes) {
+            long max = 0;
+            for (long size : sizes) {
+                if (size < 0) {
+                    throw new IllegalArgumentException("Negative size " + size);
+                }
+                max = Math.max(max, size);
+            }
+            return max;
+        }
+    }
+
+    private static long parseSize(String value) {
+        String size = value.trim().toUpperCase(Locale.ROOT);
+        long unit = 1;
+        if (size.endsWith("KB")) {
+            unit = 1L << 10;
+        } else if (size.endsWith("MB")) {
+            unit = 1L << 20;
+        } else if (size.endsWith("GB")) {
+            unit = 1L << 30;
+        }
+        if (unit > 1) {
+            size = size.substring(0, size.length() - 2);
+        } else if (size.endsWith("B")) {
+            size = size.substring(0, size.length() - 1);
+        }
+        return Math.round(Double.parseDouble(size.trim()) * unit);
+    }
+
+    private static Duration parseDuration(String value) {
+        String duration = value.trim().toLowerCase(Locale.ROOT);
+        if (duration.endsWith("ms")) {
+            return Duration.ofMillis(Long.parseLong(duration.substring(0, duration.length() - 2)));
+        }
+        if (duration.endsWith("m")) {
+            return Duration.ofMinutes(Long.parseLong(duration.substring(0, duration.length() - 1)));
+        }
+        return Duration.ofSeconds(Long.parseLong(duration.endsWith("s")
+                ? duration.substring(0, duration.length() - 1)
+                : duration));
+    }
+
+    private static String millis(long nanos) {
+        return nanos == Long.MAX_VALUE ? "inf" : String.format(Locale.ROOT, "%.2fms", nanos / 1e6);
+    }
+
+    /**
+     * Creates the engine for an algorithm name, with the same parameters as {@link AlgorithmPerformanceTester}.
+     *
+     * @param algorithm {@code AES}, {@code ChaCha20}, {@code Blowfish}, {@code SEED}, {@code DESede} or
+     *                  {@code Camellia}, or one of the last four with the suffix {@code -CTR} for the parallel
+     *                  authenticated counter mode.
+     * @return The engine.
+     * @throws Exception If the default keyring cannot be opened.
+     */
+    private static GenericSecureSnap createSnap(String algorithm) throws Exception {
+        return switch (algorithm) {
+            case "AES" -> new SecureSnap();
+            case "ChaCha20" -> new ChaChaSecureSnap();
+            case "Blowfish" -> new AllSecureSnap("Blowfish", "ECB", "PKCS5Padding", 128);
+            case "SEED" -> new AllSecureSnap("SEED", "ECB", "PKCS5Padding", 128);
+            case "DESede" -> new AllSecureSnap("DESede", "ECB", "PKCS5Padding", 168);
+            case "Camellia" -> new AllSecureSnap("Camellia", "ECB", "PKCS5Padding", 128);
+            case "Blowfish-CTR" -> new AllSecureSnap("Blowfish", "CTR", AllSecureSnap.HMAC_PADDING, 128);
+            case "SEED-CTR" -> new AllSecureSnap("SEED", "CTR", AllSecureSnap.HMAC_PADDING, 128);
+            case "DESede-CTR" -> new AllSecureSnap("DESede", "CTR", AllSecureSnap.HMAC_PADDING, 168);
+            case "Camellia-CTR" -> new AllSecureSnap("Camellia", "CTR", AllSecureSnap.HMAC_PADDING, 128);
+            default -> throw new IllegalArgumentException("Unknown algorithm: " + algorithm);
+        };
+    }
+
+    /**
+     * Runs a load test from the command line and prints the intervals, a summary and, if requested, the scaling
+     * curve.
+     * <p>
+     * Arguments are {@code key=value} pairs: {@code algorithm} (default {@code AES}), {@code clients} (default: one
+     * per core), {@code rate} in operations per second (default 0, unthrottled), {@code sizes} (see
+     * {@link SizeDistribution#parse(String)}, default {@code lognormal:256KB,1.5}), {@code decrypt} share (default
+     * 0.5), {@code warmup} (default {@code 5s}), {@code duration} (default {@code 30s}), {@code interval} (default
+     * {@code 1s}) and {@code scale}, the largest client count of the scaling curve (default 0, no curve).
+     *
+     * @param args The arguments.
+     * @throws Exception If the engine cannot be created or the run is interrupted.
+     */
+    public static void main(String[] args) throws Exception {
+        CryptoProviders.init();
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (equals < 0) {
+                throw new IllegalArgumentException("Expected key=value, got " + arg);
+            }
+            options.put(arg.substring(0, equals), arg.substring(equals + 1));
+        }
+        Workload workload = new Workload(
+                SizeDistribution.parse(options.getOrDefault("sizes", "lognormal:256KB,1.5")),
+                Integer.parseInt(options.getOrDefault("clients",
+                        String.valueOf(Runtime.getRuntime().availableProcessors()))),
+                Double.parseDouble(options.getOrDefault("rate", "0")),
+                Double.parseDouble(options.getOrDefault("decrypt", "0.5")),
+                parseDuration(options.getOrDefault("warmup", "5s")),
+                parseDuration(options.getOrDefault("duration", "30s")),
+                parseDuration(options.getOrDefault("interval", "1s")));
+        int scale = Integer.parseInt(options.getOrDefault("scale", "0"));
+        GenericSecureSnap snap = createSnap(options.getOrDefault("algorithm", "AES"));
+        LoadGenerator generator = new LoadGenerator(snap);
+
+        System.out.println("Load test of " + snap.getAlgorithm() + ": " + workload);
+        Report report = generator.run(workload, System.out::println);
+        printSummary(report);
+        if (scale > 0) {
+            printScaling(generator.scale(workload, scale));
+        }
+    }
+
+    private static void printSummary(Report report) {
+        Table.Builder table = new Table.Builder()
+                .withAlignments(Table.ALIGN_LEFT, Table.ALIGN_LEFT, Table.ALIGN_LEFT, Table.ALIGN_LEFT,
+                        Table.ALIGN_LEFT, Table.ALIGN_LEFT, Table.ALIGN_LEFT)
+                .addRow("Operation", "Count", "p50", "p90", "p99", "p99.9", "Max");
+        addLatencyRow(table, "Encrypt", report.encrypt());
+        addLatencyRow(table, "Decrypt", report.decrypt());
+        System.out.println(table.build());
+        System.out.printf(Locale.ROOT, "%.1f ops/s, %.1f MB/s sustained, %d errors, CPU %.0f%%, peak heap %d MB, "
+                        + "GC %d ms%n", report.operationsPerSecond(), report.throughputMBps(), report.errors(),
+                report.cpuUsage() * 100, report.peakHeapBytes() >> 20, report.gcMillis());
+        if (report.firstError() != null) {
+            report.firstError().printStackTrace();
+        }
+    }
+
+    private static void addLatencyRow(Table.Builder table, String operation, Latency latency) {
+        table.addRow(operation, latency.count(), millis(latency.p50Nanos()), millis(latency.p90Nanos()),
+                millis(latency.p99Nanos()), millis(latency.p999Nanos()), millis(latency.maxNanos()));
+    }
+
+    private static void printScaling(List<Report> curve) {
+        double single = curve.get(0).throughputMBps();
+        Table.Builder table = new Table.Builder()
+                .withAlignments(Table.ALIGN_LEFT, Table.ALIGN_LEFT, Table.ALIGN_LEFT, Table.ALIGN_LEFT,
+                        Table.ALIGN_LEFT, Table.ALIGN_LEFT)
+                .addRow("Clients", "Throughput (MB/s)", "Speedup", "Efficiency", "Encrypt p99", "CPU");
+        for (Report point : curve) {
+            int clients = point.workload().clients();
+            double speedup = single > 0 ? point.throughputMBps() / single : 0;
+            table.addRow(clients, String.format(Locale.ROOT, "%.1f", point.throughputMBps()),
+                    String.format(Locale.ROOT, "%.2fx", speedup),
+                    String.format(Locale.ROOT, "%.0f%%", speedup / clients * 100),
+                    millis(point.encrypt().p99Nanos()), String.format(Locale.ROOT, "%.0f%%", point.cpuUsage() * 100));
+        }
+        System.out.println(table.build());
+    }
+}
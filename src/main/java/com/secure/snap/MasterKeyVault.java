@@ -0,0 +1,291 @@
+package com.secure.snap;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Holds the master key that seals a {@link Keyring}'s key-encryption keys, unlocked by a quorum of
+ * {@link ShamirSecretSharing} shares.
+ * <p>
+ * The master key itself is never stored: {@link #initialize(Path, int, int)} generates it, splits it among custodians
+ * and keeps only its threshold and a check value in the vault file. {@link #unlock(List, Duration)} combines the
+ * presented shares once, verifies the result against the check value and moves it into an {@link OffHeapKey}, outside
+ * the garbage-collected heap. The key then serves every keyring and engine in the process from memory until
+ * {@link #lock()} is called or the TTL runs out, at which point it is overwritten along with every key unsealed
+ * under it; using the vault afterwards fails until a quorum unlocks it again.
+ * <p>
+ * Off-heap storage covers the key at rest in memory, not in use: reconstructing and checking the key, and every
+ * cipher keyed with it, briefly puts it on the heap, because the JCA only takes keys as byte arrays. Those copies are
+ * wiped where the JCA allows, and ciphers keyed with vault keys are not pooled, but a key schedule stays on the heap
+ * until its cipher is collected.
+ * <p>
+ * Like {@link Keyring}, there is one instance per vault file in the process. Instances are thread-safe.
+ */
+public final class MasterKeyVault {
+
+    /**
+     * The vault file used by {@link #main(String[])} when none is given.
+     */
+    public static final Path DEFAULT_PATH = Path.of("masterkey.vault");
+
+    private static final byte[] MAGIC = {'S', 'M', 'K', 'V'};
+    private static final int VERSION = 1;
+    private static final int KEY_LENGTH = 32;
+    private static final String CHECK_ALGORITHM = "HmacSHA256";
+    private static final byte[] CHECK_LABEL = "SecureSnap master key check".getBytes(StandardCharsets.US_ASCII);
+
+    private static final Map<Path, MasterKeyVault> OPENED = new ConcurrentHashMap<>();
+
+    private final Path path;
+    private final int threshold;
+    private final byte[] keyCheck;
+    // keys unsealed under the master key, destroyed together with it
+    private final List<OffHeapKey> dependents = new ArrayList<>();
+    private final List<Runnable> lockListeners = new CopyOnWriteArrayList<>();
+    private OffHeapKey masterKey;
+    private long expiresAt;
+    private long generation;
+
+    private MasterKeyVault(Path path, int threshold, byte[] keyCheck) {
+        this.path = path;
+        this.threshold = threshold;
+        this.keyCheck = keyCheck;
+    }
+
+    /**
+     * Creates a vault file for a new random master key and splits the key among custodians. The shares are the only
+     * copy of the key; hand each to its custodian and do not store them together.
+     *
+     * @param path        The vault file, which must not exist.
+     * @param totalShares The number of shares, at most 255.
+     * @param threshold   The number of shares needed to unlock the vault.
+     * @return The shares, one per custodian.
+     * @throws IOException If the vault file exists or cannot be written.
+     */
+    public static List<ShamirSecretSharing.Share> initialize(Path path, int totalShares, int threshold)
+            throws IOException {
+        if (Files.exists(path)) {
+            throw new FileAlreadyExistsException(path.toString());
+        }
+        byte[] key = Randoms.nextBytes(KEY_LENGTH);
+        try {
+            List<ShamirSecretSharing.Share> shares = ShamirSecretSharing.split(key, totalShares, threshold);
+            try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(path))) {
+                out.write(MAGIC);
+                out.writeByte(VERSION);
+                out.writeByte(threshold);
+                out.write(check(key));
+            }
+            return shares;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(CHECK_ALGORITHM + " is not available", e);
+        } finally {
+            Arrays.fill(key, (byte) 0);
+        }
+    }
+
+    /**
+     * Returns the process-wide vault stored at a path, loading it once. The vault starts locked.
+     *
+     * @param path The vault file.
+     * @return The vault.
+     * @throws IOException If the vault file cannot be read.
+     */
+    public static MasterKeyVault open(Path path) throws IOException {
+        Path normalized = path.toAbsolutePath().normalize();
+        MasterKeyVault vault = OPENED.get(normalized);
+        if (vault == null) {
+            synchronized (OPENED) {
+                vault = OPENED.get(normalized);
+                if (vault == null) {
+                    vault = load(normalized);
+                    OPENED.put(normalized, vault);
+                }
+            }
+        }
+        return vault;
+    }
+
+    /**
+     * Reconstructs the master key from a quorum of shares and keeps it in memory for a limited time. Unlocking an
+     * unlocked vault replaces the key and restarts the TTL.
+     *
+     * @param shares The shares presented by the custodians, in any order.
+     * @param ttl    How long the key stays unlocked.
+     * @throws GeneralSecurityException If fewer shares than the threshold are given or they do not reconstruct the
+     *                                  master key.
+     */
+    public void unlock(List<ShamirSecretSharing.Share> shares, Duration ttl) throws GeneralSecurityException {
+        if (ttl.isNegative() || ttl.isZero()) {
+            throw new IllegalArgumentException("TTL must be positive: " + ttl);
+        }
+        if (shares.size() < threshold) {
+            throw new GeneralSecurityException("Quorum not reached: " + shares.size() + " of " + threshold
+                    + " shares");
+        }
+        byte[] key = ShamirSecretSharing.combine(shares);
+        try {
+            if (key.length != KEY_LENGTH || !MessageDigest.isEqual(check(key), keyCheck)) {
+                throw new GeneralSecurityException("Shares do not reconstruct the master key of " + path);
+            }
+            long scheduled;
+            synchronized (this) {
+                lock();
+                masterKey = new OffHeapKey(key, "AES");
+                expiresAt = System.nanoTime() + ttl.toNanos();
+                scheduled = generation;
+            }
+            // wipe the key when the TTL runs out even if nobody uses the vault any more
+            CompletableFuture.delayedExecutor(ttl.toNanos(), TimeUnit.NANOSECONDS).execute(() -> expire(scheduled));
+        } finally {
+            Arrays.fill(key, (byte) 0);
+        }
+    }
+
+    /**
+     * Overwrites the master key and every key unsealed under it, and notifies the keyrings that use the vault. Locking
+     * a locked vault does nothing.
+     */
+    public synchronized void lock() {
+        if (masterKey == null) {
+            return;
+        }
+        generation++;
+        masterKey.destroy();
+        masterKey = null;
+        dependents.forEach(OffHeapKey::destroy);
+        dependents.clear();
+        lockListeners.forEach(Runnable::run);
+    }
+
+    /**
+     * @return {@code true} if the master key is in memory and its TTL has not run out.
+     */
+    public synchronized boolean isUnlocked() {
+        return masterKey != null && System.nanoTime() - expiresAt < 0;
+    }
+
+    /**
+     * @return The time left until the vault locks itself, or {@link Duration#ZERO} if it is locked.
+     */
+    public synchronized Duration remainingTtl() {
+        return isUnlocked() ? Duration.ofNanos(expiresAt - System.nanoTime()) : Duration.ZERO;
+    }
+
+    /**
+     * @return The number of shares needed to unlock the vault.
+     */
+    public int threshold() {
+        return threshold;
+    }
+
+    /**
+     * Returns the master key, straight from memory.
+     *
+     * @return The master key; it is destroyed when the vault locks.
+     * @throws GeneralSecurityException If the vault is locked or its TTL has run out.
+     */
+    synchronized SecretKey key() throws GeneralSecurityException {
+        if (masterKey != null && System.nanoTime() - expiresAt >= 0) {
+            lock();
+        }
+        if (masterKey == null) {
+            throw new GeneralSecurityException("Master key vault is locked: " + path);
+        }
+        return masterKey;
+    }
+
+    /**
+     * Takes ownership of a key unsealed under the master key, so that it is destroyed when the vault locks.
+     *
+     * @param key The unsealed key.
+     * @throws GeneralSecurityException If the vault has been locked in the meantime; the key is destroyed.
+     */
+    synchronized void adopt(OffHeapKey key) throws GeneralSecurityException {
+        if (masterKey == null) {
+            key.destroy();
+            throw new GeneralSecurityException("Master key vault is locked: " + path);
+        }
+        dependents.add(key);
+    }
+
+    /**
+     * Registers an action to run whenever the vault locks, for example to drop keys cached on the heap.
+     *
+     * @param listener The action; it runs while the vault is locked against concurrent use.
+     */
+    void onLock(Runnable listener) {
+        lockListeners.add(listener);
+    }
+
+    private synchronized void expire(long scheduled) {
+        if (generation == scheduled) {
+            lock();
+        }
+    }
+
+    private static byte[] check(byte[] key) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance(CHECK_ALGORITHM);
+        mac.init(new SecretKeySpec(key, CHECK_ALGORITHM));
+        return mac.doFinal(CHECK_LABEL);
+    }
+
+    private static MasterKeyVault load(Path path) throws IOException {
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(path))) {
+            byte[] magic = in.readNBytes(MAGIC.length);
+            if (!Arrays.equals(magic, MAGIC) || in.readUnsignedByte() != VERSION) {
+                throw new IOException("Not a SecureSnap master key vault: " + path);
+            }
+            int threshold = in.readUnsignedByte();
+            byte[] keyCheck = new byte[KEY_LENGTH];
+            in.readFully(keyCheck);
+            if (threshold < 1) {
+                throw new IOException("Invalid threshold in " + path);
+            }
+            return new MasterKeyVault(path, threshold, keyCheck);
+        }
+    }
+
+    /**
+     * Initializes a vault from the command line and prints the shares, one hex-encoded share per line.
+     * <p>
+     * Arguments are the number of shares, the threshold and optionally the vault file (default
+     * {@link #DEFAULT_PATH}).
+     *
+     * @param args The arguments.
+     * @throws IOException If the vault file exists or cannot be written.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: MasterKeyVault <shares> <threshold> [vault file]");
+            System.exit(2);
+        }
+        Path path = args.length > 2 ? Path.of(args[2]) : DEFAULT_PATH;
+        List<ShamirSecretSharing.Share> shares = initialize(path, Integer.parseInt(args[0]),
+                Integer.parseInt(args[1]));
+        System.out.println("Created " + path + "; give one share to each custodian:");
+        for (ShamirSecretSharing.Share share : shares) {
+            System.out.println(HexFormat.of().formatHex(share.toBytes()));
+        }
+    }
+}
@@ -0,0 +1,475 @@
+package com.secure.snap;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.security.DigestException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * SHA-256 Merkle tree over the stored chunks of a container, for verifying ciphertext without the key.
+ * <p>
+ * The leaves are the stored segments of a segmented container (ciphertext and tag), or consecutive
+ * {@link #UNSEGMENTED_LEAF_SIZE}-byte slices of an unsegmented one. A leaf hashes {@code 0x00 || index || bytes}
+ * and an inner node {@code 0x01 || left || right}; the last node of a level with an odd count moves up unchanged.
+ * All levels are stored right after the payload, leaves first, and the root is recorded in the {@link SnapHeader}.
+ * <p>
+ * {@link #verify(Path)} rehashes every leaf in parallel and compares the root; {@link #verifyLeaves(Path, long...)}
+ * and {@link #verifyRange(Path, long, long)} read only the sampled chunks plus one sibling per level. The tree
+ * detects any change to the stored bytes, such as bit rot. It is not keyed, so on its own it does not stop a
+ * deliberate forgery of an unauthenticated (non-AEAD) payload; AEAD segments still fail authentication on decryption.
+ */
+public final class MerkleTree {
+
+    /**
+     * The length of every node, in bytes.
+     */
+    public static final int HASH_LENGTH = 32;
+
+    /**
+     * The leaf size for unsegmented payloads, in bytes.
+     */
+    public static final int UNSEGMENTED_LEAF_SIZE = 64 * 1024;
+
+    private static final byte LEAF_PREFIX = 0x00;
+    private static final byte NODE_PREFIX = 0x01;
+    private static final InstancePool<MessageDigest> DIGESTS =
+            new InstancePool<>(() -> MessageDigest.getInstance("SHA-256"));
+
+    private MerkleTree() {
+    }
+
+    /**
+     * Appends the tree of a freshly written payload after it and patches the header in place to record the payload
+     * length and the root. The leaf hashes come from the engine, which computed them while writing the payload, so
+     * the payload is not read back.
+     *
+     * @param channel      The container, open for writing, with the payload written up to its end.
+     * @param header       The header the container was written with; it must already carry the Merkle flag.
+     * @param payloadStart The offset of the first payload byte, i.e. the encoded header length.
+     * @param leaves       The hashes of every stored chunk of the payload.
+     * @throws IOException If the container cannot be written or the hashes do not cover the payload.
+     */
+    static void seal(FileChannel channel, SnapHeader header, long payloadStart, Leaves leaves) throws IOException {
+        long payloadLength = channel.size() - payloadStart;
+        List<byte[]> levels = levels(leaves.finish(payloadLength));
+
+        long position = payloadStart + payloadLength;
+        for (byte[] level : levels) {
+            ChannelCipher.writeFully(channel.position(position), ByteBuffer.wrap(level));
+            position += level.length;
+        }
+        byte[] root = levels.get(levels.size() - 1);
+        byte[] patched = header.withMerkleTree(payloadLength, root).encode();
+        if (patched.length != payloadStart) {
+            throw new IOException("Merkle header does not fit in place");
+        }
+        ChannelCipher.writeFully(channel.position(0), ByteBuffer.wrap(patched));
+    }
+
+    /**
+     * In-memory variant of {@link #seal(FileChannel, SnapHeader, long, Leaves)}: builds the tree of a payload held in a
+     * buffer, writes it right after the payload and patches the header at the start of the buffer.
+     *
+     * @param container     The container, holding the encoded header at index 0 followed by the payload, with room
+     *                      for {@link #treeLength(SnapHeader, long)} more bytes.
+     * @param header        The header the container was written with; it must already carry the Merkle flag.
+     * @param payloadStart  The index of the first payload byte, i.e. the encoded header length.
+     * @param payloadLength The payload length.
+     * @return The total container length.
+     * @throws IOException If the patched header does not have the same length.
+     */
+    static int seal(ByteBuffer container, SnapHeader header, int payloadStart, int payloadLength) throws IOException {
+        int leafSize = leafSize(header);
+        byte[] leaves = new byte[(int) leafCount(payloadLength, leafSize) * HASH_LENGTH];
+        hashLeaves(container.slice(payloadStart, payloadLength), 0, leafSize, leaves);
+        List<byte[]> levels = levels(leaves);
+
+        int position = payloadStart + payloadLength;
+        for (byte[] level : levels) {
+            container.put(position, level);
+            position += level.length;
+        }
+        byte[] patched = header.withMerkleTree(payloadLength, levels.get(levels.size() - 1)).encode();
+        if (patched.length != payloadStart) {
+            throw new IOException("Merkle header does not fit in place");
+        }
+        container.put(0, patched);
+        return position;
+    }
+
+    /**
+     * Returns the size of the stored tree, so that in-memory containers can be allocated in one piece.
+     *
+     * @param header        The header of the container.
+     * @param payloadLength The payload length.
+     * @return The number of bytes every level of the tree takes together.
+     */
+    static long treeLength(SnapHeader header, long payloadLength) {
+        long count = leafCount(payloadLength, leafSize(header));
+        long length = count * HASH_LENGTH;
+        while (count > 1) {
+            count = (count + 1) / 2;
+            length += count * HASH_LENGTH;
+        }
+        return length;
+    }
+
+    /**
+     * Verifies every chunk of a container, hashing the leaves in parallel.
+     *
+     * @param file The container file.
+     * @return The indexes of the chunks whose bytes no longer match the stored tree; empty if the file is intact.
+     * @throws IOException If the file cannot be read, has no tree, or its tree or header is damaged.
+     */
+    public static List<Long> verify(Path file) throws IOException {
+        try (FileChannel channel = ChannelCipher.openForRead(file)) {
+            SnapHeader header = readHeader(channel);
+            long payloadStart = channel.position();
+            long payloadLength = header.payloadBytes(channel.size() - payloadStart);
+            int leafSize = leafSize(header);
+            byte[] leaves = hashLeaves(channel, payloadStart, payloadLength, leafSize);
+            List<byte[]> levels = levels(leaves);
+            if (Arrays.equals(levels.get(levels.size() - 1), header.merkleRoot())) {
+                return List.of();
+            }
+
+            // Locate the damage by comparing with the stored leaves
+            long count = leaves.length / HASH_LENGTH;
+            ByteBuffer stored = ByteBuffer.allocate(leaves.length);
+            readFully(channel, stored, payloadStart + payloadLength);
+            List<Long> corrupt = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                if (!Arrays.equals(leaves, i * HASH_LENGTH, (i + 1) * HASH_LENGTH,
+                        stored.array(), i * HASH_LENGTH, (i + 1) * HASH_LENGTH)) {
+                    corrupt.add((long) i);
+                }
+            }
+            if (corrupt.isEmpty()) {
+                throw new IOException("Merkle tree or header of " + file + " is damaged");
+            }
+            return corrupt;
+        }
+    }
+
+    /**
+     * Verifies a sample of chunks against the root, reading each chunk and one stored sibling per tree level.
+     *
+     * @param file   The container file.
+     * @param leaves The indexes of the chunks to check.
+     * @return {@code true} if every sampled chunk matches the root.
+     * @throws IOException If the file cannot be read or has no tree, or an index is out of range.
+     */
+    public static boolean verifyLeaves(Path file, long... leaves) throws IOException {
+        try (FileChannel channel = ChannelCipher.openForRead(file)) {
+            SnapHeader header = readHeader(channel);
+            long payloadStart = channel.position();
+            long payloadLength = header.payloadBytes(channel.size() - payloadStart);
+            int leafSize = leafSize(header);
+            long count = leafCount(payloadLength, leafSize);
+            for (long leaf : leaves) {
+                if (leaf < 0 || leaf >= count) {
+                    throw new IOException("Chunk " + leaf + " out of range, the file has " + count);
+                }
+                long offset = leaf * leafSize;
+                ByteBuffer chunk = ByteBuffer.allocate((int) Math.min(leafSize, payloadLength - offset));
+                readFully(channel, chunk, payloadStart + offset);
+                byte[] hash = leafHash(leaf, chunk.flip());
+                if (!Arrays.equals(rootFromProof(channel, payloadStart + payloadLength, count, leaf, hash),
+                        header.merkleRoot())) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Verifies the chunks that hold a plaintext byte range, without decrypting them.
+     *
+     * @param file   The container file.
+     * @param offset The first plaintext byte of the range.
+     * @param length The length of the range.
+     * @return {@code true} if every covering chunk matches the root.
+     * @throws IOException If the file cannot be read or has no tree.
+     * @throws IllegalArgumentException If the offset or the length is negative.
+     */
+    public static boolean verifyRange(Path file, long offset, long length) throws IOException {
+        if (offset < 0 || length < 0) {
+            throw new IllegalArgumentException("Negative range: offset " + offset + ", length " + length);
+        }
+        SnapHeader header = SnapHeader.read(file);
+        if (!header.hasMerkleTree()) {
+            throw new IOException("Container has no Merkle tree");
+        }
+        long plainLeafSize = header.chunkSize() > 0 ? header.chunkSize() : UNSEGMENTED_LEAF_SIZE;
+        long count = leafCount(header.payloadLength(), leafSize(header));
+        long first = Math.min(count - 1, offset / plainLeafSize);
+        // clamp before adding, so that offset + length - 1 cannot overflow
+        long lastByte = offset + Math.min(Math.max(0, length - 1), Long.MAX_VALUE - offset);
+        long last = Math.min(count - 1, lastByte / plainLeafSize);
+        long[] leaves = new long[(int) (last - first + 1)];
+        for (int i = 0; i < leaves.length; i++) {
+            leaves[i] = first + i;
+        }
+        return verifyLeaves(file, leaves);
+    }
+
+    /**
+     * Leaf hashes collected while an engine writes a payload. Segmented engines hash every stored segment as one leaf,
+     * from any thread; other engines feed the payload in order and it is cut into {@link #UNSEGMENTED_LEAF_SIZE}-byte
+     * leaves. An instance is used for one of the two, never both.
+     */
+    static final class Leaves {
+
+        private final int leafSize;
+        private byte[] hashes;
+        // state of the in-order mode: the leaves completed so far and the digest of the next one
+        private long count;
+        private MessageDigest pending;
+        private int pendingLength;
+
+        /**
+         * Creates empty leaf hashes.
+         *
+         * @param header                The header of the container being written.
+         * @param expectedPayloadLength The expected payload length; in-order hashing grows past it if needed.
+         * @throws IOException If the payload has too many leaves for a tree.
+         */
+        Leaves(SnapHeader header, long expectedPayloadLength) throws IOException {
+            this.leafSize = leafSize(header);
+            this.hashes = new byte[checkedLength(leafCount(expectedPayloadLength, leafSize))];
+        }
+
+        /**
+         * Hashes one whole stored chunk. Different chunks may be hashed concurrently.
+         *
+         * @param index The index of the chunk.
+         * @param chunk The stored bytes of the chunk; its position is advanced to its limit.
+         */
+        void hash(long index, ByteBuffer chunk) {
+            System.arraycopy(leafHash(index, chunk), 0, hashes, (int) index * HASH_LENGTH, HASH_LENGTH);
+        }
+
+        /**
+         * Hashes the next bytes of the payload, in order.
+         *
+         * @param bytes The bytes written after the previous ones; its position is advanced to its limit.
+         */
+        void update(ByteBuffer bytes) {
+            while (bytes.hasRemaining()) {
+                if (pending == null) {
+                    pending = acquire();
+                    startLeaf(pending, count);
+                }
+                int length = Math.min(bytes.remaining(), leafSize - pendingLength);
+                pending.update(bytes.slice(bytes.position(), length));
+                bytes.position(bytes.position() + length);
+                pendingLength += length;
+                if (pendingLength == leafSize) {
+                    completeLeaf();
+                }
+            }
+        }
+
+        /**
+         * Completes the hashes of a payload.
+         *
+         * @param payloadLength The length of the payload that was written.
+         * @return The hash of every leaf, concatenated.
+         * @throws IOException If the hashes do not cover exactly that payload.
+         */
+        byte[] finish(long payloadLength) throws IOException {
+            if (pending != null) {
+                completeLeaf();
+            }
+            long expected = leafCount(payloadLength, leafSize);
+            if (payloadLength == 0) {
+                hash(0, ByteBuffer.allocate(0));
+            } else if (count > 0 && count != expected || hashes.length < expected * HASH_LENGTH) {
+                throw new IOException("Merkle leaves do not cover the " + payloadLength + "-byte payload");
+            }
+            int length = (int) expected * HASH_LENGTH;
+            return hashes.length == length ? hashes : Arrays.copyOf(hashes, length);
+        }
+
+        private void completeLeaf() {
+            if ((count + 1) * HASH_LENGTH > hashes.length) {
+                hashes = Arrays.copyOf(hashes, Math.max(hashes.length * 2, HASH_LENGTH));
+            }
+            try {
+                pending.digest(hashes, (int) count * HASH_LENGTH, HASH_LENGTH);
+            } catch (DigestException e) {
+                throw new IllegalStateException("SHA-256 digest does not fit", e);
+            } finally {
+                DIGESTS.release(pending);
+            }
+            pending = null;
+            pendingLength = 0;
+            count++;
+        }
+    }
+
+    private static SnapHeader readHeader(FileChannel channel) throws IOException {
+        SnapHeader header = SnapHeader.read(Channels.newInputStream(channel));
+        if (!header.hasMerkleTree()) {
+            throw new IOException("Container has no Merkle tree");
+        }
+        return header;
+    }
+
+    private static int leafSize(SnapHeader header) {
+        return header.chunkSize() > 0 ? header.chunkSize() + SegmentedAead.TAG_LENGTH : UNSEGMENTED_LEAF_SIZE;
+    }
+
+    private static long leafCount(long payloadLength, int leafSize) {
+        return Math.max(1, (payloadLength + leafSize - 1) / leafSize);
+    }
+
+    private static int checkedLength(long count) throws IOException {
+        if (count * HASH_LENGTH > Integer.MAX_VALUE - 8) {
+            throw new IOException("Payload has too many chunks for a Merkle tree: " + count);
+        }
+        return (int) count * HASH_LENGTH;
+    }
+
+    /**
+     * Hashes every leaf of a payload region in parallel, mapping the file one window at a time.
+     *
+     * @return The leaf hashes, concatenated.
+     */
+    private static byte[] hashLeaves(FileChannel channel, long start, long length, int leafSize) throws IOException {
+        long count = leafCount(length, leafSize);
+        byte[] leaves = new byte[checkedLength(count)];
+        long leavesPerWindow = Math.max(1, ChannelCipher.MAX_MAP_WINDOW / leafSize);
+        for (long first = 0; first < count; first += leavesPerWindow) {
+            long windowStart = first * leafSize;
+            long windowLength = Math.min(length - windowStart, leavesPerWindow * leafSize);
+            ByteBuffer window = windowLength <= 0 ? ByteBuffer.allocate(0) : ChannelCipher.shouldMap(length)
+                    ? channel.map(FileChannel.MapMode.READ_ONLY, start + windowStart, windowLength)
+                    : readFully(channel, ByteBuffer.allocate((int) windowLength), start + windowStart).flip();
+            hashLeaves(window, first, leafSize, leaves);
+        }
+        return leaves;
+    }
+
+    /**
+     * Hashes the leaves of one window in parallel.
+     *
+     * @param window    The stored chunks, starting at a leaf boundary.
+     * @param firstLeaf The index of the first leaf in the window.
+     * @param leafSize  The leaf size.
+     * @param leaves    Receives the hashes at their leaf index.
+     */
+    private static void hashLeaves(ByteBuffer window, long firstLeaf, int leafSize, byte[] leaves) {
+        int leavesInWindow = (int) Math.max(1, (window.limit() + leafSize - 1L) / leafSize);
+        IntStream.range(0, leavesInWindow).parallel().forEach(i -> {
+            int offset = i * leafSize;
+            ByteBuffer chunk = window.slice(offset, Math.min(leafSize, window.limit() - offset));
+            byte[] hash = leafHash(firstLeaf + i, chunk);
+            System.arraycopy(hash, 0, leaves, (int) (firstLeaf + i) * HASH_LENGTH, HASH_LENGTH);
+        });
+    }
+
+    /**
+     * Builds all levels above the leaves.
+     *
+     * @return Every level, leaves first and the 32-byte root last.
+     */
+    private static List<byte[]> levels(byte[] leaves) {
+        List<byte[]> levels = new ArrayList<>();
+        byte[] level = leaves;
+        levels.add(level);
+        while (level.length > HASH_LENGTH) {
+            int count = level.length / HASH_LENGTH;
+            byte[] parent = new byte[(count + 1) / 2 * HASH_LENGTH];
+            byte[] current = level;
+            IntStream.range(0, count / 2).parallel().forEach(i -> {
+                byte[] hash = nodeHash(current, 2 * i * HASH_LENGTH, current, (2 * i + 1) * HASH_LENGTH);
+                System.arraycopy(hash, 0, parent, i * HASH_LENGTH, HASH_LENGTH);
+            });
+            if (count % 2 == 1) {
+                System.arraycopy(level, (count - 1) * HASH_LENGTH, parent, (count / 2) * HASH_LENGTH, HASH_LENGTH);
+            }
+            levels.add(parent);
+            level = parent;
+        }
+        return levels;
+    }
+
+    /**
+     * Recomputes the root from a leaf hash and the stored siblings on its path.
+     */
+    private static byte[] rootFromProof(FileChannel channel, long treeStart, long count, long leaf, byte[] leafHash)
+            throws IOException {
+        byte[] hash = leafHash;
+        long levelStart = treeStart;
+        long index = leaf;
+        ByteBuffer sibling = ByteBuffer.allocate(HASH_LENGTH);
+        while (count > 1) {
+            long siblingIndex = index ^ 1;
+            if (siblingIndex < count) {
+                readFully(channel, sibling.clear(), levelStart + siblingIndex * HASH_LENGTH);
+                hash = (index & 1) == 0
+                        ? nodeHash(hash, 0, sibling.array(), 0)
+                        : nodeHash(sibling.array(), 0, hash, 0);
+            }
+            levelStart += count * HASH_LENGTH;
+            count = (count + 1) / 2;
+            index >>>= 1;
+        }
+        return hash;
+    }
+
+    private static byte[] leafHash(long index, ByteBuffer chunk) {
+        MessageDigest digest = acquire();
+        try {
+            startLeaf(digest, index);
+            digest.update(chunk);
+            return digest.digest();
+        } finally {
+            DIGESTS.release(digest);
+        }
+    }
+
+    private static void startLeaf(MessageDigest digest, long index) {
+        digest.update(LEAF_PREFIX);
+        digest.update(ByteBuffer.allocate(Long.BYTES).putLong(index).flip());
+    }
+
+    private static byte[] nodeHash(byte[] left, int leftOffset, byte[] right, int rightOffset) {
+        MessageDigest digest = acquire();
+        try {
+            digest.update(NODE_PREFIX);
+            digest.update(left, leftOffset, HASH_LENGTH);
+            digest.update(right, rightOffset, HASH_LENGTH);
+            return digest.digest();
+        } finally {
+            DIGESTS.release(digest);
+        }
+    }
+
+    private static MessageDigest acquire() {
+        try {
+            return DIGESTS.acquire();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    private static ByteBuffer readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Truncated SecureSnap container");
+            }
+        }
+        return buffer;
+    }
+}
@@ -0,0 +1,140 @@
+package com.secure.snap;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import java.io.NotSerializableException;
+import java.io.ObjectOutputStream;
+import java.io.Serial;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A secret key whose bytes live in a direct buffer, outside the garbage-collected heap, so they neither get copied
+ * around by the collector nor show up in heap dumps, and can be wiped deterministically with {@link #destroy()}.
+ * <p>
+ * The JCA has no way to key a cipher from off-heap memory: providers take the raw bytes from {@link #getEncoded()}
+ * and expand them into a key schedule inside the {@link Cipher} object, both on the heap. Some providers (SunJCE's
+ * AES-GCM among them) keep the array they were handed and never wipe it, so ciphers should be keyed through
+ * {@link #init(Cipher, int, AlgorithmParameterSpec)}, which wipes every copy it hands out as soon as the cipher is
+ * initialized. The key schedule itself cannot be wiped; it lives as long as the cipher, so ciphers keyed with this
+ * key should be used once and dropped rather than pooled. Once destroyed, the key refuses to hand out bytes. The key
+ * cannot be serialized.
+ */
+final class OffHeapKey implements SecretKey {
+
+    @Serial
+    private static final long serialVersionUID = 1L;
+
+    private final String algorithm;
+    private final transient ByteBuffer key;
+    private volatile boolean destroyed;
+
+    /**
+     * Copies key bytes off the heap. The caller should wipe its array afterwards.
+     *
+     * @param encoded   The key bytes.
+     * @param algorithm The JCA algorithm of the key.
+     */
+    OffHeapKey(byte[] encoded, String algorithm) {
+        this.algorithm = algorithm;
+        this.key = ByteBuffer.allocateDirect(encoded.length).put(encoded).flip();
+    }
+
+    @Override
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    @Override
+    public String getFormat() {
+        return "RAW";
+    }
+
+    /**
+     * @return A new heap copy of the key bytes.
+     * @throws IllegalStateException If the key has been destroyed.
+     */
+    @Override
+    public byte[] getEncoded() {
+        checkNotDestroyed();
+        byte[] copy = new byte[key.capacity()];
+        key.get(0, copy);
+        if (destroyed) {
+            // destroyed while copying: the copy may be partly wiped
+            Arrays.fill(copy, (byte) 0);
+            checkNotDestroyed();
+        }
+        return copy;
+    }
+
+    /**
+     * Overwrites the key bytes with zeros.
+     */
+    @Override
+    public void destroy() {
+        destroyed = true;
+        for (int i = 0; i < key.capacity(); i++) {
+            key.put(i, (byte) 0);
+        }
+    }
+
+    /**
+     * Initializes a cipher with this key and wipes the heap copies of the key bytes the provider asked for. The
+     * cipher's key schedule still holds the key; drop the cipher after use.
+     *
+     * @param cipher     The cipher.
+     * @param mode       The cipher mode.
+     * @param parameters The algorithm parameters, for example the nonce.
+     * @throws GeneralSecurityException If the cipher rejects the key or the parameters.
+     * @throws IllegalStateException    If the key has been destroyed.
+     */
+    void init(Cipher cipher, int mode, AlgorithmParameterSpec parameters) throws GeneralSecurityException {
+        List<byte[]> copies = new ArrayList<>(1);
+        SecretKey view = new SecretKey() {
+            @Serial
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            public String getAlgorithm() {
+                return algorithm;
+            }
+
+            @Override
+            public String getFormat() {
+                return "RAW";
+            }
+
+            @Override
+            public byte[] getEncoded() {
+                byte[] copy = OffHeapKey.this.getEncoded();
+                copies.add(copy);
+                return copy;
+            }
+        };
+        try {
+            cipher.init(mode, view, parameters);
+        } finally {
+            copies.forEach(copy -> Arrays.fill(copy, (byte) 0));
+        }
+    }
+
+    @Override
+    public boolean isDestroyed() {
+        return destroyed;
+    }
+
+    private void checkNotDestroyed() {
+        if (destroyed) {
+            throw new IllegalStateException("Key has been destroyed");
+        }
+    }
+
+    @Serial
+    private void writeObject(ObjectOutputStream out) throws NotSerializableException {
+        throw new NotSerializableException("Off-heap keys cannot be serialized");
+    }
+}
@@ -0,0 +1,155 @@
+package com.secure.snap;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histogram for one algorithm and operation.
+ * <p>
+ * Whole operations (count, errors, latency) are recorded by {@link InstrumentedSecureSnap}. The engines add the
+ * bytes they read, which only they know without a stat or a counting wrapper, and the time they spend reading, in the
+ * cipher and writing. For memory-mapped input the page faults happen inside the
+ * cipher, so that read time shows up as cipher time. Segments processed in parallel add up their cipher time, which
+ * can therefore exceed the wall-clock latency.
+ * <p>
+ * Recording takes no lock and allocates nothing.
+ */
+public final class OperationMetrics implements OperationMetricsMXBean {
+
+    private final String algorithm;
+    private final SnapMetrics.Operation operation;
+    private final LongAdder operations = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder readNanos = new LongAdder();
+    private final LongAdder cipherNanos = new LongAdder();
+    private final LongAdder writeNanos = new LongAdder();
+    private final LatencyHistogram latency = new LatencyHistogram();
+
+    /**
+     * Point-in-time copy of the metrics.
+     *
+     * @param algorithm   The algorithm id.
+     * @param operation   The operation.
+     * @param operations  The number of completed operations, including failed ones.
+     * @param errors      The number of failed operations.
+     * @param bytes       The plaintext or ciphertext bytes read by the operations.
+     * @param p50Micros   The median latency in microseconds.
+     * @param p99Micros   The 99th percentile latency in microseconds.
+     * @param p999Micros  The 99.9th percentile latency in microseconds.
+     * @param readNanos   The total time spent reading input.
+     * @param cipherNanos The total time spent in the cipher.
+     * @param writeNanos  The total time spent writing output.
+     */
+    public record Snapshot(String algorithm, SnapMetrics.Operation operation, long operations, long errors, long bytes,
+                           double p50Micros, double p99Micros, double p999Micros,
+                           long readNanos, long cipherNanos, long writeNanos) {
+
+        @Override
+        public String toString() {
+            return String.format("%s %s ops=%d errors=%d bytes=%d p50=%.1fus p99=%.1fus p999=%.1fus"
+                            + " read=%dms cipher=%dms write=%dms",
+                    algorithm, operation, operations, errors, bytes, p50Micros, p99Micros, p999Micros,
+                    TimeUnit.NANOSECONDS.toMillis(readNanos), TimeUnit.NANOSECONDS.toMillis(cipherNanos),
+                    TimeUnit.NANOSECONDS.toMillis(writeNanos));
+        }
+    }
+
+    OperationMetrics(String algorithm, SnapMetrics.Operation operation) {
+        this.algorithm = algorithm;
+        this.operation = operation;
+    }
+
+    void recordOperation(long nanos, boolean failed) {
+        operations.increment();
+        if (failed) {
+            errors.increment();
+        }
+        latency.record(nanos);
+    }
+
+    void recordOperation(long byteCount, long nanos, boolean failed) {
+        bytes.add(byteCount);
+        recordOperation(nanos, failed);
+    }
+
+    void recordBytes(long byteCount) {
+        bytes.add(byteCount);
+    }
+
+    void recordRead(long nanos) {
+        readNanos.add(nanos);
+    }
+
+    void recordCipher(long nanos) {
+        cipherNanos.add(nanos);
+    }
+
+    void recordWrite(long nanos) {
+        writeNanos.add(nanos);
+    }
+
+    /**
+     * @return A copy of the current values.
+     */
+    public Snapshot snapshot() {
+        return new Snapshot(algorithm, operation, getOperations(), getErrors(), getBytes(),
+                getLatencyP50Micros(), getLatencyP99Micros(), getLatencyP999Micros(),
+                readNanos.sum(), cipherNanos.sum(), writeNanos.sum());
+    }
+
+    @Override
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    @Override
+    public String getOperation() {
+        return operation.name();
+    }
+
+    @Override
+    public long getOperations() {
+        return operations.sum();
+    }
+
+    @Override
+    public long getErrors() {
+        return errors.sum();
+    }
+
+    @Override
+    public long getBytes() {
+        return bytes.sum();
+    }
+
+    @Override
+    public double getLatencyP50Micros() {
+        return latency.valueAtQuantile(0.5) / 1_000.0;
+    }
+
+    @Override
+    public double getLatencyP99Micros() {
+        return latency.valueAtQuantile(0.99) / 1_000.0;
+    }
+
+    @Override
+    public double getLatencyP999Micros() {
+        return latency.valueAtQuantile(0.999) / 1_000.0;
+    }
+
+    @Override
+    public long getReadMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(readNanos.sum());
+    }
+
+    @Override
+    public long getCipherMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(cipherNanos.sum());
+    }
+
+    @Override
+    public long getWriteMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(writeNanos.sum());
+    }
+}
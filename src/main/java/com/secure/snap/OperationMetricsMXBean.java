@@ -0,0 +1,29 @@
+package com.secure.snap;
+
+/**
+ * JMX view of the metrics of one algorithm and operation, registered by {@link SnapMetrics}.
+ */
+public interface OperationMetricsMXBean {
+
+    String getAlgorithm();
+
+    String getOperation();
+
+    long getOperations();
+
+    long getErrors();
+
+    long getBytes();
+
+    double getLatencyP50Micros();
+
+    double getLatencyP99Micros();
+
+    double getLatencyP999Micros();
+
+    long getReadMillis();
+
+    long getCipherMillis();
+
+    long getWriteMillis();
+}
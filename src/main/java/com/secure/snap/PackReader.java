@@ -0,0 +1,239 @@
+package com.secure.snap;
+
+import javax.crypto.SecretKey;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Reads the entries of a pack written by {@link PackWriter}.
+ * <p>
+ * Opening a pack unwraps its data key and decrypts the index once; after that every entry is located through the
+ * index and decrypted on its own, with a single positional read for entries that fit in memory.
+ * <p>
+ * Instances are thread-safe: the pack is only read with positional reads, so any number of threads can extract
+ * entries at the same time.
+ */
+public final class PackReader implements AutoCloseable {
+
+    // Entries up to this size are read and opened in one piece; larger ones are streamed by extract()
+    private static final long MAX_BUFFERED_ENTRY = 64L * 1024 * 1024;
+
+    private final Path pack;
+    private final FileChannel channel;
+    private final SnapHeader header;
+    private final byte[] headerAad;
+    private final SegmentedAead segments;
+    private final Map<String, Entry> entries;
+    private final OperationMetrics metrics = SnapMetrics.of(PackWriter.ALGORITHM, SnapMetrics.Operation.DECRYPT);
+
+    /**
+     * Location of one entry in a pack.
+     *
+     * @param name         The entry name.
+     * @param offset       The offset of the sealed entry in the pack.
+     * @param sealedLength The length of the sealed entry.
+     * @param size         The plaintext length.
+     * @param nonce        The base nonce the entry was sealed with.
+     */
+    public record Entry(String name, long offset, long sealedLength, long size, byte[] nonce) {
+    }
+
+    /**
+     * Opens a pack with the default {@link Keyring}.
+     *
+     * @param pack The pack file.
+     * @throws Exception If the keyring or the pack cannot be opened, or the index fails authentication.
+     */
+    public PackReader(Path pack) throws Exception {
+        this(pack, Keyring.openDefault());
+    }
+
+    /**
+     * Opens a pack.
+     *
+     * @param pack    The pack file.
+     * @param keyring The keyring holding the KEK that wrapped the data key of the pack.
+     * @throws Exception If the pack cannot be read, its key cannot be unwrapped or the index fails authentication.
+     */
+    public PackReader(Path pack, Keyring keyring) throws Exception {
+        this.pack = pack;
+        this.channel = ChannelCipher.openForRead(pack);
+        try {
+            this.header = SnapHeader.read(Channels.newInputStream(channel));
+            header.verify(PackWriter.ALGORITHM);
+            if (header.nonce().length != SegmentedAead.NONCE_LENGTH || header.chunkSize() <= 0) {
+                throw new IOException("Invalid " + PackWriter.ALGORITHM + " header");
+            }
+            this.headerAad = header.authenticatedBytes();
+            SecretKey key = keyring.unwrap(header, PackWriter.KEY_ALGORITHM);
+            this.segments = new SegmentedAead(key, header.chunkSize(), ForkJoinPool.commonPool());
+            this.entries = readIndex(channel.position());
+        } catch (Exception e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return Every entry, in the order they were added.
+     */
+    public List<Entry> entries() {
+        return List.copyOf(entries.values());
+    }
+
+    /**
+     * Looks up an entry.
+     *
+     * @param name The entry name.
+     * @return The entry, or {@code null} if the pack has no entry of that name.
+     */
+    public Entry entry(String name) {
+        return entries.get(name);
+    }
+
+    /**
+     * Decrypts one entry into memory.
+     *
+     * @param name The entry name.
+     * @return The entry content.
+     * @throws NoSuchFileException If the pack has no entry of that name.
+     * @throws Exception           If the entry cannot be read or fails authentication.
+     */
+    public byte[] read(String name) throws Exception {
+        Entry entry = require(name);
+        if (entry.sealedLength() > Integer.MAX_VALUE - 8) {
+            throw new IOException("Entry too large to read into memory: " + name);
+        }
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            ByteBuffer sealed = ByteBuffer.allocate((int) entry.sealedLength());
+            readFully(sealed, entry.offset());
+            ByteBuffer plaintext = ByteBuffer.allocate((int) entry.size());
+            segments.decrypt(sealed.flip(), plaintext, entry.nonce(), PackWriter.entryAad(headerAad, name), metrics);
+            failed = false;
+            return plaintext.array();
+        } finally {
+            metrics.recordOperation(entry.size(), System.nanoTime() - start, failed);
+        }
+    }
+
+    /**
+     * Decrypts one entry into a file. Large entries are streamed, so they need not fit in memory.
+     *
+     * @param name   The entry name.
+     * @param target The file to write.
+     * @throws NoSuchFileException If the pack has no entry of that name.
+     * @throws Exception           If the entry cannot be read or fails authentication, or the file cannot be written.
+     */
+    public void extract(String name, Path target) throws Exception {
+        Entry entry = require(name);
+        if (entry.sealedLength() <= MAX_BUFFERED_ENTRY) {
+            byte[] content = read(name);
+            try (FileChannel out = ChannelCipher.openForWrite(target)) {
+                ChannelCipher.writeFully(out, ByteBuffer.wrap(content));
+            }
+            return;
+        }
+        long start = System.nanoTime();
+        boolean failed = true;
+        // a channel of its own, since the streaming path reads from the channel position
+        try (FileChannel in = ChannelCipher.openForRead(pack);
+             FileChannel out = ChannelCipher.openForWrite(target)) {
+            segments.decrypt(in.position(entry.offset()), out, entry.nonce(), PackWriter.entryAad(headerAad, name),
+                    entry.sealedLength(), metrics);
+            failed = false;
+        } finally {
+            metrics.recordOperation(entry.size(), System.nanoTime() - start, failed);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private Entry require(String name) throws NoSuchFileException {
+        Entry entry = entries.get(name);
+        if (entry == null) {
+            throw new NoSuchFileException(pack + "!" + name);
+        }
+        return entry;
+    }
+
+    private Map<String, Entry> readIndex(long entriesStart) throws Exception {
+        long size = channel.size();
+        if (size - entriesStart < PackWriter.TRAILER_LENGTH) {
+            throw new IOException("Truncated SecureSnap pack");
+        }
+        ByteBuffer trailer = ByteBuffer.allocate(PackWriter.TRAILER_LENGTH);
+        readFully(trailer, size - PackWriter.TRAILER_LENGTH);
+        long indexOffset = trailer.flip().getLong();
+        byte[] magic = new byte[PackWriter.TRAILER_MAGIC.length];
+        trailer.get(magic);
+        long indexEnd = size - PackWriter.TRAILER_LENGTH;
+        if (!Arrays.equals(magic, PackWriter.TRAILER_MAGIC) || indexOffset < entriesStart || indexOffset > indexEnd
+                || indexEnd - indexOffset > Integer.MAX_VALUE - 8) {
+            throw new IOException("Not a complete SecureSnap pack");
+        }
+
+        ByteBuffer sealedIndex = ByteBuffer.allocate((int) (indexEnd - indexOffset));
+        readFully(sealedIndex, indexOffset);
+        long indexLength = segments.openedLength(sealedIndex.capacity());
+        if (indexLength < 0) {
+            throw new IOException("Truncated SecureSnap pack index");
+        }
+        ByteBuffer index = ByteBuffer.allocate((int) indexLength);
+        segments.decrypt(sealedIndex.flip(), index, header.nonce(), headerAad, metrics);
+
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(index.array()))) {
+            int version = in.readUnsignedByte();
+            if (version != PackWriter.INDEX_VERSION) {
+                throw new IOException("Unsupported pack index version " + version);
+            }
+            int count = in.readInt();
+            Map<String, Entry> parsed = new LinkedHashMap<>();
+            for (int i = 0; i < count; i++) {
+                byte[] name = new byte[in.readUnsignedShort()];
+                in.readFully(name);
+                long offset = in.readLong();
+                long sealedLength = in.readLong();
+                long entrySize = in.readLong();
+                byte[] nonce = new byte[SegmentedAead.NONCE_LENGTH];
+                in.readFully(nonce);
+                if (offset < entriesStart || sealedLength < 0 || offset + sealedLength > indexOffset
+                        || segments.sealedLength(entrySize) != sealedLength) {
+                    throw new IOException("Invalid pack index entry " + i);
+                }
+                Entry entry = new Entry(new String(name, StandardCharsets.UTF_8), offset, sealedLength, entrySize,
+                        nonce);
+                parsed.put(entry.name(), entry);
+            }
+            return Collections.unmodifiableMap(parsed);
+        } catch (EOFException e) {
+            throw new IOException("Truncated SecureSnap pack index", e);
+        }
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Truncated SecureSnap pack");
+            }
+        }
+    }
+}
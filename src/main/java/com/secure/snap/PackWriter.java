@@ -0,0 +1,284 @@
+package com.secure.snap;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Packs many small files into one encrypted pack file, so that key setup, headers, file opens and directory entries
+ * are paid once per pack instead of once per file.
+ * <p>
+ * Layout:
+ * <pre>
+ * header   {@link SnapHeader} carrying the wrapped data key of the pack, the index nonce and the segment size
+ * entries  every entry sealed as its own {@link SegmentedAead} stream under a fresh random nonce, back to back
+ * index    the sealed index: per entry its name, offset, sealed length, plaintext length and nonce
+ * trailer  offset of the index (8 bytes) and the magic "SPIX"
+ * </pre>
+ * The entries and the index share the data key of the pack. Every entry authenticates the header together with its
+ * own name, so entries cannot be swapped, renamed or moved into another pack, and {@link PackReader} can open any
+ * entry without touching the others. The key envelope lives in a regular header, so {@link Keyring#rewrap(Path)}
+ * rotates packs like any other container.
+ * <p>
+ * The pack is written to a temporary file next to its target and moved into place by {@link #close()}, so readers
+ * never see a partial pack; {@link #abort()} drops it instead. Instances are not thread-safe.
+ */
+public final class PackWriter implements AutoCloseable {
+
+    /**
+     * The algorithm id written to pack headers.
+     */
+    public static final String ALGORITHM = "SNAPPACK/AES256/GCM";
+
+    static final String KEY_ALGORITHM = "AES";
+    static final int INDEX_VERSION = 1;
+    static final byte[] TRAILER_MAGIC = {'S', 'P', 'I', 'X'};
+    static final int TRAILER_LENGTH = Long.BYTES + TRAILER_MAGIC.length;
+
+    private static final int KEY_SIZE = 256;
+    // Entries up to this size are sealed from memory in one call; larger ones are streamed from their file
+    private static final int MAX_BUFFERED_ENTRY = 4 * 1024 * 1024;
+
+    private final Path target;
+    private final Path temp;
+    private final FileChannel channel;
+    private final SnapHeader header;
+    private final byte[] headerAad;
+    private final SegmentedAead segments;
+    private final OperationMetrics metrics = SnapMetrics.of(ALGORITHM, SnapMetrics.Operation.ENCRYPT);
+    private final Map<String, PackReader.Entry> entries = new LinkedHashMap<>();
+    private ByteBuffer sealed = ByteBuffer.allocate(0);
+    private long position;
+    private boolean closed;
+
+    /**
+     * Starts a new pack with the default {@link Keyring}.
+     *
+     * @param pack The pack file; an existing file is replaced when the pack is closed.
+     * @throws Exception If the keyring or the temporary file cannot be opened.
+     */
+    public PackWriter(Path pack) throws Exception {
+        this(pack, Keyring.openDefault());
+    }
+
+    /**
+     * Starts a new pack.
+     *
+     * @param pack    The pack file; an existing file is replaced when the pack is closed.
+     * @param keyring The keyring that wraps the data key of the pack.
+     * @throws Exception If the data key cannot be created or the temporary file cannot be opened.
+     */
+    public PackWriter(Path pack, Keyring keyring) throws Exception {
+        Keyring.DataKey dataKey = keyring.newDataKey(ALGORITHM, KEY_ALGORITHM, KEY_SIZE);
+        this.header = SnapHeader.of(ALGORITHM, dataKey, Randoms.nextBytes(SegmentedAead.NONCE_LENGTH),
+                SegmentedAead.DEFAULT_SEGMENT_SIZE);
+        this.headerAad = header.authenticatedBytes();
+        this.segments = new SegmentedAead(dataKey.key(), header.chunkSize(), ForkJoinPool.commonPool());
+        this.target = pack;
+        Path directory = pack.toAbsolutePath().getParent();
+        Files.createDirectories(directory);
+        this.temp = Files.createTempFile(directory, "pack", ".tmp");
+        FileChannel opened = null;
+        try {
+            opened = ChannelCipher.openForWrite(temp);
+            this.channel = opened;
+            write(ByteBuffer.wrap(header.encode()));
+        } catch (IOException | RuntimeException e) {
+            try {
+                if (opened != null) {
+                    opened.close();
+                }
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Adds an entry from memory.
+     *
+     * @param name The entry name, unique within the pack.
+     * @param data The entry content.
+     * @throws Exception If the name is taken or the entry cannot be sealed or written.
+     */
+    public void add(String name, byte[] data) throws Exception {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            checkName(name);
+            byte[] nonce = Randoms.nextBytes(SegmentedAead.NONCE_LENGTH);
+            int sealedLength = (int) segments.sealedLength(data.length);
+            if (sealed.capacity() < sealedLength) {
+                sealed = ByteBuffer.allocate(Math.max(sealedLength, 2 * sealed.capacity()));
+            }
+            segments.encrypt(ByteBuffer.wrap(data), sealed.clear(), nonce, entryAad(headerAad, name), metrics);
+            long offset = write(sealed.flip());
+            entries.put(name, new PackReader.Entry(name, offset, sealedLength, data.length, nonce));
+            failed = false;
+        } finally {
+            metrics.recordOperation(data.length, System.nanoTime() - start, failed);
+        }
+    }
+
+    /**
+     * Adds an entry from a file. Small files are read in one call; large ones are streamed.
+     *
+     * @param name The entry name, unique within the pack.
+     * @param file The file to add.
+     * @throws Exception If the name is taken, or the file cannot be read, sealed or written.
+     */
+    public void add(String name, Path file) throws Exception {
+        if (Files.size(file) <= MAX_BUFFERED_ENTRY) {
+            add(name, Files.readAllBytes(file));
+            return;
+        }
+        long start = System.nanoTime();
+        long size = 0;
+        boolean failed = true;
+        try (FileChannel in = ChannelCipher.openForRead(file)) {
+            checkName(name);
+            size = in.size();
+            byte[] nonce = Randoms.nextBytes(SegmentedAead.NONCE_LENGTH);
+            long sealedLength = segments.sealedLength(size);
+            segments.encrypt(in, channel.position(position), nonce, entryAad(headerAad, name), metrics);
+            if (channel.position() - position != sealedLength) {
+                throw new IOException("File changed while it was being packed: " + file);
+            }
+            entries.put(name, new PackReader.Entry(name, position, sealedLength, size, nonce));
+            position += sealedLength;
+            failed = false;
+        } finally {
+            metrics.recordOperation(size, System.nanoTime() - start, failed);
+        }
+    }
+
+    /**
+     * @return The number of entries added so far.
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Seals and appends the index, and moves the pack into place. A pack is complete with the entries added before
+     * this call, even if adding a later one failed.
+     *
+     * @throws IOException              If the pack cannot be written.
+     * @throws GeneralSecurityException If the index cannot be sealed.
+     */
+    @Override
+    public void close() throws IOException, GeneralSecurityException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            try (channel) {
+                byte[] index = encodeIndex();
+                ByteBuffer sealedIndex = ByteBuffer.allocate((int) segments.sealedLength(index.length));
+                try {
+                    segments.encrypt(ByteBuffer.wrap(index), sealedIndex, header.nonce(), headerAad, metrics);
+                } catch (IOException | GeneralSecurityException | RuntimeException e) {
+                    throw e;
+                } catch (Exception e) {
+                    throw new IOException("Cannot seal the pack index", e);
+                }
+                long indexOffset = write(sealedIndex.flip());
+                write(ByteBuffer.allocate(TRAILER_LENGTH).putLong(indexOffset).put(TRAILER_MAGIC).flip());
+                channel.truncate(position);
+                channel.force(false);
+            }
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Discards the pack: the temporary file is deleted and nothing is moved into place. Does nothing if the pack has
+     * already been closed or discarded.
+     *
+     * @throws IOException If the temporary file cannot be deleted.
+     */
+    public void abort() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            channel.close();
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Builds the associated data of an entry: the authenticated header bytes followed by the UTF-8 name.
+     *
+     * @param headerBytes The {@link SnapHeader#authenticatedBytes()} of the pack.
+     * @param name        The entry name.
+     * @return The associated data.
+     */
+    static byte[] entryAad(byte[] headerBytes, String name) {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        byte[] aad = Arrays.copyOf(headerBytes, headerBytes.length + nameBytes.length);
+        System.arraycopy(nameBytes, 0, aad, headerBytes.length, nameBytes.length);
+        return aad;
+    }
+
+    private void checkName(String name) {
+        if (closed) {
+            throw new IllegalStateException("Pack is closed");
+        }
+        if (name.getBytes(StandardCharsets.UTF_8).length > 0xFFFF) {
+            throw new IllegalArgumentException("Entry name too long: " + name);
+        }
+        if (entries.containsKey(name)) {
+            throw new IllegalArgumentException("Duplicate entry " + name);
+        }
+    }
+
+    private byte[] encodeIndex() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 * (entries.size() + 1));
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(INDEX_VERSION);
+            out.writeInt(entries.size());
+            for (PackReader.Entry entry : entries.values()) {
+                byte[] name = entry.name().getBytes(StandardCharsets.UTF_8);
+                out.writeShort(name.length);
+                out.write(name);
+                out.writeLong(entry.offset());
+                out.writeLong(entry.sealedLength());
+                out.writeLong(entry.size());
+                out.write(entry.nonce());
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Writes a buffer at the end of the pack. Offsets come from the end of the last complete write rather than from
+     * the channel position, so bytes left behind by a failed entry are overwritten or truncated.
+     *
+     * @return The offset the buffer was written at.
+     */
+    private long write(ByteBuffer buffer) throws IOException {
+        long offset = position;
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+        return offset;
+    }
+}
@@ -0,0 +1,41 @@
+package com.secure.snap;
+
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+
+/**
+ * Shared source of random nonces, IVs and keys, backed by a pool of {@link SecureRandom} instances so concurrent
+ * callers neither contend on one generator nor pay for seeding a new one per call.
+ */
+final class Randoms {
+
+    private static final InstancePool<SecureRandom> RANDOMS = new InstancePool<>(SecureRandom::new);
+
+    private Randoms() {
+    }
+
+    /**
+     * Generates random bytes.
+     *
+     * @param length The number of bytes.
+     * @return A new array filled with random bytes.
+     */
+    static byte[] nextBytes(int length) {
+        byte[] bytes = new byte[length];
+        SecureRandom random = acquire();
+        try {
+            random.nextBytes(bytes);
+        } finally {
+            RANDOMS.release(random);
+        }
+        return bytes;
+    }
+
+    private static SecureRandom acquire() {
+        try {
+            return RANDOMS.acquire();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("SecureRandom is not available", e);
+        }
+    }
+}
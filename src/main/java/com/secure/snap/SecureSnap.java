@@ -1,72 +1,111 @@
 package com.secure.snap;
 
-import org.bouncycastle.jce.provider.BouncyCastleProvider;
-
 import javax.crypto.*;
-import javax.crypto.spec.GCMParameterSpec;
 import java.io.*;
-import java.nio.file.Files;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.Path;
-import java.security.SecureRandom;
-import java.security.Security;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * Class main.java.SecureSnap for encrypting and decrypting files using AES and GCM.
+ * <p>
+ * The cipher comes from the provider {@link CryptoProviders} selects, by default the JDK's intrinsified AES-GCM;
+ * the container format does not depend on it. {@link ChaChaSecureSnap} writes the same format with
+ * ChaCha20-Poly1305, and {@link AllSecureSnap} with its authenticated counter mode for other block ciphers.
+ * <p>
+ * Files are sealed as a sequence of independently authenticated segments (see {@link SegmentedAead}), which are
+ * processed in parallel and let decryption stream in bounded memory. The output is a single self-describing
+ * container: a {@link SnapHeader} carrying the wrapped data key, nonce and segment size, followed by the sealed
+ * segments and a {@link MerkleTree} over them, so stored files can be checked for bit rot without the key. Every
+ * file is encrypted with its own data key from the {@link Keyring}. Streams, channels, byte arrays and buffers are
+ * encrypted in memory into the same container, without touching the disk.
+ * <p>
+ * Instances are thread-safe: every call works on its own nonce, and ciphers and random generators are borrowed
+ * from shared pools, so a single instance can serve any number of concurrent callers.
  */
 public class SecureSnap implements GenericSecureSnap {
-    private final SecretKey key;
-    private final String keyFilePath = "keyfile.ser";
-    private byte[] iv = new byte[12];
+    /**
+     * The algorithm id written to the container header.
+     */
+    public static final String ALGORITHM = "AES256/GCM/NoPadding";
+
+    private static final int KEY_SIZE = 256;
+    // the largest array most JVMs can allocate
+    private static final long MAX_ARRAY_LENGTH = Integer.MAX_VALUE - 8;
+
+    private final Keyring keyring;
+    private final String algorithmId;
+    private final String keyAlgorithm;
+    private final int keySize;
+    private final SegmentCiphers segmentCiphers;
+    private final int segmentSize = SegmentedAead.DEFAULT_SEGMENT_SIZE;
+    private final OperationMetrics encryptMetrics;
+    private final OperationMetrics decryptMetrics;
+
+    /**
+     * Creates the segment cipher for the data key of one container.
+     */
+    @FunctionalInterface
+    interface SegmentCiphers {
+        SegmentedAead.SegmentCipher create(SecretKey key, int segmentSize) throws GeneralSecurityException;
+    }
 
     public String getAlgorithm() {
-        return "AES256/GCM/NoPadding/";
+        return algorithmId;
     }
 
 
     /**
-     * Constructor for the main.java.SecureSnap class.
+     * Constructor for the main.java.SecureSnap class, using the default {@link Keyring}.
      *
      * @throws Exception If there is an issue initializing the object.
      */
     public SecureSnap() throws Exception {
-        Security.addProvider(new BouncyCastleProvider());
-
-        // Try to load the secret key from the file if it exists
-        if (Files.exists(Path.of(keyFilePath))) {
-            this.key = loadSecretKey();
-        } else {
-            // Generate the secret key if the file doesn't exist
-            KeyGenerator keyGen = KeyGenerator.getInstance("AES");
-            keyGen.init(256); // 256-bit key size for AES
-            this.key = keyGen.generateKey();
-
-            // Save the secret key to a file
-            saveSecretKey();
-        }
+        this(Keyring.openDefault());
+    }
+
+    /**
+     * Constructor for the main.java.SecureSnap class.
+     *
+     * @param keyring The keyring that wraps the per-file data keys.
+     */
+    public SecureSnap(Keyring keyring) {
+        this(keyring, SegmentedAead.Scheme.AES_GCM);
     }
 
     /**
-     * Saves the secret key to a file.
+     * Constructor for engines that write the same container with another AEAD scheme.
      *
-     * @throws IOException If there is an issue writing to the file.
+     * @param keyring The keyring that wraps the per-file data keys.
+     * @param scheme  The AEAD scheme that seals the segments.
      */
-    private void saveSecretKey() throws IOException {
-        try (ObjectOutputStream fileKey = new ObjectOutputStream(new FileOutputStream(keyFilePath))) {
-            fileKey.writeObject(key);
-        }
+    SecureSnap(Keyring keyring, SegmentedAead.Scheme scheme) {
+        this(keyring, scheme.algorithmId, scheme.keyAlgorithm, KEY_SIZE, (key, segmentSize) -> scheme.keyed(key));
     }
 
     /**
-     * Loads the secret key from a file.
+     * Constructor for engines that write the same container with any segment cipher.
      *
-     * @return The secret key loaded from the file.
-     * @throws IOException            If there is an issue reading from the file.
-     * @throws ClassNotFoundException If the class of the key is not found.
+     * @param keyring        The keyring that wraps the per-file data keys.
+     * @param algorithmId    The algorithm id written to the container header.
+     * @param keyAlgorithm   The algorithm of the data keys.
+     * @param keySize        The size of the data keys, in bits.
+     * @param segmentCiphers Creates the segment cipher for each data key.
      */
-    private SecretKey loadSecretKey() throws IOException, ClassNotFoundException {
-        try (ObjectInputStream fileKey = new ObjectInputStream(new FileInputStream(keyFilePath))) {
-            return (SecretKey) fileKey.readObject();
-        }
+    SecureSnap(Keyring keyring, String algorithmId, String keyAlgorithm, int keySize,
+               SegmentCiphers segmentCiphers) {
+        this.keyring = keyring;
+        this.algorithmId = algorithmId;
+        this.keyAlgorithm = keyAlgorithm;
+        this.keySize = keySize;
+        this.segmentCiphers = segmentCiphers;
+        this.encryptMetrics = SnapMetrics.of(algorithmId, SnapMetrics.Operation.ENCRYPT);
+        this.decryptMetrics = SnapMetrics.of(algorithmId, SnapMetrics.Operation.DECRYPT);
     }
 
     /**
@@ -77,29 +116,21 @@ public class SecureSnap implements GenericSecureSnap {
      * @throws Exception If there is an issue during encryption.
      */
     public void encrypt(String inputFile, String outputFile) throws Exception {
-        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding", "BC");
-
-        // Generate a random IV (Initialization Vector)
-        SecureRandom random = new SecureRandom();
-        random.nextBytes(iv);
+        // Generate a data key and a random IV (Initialization Vector) and store both in the header
+        Keyring.DataKey dataKey = keyring.newDataKey(algorithmId, keyAlgorithm, keySize);
+        byte[] iv = Randoms.nextBytes(SegmentedAead.NONCE_LENGTH);
+        SnapHeader header = SnapHeader.of(algorithmId, dataKey, iv, segmentSize)
+                .withMerkleTree(0, new byte[MerkleTree.HASH_LENGTH]);
+        SegmentedAead segments = segments(dataKey.key(), segmentSize);
 
-        // Save the IV to the encrypted file
-        try (FileOutputStream ivFile = new FileOutputStream(outputFile + ".iv")) {
-            ivFile.write(iv);
-        }
-
-        GCMParameterSpec gcmParameterSpec = new GCMParameterSpec(128, iv);
-        cipher.init(Cipher.ENCRYPT_MODE, key, gcmParameterSpec);
-
-        try (FileInputStream fis = new FileInputStream(inputFile);
-             FileOutputStream fos = new FileOutputStream(outputFile);
-             CipherOutputStream cos = new CipherOutputStream(fos, cipher)) {
-
-            byte[] buffer = new byte[8192];
-            int bytesRead;
-            while ((bytesRead = fis.read(buffer)) != -1) {
-                cos.write(buffer, 0, bytesRead);
-            }
+        try (FileChannel in = ChannelCipher.openForRead(Path.of(inputFile));
+             FileChannel out = ChannelCipher.openForWrite(Path.of(outputFile))) {
+            byte[] encodedHeader = header.encode();
+            ChannelCipher.writeFully(out, ByteBuffer.wrap(encodedHeader));
+            MerkleTree.Leaves leaves = new MerkleTree.Leaves(header, segments.sealedLength(in.size() - in.position()));
+            encryptMetrics.recordBytes(segments.encrypt(in, out, iv, header.authenticatedBytes(), encryptMetrics,
+                    leaves));
+            MerkleTree.seal(out, header, encodedHeader.length, leaves);
         }
     }
 
@@ -111,31 +142,239 @@ public class SecureSnap implements GenericSecureSnap {
      * @throws Exception If there is an issue during decryption.
      */
     public void decrypt(String inputFile, String outputFile) throws Exception {
-        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding", "BC");
+        try (FileChannel in = ChannelCipher.openForRead(Path.of(inputFile))) {
+            // Read the header, which leaves the channel at the first segment
+            SnapHeader header = SnapHeader.read(Channels.newInputStream(in));
+            SegmentedAead engine = segmentsFor(header);
 
-        // Read the IV from the encrypted file
-        try (FileInputStream ivFile = new FileInputStream(inputFile + ".iv")) {
-            ivFile.read(iv);
+            try (FileChannel out = ChannelCipher.openForWrite(Path.of(outputFile))) {
+                decryptMetrics.recordBytes(engine.decrypt(in, out, header.nonce(), header.authenticatedBytes(),
+                        header.payloadBytes(in.size() - in.position()), decryptMetrics));
+            }
         }
+    }
 
-        GCMParameterSpec gcmParameterSpec = new GCMParameterSpec(128, iv);
-        cipher.init(Cipher.DECRYPT_MODE, key, gcmParameterSpec);
+    /**
+     * Encrypts a stream with AES and GCM without staging it on disk. The header precedes the payload and cannot be
+     * patched afterwards, so streamed containers carry no {@link MerkleTree}; they decrypt like any other container.
+     *
+     * @param in  The plaintext, read to its end.
+     * @param out Receives the encrypted container.
+     * @throws Exception If there is an issue during encryption.
+     */
+    @Override
+    public void encrypt(InputStream in, OutputStream out) throws Exception {
+        Keyring.DataKey dataKey = keyring.newDataKey(algorithmId, keyAlgorithm, keySize);
+        byte[] iv = Randoms.nextBytes(SegmentedAead.NONCE_LENGTH);
+        SnapHeader header = SnapHeader.of(algorithmId, dataKey, iv, segmentSize);
+        out.write(header.encode());
+        encryptMetrics.recordBytes(segments(dataKey.key(), segmentSize).encrypt(in, out, iv,
+                header.authenticatedBytes()));
+    }
 
-        try (FileInputStream fis = new FileInputStream(inputFile);
-             CipherInputStream cis = new CipherInputStream(fis, cipher);
-             FileOutputStream fos = new FileOutputStream(outputFile)) {
+    /**
+     * Decrypts a container from a stream without staging it on disk, authenticating each segment before it is
+     * written.
+     *
+     * @param in  The encrypted container, read up to the end of its payload.
+     * @param out Receives the plaintext.
+     * @throws Exception If there is an issue during decryption.
+     */
+    @Override
+    public void decrypt(InputStream in, OutputStream out) throws Exception {
+        SnapHeader header = SnapHeader.read(in);
+        decryptMetrics.recordBytes(segmentsFor(header).decrypt(header.payloadStream(in), out, header.nonce(),
+                header.authenticatedBytes()));
+    }
 
-            byte[] buffer = new byte[8192];
-            int bytesRead;
-            while ((bytesRead = cis.read(buffer)) != -1) {
-                fos.write(buffer, 0, bytesRead);
-            }
+    /**
+     * Encrypts a channel without staging it on disk. Between two file channels the segments are sealed in parallel,
+     * as for files; the container is written from the output's current position, so like a streamed one it carries no
+     * {@link MerkleTree}. Other channels are encrypted through {@link #encrypt(InputStream, OutputStream)}.
+     *
+     * @param in  The plaintext, read to its end.
+     * @param out Receives the encrypted container.
+     * @throws Exception If there is an issue during encryption.
+     */
+    @Override
+    public void encrypt(ReadableByteChannel in, WritableByteChannel out) throws Exception {
+        if (!(in instanceof FileChannel source && out instanceof FileChannel target)) {
+            GenericSecureSnap.super.encrypt(in, out);
+            return;
         }
+        Keyring.DataKey dataKey = keyring.newDataKey(algorithmId, keyAlgorithm, keySize);
+        byte[] iv = Randoms.nextBytes(SegmentedAead.NONCE_LENGTH);
+        SnapHeader header = SnapHeader.of(algorithmId, dataKey, iv, segmentSize);
+        ChannelCipher.writeFully(target, ByteBuffer.wrap(header.encode()));
+        encryptMetrics.recordBytes(segments(dataKey.key(), segmentSize).encrypt(source, target, iv,
+                header.authenticatedBytes(), encryptMetrics));
+        source.position(source.size());
+    }
+
+    /**
+     * Decrypts a container from a channel without staging it on disk. Between two file channels the segments are
+     * opened in parallel, as for files; other channels are decrypted through
+     * {@link #decrypt(InputStream, OutputStream)}.
+     *
+     * @param in  The encrypted container, read up to the end of its payload.
+     * @param out Receives the plaintext.
+     * @throws Exception If there is an issue during decryption.
+     */
+    @Override
+    public void decrypt(ReadableByteChannel in, WritableByteChannel out) throws Exception {
+        if (!(in instanceof FileChannel source && out instanceof FileChannel target)) {
+            GenericSecureSnap.super.decrypt(in, out);
+            return;
+        }
+        SnapHeader header = SnapHeader.read(Channels.newInputStream(source));
+        long payloadLength = header.payloadBytes(source.size() - source.position());
+        decryptMetrics.recordBytes(segmentsFor(header).decrypt(source, target, header.nonce(),
+                header.authenticatedBytes(), payloadLength, decryptMetrics));
+        source.position(source.position() + payloadLength);
     }
-}
 
+    /**
+     * Encrypts a byte array in memory. The container is identical to the file format, including the
+     * {@link MerkleTree}.
+     *
+     * @param plaintext The plaintext.
+     * @return The encrypted container.
+     * @throws Exception If there is an issue during encryption.
+     */
+    @Override
+    public byte[] encrypt(byte[] plaintext) throws Exception {
+        return encrypt(ByteBuffer.wrap(plaintext)).array();
+    }
 
+    /**
+     * Decrypts a container held in a byte array.
+     *
+     * @param container The encrypted container.
+     * @return The plaintext.
+     * @throws Exception If there is an issue during decryption.
+     */
+    @Override
+    public byte[] decrypt(byte[] container) throws Exception {
+        return decrypt(ByteBuffer.wrap(container)).array();
+    }
 
+    /**
+     * Encrypts the remaining bytes of a buffer in memory. The container is allocated once at its final size and every
+     * segment is sealed straight into it in parallel.
+     *
+     * @param plaintext The plaintext; its position is advanced to its limit.
+     * @return A new heap buffer holding the encrypted container.
+     * @throws Exception If there is an issue during encryption.
+     */
+    @Override
+    public ByteBuffer encrypt(ByteBuffer plaintext) throws Exception {
+        Keyring.DataKey dataKey = keyring.newDataKey(algorithmId, keyAlgorithm, keySize);
+        byte[] iv = Randoms.nextBytes(SegmentedAead.NONCE_LENGTH);
+        SnapHeader header = SnapHeader.of(algorithmId, dataKey, iv, segmentSize)
+                .withMerkleTree(0, new byte[MerkleTree.HASH_LENGTH]);
+        SegmentedAead segments = segments(dataKey.key(), segmentSize);
 
+        byte[] encodedHeader = header.encode();
+        long payloadLength = segments.sealedLength(plaintext.remaining());
+        long length = encodedHeader.length + payloadLength + MerkleTree.treeLength(header, payloadLength);
+        if (length > MAX_ARRAY_LENGTH) {
+            throw new IOException("Payload too large for an in-memory container: " + plaintext.remaining());
+        }
+        ByteBuffer container = ByteBuffer.allocate((int) length).put(encodedHeader);
+        encryptMetrics.recordBytes(plaintext.remaining());
+        segments.encrypt(plaintext, container, iv, header.authenticatedBytes(), encryptMetrics);
+        MerkleTree.seal(container, header, encodedHeader.length, (int) payloadLength);
+        return container.clear();
+    }
 
+    /**
+     * Decrypts a container held in the remaining bytes of a buffer, opening every segment in parallel.
+     *
+     * @param container The encrypted container; its position is advanced to its limit.
+     * @return A new heap buffer holding the plaintext.
+     * @throws Exception If there is an issue during decryption.
+     */
+    @Override
+    public ByteBuffer decrypt(ByteBuffer container) throws Exception {
+        SnapHeader header = SnapHeader.read(container);
+        SegmentedAead segments = segmentsFor(header);
+        int payloadLength = (int) header.payloadBytes(container.remaining());
+        long plaintextLength = segments.openedLength(payloadLength);
+        if (plaintextLength < 0) {
+            throw new IOException("Truncated SecureSnap container");
+        }
+        ByteBuffer plaintext = ByteBuffer.allocate((int) plaintextLength);
+        decryptMetrics.recordBytes(payloadLength);
+        segments.decrypt(container.slice(container.position(), payloadLength), plaintext, header.nonce(),
+                header.authenticatedBytes(), decryptMetrics);
+        container.position(container.limit());
+        return plaintext.flip();
+    }
+
+    /**
+     * Opens an encrypted file for random access to its plaintext. Only the segments covering the bytes that are
+     * actually read are decrypted and authenticated.
+     *
+     * @param inputFile Path of the encrypted input file.
+     * @return A read-only channel over the plaintext; the caller must close it.
+     * @throws Exception If the file cannot be opened or is not a valid container for this key.
+     */
+    public SnapSeekableChannel openSeekable(String inputFile) throws Exception {
+        FileChannel in = ChannelCipher.openForRead(Path.of(inputFile));
+        try {
+            SnapHeader header = SnapHeader.read(Channels.newInputStream(in));
+            return new SnapSeekableChannel(in, header, segmentsFor(header));
+        } catch (Exception e) {
+            in.close();
+            throw e;
+        }
+    }
 
+    /**
+     * Decrypts the plaintext byte range {@code [offset, offset + length)} of an encrypted file. The range is clipped
+     * to the end of the plaintext.
+     *
+     * @param inputFile Path of the encrypted input file.
+     * @param offset    The first plaintext byte to return.
+     * @param length    The maximum number of bytes to return.
+     * @return The decrypted bytes of the range.
+     * @throws IllegalArgumentException If the offset or the length is negative.
+     * @throws Exception                If the file is not a valid container or a covering segment fails
+     *                                  authentication.
+     */
+    public byte[] decryptRange(String inputFile, long offset, int length) throws Exception {
+        if (offset < 0 || length < 0) {
+            throw new IllegalArgumentException("Invalid range: offset " + offset + ", length " + length);
+        }
+        try (SnapSeekableChannel channel = openSeekable(inputFile)) {
+            long size = channel.size();
+            // offset + length may overflow; size - length cannot, as both are non-negative
+            long end = offset > size - length ? size : offset + length;
+            ByteBuffer range = ByteBuffer.allocate((int) Math.max(0, end - offset));
+            channel.position(offset);
+            while (range.hasRemaining() && channel.read(range) >= 0) {
+                // keep reading until the range is filled
+            }
+            return range.array();
+        }
+    }
+
+    /**
+     * Checks a container header and returns the engine that can open its segments.
+     *
+     * @param header The header of the file to decrypt.
+     * @return The segment engine for the data key and segment size recorded in the header.
+     * @throws Exception If the file was not written by this algorithm or its data key cannot be unwrapped.
+     */
+    private SegmentedAead segmentsFor(SnapHeader header) throws Exception {
+        header.verify(algorithmId);
+        if (header.nonce().length != SegmentedAead.NONCE_LENGTH || header.chunkSize() <= 0) {
+            throw new IOException("Invalid " + algorithmId + " header");
+        }
+        return segments(keyring.unwrap(header, keyAlgorithm), header.chunkSize());
+    }
+
+    private SegmentedAead segments(SecretKey key, int segmentSize) throws GeneralSecurityException {
+        return new SegmentedAead(segmentCiphers.create(key, segmentSize), segmentSize, ForkJoinPool.commonPool());
+    }
+}
@@ -0,0 +1,553 @@
+package com.secure.snap;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Segmented AEAD engine that splits a stream into fixed-size segments, each sealed with AES-GCM or
+ * ChaCha20-Poly1305 (see {@link Scheme}), or with any other {@link SegmentCipher}, under its own nonce and tag.
+ * <p>
+ * The nonce of segment {@code i} is the base nonce XOR {@code 0x00^7 || i (4 bytes, big endian) || last (1 byte)},
+ * so segments cannot be reordered, and the final segment carries an end-of-stream marker that makes truncation
+ * detectable. Segments are sealed and opened in parallel on a {@link ForkJoinPool}, a bounded batch at a time, so
+ * memory stays proportional to the pool size rather than to the stream length.
+ * <p>
+ * The {@link FileChannel} variants know the input size up front, so they map (or read) one batch of segments at a
+ * time and let the cipher work directly on slices of that window, writing the sealed segments from pooled direct
+ * buffers with a single gathering write per batch. The {@link ByteBuffer} variants have both sides in memory, so
+ * every segment is sealed straight from a slice of the input into its slot in the output.
+ * <p>
+ * Every segment also authenticates the same associated data, normally the container header, so the header cannot
+ * be altered independently of the payload.
+ * <p>
+ * Instances are thread-safe; the AEAD schemes borrow their ciphers from a shared pool for the duration of one
+ * segment.
+ */
+class SegmentedAead {
+
+    static final int DEFAULT_SEGMENT_SIZE = 64 * 1024;
+    static final int NONCE_LENGTH = 12;
+    static final int TAG_LENGTH = 16;
+
+    private static final long MAX_SEGMENTS = 1L << 32;
+    private static final int SEGMENTS_PER_WORKER = 4;
+
+    private final SegmentCipher cipher;
+    private final int segmentSize;
+    private final ForkJoinPool pool;
+
+    /**
+     * The AEAD algorithms a stream can be sealed with. Both take a 12-byte nonce and produce a 16-byte tag, and each
+     * borrows its ciphers from a pool backed by the provider {@link CryptoProviders} selects for it.
+     */
+    enum Scheme {
+        AES_GCM("AES256/GCM/NoPadding", "AES/GCM/NoPadding", "AES"),
+        CHACHA20_POLY1305("ChaCha20-Poly1305", "ChaCha20-Poly1305", "ChaCha20");
+
+        final String algorithmId;
+        final String transformation;
+        final String keyAlgorithm;
+        final InstancePool<Cipher> ciphers;
+
+        Scheme(String algorithmId, String transformation, String keyAlgorithm) {
+            this.algorithmId = algorithmId;
+            this.transformation = transformation;
+            this.keyAlgorithm = keyAlgorithm;
+            this.ciphers = new InstancePool<>(() -> CryptoProviders.newCipher(transformation));
+        }
+
+        AlgorithmParameterSpec parameters(byte[] nonce) {
+            return CryptoProviders.aeadParameters(transformation, nonce);
+        }
+
+        /**
+         * @param key The key used for every segment.
+         * @return A segment cipher that seals with this scheme under the segment nonce.
+         */
+        SegmentCipher keyed(SecretKey key) {
+            return (mode, input, output, baseNonce, aad, index, last) -> {
+                Cipher cipher = ciphers.acquire();
+                try {
+                    cipher.init(mode, key, parameters(segmentNonce(baseNonce, index, last)));
+                    cipher.updateAAD(aad);
+                    cipher.doFinal(input, output);
+                } finally {
+                    ciphers.release(cipher);
+                }
+            };
+        }
+    }
+
+    /**
+     * Seals or opens a single segment. Implementations must be thread-safe, and must bind the segment to its index,
+     * its last flag and the associated data, so that segments cannot be reordered, truncated or moved between streams.
+     */
+    @FunctionalInterface
+    interface SegmentCipher {
+
+        /**
+         * Seals or opens one segment.
+         *
+         * @param mode      {@link Cipher#ENCRYPT_MODE} or {@link Cipher#DECRYPT_MODE}.
+         * @param input     The plaintext, or the ciphertext followed by its {@value SegmentedAead#TAG_LENGTH}-byte tag; consumed.
+         * @param output    Receives the ciphertext and tag, or the plaintext.
+         * @param baseNonce The 12-byte base nonce of the stream.
+         * @param aad       The associated data of the stream.
+         * @param index     The zero-based segment index.
+         * @param last      Whether this is the final segment of the stream.
+         * @throws GeneralSecurityException If the segment fails authentication or the cipher fails.
+         */
+        void transform(int mode, ByteBuffer input, ByteBuffer output, byte[] baseNonce, byte[] aad, long index,
+                       boolean last) throws GeneralSecurityException;
+    }
+
+    /**
+     * Creates a segmented AES-GCM engine.
+     *
+     * @param key         The AES key used for every segment.
+     * @param segmentSize The plaintext size of every segment except the last one.
+     * @param pool        The pool on which segments are sealed and opened.
+     */
+    SegmentedAead(SecretKey key, int segmentSize, ForkJoinPool pool) {
+        this(Scheme.AES_GCM, key, segmentSize, pool);
+    }
+
+    /**
+     * Creates a segmented AEAD engine.
+     *
+     * @param scheme      The AEAD algorithm.
+     * @param key         The key used for every segment.
+     * @param segmentSize The plaintext size of every segment except the last one.
+     * @param pool        The pool on which segments are sealed and opened.
+     */
+    SegmentedAead(Scheme scheme, SecretKey key, int segmentSize, ForkJoinPool pool) {
+        this(scheme.keyed(key), segmentSize, pool);
+    }
+
+    /**
+     * Creates a segmented engine over any segment cipher.
+     *
+     * @param cipher      Seals and opens the segments.
+     * @param segmentSize The plaintext size of every segment except the last one.
+     * @param pool        The pool on which segments are sealed and opened.
+     */
+    SegmentedAead(SegmentCipher cipher, int segmentSize, ForkJoinPool pool) {
+        if (segmentSize <= 0) {
+            throw new IllegalArgumentException("Segment size must be positive: " + segmentSize);
+        }
+        this.cipher = cipher;
+        this.segmentSize = segmentSize;
+        this.pool = pool;
+    }
+
+    /**
+     * @return The plaintext size of every segment except the last one.
+     */
+    int segmentSize() {
+        return segmentSize;
+    }
+
+    /**
+     * Encrypts the whole input stream into the output stream.
+     *
+     * @param in        The plaintext source.
+     * @param out       The ciphertext destination.
+     * @param baseNonce The random 12-byte nonce from which every segment nonce is derived.
+     * @param aad       The associated data authenticated with every segment.
+     * @return The number of plaintext bytes read.
+     * @throws Exception If reading, writing or sealing a segment fails.
+     */
+    long encrypt(InputStream in, OutputStream out, byte[] baseNonce, byte[] aad) throws Exception {
+        return transform(Cipher.ENCRYPT_MODE, in, out, baseNonce, aad, segmentSize);
+    }
+
+    /**
+     * Decrypts the whole input stream into the output stream, authenticating each segment before it is written.
+     *
+     * @param in        The ciphertext source.
+     * @param out       The plaintext destination.
+     * @param baseNonce The nonce that was used to encrypt the stream.
+     * @param aad       The associated data that was authenticated with every segment.
+     * @return The number of ciphertext bytes read.
+     * @throws Exception If a segment fails authentication, the stream is truncated or I/O fails.
+     */
+    long decrypt(InputStream in, OutputStream out, byte[] baseNonce, byte[] aad) throws Exception {
+        return transform(Cipher.DECRYPT_MODE, in, out, baseNonce, aad, segmentSize + TAG_LENGTH);
+    }
+
+    /**
+     * Encrypts the whole input file channel into the output channel.
+     *
+     * @param in        The plaintext file, read from its current position to its end.
+     * @param out       The ciphertext destination, written from its current position.
+     * @param baseNonce The random 12-byte nonce from which every segment nonce is derived.
+     * @param aad       The associated data authenticated with every segment.
+     * @param metrics   Receives the time spent reading, sealing and writing.
+     * @return The number of plaintext bytes read.
+     * @throws Exception If reading, writing or sealing a segment fails.
+     */
+    long encrypt(FileChannel in, FileChannel out, byte[] baseNonce, byte[] aad, OperationMetrics metrics)
+            throws Exception {
+        return encrypt(in, out, baseNonce, aad, metrics, null);
+    }
+
+    /**
+     * Encrypts the whole input file channel into the output channel and hashes every sealed segment for the
+     * container's {@link MerkleTree} on the worker that sealed it, so the tree never reads the payload back.
+     *
+     * @param in        The plaintext file, read from its current position to its end.
+     * @param out       The ciphertext destination, written from its current position.
+     * @param baseNonce The random 12-byte nonce from which every segment nonce is derived.
+     * @param aad       The associated data authenticated with every segment.
+     * @param metrics   Receives the time spent reading, sealing and writing.
+     * @param leaves    Receives the hash of every sealed segment, or {@code null} to skip hashing.
+     * @return The number of plaintext bytes read.
+     * @throws Exception If reading, writing or sealing a segment fails.
+     */
+    long encrypt(FileChannel in, FileChannel out, byte[] baseNonce, byte[] aad, OperationMetrics metrics,
+                 MerkleTree.Leaves leaves) throws Exception {
+        return transform(Cipher.ENCRYPT_MODE, in, out, baseNonce, aad, segmentSize, segmentSize + TAG_LENGTH,
+                in.size() - in.position(), metrics, leaves);
+    }
+
+    /**
+     * Decrypts the sealed segments of the input file channel into the output channel.
+     *
+     * @param in        The ciphertext file, read from its current position.
+     * @param out       The plaintext destination, written from its current position.
+     * @param baseNonce The nonce that was used to encrypt the file.
+     * @param aad       The associated data that was authenticated with every segment.
+     * @param length    The number of ciphertext bytes, i.e. the stored segments without any trailer.
+     * @param metrics   Receives the time spent reading, opening and writing.
+     * @return The number of ciphertext bytes read, i.e. {@code length}.
+     * @throws Exception If a segment fails authentication, the file is truncated or I/O fails.
+     */
+    long decrypt(FileChannel in, FileChannel out, byte[] baseNonce, byte[] aad, long length,
+                 OperationMetrics metrics) throws Exception {
+        return transform(Cipher.DECRYPT_MODE, in, out, baseNonce, aad, segmentSize + TAG_LENGTH, segmentSize, length,
+                metrics, null);
+    }
+
+    /**
+     * Encrypts the remaining bytes of a buffer into another buffer, sealing every segment in parallel directly
+     * between slices of the two buffers.
+     *
+     * @param in        The plaintext; its position is advanced to its limit.
+     * @param out       The ciphertext destination, with at least {@link #sealedLength(long)} bytes remaining; its
+     *                  position is advanced past the ciphertext.
+     * @param baseNonce The random 12-byte nonce from which every segment nonce is derived.
+     * @param aad       The associated data authenticated with every segment.
+     * @param metrics   Receives the time spent sealing.
+     * @throws Exception If sealing a segment fails.
+     */
+    void encrypt(ByteBuffer in, ByteBuffer out, byte[] baseNonce, byte[] aad, OperationMetrics metrics)
+            throws Exception {
+        transform(Cipher.ENCRYPT_MODE, in, out, baseNonce, aad, segmentSize, segmentSize + TAG_LENGTH, metrics);
+    }
+
+    /**
+     * Decrypts the remaining bytes of a buffer, which must hold exactly the sealed segments, into another buffer.
+     *
+     * @param in        The ciphertext; its position is advanced to its limit.
+     * @param out       The plaintext destination, with at least {@link #openedLength(long)} bytes remaining; its
+     *                  position is advanced past the plaintext.
+     * @param baseNonce The nonce that was used to encrypt the stream.
+     * @param aad       The associated data that was authenticated with every segment.
+     * @param metrics   Receives the time spent opening.
+     * @throws Exception If a segment fails authentication or the ciphertext is truncated.
+     */
+    void decrypt(ByteBuffer in, ByteBuffer out, byte[] baseNonce, byte[] aad, OperationMetrics metrics)
+            throws Exception {
+        transform(Cipher.DECRYPT_MODE, in, out, baseNonce, aad, segmentSize + TAG_LENGTH, segmentSize, metrics);
+    }
+
+    /**
+     * @param plaintextLength The plaintext length.
+     * @return The length of the sealed segments.
+     */
+    long sealedLength(long plaintextLength) {
+        return plaintextLength + segmentCount(plaintextLength, segmentSize) * TAG_LENGTH;
+    }
+
+    /**
+     * @param ciphertextLength The length of the sealed segments.
+     * @return The plaintext length, or -1 if no stream seals to that length.
+     */
+    long openedLength(long ciphertextLength) {
+        long plaintextLength = ciphertextLength - segmentCount(ciphertextLength, segmentSize + TAG_LENGTH) * TAG_LENGTH;
+        return plaintextLength >= 0 && sealedLength(plaintextLength) == ciphertextLength ? plaintextLength : -1;
+    }
+
+    private static long segmentCount(long length, int inputSegmentSize) {
+        return Math.max(1, (length + inputSegmentSize - 1) / inputSegmentSize);
+    }
+
+    private void transform(int mode, ByteBuffer in, ByteBuffer out, byte[] baseNonce, byte[] aad,
+                           int inputSegmentSize, int outputSegmentSize, OperationMetrics metrics) throws Exception {
+        long size = in.remaining();
+        long count = segmentCount(size, inputSegmentSize);
+        if (count > MAX_SEGMENTS) {
+            throw new IOException("Buffer exceeds the maximum of " + MAX_SEGMENTS + " segments");
+        }
+        long outputSize = mode == Cipher.ENCRYPT_MODE ? sealedLength(size) : openedLength(size);
+        if (outputSize < 0) {
+            throw new IOException("Truncated SecureSnap container");
+        }
+        if (outputSize > out.remaining()) {
+            throw new IllegalArgumentException("Output buffer too small: " + out.remaining() + " < " + outputSize);
+        }
+
+        if (count == 1) {
+            // small payloads are cheaper to seal on the calling thread than to hand to the pool
+            transformSegment(mode, in.slice(), out.slice(out.position(), (int) outputSize), baseNonce, aad, 0, true,
+                    metrics);
+            in.position(in.limit());
+            out.position(out.position() + (int) outputSize);
+            return;
+        }
+        // The buffers hold everything already, so every segment can be submitted at once
+        List<CompletableFuture<ByteBuffer>> segments = new ArrayList<>((int) count);
+        for (long index = 0; index < count; index++) {
+            int inputOffset = (int) (index * inputSegmentSize);
+            int outputOffset = (int) (index * outputSegmentSize);
+            ByteBuffer input = in.slice(in.position() + inputOffset,
+                    Math.min(inputSegmentSize, in.remaining() - inputOffset));
+            ByteBuffer output = out.slice(out.position() + outputOffset,
+                    (int) Math.min(outputSegmentSize, outputSize - outputOffset));
+            long segmentIndex = index;
+            boolean last = index == count - 1;
+            segments.add(CompletableFuture.supplyAsync(
+                    () -> processSegment(mode, input, output, baseNonce, aad, segmentIndex, last, metrics, null),
+                    pool));
+        }
+        awaitAll(segments);
+        in.position(in.limit());
+        out.position(out.position() + (int) outputSize);
+    }
+
+    private long transform(int mode, FileChannel in, FileChannel out, byte[] baseNonce, byte[] aad,
+                           int inputSegmentSize, int outputSegmentSize, long size, OperationMetrics metrics,
+                           MerkleTree.Leaves leaves) throws Exception {
+        long base = in.position();
+        long count = Math.max(1, (size + inputSegmentSize - 1) / inputSegmentSize);
+        if (count > MAX_SEGMENTS) {
+            throw new IOException("File exceeds the maximum of " + MAX_SEGMENTS + " segments");
+        }
+        int batchSize = (int) Math.min(pool.getParallelism() * SEGMENTS_PER_WORKER, count);
+        boolean mapped = ChannelCipher.shouldMap(size);
+        ByteBuffer[] outputs = new ByteBuffer[batchSize];
+        for (int i = 0; i < batchSize; i++) {
+            outputs[i] = DirectBufferPool.acquire(outputSegmentSize);
+        }
+        List<CompletableFuture<ByteBuffer>> batch = new ArrayList<>(batchSize);
+        try {
+            for (long first = 0; first < count; first += batchSize) {
+                int segmentsInBatch = (int) Math.min(batchSize, count - first);
+                long start = first * inputSegmentSize;
+                long end = Math.min(size, start + (long) segmentsInBatch * inputSegmentSize);
+                long readStart = System.nanoTime();
+                ByteBuffer window = readWindow(in, base + start, end - start, mapped);
+                metrics.recordRead(System.nanoTime() - readStart);
+                try {
+                    batch.clear();
+                    for (int i = 0; i < segmentsInBatch; i++) {
+                        int offset = i * inputSegmentSize;
+                        ByteBuffer input = window.slice(offset, Math.min(inputSegmentSize, window.limit() - offset));
+                        ByteBuffer output = outputs[i].clear();
+                        long segmentIndex = first + i;
+                        boolean last = segmentIndex == count - 1;
+                        batch.add(CompletableFuture.supplyAsync(
+                                () -> processSegment(mode, input, output, baseNonce, aad, segmentIndex, last, metrics,
+                                        leaves),
+                                pool));
+                    }
+                    awaitAll(batch);
+                    long remaining = 0;
+                    for (int i = 0; i < segmentsInBatch; i++) {
+                        remaining += outputs[i].remaining();
+                    }
+                    long writeStart = System.nanoTime();
+                    while (remaining > 0) {
+                        remaining -= out.write(outputs, 0, segmentsInBatch);
+                    }
+                    metrics.recordWrite(System.nanoTime() - writeStart);
+                } finally {
+                    if (!mapped) {
+                        DirectBufferPool.release(window);
+                    }
+                }
+            }
+        } finally {
+            // awaitAll has let every worker of the batch finish, so nothing writes into these any more
+            for (ByteBuffer output : outputs) {
+                DirectBufferPool.release(output);
+            }
+        }
+        return size;
+    }
+
+    private static ByteBuffer readWindow(FileChannel in, long position, long length, boolean mapped)
+            throws IOException {
+        if (mapped) {
+            return in.map(FileChannel.MapMode.READ_ONLY, position, length);
+        }
+        ByteBuffer window = DirectBufferPool.acquire((int) length).limit((int) length);
+        while (window.hasRemaining()) {
+            if (in.read(window, position + window.position()) < 0) {
+                throw new IOException("File shrank while it was being read");
+            }
+        }
+        return window.flip();
+    }
+
+    private ByteBuffer processSegment(int mode, ByteBuffer input, ByteBuffer output, byte[] baseNonce, byte[] aad,
+                                      long index, boolean last, OperationMetrics metrics, MerkleTree.Leaves leaves) {
+        try {
+            ByteBuffer result = transformSegment(mode, input, output, baseNonce, aad, index, last, metrics);
+            if (leaves != null) {
+                leaves.hash(index, result.duplicate());
+            }
+            return result;
+        } catch (GeneralSecurityException e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    private ByteBuffer transformSegment(int mode, ByteBuffer input, ByteBuffer output, byte[] baseNonce, byte[] aad,
+                                        long index, boolean last, OperationMetrics metrics)
+            throws GeneralSecurityException {
+        long start = System.nanoTime();
+        try {
+            cipher.transform(mode, input, output, baseNonce, aad, index, last);
+            return output.flip();
+        } finally {
+            metrics.recordCipher(System.nanoTime() - start);
+        }
+    }
+
+    private long transform(int mode, InputStream in, OutputStream out, byte[] baseNonce, byte[] aad,
+                           int inputSegmentSize)
+            throws Exception {
+        int batchSize = pool.getParallelism() * SEGMENTS_PER_WORKER;
+        List<CompletableFuture<byte[]>> batch = new ArrayList<>(batchSize);
+
+        byte[] current = in.readNBytes(inputSegmentSize);
+        long read = current.length;
+        long index = 0;
+        boolean done = false;
+        while (!done) {
+            batch.clear();
+            while (batch.size() < batchSize && !done) {
+                if (index >= MAX_SEGMENTS) {
+                    throw new IOException("Stream exceeds the maximum of " + MAX_SEGMENTS + " segments");
+                }
+                byte[] next = current.length < inputSegmentSize ? null : in.readNBytes(inputSegmentSize);
+                if (next != null) {
+                    read += next.length;
+                }
+                boolean last = next == null || next.length == 0;
+                byte[] segment = current;
+                long segmentIndex = index++;
+                batch.add(CompletableFuture.supplyAsync(
+                        () -> processSegment(mode, segment, baseNonce, aad, segmentIndex, last), pool));
+                if (last) {
+                    done = true;
+                } else {
+                    current = next;
+                }
+            }
+            for (CompletableFuture<byte[]> result : batch) {
+                out.write(await(result));
+            }
+        }
+        return read;
+    }
+
+    private byte[] processSegment(int mode, byte[] input, byte[] baseNonce, byte[] aad, long index, boolean last) {
+        try {
+            return transformSegment(mode, input, baseNonce, aad, index, last);
+        } catch (GeneralSecurityException e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    /**
+     * Opens a single sealed segment, for callers that only need part of a stream.
+     *
+     * @param ciphertext The sealed segment, including its tag.
+     * @param baseNonce  The nonce that was used to encrypt the stream.
+     * @param aad        The associated data that was authenticated with every segment.
+     * @param index      The zero-based segment index.
+     * @param last       Whether this is the final segment of the stream.
+     * @return The plaintext of the segment.
+     * @throws GeneralSecurityException If the segment fails authentication.
+     */
+    byte[] decryptSegment(byte[] ciphertext, byte[] baseNonce, byte[] aad, long index, boolean last)
+            throws GeneralSecurityException {
+        return transformSegment(Cipher.DECRYPT_MODE, ciphertext, baseNonce, aad, index, last);
+    }
+
+    private byte[] transformSegment(int mode, byte[] input, byte[] baseNonce, byte[] aad, long index, boolean last)
+            throws GeneralSecurityException {
+        int outputLength = mode == Cipher.ENCRYPT_MODE ? input.length + TAG_LENGTH : input.length - TAG_LENGTH;
+        if (outputLength < 0) {
+            throw new AEADBadTagException("Segment shorter than its tag");
+        }
+        byte[] output = new byte[outputLength];
+        cipher.transform(mode, ByteBuffer.wrap(input), ByteBuffer.wrap(output), baseNonce, aad, index, last);
+        return output;
+    }
+
+    /**
+     * Derives the nonce of a single segment from the base nonce.
+     *
+     * @param baseNonce The 12-byte base nonce of the stream.
+     * @param index     The zero-based segment index.
+     * @param last      Whether this is the final segment of the stream.
+     * @return The segment nonce.
+     */
+    static byte[] segmentNonce(byte[] baseNonce, long index, boolean last) {
+        byte[] nonce = baseNonce.clone();
+        nonce[7] ^= (byte) (index >>> 24);
+        nonce[8] ^= (byte) (index >>> 16);
+        nonce[9] ^= (byte) (index >>> 8);
+        nonce[10] ^= (byte) index;
+        nonce[11] ^= (byte) (last ? 1 : 0);
+        return nonce;
+    }
+
+    /**
+     * Waits for every segment of a batch, even after one of them has failed, so that no worker still reads or writes
+     * the batch's buffers once they are handed back, then rethrows the first failure.
+     */
+    private static <T> void awaitAll(List<CompletableFuture<T>> results) throws Exception {
+        CompletableFuture.allOf(results.toArray(CompletableFuture[]::new)).handle((ignored, e) -> null).join();
+        for (CompletableFuture<T> result : results) {
+            await(result);
+        }
+    }
+
+    private static <T> T await(CompletableFuture<T> result) throws Exception {
+        try {
+            return result.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof Exception cause) {
+                throw cause;
+            }
+            throw e;
+        }
+    }
+}
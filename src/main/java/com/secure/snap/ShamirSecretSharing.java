@@ -1,19 +1,84 @@
 package com.secure.snap;
 
-import java.math.BigInteger;
-import java.security.SecureRandom;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.Comparator;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HexFormat;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.IntStream;
 
 /**
  * Implementation of Shamir Secret Sharing algorithm to split and reconstruct a secret key.
+ * <p>
+ * Secrets are split byte by byte over GF(2^8) (see {@link Gf256}): every byte of the secret is the constant term of
+ * its own random polynomial, and a share holds the values of all those polynomials at one x-coordinate. The field is
+ * fixed, so shares made in one JVM can be combined in any other, and secrets of any length are supported without
+ * big-number arithmetic.
  */
 public class ShamirSecretSharing {
 
-    private static final int PRIME_BIT_LENGTH = 512;
     private static final int MINIMUM_SHARES = 3;
-    private static final BigInteger PRIME = BigInteger.probablePrime(PRIME_BIT_LENGTH, new SecureRandom());
+    private static final int MAX_SHARES = 255;
+    private static final int MAX_CACHED_SHARE_SETS = 1024;
+    private static final int PARALLEL_BATCH_THRESHOLD = 64;
+
+    /**
+     * Lagrange coefficients per set of x-coordinates, as {@code log(l_x)} indexed by x. The coefficients only depend
+     * on which custodians took part, so they are computed once and reused for every secret combined from that set.
+     */
+    private static final Map<ShareSet, int[]> LAGRANGE_CACHE = new ConcurrentHashMap<>();
+
+    /**
+     * One share of a split secret.
+     * <p>
+     * The serialized form is fixed: one format version byte ({@link #FORMAT_VERSION}), one byte holding the
+     * x-coordinate (1..255), then one y byte per secret byte.
+     *
+     * @param x The x-coordinate of the share, 1..255.
+     * @param y The share value, as long as the secret.
+     */
+    public record Share(int x, byte[] y) {
+
+        /**
+         * The serialization format version.
+         */
+        public static final int FORMAT_VERSION = 1;
+
+        public Share {
+            if (x < 1 || x > MAX_SHARES) {
+                throw new IllegalArgumentException("Share x-coordinate must be in 1..255: " + x);
+            }
+        }
+
+        /**
+         * Serializes the share.
+         *
+         * @return The serialized share.
+         */
+        public byte[] toBytes() {
+            byte[] bytes = new byte[y.length + 2];
+            bytes[0] = FORMAT_VERSION;
+            bytes[1] = (byte) x;
+            System.arraycopy(y, 0, bytes, 2, y.length);
+            return bytes;
+        }
+
+        /**
+         * Deserializes a share.
+         *
+         * @param bytes The serialized share.
+         * @return The share.
+         */
+        public static Share fromBytes(byte[] bytes) {
+            if (bytes.length < 2 || bytes[0] != FORMAT_VERSION) {
+                throw new IllegalArgumentException("Unsupported share format");
+            }
+            return new Share(bytes[1] & 0xFF, Arrays.copyOfRange(bytes, 2, bytes.length));
+        }
+    }
 
     /**
      * Main method to test splitting and reconstructing the secret key.
@@ -22,89 +87,175 @@ public class ShamirSecretSharing {
     public static void main(String[] args) {
         String secretKey = "mySecretKey";
         System.out.println( "Secret key:"+secretKey);
-        List<BigInteger> shares = generateShares(secretKey.getBytes(), MINIMUM_SHARES, MINIMUM_SHARES);
+        List<Share> shares = split(secretKey.getBytes(StandardCharsets.UTF_8), MINIMUM_SHARES, MINIMUM_SHARES);
         System.out.println("Shares generated:");
         printShares(shares);
-        byte[] reconstructedKey = reconstructSecret(shares, shares.size());
-        System.out.println("Reconstructed secret key: " + new String(reconstructedKey));
+        byte[] reconstructedKey = combine(shares);
+        System.out.println("Reconstructed secret key: " + new String(reconstructedKey, StandardCharsets.UTF_8));
 
-        List<BigInteger> sharesIncomplete = shares.subList(0, 2); // Uncomment to test with missing shares
-        byte[] reconstructedKeyIncomplete = reconstructSecret(sharesIncomplete, sharesIncomplete.size()); // Uncomment to test with missing shares
-        System.out.println("Reconstructed secret key with missing shares: " + new String(reconstructedKeyIncomplete)); // Uncomment to test with missing shares
-
-        List<BigInteger> sharesOutOfOrder=shares; // Uncomment to test with out-of-order shares
-        sharesOutOfOrder.sort(Comparator.naturalOrder()); // Uncomment to test with out-of-order shares
-        byte[] reconstructedKeyOutOfOrder = reconstructSecret(sharesOutOfOrder, shares.size()); // Uncomment to test with out-of-order shares
-        System.out.println("Reconstructed secret key with out of order shares: " + new String(reconstructedKeyOutOfOrder)); // Uncomment to test with out-of-order shares
+        List<Share> sharesIncomplete = shares.subList(0, 2);
+        byte[] reconstructedKeyIncomplete = combine(sharesIncomplete);
+        System.out.println("Reconstructed secret key with missing shares: " + new String(reconstructedKeyIncomplete, StandardCharsets.UTF_8));
 
+        List<Share> sharesOutOfOrder = new ArrayList<>(shares);
+        Collections.reverse(sharesOutOfOrder);
+        byte[] reconstructedKeyOutOfOrder = combine(sharesOutOfOrder);
+        System.out.println("Reconstructed secret key with out of order shares: " + new String(reconstructedKeyOutOfOrder, StandardCharsets.UTF_8));
     }
 
     /**
      * Generates shares (parts) of a secret key to share among participants.
      * @param secret The secret key to share.
-     * @param totalShares The total number of shares to generate.
+     * @param totalShares The total number of shares to generate, at most 255.
      * @param threshold The minimum number of shares required to reconstruct the secret key.
-     * @return List of generated shares.
+     * @return List of generated shares, with x-coordinates 1..totalShares.
      */
-    private static List<BigInteger> generateShares(byte[] secret, int totalShares, int threshold) {
-        SecureRandom random = new SecureRandom();
-        BigInteger[] coefficients = new BigInteger[threshold];
-        for (int i = 0; i < threshold; i++) {
-            coefficients[i] = new BigInteger(PRIME.bitLength(), random).mod(PRIME);
+    public static List<Share> split(byte[] secret, int totalShares, int threshold) {
+        if (threshold < 1 || threshold > totalShares || totalShares > MAX_SHARES) {
+            throw new IllegalArgumentException("Invalid threshold " + threshold + " of " + totalShares + " shares");
         }
+        int length = secret.length;
+        int degree = threshold - 1;
+        // coefficients[j * length + b] is the coefficient of x^(j + 1) in the polynomial of secret byte b
+        byte[] coefficients = Randoms.nextBytes(degree * length);
 
-        List<BigInteger> shares = new ArrayList<>();
-        for (int i = 1; i <= totalShares; i++) {
-            BigInteger x = BigInteger.valueOf(i);
-            BigInteger share = new BigInteger(secret);
-            for (int j = 1; j < threshold; j++) {
-                BigInteger term = coefficients[j].multiply(x.pow(j)).mod(PRIME);
-                share = share.add(term).mod(PRIME);
+        List<Share> shares = new ArrayList<>(totalShares);
+        for (int x = 1; x <= totalShares; x++) {
+            byte[] y = new byte[length];
+            for (int b = 0; b < length; b++) {
+                // Horner's rule, from the highest coefficient down to the secret byte itself
+                int value = 0;
+                for (int j = degree - 1; j >= 0; j--) {
+                    value = Gf256.mul(value, x) ^ (coefficients[j * length + b] & 0xFF);
+                }
+                y[b] = (byte) (Gf256.mul(value, x) ^ (secret[b] & 0xFF));
             }
-            shares.add(share);
+            shares.add(new Share(x, y));
         }
+        Arrays.fill(coefficients, (byte) 0);
         return shares;
     }
 
     /**
-     * Reconstructs the secret key from the given shares.
-     * @param shares List of shares.
-     * @param threshold The minimum number of shares required to reconstruct the secret key.
+     * Reconstructs the secret key from the given shares. Shares can be given in any order; with fewer shares than
+     * the threshold the result is unrelated to the secret.
+     * @param shares List of shares with distinct x-coordinates.
      * @return The reconstructed secret key.
      */
-    private static byte[] reconstructSecret(List<BigInteger> shares, int threshold) {
-        BigInteger secret = BigInteger.ZERO;
-        for (int i = 0; i < threshold; i++) {
-            BigInteger xi = BigInteger.valueOf(i + 1);
-            BigInteger yi = shares.get(i);
-
-            BigInteger numerator = BigInteger.ONE;
-            BigInteger denominator = BigInteger.ONE;
-
-            for (int j = 0; j < threshold; j++) {
-                if (j != i) {
-                    BigInteger xj = BigInteger.valueOf(j + 1);
-                    numerator = numerator.multiply(xj.negate()).mod(PRIME);
-                    denominator = denominator.multiply(xi.subtract(xj)).mod(PRIME);
+    public static byte[] combine(List<Share> shares) {
+        if (shares.isEmpty()) {
+            throw new IllegalArgumentException("No shares given");
+        }
+        return interpolate(shares, lagrangeLogCoefficients(ShareSet.of(shares)));
+    }
+
+    /**
+     * Reconstructs many secrets at once, for example every split key of an archive. Secrets that were split among
+     * the same custodians share one coefficient vector, and large batches are combined in parallel.
+     * @param sharesPerSecret One list of shares per secret.
+     * @return The reconstructed secrets, in the order of {@code sharesPerSecret}.
+     */
+    public static List<byte[]> combineAll(List<List<Share>> sharesPerSecret) {
+        byte[][] secrets = new byte[sharesPerSecret.size()][];
+        IntStream indices = IntStream.range(0, secrets.length);
+        if (secrets.length >= PARALLEL_BATCH_THRESHOLD) {
+            indices = indices.parallel();
+        }
+        indices.forEach(i -> secrets[i] = combine(sharesPerSecret.get(i)));
+        return Arrays.asList(secrets);
+    }
+
+    private static byte[] interpolate(List<Share> shares, int[] logCoefficients) {
+        int length = shares.get(0).y().length;
+        byte[] secret = new byte[length];
+        for (Share share : shares) {
+            byte[] y = share.y();
+            if (y.length != length) {
+                throw new IllegalArgumentException("Shares have different lengths");
+            }
+            int logCoefficient = logCoefficients[share.x()];
+            for (int b = 0; b < length; b++) {
+                int value = y[b] & 0xFF;
+                if (value != 0) {
+                    secret[b] ^= Gf256.EXP[Gf256.LOG[value] + logCoefficient];
+                }
+            }
+        }
+        return secret;
+    }
+
+    /**
+     * Returns the logarithms of the Lagrange basis polynomials evaluated at x = 0 for a set of x-coordinates, so that
+     * the secret is {@code XOR_x y_x * g^logCoefficients[x]}.
+     * @param set The x-coordinates of the shares.
+     * @return The logarithm of every Lagrange coefficient, indexed by x.
+     */
+    static int[] lagrangeLogCoefficients(ShareSet set) {
+        int[] cached = LAGRANGE_CACHE.get(set);
+        if (cached != null) {
+            return cached;
+        }
+        if (LAGRANGE_CACHE.size() >= MAX_CACHED_SHARE_SETS) {
+            LAGRANGE_CACHE.clear();
+        }
+        return LAGRANGE_CACHE.computeIfAbsent(set, ShamirSecretSharing::computeLagrangeLogCoefficients);
+    }
+
+    private static int[] computeLagrangeLogCoefficients(ShareSet set) {
+        int[] xs = set.xs();
+        int[] logCoefficients = new int[MAX_SHARES + 1];
+        for (int xi : xs) {
+            int numerator = 1;
+            int denominator = 1;
+            for (int xj : xs) {
+                if (xj != xi) {
+                    numerator = Gf256.mul(numerator, xj);
+                    denominator = Gf256.mul(denominator, xj ^ xi);
                 }
             }
+            logCoefficients[xi] = Gf256.LOG[Gf256.div(numerator, denominator)];
+        }
+        return logCoefficients;
+    }
+
+    /**
+     * A set of share x-coordinates as a 256-bit mask, independent of the order the shares were given in.
+     */
+    record ShareSet(long bits0, long bits1, long bits2, long bits3) {
 
-            BigInteger term = yi.multiply(numerator).multiply(denominator.modInverse(PRIME)).mod(PRIME);
-            secret = secret.add(term).mod(PRIME);
+        static ShareSet of(List<Share> shares) {
+            long[] bits = new long[4];
+            for (Share share : shares) {
+                int x = share.x();
+                long mask = 1L << (x & 63);
+                if ((bits[x >>> 6] & mask) != 0) {
+                    throw new IllegalArgumentException("Duplicate share x-coordinate " + x);
+                }
+                bits[x >>> 6] |= mask;
+            }
+            return new ShareSet(bits[0], bits[1], bits[2], bits[3]);
+        }
+
+        int[] xs() {
+            long[] bits = {bits0, bits1, bits2, bits3};
+            int[] xs = new int[Long.bitCount(bits0) + Long.bitCount(bits1) + Long.bitCount(bits2) + Long.bitCount(bits3)];
+            int count = 0;
+            for (int x = 1; x <= MAX_SHARES; x++) {
+                if ((bits[x >>> 6] & (1L << (x & 63))) != 0) {
+                    xs[count++] = x;
+                }
+            }
+            return xs;
         }
-        return secret.toByteArray();
     }
 
     /**
      * Prints the generated shares to the console.
      * @param shares List of shares.
      */
-    private static void printShares(List<BigInteger> shares) {
-        for (int i = 0; i < shares.size(); i++) {
-            System.out.println("Share " + (i + 1) + ": " + shares.get(i));
+    private static void printShares(List<Share> shares) {
+        for (Share share : shares) {
+            System.out.println("Share " + share.x() + ": " + HexFormat.of().formatHex(share.toBytes()));
         }
     }
 }
-
-
-
@@ -0,0 +1,98 @@
+package com.secure.snap;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Decrypts any SecureSnap container, choosing the engine from the algorithm id stored in its {@link SnapHeader}.
+ * <p>
+ * Engines are created on first use and cached per algorithm id; engines built with non-default parameters can be
+ * registered up front. Instances are thread-safe.
+ */
+public class SnapDecryptor {
+
+    private static final Pattern ALL_SECURE_SNAP_ID = Pattern.compile("([A-Za-z]+?)(\\d+)/([^/]+)/([^/]+)");
+
+    private final Map<String, GenericSecureSnap> engines = new ConcurrentHashMap<>();
+    private final Keyring keyring;
+
+    /**
+     * Creates a decryptor whose engines use the default {@link Keyring}.
+     *
+     * @throws IOException If the default keyring cannot be opened.
+     */
+    public SnapDecryptor() throws IOException {
+        this(Keyring.openDefault());
+    }
+
+    /**
+     * Creates a decryptor whose engines use the given keyring.
+     *
+     * @param keyring The keyring that unwraps the data keys.
+     */
+    public SnapDecryptor(Keyring keyring) {
+        this.keyring = keyring;
+    }
+
+    /**
+     * Registers an engine for the algorithm id it writes.
+     *
+     * @param snap The engine.
+     * @return This decryptor.
+     */
+    public SnapDecryptor register(GenericSecureSnap snap) {
+        engines.put(snap.getAlgorithm(), snap);
+        return this;
+    }
+
+    /**
+     * Decrypts a container file with the engine named in its header.
+     *
+     * @param inputFile  Path of the encrypted input file.
+     * @param outputFile Path of the decrypted output file.
+     * @throws Exception If the header is invalid, no engine matches it or decryption fails.
+     */
+    public void decrypt(String inputFile, String outputFile) throws Exception {
+        SnapHeader header = SnapHeader.read(Path.of(inputFile));
+        engineFor(header.algorithm()).decrypt(inputFile, outputFile);
+    }
+
+    /**
+     * Returns the engine for an algorithm id, creating and caching it if needed.
+     *
+     * @param algorithm The algorithm id from a container header.
+     * @return The engine that reads that algorithm.
+     * @throws Exception If the id is unknown or the engine cannot be created.
+     */
+    public GenericSecureSnap engineFor(String algorithm) throws Exception {
+        GenericSecureSnap snap = engines.get(algorithm);
+        if (snap == null) {
+            GenericSecureSnap created = create(algorithm);
+            snap = engines.putIfAbsent(algorithm, created);
+            if (snap == null) {
+                snap = created;
+            }
+        }
+        return snap;
+    }
+
+    private GenericSecureSnap create(String algorithm) throws Exception {
+        if (SecureSnap.ALGORITHM.equals(algorithm)) {
+            return new SecureSnap(keyring);
+        }
+        if (ChaChaSecureSnap.ALGORITHM.equals(algorithm)) {
+            return new ChaChaSecureSnap(keyring);
+        }
+        // AllSecureSnap ids look like "Blowfish128/ECB/PKCS5Padding"
+        Matcher matcher = ALL_SECURE_SNAP_ID.matcher(algorithm);
+        if (matcher.matches()) {
+            return new AllSecureSnap(matcher.group(1), matcher.group(3), matcher.group(4),
+                    Integer.parseInt(matcher.group(2)), keyring);
+        }
+        throw new IOException("Unknown algorithm id: " + algorithm);
+    }
+}
@@ -0,0 +1,337 @@
+package com.secure.snap;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Header of the self-describing SecureSnap container, written in front of the ciphertext.
+ * <p>
+ * Layout (big endian):
+ * <pre>
+ * magic      4 bytes   "SNAP"
+ * version    1 byte    {@link #VERSION}
+ * flags      1 byte    {@link #FLAG_MERKLE_TREE} or 0
+ * algorithm  1 + n     length-prefixed UTF-8 algorithm id, as returned by {@link GenericSecureSnap#getAlgorithm()}
+ * keyId      1 + n     length-prefixed id of the {@link Keyring} KEK that wrapped the data key
+ * wrappedKey 1 + n     length-prefixed data key, wrapped under that KEK
+ * nonce      1 + n     length-prefixed nonce or IV, empty for modes without one
+ * chunkSize  4 bytes   plaintext segment size up to {@link #MAX_CHUNK_SIZE}, 0 for unsegmented ciphertext
+ * </pre>
+ * With {@link #FLAG_MERKLE_TREE} set, two fixed-size fields follow, and the payload is followed by the
+ * {@link MerkleTree} whose root they record:
+ * <pre>
+ * payloadLength 8 bytes   ciphertext bytes between the header and the tree
+ * merkleRoot    32 bytes  root of the tree
+ * </pre>
+ * AEAD engines bind the header to the ciphertext through {@link #authenticatedBytes()}.
+ *
+ * @param algorithm     The algorithm id of the engine that wrote the file.
+ * @param flags         Format flags.
+ * @param keyId         The id of the KEK that wrapped the data key.
+ * @param wrappedKey    The wrapped data key the payload was encrypted with.
+ * @param nonce         The nonce or IV, empty if the mode has none.
+ * @param chunkSize     The plaintext segment size, or 0 if the payload is not segmented.
+ * @param payloadLength The ciphertext length, if the file has a Merkle tree.
+ * @param merkleRoot    The Merkle root, or an empty array if the file has no tree.
+ */
+public record SnapHeader(String algorithm, int flags, byte[] keyId, byte[] wrappedKey, byte[] nonce, int chunkSize,
+                         long payloadLength, byte[] merkleRoot) {
+
+    /**
+     * The current container format version.
+     */
+    public static final int VERSION = 1;
+
+    /**
+     * The largest chunk size a header may record. Readers allocate buffers of a whole segment, so a larger value in a
+     * damaged or forged header is rejected before any segment is read.
+     */
+    public static final int MAX_CHUNK_SIZE = 16 * 1024 * 1024;
+
+    /**
+     * Flag set when the payload is followed by a {@link MerkleTree} and the header records its root.
+     */
+    public static final int FLAG_MERKLE_TREE = 0x01;
+
+    private static final byte[] MAGIC = {'S', 'N', 'A', 'P'};
+    // magic, version, flags, four length-prefixed fields, chunk size and the Merkle fields
+    private static final int MAX_ENCODED_LENGTH = 4 + 1 + 1 + 4 * (1 + 0xFF) + 4 + 8 + MerkleTree.HASH_LENGTH;
+
+    /**
+     * Creates the header for a new file.
+     *
+     * @param algorithm The algorithm id of the engine writing the file.
+     * @param dataKey   The data key of the file.
+     * @param nonce     The nonce or IV, empty if the mode has none.
+     * @param chunkSize The plaintext segment size, or 0 if the payload is not segmented.
+     * @return The header.
+     * @throws IllegalArgumentException If the chunk size is negative or above {@link #MAX_CHUNK_SIZE}.
+     */
+    public static SnapHeader of(String algorithm, Keyring.DataKey dataKey, byte[] nonce, int chunkSize) {
+        if (chunkSize < 0 || chunkSize > MAX_CHUNK_SIZE) {
+            throw new IllegalArgumentException("Invalid chunk size " + chunkSize);
+        }
+        return new SnapHeader(algorithm, 0, dataKey.kekId(), dataKey.wrapped(), nonce, chunkSize, 0, new byte[0]);
+    }
+
+    /**
+     * Returns a copy of this header that records a Merkle tree. Engines write the header with a placeholder first
+     * and patch it in place once the tree is known; the encoded length does not depend on the values.
+     *
+     * @param newPayloadLength The ciphertext length.
+     * @param newMerkleRoot    The 32-byte root of the tree.
+     * @return The new header.
+     */
+    public SnapHeader withMerkleTree(long newPayloadLength, byte[] newMerkleRoot) {
+        if (newMerkleRoot.length != MerkleTree.HASH_LENGTH) {
+            throw new IllegalArgumentException("Invalid Merkle root length " + newMerkleRoot.length);
+        }
+        return new SnapHeader(algorithm, flags | FLAG_MERKLE_TREE, keyId, wrappedKey, nonce, chunkSize,
+                newPayloadLength, newMerkleRoot);
+    }
+
+    /**
+     * @return {@code true} if the file has a Merkle tree.
+     */
+    public boolean hasMerkleTree() {
+        return (flags & FLAG_MERKLE_TREE) != 0;
+    }
+
+    /**
+     * Returns the length of the ciphertext that follows the header.
+     *
+     * @param remaining The number of bytes after the header in the file.
+     * @return The recorded payload length if the file has a Merkle tree, otherwise {@code remaining}.
+     * @throws IOException If the recorded length does not fit in the file.
+     */
+    public long payloadBytes(long remaining) throws IOException {
+        if (!hasMerkleTree()) {
+            return remaining;
+        }
+        if (payloadLength < 0 || payloadLength > remaining) {
+            throw new IOException("Truncated SecureSnap container");
+        }
+        return payloadLength;
+    }
+
+    /**
+     * Limits a stream positioned after the header to the payload, so that readers stop before the Merkle tree.
+     *
+     * @param in The container stream, positioned at the first payload byte.
+     * @return A stream that ends with the payload; closing it does not close {@code in}.
+     */
+    public InputStream payloadStream(InputStream in) {
+        return new FilterInputStream(in) {
+            private long remaining = hasMerkleTree() ? payloadLength : Long.MAX_VALUE;
+
+            @Override
+            public int read() throws IOException {
+                if (remaining <= 0) {
+                    return -1;
+                }
+                int read = super.read();
+                if (read >= 0) {
+                    remaining--;
+                }
+                return read;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (remaining <= 0) {
+                    return -1;
+                }
+                int read = super.read(b, off, (int) Math.min(len, remaining));
+                if (read > 0) {
+                    remaining -= read;
+                }
+                return read;
+            }
+
+            @Override
+            public long skip(long n) throws IOException {
+                long skipped = super.skip(Math.min(n, remaining));
+                remaining -= skipped;
+                return skipped;
+            }
+
+            @Override
+            public int available() throws IOException {
+                return (int) Math.min(super.available(), remaining);
+            }
+
+            @Override
+            public void close() {
+                // the caller owns the container stream
+            }
+
+            @Override
+            public boolean markSupported() {
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Returns a copy of this header that refers to a different wrapping of the same data key.
+     *
+     * @param newKeyId      The id of the new KEK.
+     * @param newWrappedKey The data key wrapped under the new KEK.
+     * @return The new header.
+     */
+    public SnapHeader withKey(byte[] newKeyId, byte[] newWrappedKey) {
+        return new SnapHeader(algorithm, flags, newKeyId, newWrappedKey, nonce, chunkSize, payloadLength, merkleRoot);
+    }
+
+    /**
+     * Serializes the header.
+     *
+     * @return The encoded header.
+     */
+    public byte[] encode() {
+        return encode(true);
+    }
+
+    /**
+     * Serializes every field except the key envelope and the Merkle fields. AEAD engines use these bytes as
+     * associated data, so the header cannot be altered without failing authentication. The key id and wrapped key
+     * are left out so that they can be rewritten on KEK rotation without touching the payload; a payload opened with
+     * the wrong key fails authentication anyway. The Merkle fields are only known after the payload is written; the
+     * tree covers the sealed segments, which authenticate themselves.
+     *
+     * @return The bytes to authenticate.
+     */
+    public byte[] authenticatedBytes() {
+        return encode(false);
+    }
+
+    private byte[] encode(boolean complete) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.write(MAGIC);
+            out.writeByte(VERSION);
+            out.writeByte(flags);
+            writeField(out, algorithm.getBytes(StandardCharsets.UTF_8));
+            if (complete) {
+                writeField(out, keyId);
+                writeField(out, wrappedKey);
+            }
+            writeField(out, nonce);
+            out.writeInt(chunkSize);
+            if (complete && hasMerkleTree()) {
+                out.writeLong(payloadLength);
+                out.write(merkleRoot);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("In-memory write failed", e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Reads a header from the current position of a stream, leaving the stream at the first ciphertext byte.
+     *
+     * @param in The stream to read from.
+     * @return The decoded header.
+     * @throws IOException If the stream does not start with a valid header.
+     */
+    public static SnapHeader read(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        byte[] magic = new byte[MAGIC.length];
+        try {
+            data.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IOException("Not a SecureSnap container");
+            }
+            int version = data.readUnsignedByte();
+            if (version != VERSION) {
+                throw new IOException("Unsupported SecureSnap container version " + version);
+            }
+            int flags = data.readUnsignedByte();
+            String algorithm = new String(readField(data), StandardCharsets.UTF_8);
+            byte[] keyId = readField(data);
+            byte[] wrappedKey = readField(data);
+            byte[] nonce = readField(data);
+            int chunkSize = data.readInt();
+            if (chunkSize < 0 || chunkSize > MAX_CHUNK_SIZE) {
+                throw new IOException("Invalid chunk size " + chunkSize);
+            }
+            long payloadLength = 0;
+            byte[] merkleRoot = new byte[0];
+            if ((flags & FLAG_MERKLE_TREE) != 0) {
+                payloadLength = data.readLong();
+                merkleRoot = new byte[MerkleTree.HASH_LENGTH];
+                data.readFully(merkleRoot);
+            }
+            return new SnapHeader(algorithm, flags, keyId, wrappedKey, nonce, chunkSize, payloadLength, merkleRoot);
+        } catch (EOFException e) {
+            throw new IOException("Truncated SecureSnap header", e);
+        }
+    }
+
+    /**
+     * Reads a header from the current position of a buffer, leaving the position at the first ciphertext byte.
+     *
+     * @param buffer The buffer to read from.
+     * @return The decoded header.
+     * @throws IOException If the buffer does not start with a valid header.
+     */
+    public static SnapHeader read(ByteBuffer buffer) throws IOException {
+        byte[] prefix = new byte[Math.min(buffer.remaining(), MAX_ENCODED_LENGTH)];
+        buffer.get(buffer.position(), prefix);
+        ByteArrayInputStream in = new ByteArrayInputStream(prefix);
+        SnapHeader header = read(in);
+        buffer.position(buffer.position() + prefix.length - in.available());
+        return header;
+    }
+
+    /**
+     * Reads the header of a container file.
+     *
+     * @param file The container file.
+     * @return The decoded header.
+     * @throws IOException If the file cannot be read or has no valid header.
+     */
+    public static SnapHeader read(Path file) throws IOException {
+        try (InputStream in = Files.newInputStream(file)) {
+            return read(in);
+        }
+    }
+
+    /**
+     * Checks that the payload was written by the expected engine.
+     *
+     * @param expectedAlgorithm The algorithm id of the engine reading the file.
+     * @throws IOException If the algorithm does not match.
+     */
+    public void verify(String expectedAlgorithm) throws IOException {
+        if (!algorithm.equals(expectedAlgorithm)) {
+            throw new IOException("File was encrypted with " + algorithm + ", not " + expectedAlgorithm);
+        }
+    }
+
+    private static void writeField(DataOutputStream out, byte[] value) throws IOException {
+        if (value.length > 0xFF) {
+            throw new IllegalArgumentException("Header field too long: " + value.length);
+        }
+        out.writeByte(value.length);
+        out.write(value);
+    }
+
+    private static byte[] readField(DataInputStream in) throws IOException {
+        byte[] value = new byte[in.readUnsignedByte()];
+        in.readFully(value);
+        return value;
+    }
+}
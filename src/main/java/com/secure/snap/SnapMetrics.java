@@ -0,0 +1,97 @@
+package com.secure.snap;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Process-wide registry of {@link OperationMetrics}, one per algorithm id and operation.
+ * <p>
+ * Every entry is registered as an MXBean named {@code com.secure.snap:type=SnapMetrics,algorithm=...,operation=...}
+ * when it is first used, and {@link #dumpEvery(Duration, Consumer)} writes periodic snapshots to any sink, such as a
+ * logger. Callers on the hot path look their entry up once and keep it, so recording never touches the registry.
+ */
+public final class SnapMetrics {
+
+    /**
+     * The instrumented operations.
+     */
+    public enum Operation {
+        ENCRYPT,
+        DECRYPT
+    }
+
+    private static final String DOMAIN = "com.secure.snap";
+    private static final Map<String, OperationMetrics> METRICS = new ConcurrentHashMap<>();
+
+    private SnapMetrics() {
+    }
+
+    /**
+     * Returns the metrics of an algorithm and operation, creating and registering them on first use.
+     *
+     * @param algorithm The algorithm id, as returned by {@link GenericSecureSnap#getAlgorithm()}.
+     * @param operation The operation.
+     * @return The shared metrics.
+     */
+    public static OperationMetrics of(String algorithm, Operation operation) {
+        return METRICS.computeIfAbsent(operation + " " + algorithm, key -> register(algorithm, operation));
+    }
+
+    /**
+     * @return A snapshot of every registered entry.
+     */
+    public static List<OperationMetrics.Snapshot> snapshot() {
+        List<OperationMetrics.Snapshot> snapshots = new ArrayList<>(METRICS.size());
+        for (OperationMetrics metrics : METRICS.values()) {
+            snapshots.add(metrics.snapshot());
+        }
+        return snapshots;
+    }
+
+    /**
+     * Writes a snapshot of every entry to a sink at a fixed rate, on a daemon thread.
+     *
+     * @param interval The time between two dumps.
+     * @param sink     Receives one line per algorithm and operation.
+     * @return The scheduled task; cancel it to stop dumping.
+     */
+    public static ScheduledFuture<?> dumpEvery(Duration interval, Consumer<String> sink) {
+        long nanos = interval.toNanos();
+        return Dumper.SCHEDULER.scheduleAtFixedRate(() -> {
+            for (OperationMetrics.Snapshot snapshot : snapshot()) {
+                sink.accept(snapshot.toString());
+            }
+        }, nanos, nanos, TimeUnit.NANOSECONDS);
+    }
+
+    private static OperationMetrics register(String algorithm, Operation operation) {
+        OperationMetrics metrics = new OperationMetrics(algorithm, operation);
+        try {
+            ObjectName name = new ObjectName(DOMAIN + ":type=SnapMetrics,algorithm=" + ObjectName.quote(algorithm)
+                    + ",operation=" + operation.name().toLowerCase());
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, name);
+        } catch (JMException e) {
+            // JMX is optional: the metrics are still recorded and available through snapshot()
+        }
+        return metrics;
+    }
+
+    private static final class Dumper {
+        static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "snap-metrics-dump");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+}
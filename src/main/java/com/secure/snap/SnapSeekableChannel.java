@@ -0,0 +1,150 @@
+package com.secure.snap;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.security.GeneralSecurityException;
+
+/**
+ * Read-only {@link SeekableByteChannel} over the plaintext of a segmented {@link SecureSnap} container.
+ * <p>
+ * Segments have a fixed stored size ({@code chunkSize} from the header plus the tag), so the location of any
+ * plaintext offset follows directly from the header and no separate index has to be read. A read decrypts and
+ * authenticates only the segments it touches; the most recent segment is kept so that sequential small reads do not
+ * open it again. The final segment is authenticated when the channel is opened, which makes {@link #size()}
+ * trustworthy even if the file was truncated.
+ * <p>
+ * Instances are not thread-safe.
+ */
+public final class SnapSeekableChannel implements SeekableByteChannel {
+
+    private final FileChannel in;
+    private final SegmentedAead segments;
+    private final byte[] nonce;
+    private final byte[] aad;
+    private final long payloadStart;
+    private final long payloadSize;
+    private final int storedSegmentSize;
+    private final long segmentCount;
+    private final long size;
+
+    private long position;
+    private long cachedIndex = -1;
+    private byte[] cachedSegment;
+
+    /**
+     * Opens a channel over a container whose header has already been read.
+     *
+     * @param in       The container file, positioned at the first segment. It is closed with this channel.
+     * @param header   The container header.
+     * @param segments The engine matching the header's key and chunk size.
+     * @throws IOException If the file is malformed or its final segment fails authentication.
+     */
+    SnapSeekableChannel(FileChannel in, SnapHeader header, SegmentedAead segments) throws IOException {
+        this.in = in;
+        this.segments = segments;
+        this.nonce = header.nonce();
+        this.aad = header.authenticatedBytes();
+        this.payloadStart = in.position();
+        this.payloadSize = header.payloadBytes(in.size() - payloadStart);
+        this.storedSegmentSize = segments.segmentSize() + SegmentedAead.TAG_LENGTH;
+        this.segmentCount = Math.max(1, (payloadSize + storedSegmentSize - 1) / storedSegmentSize);
+        this.size = payloadSize - segmentCount * SegmentedAead.TAG_LENGTH;
+        if (size < 0) {
+            throw new IOException("Truncated SecureSnap container");
+        }
+        load(segmentCount - 1);
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        ensureOpen();
+        if (position >= size) {
+            return -1;
+        }
+        int read = 0;
+        while (dst.hasRemaining() && position < size) {
+            long index = position / segments.segmentSize();
+            byte[] plaintext = load(index);
+            int offset = (int) (position - index * segments.segmentSize());
+            int length = Math.min(dst.remaining(), plaintext.length - offset);
+            dst.put(plaintext, offset, length);
+            position += length;
+            read += length;
+        }
+        return read;
+    }
+
+    @Override
+    public int write(ByteBuffer src) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public long position() throws IOException {
+        ensureOpen();
+        return position;
+    }
+
+    @Override
+    public SnapSeekableChannel position(long newPosition) throws IOException {
+        ensureOpen();
+        if (newPosition < 0) {
+            throw new IllegalArgumentException("Negative position: " + newPosition);
+        }
+        position = newPosition;
+        return this;
+    }
+
+    @Override
+    public long size() throws IOException {
+        ensureOpen();
+        return size;
+    }
+
+    @Override
+    public SnapSeekableChannel truncate(long size) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return in.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+        cachedSegment = null;
+        in.close();
+    }
+
+    private byte[] load(long index) throws IOException {
+        if (index == cachedIndex) {
+            return cachedSegment;
+        }
+        long offset = index * storedSegmentSize;
+        ByteBuffer stored = ByteBuffer.allocate((int) Math.min(storedSegmentSize, payloadSize - offset));
+        while (stored.hasRemaining()) {
+            if (in.read(stored, payloadStart + offset + stored.position()) < 0) {
+                throw new IOException("SecureSnap container shrank while it was being read");
+            }
+        }
+        try {
+            cachedSegment = segments.decryptSegment(stored.array(), nonce, aad, index, index == segmentCount - 1);
+        } catch (GeneralSecurityException e) {
+            cachedIndex = -1;
+            throw new IOException("Segment " + index + " failed authentication", e);
+        }
+        cachedIndex = index;
+        return cachedSegment;
+    }
+
+    private void ensureOpen() throws ClosedChannelException {
+        if (!in.isOpen()) {
+            throw new ClosedChannelException();
+        }
+    }
+}
@@ -0,0 +1,247 @@
+package com.secure.snap;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Persistent index of an encrypted snapshot, keyed by the path of each source file relative to the source root.
+ * <p>
+ * Every entry records the size, modification time and content hash (SHA-256 truncated to {@value #HASH_LENGTH}
+ * bytes) of the source file as it was encrypted, and the path of its ciphertext relative to the target root. The
+ * file is a compact binary table that is memory-mapped and parsed in one pass on load, and replaced atomically on
+ * save, so an interrupted run leaves the previous index intact. An index written for another algorithm id is
+ * ignored, which forces a full run after switching engines.
+ * <p>
+ * Instances are thread-safe.
+ */
+public final class SnapshotIndex {
+
+    /**
+     * The length of a content hash, in bytes. 128 bits keep accidental collisions, which would silently skip a
+     * changed file, out of reach for any tree.
+     */
+    public static final int HASH_LENGTH = 16;
+
+    private static final byte[] MAGIC = {'S', 'I', 'D', 'X'};
+    private static final int VERSION = 1;
+    private static final int HASH_BUFFER_SIZE = 1024 * 1024;
+    private static final InstancePool<MessageDigest> DIGESTS =
+            new InstancePool<>(() -> MessageDigest.getInstance("SHA-256"));
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+    private final String algorithm;
+    private final Map<String, Entry> entries;
+
+    /**
+     * The indexed state of one source file.
+     *
+     * @param size          The size of the source file in bytes.
+     * @param modifiedNanos The modification time of the source file, in nanoseconds since the epoch.
+     * @param contentHash   The {@value #HASH_LENGTH}-byte content hash of the source file.
+     * @param target        The path of the ciphertext, relative to the target root.
+     */
+    public record Entry(long size, long modifiedNanos, byte[] contentHash, String target) {
+
+        public Entry {
+            if (contentHash.length != HASH_LENGTH) {
+                throw new IllegalArgumentException("Content hash must be " + HASH_LENGTH + " bytes");
+            }
+        }
+
+        /**
+         * @param hash A content hash, as returned by {@link #contentHash(Path)}.
+         * @return {@code true} if it equals the hash of this entry.
+         */
+        public boolean hasContentHash(byte[] hash) {
+            return MessageDigest.isEqual(contentHash, hash);
+        }
+    }
+
+    private SnapshotIndex(String algorithm, Map<String, Entry> entries) {
+        this.algorithm = algorithm;
+        this.entries = entries;
+    }
+
+    /**
+     * Creates an empty index.
+     *
+     * @param algorithm The algorithm id of the engine that writes the snapshot.
+     * @return The index.
+     */
+    public static SnapshotIndex empty(String algorithm) {
+        return new SnapshotIndex(algorithm, new ConcurrentHashMap<>());
+    }
+
+    /**
+     * Loads an index, or returns an empty one if the file does not exist or was written for another algorithm.
+     *
+     * @param file      The index file.
+     * @param algorithm The algorithm id of the engine that writes the snapshot.
+     * @return The index.
+     * @throws IOException If the file exists but cannot be read or is malformed.
+     */
+    public static SnapshotIndex load(Path file, String algorithm) throws IOException {
+        if (!Files.exists(file)) {
+            return empty(algorithm);
+        }
+        try (FileChannel channel = ChannelCipher.openForRead(file)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Snapshot index too large: " + file);
+            }
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            byte[] magic = new byte[MAGIC.length];
+            buffer.get(magic);
+            if (!Arrays.equals(magic, MAGIC) || (buffer.get() & 0xFF) != VERSION) {
+                throw new IOException("Not a snapshot index: " + file);
+            }
+            if (!algorithm.equals(readString(buffer))) {
+                return empty(algorithm);
+            }
+            int count = buffer.getInt();
+            Map<String, Entry> entries = new ConcurrentHashMap<>(Math.max(16, count * 4 / 3 + 1));
+            for (int i = 0; i < count; i++) {
+                String path = readString(buffer);
+                long size = buffer.getLong();
+                long modifiedNanos = buffer.getLong();
+                byte[] hash = new byte[HASH_LENGTH];
+                buffer.get(hash);
+                entries.put(path, new Entry(size, modifiedNanos, hash, readString(buffer)));
+            }
+            return new SnapshotIndex(algorithm, entries);
+        } catch (RuntimeException e) {
+            // BufferUnderflowException and friends from a truncated file
+            throw new IOException("Malformed snapshot index: " + file, e);
+        }
+    }
+
+    /**
+     * Writes the index, atomically replacing the file.
+     *
+     * @param file The index file.
+     * @throws IOException If the index cannot be written.
+     */
+    public void save(Path file) throws IOException {
+        Path directory = file.toAbsolutePath().getParent();
+        Files.createDirectories(directory);
+        Path temp = Files.createTempFile(directory, "snapshot-index", ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp),
+                    WRITE_BUFFER_SIZE))) {
+                out.write(MAGIC);
+                out.writeByte(VERSION);
+                writeString(out, algorithm);
+                Map<String, Entry> copy = Map.copyOf(entries);
+                out.writeInt(copy.size());
+                for (Map.Entry<String, Entry> mapping : copy.entrySet()) {
+                    Entry entry = mapping.getValue();
+                    writeString(out, mapping.getKey());
+                    out.writeLong(entry.size());
+                    out.writeLong(entry.modifiedNanos());
+                    out.write(entry.contentHash());
+                    writeString(out, entry.target());
+                }
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * @param path The source path relative to the source root.
+     * @return The entry, or {@code null} if the path is not indexed.
+     */
+    public Entry get(String path) {
+        return entries.get(path);
+    }
+
+    /**
+     * Adds or replaces an entry.
+     *
+     * @param path  The source path relative to the source root.
+     * @param entry The entry.
+     */
+    public void put(String path, Entry entry) {
+        entries.put(path, entry);
+    }
+
+    /**
+     * Removes an entry.
+     *
+     * @param path The source path relative to the source root.
+     */
+    public void remove(String path) {
+        entries.remove(path);
+    }
+
+    /**
+     * @return A live view of the indexed source paths.
+     */
+    public Set<String> paths() {
+        return entries.keySet();
+    }
+
+    /**
+     * @return The number of entries.
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Computes the content hash stored in the index: the SHA-256 of the file, truncated to {@value #HASH_LENGTH}
+     * bytes.
+     *
+     * @param file The file to hash.
+     * @return The hash.
+     * @throws IOException If the file cannot be read.
+     */
+    public static byte[] contentHash(Path file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = DIGESTS.acquire();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+        ByteBuffer buffer = DirectBufferPool.acquire(HASH_BUFFER_SIZE);
+        try (FileChannel channel = ChannelCipher.openForRead(file)) {
+            while (channel.read(buffer.clear()) != -1) {
+                digest.update(buffer.flip());
+            }
+            return Arrays.copyOf(digest.digest(), HASH_LENGTH);
+        } finally {
+            // an aborted read leaves the digest mid-way; reset it before the next borrower
+            digest.reset();
+            DIGESTS.release(digest);
+            DirectBufferPool.release(buffer);
+        }
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > 0xFFFF) {
+            throw new IOException("Path too long for the snapshot index: " + value);
+        }
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+}
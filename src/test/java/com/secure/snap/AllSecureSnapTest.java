@@ -0,0 +1,41 @@
+package com.secure.snap;
+
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+class AllSecureSnapTest {
+
+    @TempDir
+    Path dir;
+
+    @ParameterizedTest
+    @CsvSource({"Blowfish, CTR, HmacSHA256, 128", "Blowfish, CBC, PKCS5Padding, 128", "AES, ECB, PKCS5Padding, 128"})
+    void channelsRoundTrip(String algorithm, String mode, String padding, int keySize) throws Exception {
+        AllSecureSnap snap = new AllSecureSnap(algorithm, mode, padding, keySize,
+                Keyring.open(dir.resolve("keyring.bin")));
+        byte[] plaintext = Randoms.nextBytes(3 * SegmentedAead.DEFAULT_SEGMENT_SIZE + 11);
+        Path input = Files.write(dir.resolve("input"), plaintext);
+        Path sealed = dir.resolve("sealed");
+        try (FileChannel in = FileChannel.open(input, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(sealed, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            snap.encrypt(in, out);
+        }
+        assertArrayEquals(plaintext, snap.decrypt(Files.readAllBytes(sealed)));
+
+        ByteArrayOutputStream opened = new ByteArrayOutputStream();
+        snap.decrypt(Channels.newChannel(new ByteArrayInputStream(Files.readAllBytes(sealed))),
+                Channels.newChannel(opened));
+        assertArrayEquals(plaintext, opened.toByteArray());
+    }
+}
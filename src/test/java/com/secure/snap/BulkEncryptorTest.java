@@ -0,0 +1,190 @@
+package com.secure.snap;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BulkEncryptorTest {
+
+    @TempDir
+    Path dir;
+
+    private Path source;
+    private Path target;
+
+    @BeforeEach
+    void createDirectories() throws IOException {
+        source = Files.createDirectories(dir.resolve("in"));
+        target = dir.resolve("out");
+    }
+
+    @Test
+    void encryptsATreeToTheMirroredPaths() throws Exception {
+        SecureSnap snap = new SecureSnap(Keyring.open(dir.resolve("keyring.bin")));
+        Files.createDirectories(source.resolve("a/b"));
+        byte[] content = Randoms.nextBytes(5_000);
+        Path file = Files.write(source.resolve("a/b/file.bin"), content);
+        Files.write(source.resolve("top.bin"), Randoms.nextBytes(10));
+
+        BulkEncryptor.BulkResult result = new BulkEncryptor(snap, 4, 1 << 20).encryptTree(source, target);
+
+        assertEquals(2, result.files().size());
+        assertEquals(List.of(), result.failures());
+        assertEquals(5_010, result.totalBytes());
+        Path restored = dir.resolve("restored");
+        snap.decrypt(target.resolve("a/b/file.bin" + BulkEncryptor.ENCRYPTED_SUFFIX).toString(), restored.toString());
+        assertArrayEquals(content, Files.readAllBytes(restored));
+        assertEquals(target.resolve("a/b/file.bin.enc"), BulkEncryptor.targetFor(file, source, target));
+    }
+
+    @Test
+    void filesOutsideTheSourceRootAreRejected() throws Exception {
+        Path inside = Files.write(source.resolve("inside.bin"), Randoms.nextBytes(10));
+        Path outside = Files.write(dir.resolve("outside.bin"), Randoms.nextBytes(10));
+        CountingSnap snap = new CountingSnap(0);
+        BulkEncryptor encryptor = new BulkEncryptor(snap, 2, 1 << 20);
+
+        assertThrows(IllegalArgumentException.class,
+                () -> encryptor.encryptFiles(List.of(inside, outside), source, target));
+        assertThrows(IllegalArgumentException.class,
+                () -> encryptor.encryptFiles(List.of(source.resolve("../outside.bin")), source, target));
+        assertThrows(IllegalArgumentException.class,
+                () -> encryptor.encryptFiles(List.of(source), source, target));
+        assertEquals(0, snap.calls.get());
+        assertFalse(Files.exists(dir.resolve("outside.bin.enc")));
+        assertFalse(Files.exists(target));
+    }
+
+    @Test
+    void openFilesStayWithinTheLimit() throws Exception {
+        List<Path> files = writeFiles(12, 100);
+        CountingSnap snap = new CountingSnap(30);
+
+        BulkEncryptor.BulkResult result = new BulkEncryptor(snap, 3, 1 << 20).encryptFiles(files, source, target);
+
+        assertEquals(List.of(), result.failures());
+        assertEquals(12, snap.calls.get());
+        assertEquals(3, snap.maxActive.get());
+    }
+
+    @Test
+    void inFlightBytesStayWithinTheBudget() throws Exception {
+        List<Path> files = writeFiles(12, 10 * 1024);
+        CountingSnap snap = new CountingSnap(30);
+
+        BulkEncryptor.BulkResult result = new BulkEncryptor(snap, 100, 25 * 1024).encryptFiles(files, source, target);
+
+        assertEquals(List.of(), result.failures());
+        assertEquals(2, snap.maxActive.get());
+        assertTrue(snap.maxActiveBytes.get() <= 25 * 1024);
+    }
+
+    @Test
+    void fileLargerThanTheBudgetRunsAlone() throws Exception {
+        List<Path> files = new ArrayList<>(writeFiles(6, 1024));
+        files.add(2, Files.write(source.resolve("large.bin"), Randoms.nextBytes(64 * 1024)));
+        CountingSnap snap = new CountingSnap(30);
+
+        BulkEncryptor.BulkResult result = new BulkEncryptor(snap, 100, 16 * 1024).encryptFiles(files, source, target);
+
+        assertEquals(List.of(), result.failures());
+        assertEquals(7, snap.calls.get());
+        assertEquals(64 * 1024, snap.largeActiveBytes.get());
+    }
+
+    @Test
+    void failuresAreReportedPerFile() throws Exception {
+        List<Path> files = writeFiles(3, 10);
+        files.add(source.resolve("missing.bin"));
+        SecureSnap snap = new SecureSnap(Keyring.open(dir.resolve("keyring.bin")));
+
+        BulkEncryptor.BulkResult result = new BulkEncryptor(snap, 2, 1 << 20).encryptFiles(files, source, target);
+
+        assertEquals(4, result.files().size());
+        assertEquals(1, result.failures().size());
+        assertEquals(source.resolve("missing.bin"), result.failures().get(0).source());
+        assertEquals(30, result.totalBytes());
+    }
+
+    private List<Path> writeFiles(int count, int size) throws IOException {
+        List<Path> files = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            files.add(Files.write(source.resolve("file-" + size + "-" + i), Randoms.nextBytes(size)));
+        }
+        return files;
+    }
+
+    /**
+     * Copies each file after a pause and records how many files, and how many bytes, were in progress at once.
+     */
+    private static final class CountingSnap implements GenericSecureSnap {
+
+        final AtomicInteger calls = new AtomicInteger();
+        final AtomicInteger maxActive = new AtomicInteger();
+        final AtomicLong maxActiveBytes = new AtomicLong();
+        // the bytes in progress whenever the largest file was running
+        final AtomicLong largeActiveBytes = new AtomicLong();
+        private final AtomicInteger active = new AtomicInteger();
+        private final AtomicLong activeBytes = new AtomicLong();
+        private final long pauseMillis;
+
+        CountingSnap(long pauseMillis) {
+            this.pauseMillis = pauseMillis;
+        }
+
+        @Override
+        public void encrypt(String inputFile, String outputFile) throws Exception {
+            calls.incrementAndGet();
+            long size = Files.size(Path.of(inputFile));
+            maxActive.accumulateAndGet(active.incrementAndGet(), Math::max);
+            long bytes = activeBytes.addAndGet(size);
+            maxActiveBytes.accumulateAndGet(bytes, Math::max);
+            try {
+                Thread.sleep(pauseMillis);
+                if (size >= 64 * 1024) {
+                    largeActiveBytes.set(activeBytes.get());
+                }
+                Files.copy(Path.of(inputFile), Path.of(outputFile));
+            } finally {
+                activeBytes.addAndGet(-size);
+                active.decrementAndGet();
+            }
+        }
+
+        @Override
+        public void decrypt(String inputFile, String outputFile) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void encrypt(InputStream in, OutputStream out) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void decrypt(InputStream in, OutputStream out) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public String getAlgorithm() {
+            return "copy";
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package com.secure.snap;
+
+import org.junit.jupiter.api.Test;
+
+import java.security.GeneralSecurityException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CryptoProvidersTest {
+
+    @Test
+    void calibrationIsNotRunFromTheCipherPath() throws Exception {
+        String previous = System.getProperty(CryptoProviders.PROVIDER_PROPERTY);
+        System.setProperty(CryptoProviders.PROVIDER_PROPERTY, CryptoProviders.CALIBRATE);
+        try {
+            long start = System.nanoTime();
+            assertNull(CryptoProviders.providerFor("ChaCha20-Poly1305"));
+            CryptoProviders.newCipher("ChaCha20-Poly1305");
+            assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(250));
+        } finally {
+            if (previous == null) {
+                System.clearProperty(CryptoProviders.PROVIDER_PROPERTY);
+            } else {
+                System.setProperty(CryptoProviders.PROVIDER_PROPERTY, previous);
+            }
+        }
+    }
+
+    @Test
+    void calibrationSelectsTheFastestCompatibleProvider() throws Exception {
+        CryptoProviders.Calibration calibration = CryptoProviders.calibrate("AES/GCM/NoPadding");
+        try {
+            assertTrue(calibration.throughputMBps().containsKey(calibration.selected().getName()));
+            assertEquals(calibration.selected(), CryptoProviders.providerFor("AES/GCM/NoPadding"));
+        } finally {
+            CryptoProviders.select("AES/GCM/NoPadding", "SunJCE");
+        }
+        assertThrows(GeneralSecurityException.class, () -> CryptoProviders.calibrate("AES/ECB/NoPadding"));
+    }
+
+    @Test
+    void selectRejectsUnknownProviders() {
+        assertThrows(GeneralSecurityException.class, () -> CryptoProviders.select("AES/GCM/NoPadding", "Missing"));
+        assertThrows(GeneralSecurityException.class, () -> CryptoProviders.select("NoSuchCipher/ECB/NoPadding",
+                "SunJCE"));
+    }
+}
@@ -0,0 +1,159 @@
+package com.secure.snap;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class CtrHmacCipherTest {
+
+    private static final ForkJoinPool POOL = new ForkJoinPool(2);
+    private static final byte[] AAD = "header".getBytes(StandardCharsets.US_ASCII);
+    // the low bytes of the counter wrap after eight blocks, so the carry crosses two byte boundaries
+    private static final byte[] NONCE = HexFormat.of().parseHex("0102030405fffff8a1a2a3a4");
+
+    @AfterAll
+    static void shutdown() {
+        POOL.shutdown();
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {64, 100})
+    void blowfishMatchesReferenceCounterMode(int segmentSize) throws Exception {
+        byte[] key = Randoms.nextBytes(16);
+        byte[] plaintext = Randoms.nextBytes(5 * segmentSize + 13);
+        byte[] sealed = encrypt("Blowfish", key, segmentSize, plaintext);
+
+        int blockSize = 8;
+        int blocksPerSegment = (segmentSize + blockSize - 1) / blockSize;
+        int segments = 6;
+        // the reference keystream is counter mode over all segments, each starting on a fresh counter block
+        Cipher reference = Cipher.getInstance("Blowfish/CTR/NoPadding", new BouncyCastleProvider());
+        reference.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(expand(key, "SecureSnap CTR cipher key", 16), "Blowfish"),
+                new IvParameterSpec(Arrays.copyOf(NONCE, blockSize)));
+        byte[] keystream = reference.doFinal(new byte[segments * blocksPerSegment * blockSize]);
+        SecretKeySpec macKey = new SecretKeySpec(expand(key, "SecureSnap CTR MAC key", 32), "HmacSHA256");
+
+        int sealedSegment = segmentSize + SegmentedAead.TAG_LENGTH;
+        for (int i = 0; i < segments; i++) {
+            int length = Math.min(segmentSize, plaintext.length - i * segmentSize);
+            byte[] expected = new byte[length];
+            for (int j = 0; j < length; j++) {
+                expected[j] = (byte) (plaintext[i * segmentSize + j] ^ keystream[i * blocksPerSegment * blockSize + j]);
+            }
+            byte[] ciphertext = Arrays.copyOfRange(sealed, i * sealedSegment, i * sealedSegment + length);
+            assertArrayEquals(expected, ciphertext, "segment " + i);
+
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(macKey);
+            mac.update(SegmentedAead.segmentNonce(NONCE, i, i == segments - 1));
+            mac.update(ByteBuffer.allocate(Long.BYTES).putLong(AAD.length).array());
+            mac.update(AAD);
+            byte[] tag = Arrays.copyOf(mac.doFinal(ciphertext), SegmentedAead.TAG_LENGTH);
+            assertArrayEquals(tag, Arrays.copyOfRange(sealed, i * sealedSegment + length,
+                    i * sealedSegment + length + SegmentedAead.TAG_LENGTH), "tag " + i);
+        }
+    }
+
+    @ParameterizedTest
+    @CsvSource({"Blowfish, 16, 100", "DESede, 24, 100", "DESede, 24, 7", "SEED, 16, 100", "Camellia, 32, 1000"})
+    void roundTripsAtUnalignedSegmentSizes(String algorithm, int keyLength, int segmentSize) throws Exception {
+        byte[] key = Randoms.nextBytes(keyLength);
+        for (int length : new int[]{0, 1, segmentSize - 1, segmentSize, segmentSize + 1, 20 * segmentSize + 3}) {
+            byte[] plaintext = Randoms.nextBytes(length);
+            byte[] sealed = encrypt(algorithm, key, segmentSize, plaintext);
+            assertArrayEquals(plaintext, decrypt(algorithm, key, segmentSize, sealed, AAD), algorithm + " " + length);
+        }
+    }
+
+    @Test
+    void tamperedCiphertextFails() throws Exception {
+        byte[] key = Randoms.nextBytes(16);
+        byte[] sealed = encrypt("Blowfish", key, 100, Randoms.nextBytes(350));
+        sealed[120] ^= 1;
+        assertThrows(AEADBadTagException.class, () -> decrypt("Blowfish", key, 100, sealed, AAD));
+    }
+
+    @Test
+    void tamperedTagFails() throws Exception {
+        byte[] key = Randoms.nextBytes(24);
+        byte[] sealed = encrypt("DESede", key, 100, Randoms.nextBytes(350));
+        sealed[sealed.length - 1] ^= 1;
+        assertThrows(AEADBadTagException.class, () -> decrypt("DESede", key, 100, sealed, AAD));
+    }
+
+    @Test
+    void wrongAssociatedDataFails() throws Exception {
+        byte[] key = Randoms.nextBytes(16);
+        byte[] sealed = encrypt("Blowfish", key, 100, Randoms.nextBytes(50));
+        assertThrows(AEADBadTagException.class, () -> decrypt("Blowfish", key, 100, sealed, "other".getBytes()));
+    }
+
+    @Test
+    void reorderedOrTruncatedSegmentsFail() throws Exception {
+        byte[] key = Randoms.nextBytes(16);
+        byte[] sealed = encrypt("Blowfish", key, 100, Randoms.nextBytes(300));
+        int sealedSegment = 100 + SegmentedAead.TAG_LENGTH;
+        byte[] swapped = sealed.clone();
+        System.arraycopy(sealed, 0, swapped, sealedSegment, sealedSegment);
+        System.arraycopy(sealed, sealedSegment, swapped, 0, sealedSegment);
+        assertThrows(AEADBadTagException.class, () -> decrypt("Blowfish", key, 100, swapped, AAD));
+        assertThrows(AEADBadTagException.class,
+                () -> decrypt("Blowfish", key, 100, Arrays.copyOf(sealed, 2 * sealedSegment), AAD));
+    }
+
+    @Test
+    void wrongKeyFails() throws Exception {
+        byte[] sealed = encrypt("Blowfish", Randoms.nextBytes(16), 100, Randoms.nextBytes(50));
+        assertThrows(AEADBadTagException.class, () -> decrypt("Blowfish", Randoms.nextBytes(16), 100, sealed, AAD));
+    }
+
+    private static byte[] encrypt(String algorithm, byte[] key, int segmentSize, byte[] plaintext) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        engine(algorithm, key, segmentSize).encrypt(new ByteArrayInputStream(plaintext), out, NONCE, AAD);
+        return out.toByteArray();
+    }
+
+    private static byte[] decrypt(String algorithm, byte[] key, int segmentSize, byte[] sealed, byte[] aad)
+            throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        engine(algorithm, key, segmentSize).decrypt(new ByteArrayInputStream(sealed), out, NONCE, aad);
+        return out.toByteArray();
+    }
+
+    private static SegmentedAead engine(String algorithm, byte[] key, int segmentSize) throws Exception {
+        SecretKey dataKey = new SecretKeySpec(key, algorithm);
+        return new SegmentedAead(new CtrHmacCipher(algorithm, dataKey, segmentSize), segmentSize, POOL);
+    }
+
+    /**
+     * The documented key derivation, written out independently: {@code T(1) = HMAC(secret, label || 0x01)}, which is
+     * all the keys here need.
+     */
+    private static byte[] expand(byte[] secret, String label, int length) throws Exception {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(secret, "HmacSHA256"));
+        mac.update(label.getBytes(StandardCharsets.US_ASCII));
+        mac.update((byte) 1);
+        return Arrays.copyOf(mac.doFinal(), length);
+    }
+}
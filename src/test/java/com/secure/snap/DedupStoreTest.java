@@ -0,0 +1,164 @@
+package com.secure.snap;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DedupStoreTest {
+
+    @TempDir
+    Path dir;
+
+    private Keyring keyring;
+    private Path store;
+
+    @BeforeEach
+    void openKeyring() throws IOException {
+        keyring = Keyring.open(dir.resolve("keyring.bin"));
+        store = dir.resolve("store");
+    }
+
+    @Test
+    void roundTripsAndStoresEachChunkOnce() throws Exception {
+        byte[] content = Randoms.nextBytes(1 << 20);
+        Path original = Files.write(dir.resolve("original"), content);
+        DedupStore dedup = new DedupStore(store, keyring);
+
+        dedup.encrypt(original.toString(), dir.resolve("first.snap").toString());
+        long written = dedup.chunksWritten();
+        assertTrue(written > 1);
+        assertEquals(0, dedup.chunksReused());
+        assertEquals(written, chunkFiles().size());
+
+        dedup.encrypt(original.toString(), dir.resolve("second.snap").toString());
+        assertEquals(written, dedup.chunksWritten());
+        assertEquals(written, dedup.chunksReused());
+
+        Path restored = dir.resolve("restored");
+        dedup.decrypt(dir.resolve("second.snap").toString(), restored.toString());
+        assertArrayEquals(content, Files.readAllBytes(restored));
+    }
+
+    @Test
+    void roundTripsInMemory() throws Exception {
+        byte[] content = Randoms.nextBytes(600_000);
+        DedupStore dedup = new DedupStore(store, keyring);
+        byte[] manifest = dedup.encrypt(content);
+        assertArrayEquals(content, dedup.decrypt(manifest));
+        assertArrayEquals(new byte[0], dedup.decrypt(dedup.encrypt(new byte[0])));
+
+        Path restored = dir.resolve("restored");
+        dedup.decrypt(Files.write(dir.resolve("manifest.snap"), manifest).toString(), restored.toString());
+        assertArrayEquals(content, Files.readAllBytes(restored));
+    }
+
+    @Test
+    void secretIsWrappedByTheKeyring() throws Exception {
+        Path original = Files.write(dir.resolve("original"), Randoms.nextBytes(100_000));
+        new DedupStore(store, keyring).encrypt(original.toString(), dir.resolve("out.snap").toString());
+
+        SnapHeader header = SnapHeader.read(store.resolve("convergence.key"));
+        assertEquals("SNAPDEDUP/CONVERGENCE", header.algorithm());
+        Keyring other = Keyring.open(dir.resolve("other.bin"));
+        assertThrows(IOException.class, () -> new DedupStore(store, other));
+    }
+
+    @Test
+    void publishKeepsAChunkStoredConcurrently() throws Exception {
+        Path file = Files.write(dir.resolve("chunk"), new byte[]{1, 2, 3});
+        Path temp = Files.write(dir.resolve("chunk.tmp"), new byte[]{1, 2, 3});
+        assertFalse(DedupStore.publish(temp, file));
+        assertTrue(DedupStore.publish(temp, dir.resolve("other")));
+        assertArrayEquals(new byte[]{1, 2, 3}, Files.readAllBytes(dir.resolve("other")));
+    }
+
+    @Test
+    void concurrentStoresCountEveryChunkWrittenOnce() throws Exception {
+        byte[] content = Randoms.nextBytes(1 << 20);
+        Path original = Files.write(dir.resolve("original"), content);
+        new DedupStore(store, keyring);
+        int writers = 8;
+        List<DedupStore> stores = new ArrayList<>();
+        for (int i = 0; i < writers; i++) {
+            stores.add(new DedupStore(store, keyring));
+        }
+        CyclicBarrier start = new CyclicBarrier(writers);
+        ExecutorService executor = Executors.newFixedThreadPool(writers);
+        try {
+            List<Future<?>> results = new ArrayList<>();
+            for (int i = 0; i < writers; i++) {
+                DedupStore dedup = stores.get(i);
+                Path output = dir.resolve("out-" + i + ".snap");
+                results.add(executor.submit(() -> {
+                    start.await();
+                    dedup.encrypt(original.toString(), output.toString());
+                    return null;
+                }));
+            }
+            for (Future<?> result : results) {
+                result.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+        long written = stores.stream().mapToLong(DedupStore::chunksWritten).sum();
+        long reused = stores.stream().mapToLong(DedupStore::chunksReused).sum();
+        assertEquals(chunkFiles().size(), written);
+        assertEquals(writers * written, written + reused);
+    }
+
+    @Test
+    void tamperedChunkFails() throws Exception {
+        Path original = Files.write(dir.resolve("original"), Randoms.nextBytes(100_000));
+        DedupStore dedup = new DedupStore(store, keyring);
+        dedup.encrypt(original.toString(), dir.resolve("out.snap").toString());
+
+        Path chunk = chunkFiles().get(0);
+        byte[] bytes = Files.readAllBytes(chunk);
+        bytes[bytes.length / 2] ^= 1;
+        Files.write(chunk, bytes);
+        assertThrows(GeneralSecurityException.class,
+                () -> new DedupStore(store, keyring).decrypt(dir.resolve("out.snap").toString(),
+                        dir.resolve("restored").toString()));
+    }
+
+    @Test
+    void sharedChunksAreReusedAcrossFiles() throws Exception {
+        byte[] common = Randoms.nextBytes(1 << 19);
+        byte[] first = Arrays.copyOf(common, common.length + 50_000);
+        byte[] second = Arrays.copyOf(common, common.length + 70_000);
+        System.arraycopy(Randoms.nextBytes(50_000), 0, first, common.length, 50_000);
+        System.arraycopy(Randoms.nextBytes(70_000), 0, second, common.length, 70_000);
+        DedupStore dedup = new DedupStore(store, keyring);
+
+        dedup.encrypt(Files.write(dir.resolve("a"), first).toString(), dir.resolve("a.snap").toString());
+        dedup.encrypt(Files.write(dir.resolve("b"), second).toString(), dir.resolve("b.snap").toString());
+        assertTrue(dedup.chunksReused() > 0);
+        assertEquals(dedup.chunksWritten(), chunkFiles().size());
+    }
+
+    private List<Path> chunkFiles() throws IOException {
+        try (Stream<Path> files = Files.walk(store.resolve("chunks"))) {
+            return files.filter(Files::isRegularFile).toList();
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package com.secure.snap;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DirectBufferPoolTest {
+
+    @Test
+    void releasedBufferIsReused() {
+        ByteBuffer buffer = DirectBufferPool.acquire(100_000);
+        assertTrue(buffer.isDirect());
+        assertEquals(128 * 1024, buffer.capacity());
+        buffer.position(10).limit(20);
+        DirectBufferPool.release(buffer);
+
+        ByteBuffer reused = DirectBufferPool.acquire(70_000);
+        assertSame(buffer, reused);
+        assertEquals(0, reused.position());
+        assertEquals(reused.capacity(), reused.limit());
+        DirectBufferPool.release(reused);
+    }
+
+    @Test
+    void foreignBuffersAreIgnored() {
+        DirectBufferPool.release(ByteBuffer.allocate(DirectBufferPool.MIN_CAPACITY));
+        ByteBuffer odd = ByteBuffer.allocateDirect(DirectBufferPool.MIN_CAPACITY + 1);
+        DirectBufferPool.release(odd);
+        ByteBuffer acquired = DirectBufferPool.acquire(DirectBufferPool.MIN_CAPACITY + 1);
+        assertNotSame(odd, acquired);
+        assertTrue(acquired.isDirect());
+        DirectBufferPool.release(acquired);
+    }
+}
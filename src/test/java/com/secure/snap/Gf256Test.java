@@ -0,0 +1,72 @@
+package com.secure.snap;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class Gf256Test {
+
+    @Test
+    void multipliesKnownAnswers() {
+        // FIPS 197, section 4.2
+        assertEquals(0xC1, Gf256.mul(0x57, 0x83));
+        assertEquals(0xFE, Gf256.mul(0x57, 0x13));
+        assertEquals(0xAE, Gf256.mul(0x57, 0x02));
+        assertEquals(0x47, Gf256.mul(0x57, 0x04));
+        assertEquals(0x8E, Gf256.mul(0x57, 0x08));
+        assertEquals(0x07, Gf256.mul(0x57, 0x10));
+        assertEquals(0, Gf256.mul(0, 0x57));
+        assertEquals(0, Gf256.mul(0x57, 0));
+        assertEquals(0x57, Gf256.mul(1, 0x57));
+    }
+
+    @Test
+    void invertsKnownAnswers() {
+        // the inverses behind the AES S-box, FIPS 197 section 5.1.1
+        assertEquals(0xCA, Gf256.div(1, 0x53));
+        assertEquals(0x53, Gf256.div(1, 0xCA));
+        assertEquals(0x01, Gf256.div(1, 0x01));
+        assertEquals(0x8D, Gf256.div(1, 0x02));
+        assertEquals(0x1C, Gf256.div(1, 0xFF));
+    }
+
+    @Test
+    void tablesMatchShiftAndAddMultiplication() {
+        for (int a = 0; a < 256; a++) {
+            for (int b = 0; b < 256; b++) {
+                assertEquals(reference(a, b), Gf256.mul(a, b), a + " * " + b);
+            }
+        }
+    }
+
+    @Test
+    void everyNonZeroElementHasAnInverse() {
+        for (int a = 1; a < 256; a++) {
+            int inverse = Gf256.div(1, a);
+            assertEquals(1, Gf256.mul(a, inverse), "inverse of " + a);
+            for (int b = 0; b < 256; b += 17) {
+                assertEquals(b, Gf256.mul(Gf256.div(b, a), a), b + " / " + a);
+            }
+        }
+    }
+
+    @Test
+    void divisionByZeroIsRejected() {
+        assertThrows(ArithmeticException.class, () -> Gf256.div(5, 0));
+    }
+
+    private static int reference(int a, int b) {
+        int product = 0;
+        for (int bit = 7; bit >= 0; bit--) {
+            product <<= 1;
+            if ((product & 0x100) != 0) {
+                product ^= 0x11B;
+            }
+            if ((b >>> bit & 1) != 0) {
+                product ^= a;
+            }
+        }
+        return product;
+    }
+}
@@ -0,0 +1,107 @@
+package com.secure.snap;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class IncrementalSnapshotTest {
+
+    @TempDir
+    Path dir;
+
+    private SecureSnap snap;
+    private Path source;
+    private Path target;
+    private Path indexFile;
+
+    @BeforeEach
+    void createTree() throws IOException {
+        snap = new SecureSnap(Keyring.open(dir.resolve("keyring.bin")));
+        source = Files.createDirectories(dir.resolve("in"));
+        target = dir.resolve("out");
+        indexFile = dir.resolve("index");
+        Files.createDirectories(source.resolve("nested"));
+        Files.write(source.resolve("a.bin"), Randoms.nextBytes(1_000));
+        Files.write(source.resolve("nested/b.bin"), Randoms.nextBytes(70_000));
+        Files.write(source.resolve("c.bin"), Randoms.nextBytes(10));
+    }
+
+    @Test
+    void firstRunEncryptsEverythingAndTheSecondSkipsIt() throws Exception {
+        IncrementalSnapshot.Result first = run();
+        assertEquals(3, first.processed().files().size());
+        assertEquals(0, first.unchanged());
+        assertEquals(3, SnapshotIndex.load(indexFile, snap.getAlgorithm()).size());
+        assertDecrypts("nested/b.bin");
+
+        IncrementalSnapshot.Result second = run();
+        assertEquals(0, second.processed().files().size());
+        assertEquals(3, second.unchanged());
+    }
+
+    @Test
+    void touchedFileIsHashedButNotEncryptedAgain() throws Exception {
+        run();
+        Path touched = source.resolve("a.bin");
+        Path ciphertext = BulkEncryptor.targetFor(touched, source, target);
+        byte[] before = Files.readAllBytes(ciphertext);
+        Files.setLastModifiedTime(touched, FileTime.from(Instant.now().plusSeconds(60)));
+
+        IncrementalSnapshot.Result result = run();
+        assertEquals(1, result.processed().files().size());
+        assertEquals(1, result.contentUnchanged());
+        assertEquals(2, result.unchanged());
+        assertArrayEquals(before, Files.readAllBytes(ciphertext));
+        assertEquals(3, run().unchanged());
+    }
+
+    @Test
+    void changedFileIsEncryptedAgain() throws Exception {
+        run();
+        Path changed = source.resolve("nested/b.bin");
+        Files.write(changed, Randoms.nextBytes(70_000));
+        Files.setLastModifiedTime(changed, FileTime.from(Instant.now().plusSeconds(60)));
+
+        IncrementalSnapshot.Result result = run();
+        assertEquals(1, result.processed().files().size());
+        assertEquals(0, result.contentUnchanged());
+        assertTrue(result.processed().failures().isEmpty());
+        assertDecrypts("nested/b.bin");
+    }
+
+    @Test
+    void deletedFileIsDroppedFromTheIndex() throws Exception {
+        run();
+        Files.delete(source.resolve("c.bin"));
+
+        IncrementalSnapshot.Result result = run();
+        assertEquals(List.of("c.bin"), result.removed());
+        assertEquals(2, result.unchanged());
+        SnapshotIndex index = SnapshotIndex.load(indexFile, snap.getAlgorithm());
+        assertEquals(2, index.size());
+        // the ciphertext is left in place
+        assertTrue(Files.exists(BulkEncryptor.targetFor(source.resolve("c.bin"), source, target)));
+    }
+
+    private IncrementalSnapshot.Result run() throws Exception {
+        return new IncrementalSnapshot(snap, 4, 1 << 20).run(source, target, indexFile);
+    }
+
+    private void assertDecrypts(String relative) throws Exception {
+        Path restored = dir.resolve("restored");
+        snap.decrypt(BulkEncryptor.targetFor(source.resolve(relative), source, target).toString(),
+                restored.toString());
+        assertArrayEquals(Files.readAllBytes(source.resolve(relative)), Files.readAllBytes(restored));
+    }
+}
@@ -0,0 +1,234 @@
+package com.secure.snap;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class IngestDaemonTest {
+
+    private static final IngestDaemon.Options OPTIONS = new IngestDaemon.Options(Duration.ofMillis(100), 100, 2, 1024,
+            64, Duration.ofMillis(200));
+
+    @TempDir
+    Path dir;
+
+    private Path source;
+    private Path target;
+
+    @BeforeEach
+    void createDirectories() throws IOException {
+        source = Files.createDirectories(dir.resolve("in"));
+        target = dir.resolve("out");
+    }
+
+    @Test
+    void packsSmallFilesAndEncryptsLargeOnes() throws Exception {
+        Keyring keyring = Keyring.open(dir.resolve("keyring.bin"));
+        SecureSnap snap = new SecureSnap(keyring);
+        Map<Path, byte[]> small = writeSmallFiles(20);
+        byte[] large = Randoms.nextBytes(10_000);
+        Files.createDirectories(source.resolve("nested"));
+        Path largeFile = Files.write(source.resolve("nested/large.bin"), large);
+
+        try (IngestDaemon daemon = daemon(snap, keyring)) {
+            awaitEmptySource();
+            assertEquals(21, daemon.stats().ingestedFiles());
+            assertEquals(0, daemon.stats().failures());
+        }
+        Path restored = dir.resolve("restored");
+        snap.decrypt(BulkEncryptor.targetFor(largeFile, source, target).toString(), restored.toString());
+        assertArrayEquals(large, Files.readAllBytes(restored));
+        assertIngestedOnce(small, keyring);
+    }
+
+    @Test
+    void failedFileIsRetriedWithBackoff() throws Exception {
+        Keyring keyring = Keyring.open(dir.resolve("keyring.bin"));
+        SecureSnap snap = new SecureSnap(keyring);
+        AtomicInteger calls = new AtomicInteger();
+        GenericSecureSnap flaky = new GenericSecureSnap() {
+            @Override
+            public void encrypt(String inputFile, String outputFile) throws Exception {
+                if (calls.incrementAndGet() <= 2) {
+                    throw new IOException("Simulated failure");
+                }
+                snap.encrypt(inputFile, outputFile);
+            }
+
+            @Override
+            public void decrypt(String inputFile, String outputFile) throws Exception {
+                snap.decrypt(inputFile, outputFile);
+            }
+
+            @Override
+            public void encrypt(InputStream in, OutputStream out) throws Exception {
+                snap.encrypt(in, out);
+            }
+
+            @Override
+            public void decrypt(InputStream in, OutputStream out) throws Exception {
+                snap.decrypt(in, out);
+            }
+
+            @Override
+            public String getAlgorithm() {
+                return snap.getAlgorithm();
+            }
+        };
+        Path file = Files.write(source.resolve("large.bin"), Randoms.nextBytes(10_000));
+
+        try (IngestDaemon daemon = daemon(flaky, keyring)) {
+            awaitEmptySource();
+            assertEquals(2, daemon.stats().failures());
+            assertEquals(1, daemon.stats().ingestedFiles());
+        }
+        assertTrue(Files.exists(BulkEncryptor.targetFor(file, source, target)));
+    }
+
+    @Test
+    void fileChangedDuringEncryptionIsKeptAndIngestedAgain() throws Exception {
+        Keyring keyring = Keyring.open(dir.resolve("keyring.bin"));
+        SecureSnap snap = new SecureSnap(keyring);
+        byte[] appended = Randoms.nextBytes(100);
+        AtomicInteger calls = new AtomicInteger();
+        SecureSnap appending = new SecureSnap(keyring) {
+            @Override
+            public void encrypt(String inputFile, String outputFile) throws Exception {
+                super.encrypt(inputFile, outputFile);
+                if (calls.incrementAndGet() == 1) {
+                    Files.write(Path.of(inputFile), appended, StandardOpenOption.APPEND);
+                }
+            }
+        };
+        byte[] content = Randoms.nextBytes(10_000);
+        Path file = Files.write(source.resolve("large.bin"), content);
+
+        try (IngestDaemon daemon = daemon(appending, keyring)) {
+            awaitEmptySource();
+            assertEquals(1, daemon.stats().ingestedFiles());
+            assertEquals(0, daemon.stats().failures());
+        }
+        assertEquals(2, calls.get());
+        Path restored = dir.resolve("restored");
+        snap.decrypt(BulkEncryptor.targetFor(file, source, target).toString(), restored.toString());
+        assertArrayEquals(SecureSnapTest.concat(content, appended), Files.readAllBytes(restored));
+    }
+
+    @Test
+    void failedPackIsDiscardedAndItsFilesRetried() throws Exception {
+        // a locked vault makes every pack fail before anything is written
+        List<ShamirSecretSharing.Share> shares = MasterKeyVault.initialize(dir.resolve("master.vault"), 3, 2);
+        MasterKeyVault vault = MasterKeyVault.open(dir.resolve("master.vault"));
+        vault.unlock(shares, Duration.ofMinutes(1));
+        Keyring keyring = Keyring.open(dir.resolve("keyring.bin"), vault);
+        vault.lock();
+        Map<Path, byte[]> small = writeSmallFiles(10);
+
+        try (IngestDaemon daemon = daemon(new SecureSnap(keyring), keyring)) {
+            awaitUntil(() -> daemon.stats().failures() >= 10);
+            assertEquals(0, daemon.stats().packs());
+            assertTrue(small.keySet().stream().allMatch(Files::exists));
+            assertEquals(List.of(), packs());
+            assertTrue(daemon.stats().pending() > 0);
+
+            vault.unlock(shares, Duration.ofMinutes(1));
+            awaitEmptySource();
+        }
+        assertIngestedOnce(small, keyring);
+    }
+
+    private IngestDaemon daemon(GenericSecureSnap snap, Keyring keyring) throws IOException {
+        IngestDaemon daemon = new IngestDaemon(snap, keyring, target, dir.resolve("checkpoint"), OPTIONS);
+        daemon.watch(source);
+        daemon.start();
+        return daemon;
+    }
+
+    private Map<Path, byte[]> writeSmallFiles(int count) throws IOException {
+        Map<Path, byte[]> files = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            byte[] content = Randoms.nextBytes(10 + i);
+            files.put(Files.write(source.resolve("small-" + i), content), content);
+        }
+        return files;
+    }
+
+    /**
+     * Checks that every small file was stored exactly once with its content: in one pack, or on its own when a batch
+     * held only that file.
+     */
+    private void assertIngestedOnce(Map<Path, byte[]> files, Keyring keyring) throws Exception {
+        Map<String, Integer> copies = new HashMap<>();
+        for (Path pack : packs()) {
+            try (PackReader reader = new PackReader(pack, keyring)) {
+                for (PackReader.Entry entry : reader.entries()) {
+                    copies.merge(entry.name(), 1, Integer::sum);
+                    byte[] expected = files.get(Path.of(entry.name()));
+                    if (expected != null) {
+                        assertArrayEquals(expected, reader.read(entry.name()));
+                    }
+                }
+            }
+        }
+        SecureSnap snap = new SecureSnap(keyring);
+        for (Map.Entry<Path, byte[]> file : files.entrySet()) {
+            Path alone = BulkEncryptor.targetFor(file.getKey(), source, target);
+            if (Files.exists(alone)) {
+                Path restored = dir.resolve("restored");
+                snap.decrypt(alone.toString(), restored.toString());
+                assertArrayEquals(file.getValue(), Files.readAllBytes(restored));
+                copies.merge(file.getKey().toString(), 1, Integer::sum);
+            }
+            assertEquals(1, copies.getOrDefault(file.getKey().toString(), 0), file.getKey().toString());
+        }
+    }
+
+    private List<Path> packs() throws IOException {
+        Path directory = target.resolve(IngestDaemon.PACK_DIRECTORY);
+        if (!Files.exists(directory)) {
+            return new ArrayList<>();
+        }
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(file -> file.toString().endsWith(".pack")).toList();
+        }
+    }
+
+    private void awaitEmptySource() throws Exception {
+        awaitUntil(() -> {
+            try (Stream<Path> files = Files.walk(source)) {
+                return files.noneMatch(Files::isRegularFile);
+            } catch (IOException e) {
+                return false;
+            }
+        });
+    }
+
+    private static void awaitUntil(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + Duration.ofSeconds(30).toNanos();
+        while (!condition.getAsBoolean()) {
+            if (System.nanoTime() - deadline > 0) {
+                throw new AssertionError("Timed out");
+            }
+            Thread.sleep(20);
+        }
+    }
+}
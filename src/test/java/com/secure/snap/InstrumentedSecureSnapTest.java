@@ -0,0 +1,137 @@
+package com.secure.snap;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class InstrumentedSecureSnapTest {
+
+    private static final OperationMetrics ENCRYPT =
+            SnapMetrics.of(SecureSnap.ALGORITHM, SnapMetrics.Operation.ENCRYPT);
+    private static final OperationMetrics DECRYPT =
+            SnapMetrics.of(SecureSnap.ALGORITHM, SnapMetrics.Operation.DECRYPT);
+
+    @TempDir
+    Path dir;
+
+    private InstrumentedSecureSnap snap;
+
+    @BeforeEach
+    void openKeyring() throws IOException {
+        snap = new InstrumentedSecureSnap(new SecureSnap(Keyring.open(dir.resolve("keyring.bin"))));
+    }
+
+    @Test
+    void filesRecordOperationsAndEngineBytes() throws Exception {
+        byte[] plaintext = Randoms.nextBytes(100_000);
+        Path input = Files.write(dir.resolve("input"), plaintext);
+        OperationMetrics.Snapshot encryptBefore = ENCRYPT.snapshot();
+        OperationMetrics.Snapshot decryptBefore = DECRYPT.snapshot();
+
+        snap.encrypt(input.toString(), dir.resolve("sealed").toString());
+        snap.decrypt(dir.resolve("sealed").toString(), dir.resolve("output").toString());
+
+        assertArrayEquals(plaintext, Files.readAllBytes(dir.resolve("output")));
+        assertRecorded(encryptBefore, ENCRYPT, 1, 0, plaintext.length);
+        assertRecorded(decryptBefore, DECRYPT, 1, 0, sealedPayload(plaintext.length));
+    }
+
+    @Test
+    void streamsAndArraysRecordOperationsAndEngineBytes() throws Exception {
+        byte[] plaintext = Randoms.nextBytes(5_000);
+        OperationMetrics.Snapshot encryptBefore = ENCRYPT.snapshot();
+        OperationMetrics.Snapshot decryptBefore = DECRYPT.snapshot();
+
+        ByteArrayOutputStream sealed = new ByteArrayOutputStream();
+        snap.encrypt(new ByteArrayInputStream(plaintext), sealed);
+        ByteArrayOutputStream opened = new ByteArrayOutputStream();
+        snap.decrypt(new ByteArrayInputStream(sealed.toByteArray()), opened);
+        assertArrayEquals(plaintext, opened.toByteArray());
+        assertArrayEquals(plaintext, snap.decrypt(snap.encrypt(plaintext)));
+
+        assertRecorded(encryptBefore, ENCRYPT, 2, 0, 2L * plaintext.length);
+        assertRecorded(decryptBefore, DECRYPT, 2, 0, 2 * sealedPayload(plaintext.length));
+    }
+
+    @Test
+    void channelsDelegateToTheEngineChannelVariants() throws Exception {
+        int[] channelCalls = new int[1];
+        SecureSnap engine = new SecureSnap(Keyring.open(dir.resolve("keyring.bin"))) {
+            @Override
+            public void encrypt(ReadableByteChannel in, WritableByteChannel out) throws Exception {
+                channelCalls[0]++;
+                super.encrypt(in, out);
+            }
+
+            @Override
+            public void decrypt(ReadableByteChannel in, WritableByteChannel out) throws Exception {
+                channelCalls[0]++;
+                super.decrypt(in, out);
+            }
+        };
+        InstrumentedSecureSnap instrumented = new InstrumentedSecureSnap(engine);
+        byte[] plaintext = Randoms.nextBytes(3_000);
+        OperationMetrics.Snapshot encryptBefore = ENCRYPT.snapshot();
+
+        ByteArrayOutputStream sealed = new ByteArrayOutputStream();
+        instrumented.encrypt(Channels.newChannel(new ByteArrayInputStream(plaintext)), Channels.newChannel(sealed));
+        ByteArrayOutputStream opened = new ByteArrayOutputStream();
+        instrumented.decrypt(Channels.newChannel(new ByteArrayInputStream(sealed.toByteArray())),
+                Channels.newChannel(opened));
+
+        assertArrayEquals(plaintext, opened.toByteArray());
+        assertEquals(2, channelCalls[0]);
+        assertRecorded(encryptBefore, ENCRYPT, 1, 0, plaintext.length);
+    }
+
+    @Test
+    void failuresAreCountedAsErrors() throws Exception {
+        byte[] sealed = snap.encrypt(Randoms.nextBytes(1_000));
+        sealed[sealed.length / 2] ^= 1;
+        OperationMetrics.Snapshot decryptBefore = DECRYPT.snapshot();
+
+        assertThrows(GeneralSecurityException.class, () -> snap.decrypt(sealed));
+        assertThrows(Exception.class, () -> snap.decrypt(new InputStream() {
+            @Override
+            public int read() throws IOException {
+                throw new IOException("unreadable");
+            }
+        }, OutputStream.nullOutputStream()));
+
+        OperationMetrics.Snapshot after = DECRYPT.snapshot();
+        assertEquals(2, after.operations() - decryptBefore.operations());
+        assertEquals(2, after.errors() - decryptBefore.errors());
+    }
+
+    private static long sealedPayload(int plaintextLength) {
+        // decryption records the ciphertext it reads: every segment carries a tag
+        int segments = (plaintextLength + SegmentedAead.DEFAULT_SEGMENT_SIZE - 1) / SegmentedAead.DEFAULT_SEGMENT_SIZE;
+        return plaintextLength + (long) segments * SegmentedAead.TAG_LENGTH;
+    }
+
+    private static void assertRecorded(OperationMetrics.Snapshot before, OperationMetrics metrics, long operations,
+                                       long errors, long bytes) {
+        OperationMetrics.Snapshot after = metrics.snapshot();
+        assertEquals(operations, after.operations() - before.operations());
+        assertEquals(errors, after.errors() - before.errors());
+        assertEquals(bytes, after.bytes() - before.bytes());
+        assertTrue(after.p999Micros() > 0);
+    }
+}
@@ -0,0 +1,93 @@
+package com.secure.snap;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class KeyringTest {
+
+    @TempDir
+    Path dir;
+
+    private Keyring keyring;
+
+    @BeforeEach
+    void openKeyring() throws IOException {
+        keyring = Keyring.open(dir.resolve("keyring.bin"));
+    }
+
+    @Test
+    void unwrapsFromTheCache() throws Exception {
+        Keyring.DataKey dataKey = keyring.newDataKey("TEST/A", "AES", 256);
+        SnapHeader header = SnapHeader.of("TEST/A", dataKey, new byte[12], 4096);
+        assertSame(dataKey.key(), keyring.unwrap(header, "AES"));
+        assertSame(keyring.unwrap(header, "AES"), keyring.unwrap(header, "AES"));
+    }
+
+    @Test
+    void cachedKeyIsNotReturnedForAnotherAlgorithm() throws Exception {
+        Keyring.DataKey dataKey = keyring.newDataKey("TEST/A", "AES", 256);
+        SnapHeader header = SnapHeader.of("TEST/A", dataKey, new byte[12], 4096);
+        assertSame(dataKey.key(), keyring.unwrap(header, "AES"));
+
+        SnapHeader forged = new SnapHeader("TEST/B", header.flags(), header.keyId(), header.wrappedKey(),
+                header.nonce(), header.chunkSize(), header.payloadLength(), header.merkleRoot());
+        assertThrows(GeneralSecurityException.class, () -> keyring.unwrap(forged, "AES"));
+
+        // another JCA algorithm for the same header is a different key object over the same bytes
+        SecretKey hmac = keyring.unwrap(header, "HmacSHA256");
+        assertEquals("HmacSHA256", hmac.getAlgorithm());
+        assertArrayEquals(dataKey.key().getEncoded(), hmac.getEncoded());
+    }
+
+    @Test
+    void cacheEvictsLeastRecentlyUsedEntries() throws Exception {
+        Keyring.DataKeyCache cache = new Keyring.DataKeyCache(8, TimeUnit.MINUTES.toNanos(1));
+        Keyring.DataKeyCache.Id first = id(0);
+        cache.put(first, key(0));
+        for (int i = 1; i < 8; i++) {
+            cache.put(id(i), key(i));
+            Thread.sleep(1);
+            assertNotNull(cache.get(first));
+        }
+        cache.put(id(8), key(8));
+        assertTrue(cache.size() <= 8);
+        assertNotNull(cache.get(first));
+        assertNotNull(cache.get(id(8)));
+        assertNull(cache.get(id(1)));
+    }
+
+    @Test
+    void cacheEntriesExpire() throws Exception {
+        Keyring.DataKeyCache cache = new Keyring.DataKeyCache(8, TimeUnit.MILLISECONDS.toNanos(20));
+        cache.put(id(0), key(0));
+        assertNotNull(cache.get(id(0)));
+        Thread.sleep(50);
+        assertNull(cache.get(id(0)));
+        assertEquals(0, cache.size());
+    }
+
+    private static Keyring.DataKeyCache.Id id(int i) {
+        return new Keyring.DataKeyCache.Id("TEST/A", "AES", "00", ByteBuffer.wrap(new byte[]{(byte) i}));
+    }
+
+    private static SecretKey key(int i) {
+        return new SecretKeySpec(new byte[]{(byte) i}, "AES");
+    }
+}
@@ -0,0 +1,65 @@
+package com.secure.snap;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LatencyHistogramTest {
+
+    @Test
+    void emptyHistogramReportsZero() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.count());
+        assertEquals(0, histogram.totalNanos());
+        assertEquals(0, histogram.valueAtQuantile(0.5));
+    }
+
+    @Test
+    void smallValuesAreExact() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long value = 0; value < 16; value++) {
+            histogram.record(value);
+        }
+        assertEquals(16, histogram.count());
+        assertEquals(120, histogram.totalNanos());
+        assertEquals(0, histogram.valueAtQuantile(0));
+        assertEquals(7, histogram.valueAtQuantile(0.5));
+        assertEquals(15, histogram.valueAtQuantile(1));
+    }
+
+    @Test
+    void quantilesStayWithinTheBucketError() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long value = 1; value <= 1_000; value++) {
+            histogram.record(value * 1_000);
+        }
+        assertEquals(1_000, histogram.count());
+        assertEquals(500_500_000L, histogram.totalNanos());
+        assertWithin(500_000, histogram.valueAtQuantile(0.5));
+        assertWithin(990_000, histogram.valueAtQuantile(0.99));
+        assertWithin(1_000_000, histogram.valueAtQuantile(1));
+    }
+
+    @Test
+    void negativeValuesCountAsZero() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+        assertEquals(1, histogram.count());
+        assertEquals(0, histogram.totalNanos());
+        assertEquals(0, histogram.valueAtQuantile(1));
+    }
+
+    @Test
+    void largestValueLandsInTheLastBucket() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(Long.MAX_VALUE);
+        assertEquals(Long.MAX_VALUE, histogram.valueAtQuantile(0.5));
+    }
+
+    private static void assertWithin(long expected, long actual) {
+        // the reported value is the upper bound of the bucket, at most one sixteenth above the true value
+        assertTrue(actual >= expected && actual <= expected + expected / 16,
+                () -> "expected about " + expected + " but was " + actual);
+    }
+}
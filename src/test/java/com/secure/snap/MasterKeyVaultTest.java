@@ -0,0 +1,150 @@
+package com.secure.snap;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MasterKeyVaultTest {
+
+    private static final byte[] DATA = "sealed keyring payload".getBytes();
+
+    @TempDir
+    Path dir;
+
+    private List<ShamirSecretSharing.Share> shares;
+    private MasterKeyVault vault;
+
+    @BeforeEach
+    void createVault() throws IOException {
+        Path file = dir.resolve("master.vault");
+        shares = MasterKeyVault.initialize(file, 5, 3);
+        vault = MasterKeyVault.open(file);
+    }
+
+    @Test
+    void startsLockedAndRefusesToReinitialize() {
+        assertFalse(vault.isUnlocked());
+        assertEquals(Duration.ZERO, vault.remainingTtl());
+        assertEquals(3, vault.threshold());
+        assertThrows(FileAlreadyExistsException.class,
+                () -> MasterKeyVault.initialize(dir.resolve("master.vault"), 5, 3));
+    }
+
+    @Test
+    void unlockNeedsAQuorumOfTheRightShares() throws Exception {
+        assertThrows(GeneralSecurityException.class, () -> vault.unlock(shares.subList(0, 2), Duration.ofMinutes(1)));
+        List<ShamirSecretSharing.Share> foreign = MasterKeyVault.initialize(dir.resolve("other.vault"), 5, 3);
+        assertThrows(GeneralSecurityException.class, () -> vault.unlock(foreign.subList(0, 3), Duration.ofMinutes(1)));
+        assertFalse(vault.isUnlocked());
+
+        vault.unlock(List.of(shares.get(4), shares.get(1), shares.get(2)), Duration.ofMinutes(1));
+        assertTrue(vault.isUnlocked());
+        assertTrue(vault.remainingTtl().compareTo(Duration.ZERO) > 0);
+    }
+
+    @Test
+    void sealedKeyringWorksOnlyWhileUnlocked() throws Exception {
+        Path keyringFile = dir.resolve("sealed.keyring");
+        assertThrows(IOException.class, () -> Keyring.open(keyringFile, vault));
+
+        vault.unlock(shares.subList(0, 3), Duration.ofMinutes(1));
+        Keyring keyring = Keyring.open(keyringFile, vault);
+        assertSame(keyring, Keyring.open(keyringFile));
+        SecureSnap engine = new SecureSnap(keyring);
+        byte[] first = engine.encrypt(DATA);
+        keyring.rotate();
+        byte[] second = engine.encrypt(DATA);
+
+        vault.lock();
+        assertFalse(vault.isUnlocked());
+        assertThrows(GeneralSecurityException.class, () -> engine.decrypt(first));
+        assertThrows(GeneralSecurityException.class, () -> engine.encrypt(DATA));
+        assertThrows(IOException.class, keyring::rotate);
+
+        vault.unlock(shares.subList(2, 5), Duration.ofMinutes(1));
+        assertArrayEquals(DATA, engine.decrypt(first));
+        assertArrayEquals(DATA, engine.decrypt(second));
+    }
+
+    @Test
+    void expiresAfterItsTtl() throws Exception {
+        Keyring keyring = unlockedKeyring();
+        SecureSnap engine = new SecureSnap(keyring);
+        byte[] sealed = engine.encrypt(DATA);
+        vault.unlock(shares.subList(0, 3), Duration.ofMillis(200));
+        assertArrayEquals(DATA, engine.decrypt(sealed));
+
+        Thread.sleep(500);
+        assertFalse(vault.isUnlocked());
+        assertThrows(GeneralSecurityException.class, () -> engine.decrypt(sealed));
+    }
+
+    @Test
+    void lockDestroysUnsealedKeys() throws Exception {
+        unlockedKeyring();
+        OffHeapKey key = new OffHeapKey(new byte[32], "AES");
+        vault.adopt(key);
+        vault.lock();
+        assertTrue(key.isDestroyed());
+
+        OffHeapKey late = new OffHeapKey(new byte[32], "AES");
+        assertThrows(GeneralSecurityException.class, () -> vault.adopt(late));
+        assertTrue(late.isDestroyed());
+    }
+
+    @Test
+    void keyringFileHoldsNoRawKeks() throws Exception {
+        Path plainFile = dir.resolve("plain.keyring");
+        byte[] sealed = new SecureSnap(Keyring.open(plainFile)).encrypt(DATA);
+        byte[] raw = Files.readAllBytes(plainFile);
+        // magic, version, count and primary index, then the first KEK id and its raw bytes
+        byte[] kek = Arrays.copyOfRange(raw, 4 + 1 + 4 + 4 + 8, 4 + 1 + 4 + 4 + 8 + 32);
+        assertThrows(IOException.class, () -> Keyring.open(plainFile, vault));
+
+        // a copy of the file has not been opened in this process yet, as after a restart
+        Path migratedFile = Files.copy(plainFile, dir.resolve("migrated.keyring"));
+        vault.unlock(shares.subList(0, 3), Duration.ofMinutes(1));
+        Keyring migrated = Keyring.open(migratedFile, vault);
+        byte[] converted = Files.readAllBytes(migratedFile);
+        assertEquals(2, converted[4]);
+        assertEquals(-1, indexOf(converted, kek));
+        assertArrayEquals(DATA, new SecureSnap(migrated).decrypt(sealed));
+
+        Path copy = Files.copy(migratedFile, dir.resolve("copy.keyring"));
+        assertThrows(IOException.class, () -> Keyring.open(copy));
+    }
+
+    private Keyring unlockedKeyring() throws Exception {
+        vault.unlock(shares.subList(0, 3), Duration.ofMinutes(1));
+        return Keyring.open(dir.resolve("sealed.keyring"), vault);
+    }
+
+    private static int indexOf(byte[] haystack, byte[] needle) {
+        outer:
+        for (int i = 0; i + needle.length <= haystack.length; i++) {
+            for (int j = 0; j < needle.length; j++) {
+                if (haystack[i + j] != needle[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+}
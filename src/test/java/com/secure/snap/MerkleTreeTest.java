@@ -0,0 +1,146 @@
+package com.secure.snap;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MerkleTreeTest {
+
+    private static final int SEGMENT = SegmentedAead.DEFAULT_SEGMENT_SIZE;
+    private static final int STORED_SEGMENT = SEGMENT + SegmentedAead.TAG_LENGTH;
+
+    @TempDir
+    Path dir;
+
+    private Keyring keyring;
+
+    @BeforeEach
+    void openKeyring() throws IOException {
+        keyring = Keyring.open(dir.resolve("keyring.bin"));
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {0, 1, SEGMENT, SEGMENT + 1, 9 * SEGMENT + 5})
+    void segmentedContainersSealAndVerify(int length) throws Exception {
+        Path sealed = encrypt(new SecureSnap(keyring), length);
+        SnapHeader header = SnapHeader.read(sealed);
+
+        assertTrue(header.hasMerkleTree());
+        assertEquals(List.of(), MerkleTree.verify(sealed));
+        assertTrue(MerkleTree.verifyLeaves(sealed, 0));
+        assertTrue(MerkleTree.verifyRange(sealed, 0, length));
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {0, 1, MerkleTree.UNSEGMENTED_LEAF_SIZE, 3 * MerkleTree.UNSEGMENTED_LEAF_SIZE + 17})
+    void leavesHashedInOrderMatchTheStoredPayload(int length) throws Exception {
+        for (String mode : new String[]{"ECB", "CBC", "CTR"}) {
+            String padding = "CTR".equals(mode) ? "NoPadding" : "PKCS5Padding";
+            Path sealed = encrypt(new AllSecureSnap("AES", mode, padding, 128, keyring), length);
+            assertEquals(List.of(), MerkleTree.verify(sealed), mode);
+            assertTrue(MerkleTree.verifyRange(sealed, 0, length), mode);
+        }
+    }
+
+    @Test
+    void tamperingIsLocatedToItsChunk() throws Exception {
+        Path sealed = encrypt(new SecureSnap(keyring), 6 * SEGMENT);
+        long payloadStart = SnapHeader.read(sealed).encode().length;
+        flip(sealed, payloadStart + 4L * STORED_SEGMENT + 100);
+
+        assertEquals(List.of(4L), MerkleTree.verify(sealed));
+        assertFalse(MerkleTree.verifyLeaves(sealed, 4));
+        assertTrue(MerkleTree.verifyLeaves(sealed, 0, 1, 2, 3, 5));
+        assertFalse(MerkleTree.verifyRange(sealed, 4L * SEGMENT, 1));
+        assertFalse(MerkleTree.verifyRange(sealed, 3L * SEGMENT, SEGMENT + 1));
+        assertTrue(MerkleTree.verifyRange(sealed, 0, 4L * SEGMENT));
+        assertTrue(MerkleTree.verifyRange(sealed, 5L * SEGMENT, SEGMENT));
+    }
+
+    @Test
+    void damagedStoredTreeFailsSampledChecksOnly() throws Exception {
+        Path sealed = encrypt(new SecureSnap(keyring), 3 * SEGMENT);
+        SnapHeader header = SnapHeader.read(sealed);
+        // the first stored leaf hash is the sibling on the path of leaf 1
+        flip(sealed, header.encode().length + header.payloadLength());
+
+        assertEquals(List.of(), MerkleTree.verify(sealed));
+        assertTrue(MerkleTree.verifyLeaves(sealed, 2));
+        assertFalse(MerkleTree.verifyLeaves(sealed, 1));
+    }
+
+    @Test
+    void verifyRangeClampsLongRangesAndRejectsNegativeOnes() throws Exception {
+        Path sealed = encrypt(new SecureSnap(keyring), 3 * SEGMENT);
+
+        assertTrue(MerkleTree.verifyRange(sealed, SEGMENT, Long.MAX_VALUE));
+        assertTrue(MerkleTree.verifyRange(sealed, Long.MAX_VALUE, Long.MAX_VALUE));
+        assertTrue(MerkleTree.verifyRange(sealed, 2L * SEGMENT, 0));
+        assertThrows(IllegalArgumentException.class, () -> MerkleTree.verifyRange(sealed, -1, 10));
+        assertThrows(IllegalArgumentException.class, () -> MerkleTree.verifyRange(sealed, 0, -1));
+    }
+
+    @Test
+    void leafIndexesOutOfRangeAreRejected() throws Exception {
+        Path sealed = encrypt(new SecureSnap(keyring), 2 * SEGMENT);
+
+        assertThrows(IOException.class, () -> MerkleTree.verifyLeaves(sealed, 2));
+        assertThrows(IOException.class, () -> MerkleTree.verifyLeaves(sealed, -1));
+    }
+
+    @Test
+    void sealedFilesStillDecrypt() throws Exception {
+        byte[] plaintext = Randoms.nextBytes(5 * SEGMENT + 3);
+        Path input = Files.write(dir.resolve("input"), plaintext);
+        SecureSnap snap = new SecureSnap(keyring);
+        snap.encrypt(input.toString(), dir.resolve("sealed").toString());
+        snap.decrypt(dir.resolve("sealed").toString(), dir.resolve("output").toString());
+
+        assertArrayEquals(plaintext, Files.readAllBytes(dir.resolve("output")));
+    }
+
+    @Test
+    void treelessContainersAreRejected() throws Exception {
+        Path sealed = dir.resolve("streamed");
+        try (OutputStream out = Files.newOutputStream(sealed);
+             InputStream in = new ByteArrayInputStream(Randoms.nextBytes(10))) {
+            new SecureSnap(keyring).encrypt(in, out);
+        }
+
+        assertThrows(IOException.class, () -> MerkleTree.verify(sealed));
+        assertThrows(IOException.class, () -> MerkleTree.verifyRange(sealed, 0, 1));
+    }
+
+    private Path encrypt(GenericSecureSnap snap, int length) throws Exception {
+        Path input = Files.write(dir.resolve("input"), Randoms.nextBytes(length));
+        Path sealed = dir.resolve("sealed");
+        snap.encrypt(input.toString(), sealed.toString());
+        return sealed;
+    }
+
+    private static void flip(Path file, long position) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+            raf.seek(position);
+            int value = raf.read();
+            raf.seek(position);
+            raf.write(value ^ 1);
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package com.secure.snap;
+
+import org.junit.jupiter.api.Test;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayOutputStream;
+import java.io.NotSerializableException;
+import java.io.ObjectOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class OffHeapKeyTest {
+
+    @Test
+    void handsOutCopiesUntilDestroyed() {
+        byte[] bytes = Randoms.nextBytes(32);
+        OffHeapKey key = new OffHeapKey(bytes, "AES");
+        assertArrayEquals(bytes, key.getEncoded());
+        assertNotSame(key.getEncoded(), key.getEncoded());
+        assertFalse(key.isDestroyed());
+
+        key.destroy();
+        assertTrue(key.isDestroyed());
+        assertThrows(IllegalStateException.class, key::getEncoded);
+    }
+
+    @Test
+    void keysCiphersLikeAHeapKey() throws Exception {
+        byte[] bytes = Randoms.nextBytes(32);
+        OffHeapKey key = new OffHeapKey(bytes, "AES");
+        GCMParameterSpec parameters = new GCMParameterSpec(128, Randoms.nextBytes(12));
+        byte[] plaintext = Randoms.nextBytes(100);
+
+        Cipher offHeap = Cipher.getInstance("AES/GCM/NoPadding");
+        key.init(offHeap, Cipher.ENCRYPT_MODE, parameters);
+        Cipher heap = Cipher.getInstance("AES/GCM/NoPadding");
+        heap.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(bytes, "AES"), parameters);
+        assertArrayEquals(heap.doFinal(plaintext), offHeap.doFinal(plaintext));
+
+        key.destroy();
+        assertThrows(IllegalStateException.class,
+                () -> key.init(Cipher.getInstance("AES/GCM/NoPadding"), Cipher.DECRYPT_MODE, parameters));
+    }
+
+    @Test
+    void cannotBeSerialized() {
+        OffHeapKey key = new OffHeapKey(Randoms.nextBytes(32), "AES");
+        assertThrows(NotSerializableException.class,
+                () -> new ObjectOutputStream(new ByteArrayOutputStream()).writeObject(key));
+    }
+}
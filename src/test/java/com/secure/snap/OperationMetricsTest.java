@@ -0,0 +1,57 @@
+package com.secure.snap;
+
+import org.junit.jupiter.api.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class OperationMetricsTest {
+
+    @Test
+    void recordsOperationsErrorsBytesAndLatency() {
+        OperationMetrics metrics = new OperationMetrics("test", SnapMetrics.Operation.ENCRYPT);
+        metrics.recordOperation(2_000, false);
+        metrics.recordOperation(4_000, true);
+        metrics.recordOperation(100, 6_000, false);
+        metrics.recordBytes(23);
+        metrics.recordRead(1_000_000);
+        metrics.recordCipher(2_000_000);
+        metrics.recordWrite(3_000_000);
+
+        OperationMetrics.Snapshot snapshot = metrics.snapshot();
+        assertEquals("test", snapshot.algorithm());
+        assertEquals(SnapMetrics.Operation.ENCRYPT, snapshot.operation());
+        assertEquals(3, snapshot.operations());
+        assertEquals(1, snapshot.errors());
+        assertEquals(123, snapshot.bytes());
+        assertEquals(3, metrics.getOperations());
+        assertEquals(1, metrics.getErrors());
+        assertEquals(123, metrics.getBytes());
+        assertEquals(1, metrics.getReadMillis());
+        assertEquals(2, metrics.getCipherMillis());
+        assertEquals(3, metrics.getWriteMillis());
+        assertTrue(metrics.getLatencyP50Micros() >= 4 && metrics.getLatencyP50Micros() < 4.5);
+        assertTrue(metrics.getLatencyP999Micros() >= 6 && metrics.getLatencyP999Micros() < 6.5);
+    }
+
+    @Test
+    void registryExportsEveryEntryOverJmx() throws Exception {
+        OperationMetrics metrics = SnapMetrics.of("jmx-test", SnapMetrics.Operation.DECRYPT);
+        assertSame(metrics, SnapMetrics.of("jmx-test", SnapMetrics.Operation.DECRYPT));
+        metrics.recordOperation(77, 1_000, false);
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("com.secure.snap:type=SnapMetrics,algorithm=" + ObjectName.quote("jmx-test")
+                + ",operation=decrypt");
+        assertTrue(server.isRegistered(name));
+        assertEquals("jmx-test", server.getAttribute(name, "Algorithm"));
+        assertEquals(1L, server.getAttribute(name, "Operations"));
+        assertEquals(77L, server.getAttribute(name, "Bytes"));
+        assertTrue(SnapMetrics.snapshot().contains(metrics.snapshot()));
+    }
+}
@@ -0,0 +1,127 @@
+package com.secure.snap;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class PackWriterTest {
+
+    @TempDir
+    Path dir;
+
+    private Keyring keyring;
+
+    @BeforeEach
+    void openKeyring() throws IOException {
+        keyring = Keyring.open(dir.resolve("keyring.bin"));
+    }
+
+    @Test
+    void roundTripsEntriesFromMemoryAndFiles() throws Exception {
+        Map<String, byte[]> contents = new LinkedHashMap<>();
+        contents.put("empty", new byte[0]);
+        contents.put("small", Randoms.nextBytes(100));
+        contents.put("segments", Randoms.nextBytes(3 * SegmentedAead.DEFAULT_SEGMENT_SIZE + 1));
+        contents.put("naïve/ünïcode", Randoms.nextBytes(10));
+        Path pack = dir.resolve("out.pack");
+        try (PackWriter writer = new PackWriter(pack, keyring)) {
+            for (Map.Entry<String, byte[]> entry : contents.entrySet()) {
+                writer.add(entry.getKey(), entry.getValue());
+            }
+            writer.add("from-file", Files.write(dir.resolve("file"), contents.get("segments")));
+            assertEquals(5, writer.size());
+            assertFalse(Files.exists(pack));
+        }
+        assertEquals(List.of(), tempFiles());
+
+        try (PackReader reader = new PackReader(pack, keyring)) {
+            assertEquals(5, reader.entries().size());
+            for (Map.Entry<String, byte[]> entry : contents.entrySet()) {
+                assertArrayEquals(entry.getValue(), reader.read(entry.getKey()));
+            }
+            assertArrayEquals(contents.get("segments"), reader.read("from-file"));
+            assertNull(reader.entry("missing"));
+        }
+    }
+
+    @Test
+    void rejectsDuplicateNames() throws Exception {
+        try (PackWriter writer = new PackWriter(dir.resolve("out.pack"), keyring)) {
+            writer.add("a", new byte[1]);
+            assertThrows(IllegalArgumentException.class, () -> writer.add("a", new byte[1]));
+        }
+    }
+
+    @Test
+    void abortLeavesNothingBehind() throws Exception {
+        Path pack = dir.resolve("out.pack");
+        PackWriter writer = new PackWriter(pack, keyring);
+        writer.add("a", Randoms.nextBytes(100));
+        writer.abort();
+        writer.close();
+        assertFalse(Files.exists(pack));
+        assertEquals(List.of(), tempFiles());
+        assertThrows(IllegalStateException.class, () -> writer.add("b", new byte[1]));
+    }
+
+    @Test
+    void tamperedEntryFails() throws Exception {
+        byte[] first = Randoms.nextBytes(1000);
+        Path pack = writePack(first);
+        byte[] bytes = Files.readAllBytes(pack);
+        long offset;
+        try (PackReader reader = new PackReader(pack, keyring)) {
+            offset = reader.entry("b").offset();
+        }
+        bytes[(int) offset + 5] ^= 1;
+        Files.write(pack, bytes);
+        try (PackReader reader = new PackReader(pack, keyring)) {
+            assertArrayEquals(first, reader.read("a"));
+            assertThrows(GeneralSecurityException.class, () -> reader.read("b"));
+        }
+    }
+
+    @Test
+    void tamperedIndexOrTruncatedPackFails() throws Exception {
+        Path pack = writePack(Randoms.nextBytes(1000));
+        byte[] bytes = Files.readAllBytes(pack);
+        byte[] tampered = bytes.clone();
+        tampered[bytes.length - PackWriter.TRAILER_LENGTH - 3] ^= 1;
+        Files.write(pack, tampered);
+        assertThrows(GeneralSecurityException.class, () -> new PackReader(pack, keyring).close());
+
+        Files.write(pack, Arrays.copyOf(bytes, bytes.length - 1));
+        assertThrows(IOException.class, () -> new PackReader(pack, keyring).close());
+    }
+
+    private Path writePack(byte[] first) throws Exception {
+        Path pack = dir.resolve("out.pack");
+        try (PackWriter writer = new PackWriter(pack, keyring)) {
+            writer.add("a", first);
+            writer.add("b", Randoms.nextBytes(1000));
+        }
+        return pack;
+    }
+
+    private List<Path> tempFiles() throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(file -> file.getFileName().toString().endsWith(".tmp")).toList();
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package com.secure.snap;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class SecureSnapTest {
+
+    private static final int SEGMENT = SegmentedAead.DEFAULT_SEGMENT_SIZE;
+
+    @TempDir
+    Path dir;
+
+    private SecureSnap snap;
+
+    @BeforeEach
+    void openKeyring() throws IOException {
+        snap = new SecureSnap(Keyring.open(dir.resolve("keyring.bin")));
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {0, 1, SEGMENT - 1, SEGMENT, SEGMENT + 1, 40 * SEGMENT + 7})
+    void fileChannelsRoundTripFromTheirPositions(int length) throws Exception {
+        byte[] plaintext = Randoms.nextBytes(length);
+        byte[] prefix = Randoms.nextBytes(10);
+        Path input = Files.write(dir.resolve("input"), concat(prefix, plaintext));
+        Path sealed = Files.write(dir.resolve("sealed"), prefix);
+        try (FileChannel in = FileChannel.open(input, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(sealed, StandardOpenOption.WRITE)) {
+            snap.encrypt(in.position(prefix.length), out.position(prefix.length));
+            assertEquals(in.size(), in.position());
+        }
+        byte[] container = Arrays.copyOfRange(Files.readAllBytes(sealed), prefix.length, (int) Files.size(sealed));
+        assertArrayEquals(plaintext, snap.decrypt(container));
+
+        Path restored = Files.write(dir.resolve("restored"), prefix);
+        try (FileChannel in = FileChannel.open(sealed, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(restored, StandardOpenOption.WRITE)) {
+            snap.decrypt(in.position(prefix.length), out.position(prefix.length));
+            assertEquals(in.size(), in.position());
+        }
+        assertArrayEquals(concat(prefix, plaintext), Files.readAllBytes(restored));
+    }
+
+    @Test
+    void otherChannelsInteroperateWithFileChannels() throws Exception {
+        byte[] plaintext = Randoms.nextBytes(3 * SEGMENT + 5);
+        ByteArrayOutputStream sealed = new ByteArrayOutputStream();
+        snap.encrypt(Channels.newChannel(new ByteArrayInputStream(plaintext)), Channels.newChannel(sealed));
+
+        Path container = Files.write(dir.resolve("sealed"), sealed.toByteArray());
+        Path restored = dir.resolve("restored");
+        try (FileChannel in = FileChannel.open(container, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(restored, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            snap.decrypt(in, out);
+        }
+        assertArrayEquals(plaintext, Files.readAllBytes(restored));
+
+        ByteArrayOutputStream opened = new ByteArrayOutputStream();
+        snap.decrypt(Channels.newChannel(new ByteArrayInputStream(snap.encrypt(plaintext))),
+                Channels.newChannel(opened));
+        assertArrayEquals(plaintext, opened.toByteArray());
+    }
+
+    @Test
+    void tamperedContainerFailsOnFileChannels() throws Exception {
+        byte[] container = snap.encrypt(Randoms.nextBytes(2 * SEGMENT));
+        ByteBuffer buffer = ByteBuffer.wrap(container);
+        SnapHeader.read(buffer);
+        container[buffer.position() + SEGMENT + 20] ^= 1;
+        Path sealed = Files.write(dir.resolve("sealed"), container);
+        try (FileChannel in = FileChannel.open(sealed, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(dir.resolve("restored"), StandardOpenOption.CREATE,
+                     StandardOpenOption.WRITE)) {
+            assertThrows(GeneralSecurityException.class, () -> snap.decrypt(in, out));
+        }
+    }
+
+    @Test
+    void decryptsByteRanges() throws Exception {
+        byte[] plaintext = Randoms.nextBytes(3 * SEGMENT + 5);
+        Path sealed = Files.write(dir.resolve("sealed"), snap.encrypt(plaintext));
+        String file = sealed.toString();
+        assertArrayEquals(Arrays.copyOfRange(plaintext, SEGMENT - 3, 2 * SEGMENT + 4),
+                snap.decryptRange(file, SEGMENT - 3, SEGMENT + 7));
+        assertArrayEquals(Arrays.copyOfRange(plaintext, plaintext.length - 2, plaintext.length),
+                snap.decryptRange(file, plaintext.length - 2, 100));
+        assertArrayEquals(new byte[0], snap.decryptRange(file, 0, 0));
+        assertArrayEquals(new byte[0], snap.decryptRange(file, plaintext.length + 10, 5));
+        // offset + length overflows a long
+        assertArrayEquals(new byte[0], snap.decryptRange(file, Long.MAX_VALUE - 1, Integer.MAX_VALUE));
+        assertArrayEquals(Arrays.copyOfRange(plaintext, 7, plaintext.length),
+                snap.decryptRange(file, 7, Integer.MAX_VALUE));
+
+        assertThrows(IllegalArgumentException.class, () -> snap.decryptRange(file, -1, 5));
+        assertThrows(IllegalArgumentException.class, () -> snap.decryptRange(file, 0, -1));
+    }
+
+    @Test
+    void rejectsOversizedChunksInTheHeader() throws Exception {
+        byte[] container = snap.encrypt(Randoms.nextBytes(100));
+        SnapHeader header = SnapHeader.read(ByteBuffer.wrap(container));
+        byte[] forged = new SnapHeader(header.algorithm(), header.flags(), header.keyId(), header.wrappedKey(),
+                header.nonce(), SnapHeader.MAX_CHUNK_SIZE + 1, header.payloadLength(), header.merkleRoot()).encode();
+        System.arraycopy(forged, 0, container, 0, forged.length);
+
+        IOException e = assertThrows(IOException.class, () -> snap.decrypt(container));
+        assertEquals("Invalid chunk size " + (SnapHeader.MAX_CHUNK_SIZE + 1), e.getMessage());
+        assertThrows(IllegalArgumentException.class,
+                () -> SnapHeader.of(header.algorithm(), null, header.nonce(), SnapHeader.MAX_CHUNK_SIZE + 1));
+    }
+
+    static byte[] concat(byte[] first, byte[] second) {
+        byte[] joined = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, joined, first.length, second.length);
+        return joined;
+    }
+}
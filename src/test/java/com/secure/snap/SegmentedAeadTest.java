@@ -0,0 +1,213 @@
+package com.secure.snap;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class SegmentedAeadTest {
+
+    private static final int SEGMENT = 64;
+    private static final int SEALED_SEGMENT = SEGMENT + SegmentedAead.TAG_LENGTH;
+    // two workers seal batches of eight segments, so 20 segments span three batches
+    private static final ForkJoinPool POOL = new ForkJoinPool(2);
+    private static final byte[] AAD = "header".getBytes();
+
+    private final SegmentedAead aead = new SegmentedAead(new SecretKeySpec(Randoms.nextBytes(32), "AES"), SEGMENT,
+            POOL);
+    private final OperationMetrics metrics = new OperationMetrics("test", SnapMetrics.Operation.ENCRYPT);
+    // every encryption picks a fresh nonce, as the containers do; decryption uses the latest one
+    private byte[] nonce;
+
+    @TempDir
+    Path dir;
+
+    @AfterAll
+    static void shutdown() {
+        POOL.shutdown();
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {0, 1, SEGMENT - 1, SEGMENT, SEGMENT + 1, 20 * SEGMENT, 20 * SEGMENT + 7})
+    void streamRoundTrip(int length) throws Exception {
+        byte[] plaintext = Randoms.nextBytes(length);
+        byte[] sealed = encryptStream(plaintext);
+        assertEquals(aead.sealedLength(length), sealed.length);
+        assertArrayEquals(plaintext, decryptStream(sealed, AAD));
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {0, 1, SEGMENT - 1, SEGMENT, SEGMENT + 1, 20 * SEGMENT, 20 * SEGMENT + 7})
+    void bufferRoundTrip(int length) throws Exception {
+        byte[] plaintext = Randoms.nextBytes(length);
+        byte[] sealed = encryptBuffer(plaintext);
+        assertEquals(aead.sealedLength(length), sealed.length);
+        assertEquals(length, aead.openedLength(sealed.length));
+        assertArrayEquals(plaintext, decryptBuffer(sealed));
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {0, 1, SEGMENT - 1, SEGMENT, SEGMENT + 1, 20 * SEGMENT, 20 * SEGMENT + 7})
+    void channelRoundTrip(int length) throws Exception {
+        byte[] plaintext = Randoms.nextBytes(length);
+        byte[] sealed = encryptChannel(plaintext);
+        assertEquals(aead.sealedLength(length), sealed.length);
+        assertArrayEquals(plaintext, decryptChannel(sealed));
+    }
+
+    @Test
+    void apisAreInterchangeable() throws Exception {
+        byte[] plaintext = Randoms.nextBytes(20 * SEGMENT + 7);
+        byte[] sealed = encryptStream(plaintext);
+        assertArrayEquals(plaintext, decryptBuffer(sealed));
+        assertArrayEquals(plaintext, decryptChannel(sealed));
+        sealed = encryptBuffer(plaintext);
+        assertArrayEquals(plaintext, decryptStream(sealed, AAD));
+        assertArrayEquals(plaintext, decryptChannel(sealed));
+        sealed = encryptChannel(plaintext);
+        assertArrayEquals(plaintext, decryptStream(sealed, AAD));
+        assertArrayEquals(plaintext, decryptBuffer(sealed));
+    }
+
+    @Test
+    void tamperedSegmentFails() throws Exception {
+        byte[] sealed = encryptStream(Randoms.nextBytes(20 * SEGMENT + 7));
+        sealed[10 * SEALED_SEGMENT + 3] ^= 1;
+        assertRejectedEverywhere(sealed);
+    }
+
+    @Test
+    void tamperedTagFails() throws Exception {
+        byte[] sealed = encryptStream(Randoms.nextBytes(3 * SEGMENT));
+        sealed[SEALED_SEGMENT - 1] ^= (byte) 0x80;
+        assertRejectedEverywhere(sealed);
+    }
+
+    @Test
+    void truncationAtSegmentBoundaryFails() throws Exception {
+        byte[] sealed = encryptStream(Randoms.nextBytes(20 * SEGMENT + 7));
+        assertRejectedEverywhere(Arrays.copyOf(sealed, 20 * SEALED_SEGMENT));
+        assertRejectedEverywhere(Arrays.copyOf(sealed, 8 * SEALED_SEGMENT));
+    }
+
+    @Test
+    void truncationToNothingFails() throws Exception {
+        byte[] sealed = encryptStream(Randoms.nextBytes(SEGMENT + 1));
+        assertThrows(Exception.class, () -> decryptStream(new byte[0], AAD));
+        assertRejectedEverywhere(Arrays.copyOf(sealed, SEALED_SEGMENT));
+    }
+
+    @Test
+    void reorderedSegmentsFail() throws Exception {
+        byte[] sealed = encryptStream(Randoms.nextBytes(20 * SEGMENT));
+        byte[] swapped = sealed.clone();
+        System.arraycopy(sealed, 0, swapped, SEALED_SEGMENT, SEALED_SEGMENT);
+        System.arraycopy(sealed, SEALED_SEGMENT, swapped, 0, SEALED_SEGMENT);
+        assertRejectedEverywhere(swapped);
+    }
+
+    @Test
+    void appendedSegmentFails() throws Exception {
+        byte[] sealed = encryptStream(Randoms.nextBytes(2 * SEGMENT));
+        byte[] extended = Arrays.copyOf(sealed, sealed.length + SEALED_SEGMENT);
+        System.arraycopy(sealed, 0, extended, sealed.length, SEALED_SEGMENT);
+        assertRejectedEverywhere(extended);
+    }
+
+    @Test
+    void differentAssociatedDataFails() throws Exception {
+        byte[] sealed = encryptStream(Randoms.nextBytes(3 * SEGMENT));
+        assertThrows(AEADBadTagException.class, () -> decryptStream(sealed, "other".getBytes()));
+    }
+
+    @Test
+    void failedBatchDoesNotCorruptLaterOperations() throws Exception {
+        byte[] plaintext = Randoms.nextBytes(40 * SEGMENT);
+        byte[] sealed = encryptChannel(plaintext);
+        byte[] tampered = sealed.clone();
+        tampered[3] ^= 1;
+        for (int i = 0; i < 20; i++) {
+            assertThrows(AEADBadTagException.class, () -> decryptChannel(tampered));
+            assertArrayEquals(plaintext, decryptChannel(sealed));
+        }
+    }
+
+    private void assertRejectedEverywhere(byte[] sealed) {
+        assertThrows(GeneralSecurityException.class, () -> decryptStream(sealed, AAD));
+        assertThrows(GeneralSecurityException.class, () -> decryptChannel(sealed));
+        Exception e = assertThrows(Exception.class, () -> decryptBuffer(sealed));
+        if (!(e instanceof GeneralSecurityException || e instanceof IOException)) {
+            throw new AssertionError("Unexpected failure", e);
+        }
+    }
+
+    private byte[] encryptStream(byte[] plaintext) throws Exception {
+        nonce = Randoms.nextBytes(SegmentedAead.NONCE_LENGTH);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        aead.encrypt(new ByteArrayInputStream(plaintext), out, nonce, AAD);
+        return out.toByteArray();
+    }
+
+    private byte[] decryptStream(byte[] sealed, byte[] aad) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        aead.decrypt(new ByteArrayInputStream(sealed), out, nonce, aad);
+        return out.toByteArray();
+    }
+
+    private byte[] encryptBuffer(byte[] plaintext) throws Exception {
+        nonce = Randoms.nextBytes(SegmentedAead.NONCE_LENGTH);
+        ByteBuffer out = ByteBuffer.allocate((int) aead.sealedLength(plaintext.length));
+        aead.encrypt(ByteBuffer.wrap(plaintext), out, nonce, AAD, metrics);
+        assertEquals(0, out.remaining());
+        return out.array();
+    }
+
+    private byte[] decryptBuffer(byte[] sealed) throws Exception {
+        long length = aead.openedLength(sealed.length);
+        ByteBuffer out = ByteBuffer.allocate((int) Math.max(0, length));
+        aead.decrypt(ByteBuffer.wrap(sealed), out, nonce, AAD, metrics);
+        return out.array();
+    }
+
+    private byte[] encryptChannel(byte[] plaintext) throws Exception {
+        Path in = Files.write(dir.resolve("plain"), plaintext);
+        Path out = dir.resolve("sealed");
+        try (FileChannel source = FileChannel.open(in);
+             FileChannel target = FileChannel.open(out, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                     StandardOpenOption.TRUNCATE_EXISTING)) {
+            nonce = Randoms.nextBytes(SegmentedAead.NONCE_LENGTH);
+            aead.encrypt(source, target, nonce, AAD, metrics);
+        }
+        return Files.readAllBytes(out);
+    }
+
+    private byte[] decryptChannel(byte[] sealed) throws Exception {
+        Path in = Files.write(dir.resolve("sealed-in"), sealed);
+        Path out = dir.resolve("opened");
+        try (FileChannel source = FileChannel.open(in);
+             FileChannel target = FileChannel.open(out, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                     StandardOpenOption.TRUNCATE_EXISTING)) {
+            aead.decrypt(source, target, nonce, AAD, sealed.length, metrics);
+        }
+        return Files.readAllBytes(out);
+    }
+}
@@ -0,0 +1,141 @@
+package com.secure.snap;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class ShamirSecretSharingTest {
+
+    @ParameterizedTest
+    @CsvSource({"1, 1", "3, 1", "3, 2", "3, 3", "5, 3", "10, 7", "255, 2", "255, 255"})
+    void anyThresholdOfSharesRecoversTheSecret(int total, int threshold) {
+        byte[] secret = Randoms.nextBytes(32);
+        List<ShamirSecretSharing.Share> shares = ShamirSecretSharing.split(secret, total, threshold);
+        assertEquals(total, shares.size());
+
+        List<ShamirSecretSharing.Share> shuffled = new ArrayList<>(shares);
+        Collections.shuffle(shuffled);
+        assertArrayEquals(secret, ShamirSecretSharing.combine(shuffled.subList(0, threshold)));
+        assertArrayEquals(secret, ShamirSecretSharing.combine(shuffled));
+        Collections.reverse(shuffled);
+        assertArrayEquals(secret, ShamirSecretSharing.combine(shuffled.subList(0, threshold)));
+    }
+
+    @ParameterizedTest
+    @CsvSource({"3, 2", "5, 3", "10, 7", "255, 128"})
+    void fewerSharesThanTheThresholdDoNotRecoverTheSecret(int total, int threshold) {
+        byte[] secret = Randoms.nextBytes(32);
+        List<ShamirSecretSharing.Share> shares = ShamirSecretSharing.split(secret, total, threshold);
+
+        for (int count = 1; count < threshold; count = Math.max(count + 1, count * 2)) {
+            byte[] guess = ShamirSecretSharing.combine(shares.subList(0, count));
+            // 32 random bytes matching by chance is out of reach
+            assertFalse(Arrays.equals(secret, guess), count + " of " + threshold);
+        }
+    }
+
+    @Test
+    void secretOfAnyLengthRoundTrips() {
+        for (int length : new int[]{0, 1, 16, 1000}) {
+            byte[] secret = Randoms.nextBytes(length);
+            assertArrayEquals(secret, ShamirSecretSharing.combine(ShamirSecretSharing.split(secret, 4, 3)));
+        }
+    }
+
+    @Test
+    void singleShareThresholdStoresTheSecretInEveryShare() {
+        byte[] secret = Randoms.nextBytes(16);
+        for (ShamirSecretSharing.Share share : ShamirSecretSharing.split(secret, 3, 1)) {
+            assertArrayEquals(secret, share.y());
+        }
+    }
+
+    @Test
+    void sharesSerializeAndParse() {
+        ShamirSecretSharing.Share share = ShamirSecretSharing.split(Randoms.nextBytes(20), 5, 3).get(4);
+        ShamirSecretSharing.Share parsed = ShamirSecretSharing.Share.fromBytes(share.toBytes());
+        assertEquals(share.x(), parsed.x());
+        assertArrayEquals(share.y(), parsed.y());
+    }
+
+    @Test
+    void coefficientsAreCachedPerShareSetAndRecomputedAfterTheCacheClears() {
+        byte[] secret = Randoms.nextBytes(32);
+        List<ShamirSecretSharing.Share> shares = ShamirSecretSharing.split(secret, 5, 3);
+        List<ShamirSecretSharing.Share> subset = List.of(shares.get(4), shares.get(0), shares.get(2));
+        ShamirSecretSharing.ShareSet set = ShamirSecretSharing.ShareSet.of(subset);
+        int[] coefficients = ShamirSecretSharing.lagrangeLogCoefficients(set);
+        assertSame(coefficients, ShamirSecretSharing.lagrangeLogCoefficients(set));
+        assertSame(coefficients, ShamirSecretSharing.lagrangeLogCoefficients(
+                ShamirSecretSharing.ShareSet.of(List.of(shares.get(0), shares.get(2), shares.get(4)))));
+        assertArrayEquals(secret, ShamirSecretSharing.combine(subset));
+
+        // more distinct sets than the cache holds, so it clears at least once
+        List<ShamirSecretSharing.Share> many = ShamirSecretSharing.split(Randoms.nextBytes(4), 255, 2);
+        for (int i = 0; i < 1100; i++) {
+            List<ShamirSecretSharing.Share> pair = List.of(many.get(i % 200), many.get(200 + i / 200));
+            assertEquals(4, ShamirSecretSharing.combine(pair).length);
+        }
+
+        int[] recomputed = ShamirSecretSharing.lagrangeLogCoefficients(set);
+        assertNotSame(coefficients, recomputed);
+        assertArrayEquals(coefficients, recomputed);
+        assertArrayEquals(secret, ShamirSecretSharing.combine(subset));
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {1, 63, 64, 500})
+    void combineAllRecoversEverySecretInOrder(int count) {
+        List<byte[]> secrets = new ArrayList<>(count);
+        List<List<ShamirSecretSharing.Share>> sharesPerSecret = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            byte[] secret = Randoms.nextBytes(16 + i % 7);
+            List<ShamirSecretSharing.Share> shares = ShamirSecretSharing.split(secret, 6, 3);
+            secrets.add(secret);
+            // a few custodian sets, so batches mix cached and new coefficients
+            sharesPerSecret.add(List.of(shares.get(i % 4), shares.get(4), shares.get(5)));
+        }
+
+        List<byte[]> combined = ShamirSecretSharing.combineAll(sharesPerSecret);
+        assertEquals(count, combined.size());
+        for (int i = 0; i < count; i++) {
+            assertArrayEquals(secrets.get(i), combined.get(i), "secret " + i);
+        }
+    }
+
+    @Test
+    void combineAllReportsInvalidShares() {
+        List<List<ShamirSecretSharing.Share>> sharesPerSecret = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            sharesPerSecret.add(ShamirSecretSharing.split(Randoms.nextBytes(8), 3, 2));
+        }
+        sharesPerSecret.set(70, List.of());
+        assertThrows(IllegalArgumentException.class, () -> ShamirSecretSharing.combineAll(sharesPerSecret));
+    }
+
+    @Test
+    void invalidArgumentsAreRejected() {
+        byte[] secret = Randoms.nextBytes(8);
+        assertThrows(IllegalArgumentException.class, () -> ShamirSecretSharing.split(secret, 3, 0));
+        assertThrows(IllegalArgumentException.class, () -> ShamirSecretSharing.split(secret, 3, 4));
+        assertThrows(IllegalArgumentException.class, () -> ShamirSecretSharing.split(secret, 256, 2));
+        assertThrows(IllegalArgumentException.class, () -> ShamirSecretSharing.combine(List.of()));
+        List<ShamirSecretSharing.Share> shares = ShamirSecretSharing.split(secret, 3, 2);
+        assertThrows(IllegalArgumentException.class,
+                () -> ShamirSecretSharing.combine(List.of(shares.get(0), shares.get(0))));
+        assertThrows(IllegalArgumentException.class, () -> new ShamirSecretSharing.Share(0, secret));
+    }
+}
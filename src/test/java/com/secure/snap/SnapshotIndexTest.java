@@ -0,0 +1,99 @@
+package com.secure.snap;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SnapshotIndexTest {
+
+    private static final String ALGORITHM = SecureSnap.ALGORITHM;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void savedIndexLoadsBack() throws IOException {
+        Path file = dir.resolve("index");
+        SnapshotIndex index = SnapshotIndex.empty(ALGORITHM);
+        byte[] hash = Randoms.nextBytes(SnapshotIndex.HASH_LENGTH);
+        index.put("a/b.txt", new SnapshotIndex.Entry(42, 1_234_567_890_123L, hash, "a/b.txt"));
+        index.put("ünïcode", new SnapshotIndex.Entry(0, 0, new byte[SnapshotIndex.HASH_LENGTH], "ünïcode"));
+        index.save(file);
+
+        SnapshotIndex loaded = SnapshotIndex.load(file, ALGORITHM);
+        assertEquals(2, loaded.size());
+        assertEquals(Set.of("a/b.txt", "ünïcode"), loaded.paths());
+        SnapshotIndex.Entry entry = loaded.get("a/b.txt");
+        assertEquals(42, entry.size());
+        assertEquals(1_234_567_890_123L, entry.modifiedNanos());
+        assertArrayEquals(hash, entry.contentHash());
+        assertTrue(entry.hasContentHash(hash));
+        assertEquals("a/b.txt", entry.target());
+    }
+
+    @Test
+    void missingOrForeignIndexIsEmpty() throws IOException {
+        Path file = dir.resolve("index");
+        assertEquals(0, SnapshotIndex.load(file, ALGORITHM).size());
+
+        SnapshotIndex index = SnapshotIndex.empty("other");
+        index.put("x", new SnapshotIndex.Entry(1, 1, new byte[SnapshotIndex.HASH_LENGTH], "x"));
+        index.save(file);
+        assertEquals(0, SnapshotIndex.load(file, ALGORITHM).size());
+        assertEquals(1, SnapshotIndex.load(file, "other").size());
+    }
+
+    @Test
+    void malformedIndexIsRejected() throws IOException {
+        Path file = dir.resolve("index");
+        SnapshotIndex index = SnapshotIndex.empty(ALGORITHM);
+        index.put("x", new SnapshotIndex.Entry(1, 1, new byte[SnapshotIndex.HASH_LENGTH], "x"));
+        index.save(file);
+        byte[] bytes = Files.readAllBytes(file);
+
+        Files.write(file, Arrays.copyOf(bytes, bytes.length - 3));
+        assertThrows(IOException.class, () -> SnapshotIndex.load(file, ALGORITHM));
+        Files.write(file, "not an index".getBytes());
+        assertThrows(IOException.class, () -> SnapshotIndex.load(file, ALGORITHM));
+    }
+
+    @Test
+    void contentHashIsATruncatedSha256() throws Exception {
+        byte[] content = Randoms.nextBytes(3 * 1024 * 1024 + 5);
+        Path file = Files.write(dir.resolve("content"), content);
+        byte[] expected = Arrays.copyOf(MessageDigest.getInstance("SHA-256").digest(content),
+                SnapshotIndex.HASH_LENGTH);
+
+        assertArrayEquals(expected, SnapshotIndex.contentHash(file));
+        content[content.length / 2] ^= 1;
+        Files.write(file, content);
+        assertFalse(Arrays.equals(expected, SnapshotIndex.contentHash(file)));
+    }
+
+    @Test
+    void entriesNeedAFullLengthHash() {
+        assertThrows(IllegalArgumentException.class, () -> new SnapshotIndex.Entry(1, 1, new byte[4], "x"));
+    }
+
+    @Test
+    void removedEntriesAreGone() {
+        SnapshotIndex index = SnapshotIndex.empty(ALGORITHM);
+        index.put("x", new SnapshotIndex.Entry(1, 1, new byte[SnapshotIndex.HASH_LENGTH], "x"));
+        index.remove("x");
+        assertNull(index.get("x"));
+        assertEquals(0, index.size());
+    }
+}